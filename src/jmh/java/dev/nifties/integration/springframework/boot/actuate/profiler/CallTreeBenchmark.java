@@ -0,0 +1,104 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and aggregation of AsyncProfiler collapsed output, behind captures, diffs and summaries. Stacks are
+ * generated with a fixed seed, sharing prefixes the way real call trees do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallTreeBenchmark {
+
+    private static final int FRAMES = 2000;
+
+    @Param({"1000", "100000"})
+    public int stacks;
+
+    private String collapsed;
+    private CallTree tree;
+
+    @Setup
+    public void generate() {
+        collapsed = generateCollapsed(stacks, new Random(42L));
+        tree = CallTree.parseCollapsed(collapsed);
+    }
+
+    @Benchmark
+    public CallTree parse() {
+        return CallTree.parseCollapsed(collapsed);
+    }
+
+    @Benchmark
+    public List<CallTree.FrameCount> topSelf() {
+        return tree.topSelf(20);
+    }
+
+    @Benchmark
+    public List<CallTree.FrameCount> topTotal() {
+        return tree.topTotal(20);
+    }
+
+    @Benchmark
+    public ProfileSummary summary() {
+        return ProfileSummary.of(collapsed, 20, true);
+    }
+
+    @Benchmark
+    public void writePprof() throws IOException {
+        PprofWriter.write(tree, 0, "cpu", false, 0L, 0L, new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    static String generateCollapsed(int stacks, Random random) {
+        StringBuilder out = new StringBuilder(stacks * 400);
+        int[] previous = new int[0];
+        for (int i = 0; i < stacks; i++) {
+            // share a random prefix with the previous stack
+            int shared = previous.length == 0 ? 0 : random.nextInt(previous.length);
+            int depth = shared + 1 + random.nextInt(40);
+            int[] stack = new int[depth];
+            System.arraycopy(previous, 0, stack, 0, shared);
+            for (int d = shared; d < depth; d++) {
+                stack[d] = random.nextInt(FRAMES);
+            }
+            for (int d = 0; d < depth; d++) {
+                if (d > 0) {
+                    out.append(';');
+                }
+                out.append("com/example/service/Component").append(stack[d] % 97).append(".method")
+                        .append(stack[d]);
+            }
+            out.append(' ').append(1 + random.nextInt(100)).append('\n');
+            previous = depth > 64 ? new int[0] : stack;
+        }
+        return out.toString();
+    }
+}
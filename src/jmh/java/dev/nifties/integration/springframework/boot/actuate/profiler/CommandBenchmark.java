@@ -0,0 +1,64 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of translating request parameters into AsyncProfiler command, paid on every request to the endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    private final Map<String, String[]> noParameters = Collections.emptyMap();
+    private final Map<String, String[]> typicalParameters = parameters(
+            "event", "wall", "interval", "1ms", "threads", "", "duration", "30", "owner", "alice");
+    private final Map<String, String[]> manyParameters = parameters(
+            "event", "cpu", "alloc", "512k", "lock", "10ms", "interval", "10ms", "jstackdepth", "4096",
+            "include", "*Controller*", "exclude", "*Unsafe.park*", "threads", "", "simple", "", "sig", "",
+            "duration", "30", "compression", "fast");
+
+    @Benchmark
+    public String startWithoutParameters() {
+        return ProfilerCommands.getCommand("start", noParameters);
+    }
+
+    @Benchmark
+    public String startWithTypicalParameters() {
+        return ProfilerCommands.getCommand("start", typicalParameters);
+    }
+
+    @Benchmark
+    public String startWithManyParameters() {
+        return ProfilerCommands.getCommand("start", manyParameters);
+    }
+
+    @Benchmark
+    public String parseMultiValueParameter() {
+        return ProfilerCommands.parseParameter("include", new String[]{"*Controller*", "*Service*"});
+    }
+
+    private static Map<String, String[]> parameters(String... keysAndValues) {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            parameters.put(keysAndValues[i], new String[]{keysAndValues[i + 1]});
+        }
+        return Collections.unmodifiableMap(parameters);
+    }
+}
@@ -0,0 +1,113 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput of a {@code ResponseEntity<Resource>} holding a {@link TemporaryFileSystemResource}, the way
+ * the servlet endpoint returns profiler output: written by Spring MVC's {@link ResourceHttpMessageConverter} as it
+ * would be if returned as is, versus streamed by {@link ResourceResponseBody} the endpoint replaces it with. Output is
+ * written to /dev/null, so that the sink does not dominate the measurement.
+ * <p>
+ * Each invocation downloads a fresh hard link of the same file, as the resource deletes its file once opened.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TemporaryFileSystemResourceBenchmark {
+
+    private static final int BUFFER_SIZE = (int) new AsyncProfilerProperties.Compression().getBufferSize().toBytes();
+
+    @Param({"1", "64", "1024"})
+    public int sizeMegabytes;
+
+    private final ResourceHttpMessageConverter converter = new ResourceHttpMessageConverter();
+    private File directory;
+    private File source;
+    private File link;
+    private ResponseEntity<Resource> response;
+    private FileOutputStream sink;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        directory = Files.createTempDirectory("async-profiler-benchmark").toFile();
+        source = new File(directory, "source.html");
+        byte[] chunk = new byte[1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(source.toPath())) {
+            for (int i = 0; i < sizeMegabytes; i++) {
+                out.write(chunk);
+            }
+        }
+        sink = new FileOutputStream("/dev/null");
+    }
+
+    @Setup(Level.Invocation)
+    public void linkFile() throws IOException {
+        link = new File(directory, "download.html");
+        Files.deleteIfExists(link.toPath());
+        Files.createLink(link.toPath(), source.toPath());
+        response = ResponseEntity.ok().contentType(MediaType.TEXT_HTML).body(new TemporaryFileSystemResource(link));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        sink.close();
+        Files.deleteIfExists(link.toPath());
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(directory.toPath());
+    }
+
+    @Benchmark
+    public void resourceConverter() throws IOException {
+        converter.write(response.getBody(), response.getHeaders().getContentType(), new HttpOutputMessage() {
+            private final HttpHeaders headers = new HttpHeaders();
+
+            @Override
+            public OutputStream getBody() {
+                return StreamUtils.nonClosing(sink);
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        });
+    }
+
+    @Benchmark
+    public void responseBody() throws IOException {
+        ResponseEntity<?> streamed = ResourceResponseBody.of(response, BUFFER_SIZE);
+        ((StreamingResponseBody) streamed.getBody()).writeTo(StreamUtils.nonClosing(sink));
+    }
+}
@@ -0,0 +1,85 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a synthetic application workload - parsing, hashing, sorting and allocating - with the profiler off
+ * and with cpu, wall and alloc profiling running, to track profiling overhead across releases.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class WorkloadBenchmark {
+
+    @Param({"off", "cpu", "wall", "alloc"})
+    public String profiling;
+
+    private AsyncProfiler asyncProfiler;
+
+    @Setup(Level.Trial)
+    public void startProfiling() throws IOException {
+        if ("off".equals(profiling)) {
+            return;
+        }
+        asyncProfiler = AsyncProfiler.getInstance();
+        String command = "alloc".equals(profiling) ? "start,alloc" : "start,event=" + profiling;
+        asyncProfiler.execute(command + ",file=" + System.getProperty("java.io.tmpdir")
+                + "/async-profiler-benchmark-" + profiling + ".jfr");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopProfiling() throws IOException {
+        if (asyncProfiler != null) {
+            asyncProfiler.execute("stop");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Request {
+        private final Random random = new Random(42L);
+    }
+
+    @Benchmark
+    public int request(Request request) {
+        Random random = request.random;
+        Map<String, Integer> counts = new HashMap<>();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("item-").append(random.nextInt(50)).append(',');
+        }
+        for (String item : body.toString().split(",")) {
+            counts.merge(item, 1, Integer::sum);
+        }
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt();
+        }
+        Arrays.sort(values);
+        return counts.size() + values[values.length / 2];
+    }
+}
@@ -0,0 +1,256 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps rendered artifacts for repeated downloads within a total byte budget, least recently used ones being evicted
+ * first. Artifacts up to a threshold are held in memory, larger ones as files in the cache directory. Concurrent
+ * requests for the same missing artifact wait for a single rendering instead of each rendering it again.
+ * <p>
+ * An artifact larger than the whole budget is not cached, its file is deleted as soon as it has been downloaded.
+ */
+final class ArtifactCache {
+
+    private static final Log log = LogFactory.getLog(ArtifactCache.class);
+
+    private static final String FILE_PREFIX = "artifact-";
+
+    /**
+     * Writes content of an artifact.
+     */
+    @FunctionalInterface
+    interface Renderer {
+        void render(OutputStream out) throws IOException;
+    }
+
+    private final File directory;
+    private final long maxSize;
+    private final long memoryThreshold;
+
+    /**
+     * Cached artifacts in access order, least recently used first.
+     */
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<Artifact>> rendering = new HashMap<>();
+    private long size;
+
+    /**
+     * @param maxSize total size of cached artifacts, in bytes
+     * @param memoryThreshold artifacts up to this size are kept in memory, larger ones on disk
+     */
+    ArtifactCache(File directory, long maxSize, long memoryThreshold) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Returns cached artifact, rendering it with given renderer if it is not cached yet.
+     */
+    Artifact get(String key, Renderer renderer) throws IOException {
+        FutureTask<Artifact> task;
+        boolean owner = false;
+        synchronized (this) {
+            Artifact artifact = artifacts.get(key);
+            if (artifact != null) {
+                return artifact;
+            }
+            task = rendering.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> render(key, renderer));
+                rendering.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    rendering.remove(key);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key + " to be rendered");
+        }
+    }
+
+    /**
+     * Evicts all artifacts whose keys start with given prefix, e.g. all formats of a deleted recording.
+     */
+    synchronized void invalidate(String prefix) {
+        Iterator<Artifact> iterator = artifacts.values().iterator();
+        while (iterator.hasNext()) {
+            Artifact artifact = iterator.next();
+            if (artifact.key.startsWith(prefix)) {
+                iterator.remove();
+                evicted(artifact);
+            }
+        }
+    }
+
+    /**
+     * Evicts all artifacts.
+     */
+    synchronized void clear() {
+        invalidate("");
+    }
+
+    /**
+     * @return total size of cached artifacts, in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return artifacts.size();
+    }
+
+    private Artifact render(String key, Renderer renderer) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        File file = File.createTempFile(FILE_PREFIX, null, directory);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+                renderer.render(out);
+            }
+            long length = file.length();
+            Artifact artifact;
+            if (length <= memoryThreshold) {
+                artifact = new Artifact(key, Files.readAllBytes(file.toPath()), null, length);
+                Files.delete(file.toPath());
+            } else {
+                artifact = new Artifact(key, null, file, length);
+            }
+            store(artifact);
+            return artifact;
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private synchronized void store(Artifact artifact) {
+        if (artifact.size > maxSize) {
+            log.debug("Not caching " + artifact.key + " of " + artifact.size + " bytes, larger than the cache");
+            return;
+        }
+        artifact.cached = true;
+        artifacts.put(artifact.key, artifact);
+        size += artifact.size;
+        List<Artifact> evicted = new ArrayList<>();
+        Iterator<Artifact> iterator = artifacts.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Artifact eldest = iterator.next();
+            if (eldest != artifact) {
+                iterator.remove();
+                evicted.add(eldest);
+                size -= eldest.size;
+            }
+        }
+        for (Artifact eldest : evicted) {
+            deleteFile(eldest);
+        }
+    }
+
+    private void evicted(Artifact artifact) {
+        size -= artifact.size;
+        deleteFile(artifact);
+    }
+
+    private static void deleteFile(Artifact artifact) {
+        // on POSIX systems downloads already in progress keep reading the unlinked file
+        if (artifact.file != null && !artifact.file.delete() && artifact.file.exists()) {
+            log.warn("Failed to delete cached artifact " + artifact.file);
+        }
+    }
+
+    /**
+     * Rendered content, held either in memory or in a file.
+     */
+    static final class Artifact {
+
+        private final String key;
+        private final byte[] bytes;
+        private final File file;
+        private final long size;
+        private volatile boolean cached;
+
+        Artifact(String key, byte[] bytes, File file, long size) {
+            this.key = key;
+            this.bytes = bytes;
+            this.file = file;
+            this.size = size;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        boolean isCached() {
+            return cached;
+        }
+
+        /**
+         * @return content held in memory, {@code null} if it is held in a file
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return file holding the content, {@code null} if it is held in memory
+         */
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return content for download, an uncached file is deleted once it has been read
+         */
+        Resource toResource() {
+            if (bytes != null) {
+                return new ByteArrayResource(bytes);
+            }
+            if (!file.exists()) {
+                throw new UncheckedIOException(new IOException("Artifact " + key + " has been evicted"));
+            }
+            return cached ? new FileSystemResource(file) : new TemporaryFileSystemResource(file);
+        }
+    }
+}
@@ -3,35 +3,73 @@ package dev.nifties.integration.springframework.boot.actuate.profiler;
 import one.profiler.AsyncProfiler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Condition;
 import org.springframework.context.annotation.ConditionContext;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Spring {@link Condition} that checks availability of {@link AsyncProfiler} allowing to effectively skip all beans on
  * unsupported platforms.
+ * <p>
+ * With {@link AsyncProfilerProperties.Loading#EAGER eager} loading the native library is loaded to check it, otherwise
+ * only its presence for the current platform is checked, keeping native library loading off the startup path.
  *
  * @author Andris Rauda
  */
 public class AsyncProfilerAvailableCondition implements Condition {
     private static final Log log = LogFactory.getLog(AsyncProfilerAvailableCondition.class);
 
-    private static final boolean AVAILABLE;
-    static {
-        boolean available;
-        try {
-            final AsyncProfiler instance = AsyncProfiler.getInstance();
-            log.info("AsyncProfilerEndpoint activated with " + instance.getVersion());
-            available = true;
-        } catch (RuntimeException ex) {
-            log.warn("AsyncProfilerEndpoint not available: " + ex.getMessage());
-            available = false;
-        }
-        AVAILABLE = available;
-    }
+    static final String LOADING_PROPERTY = "management.endpoint.profiler.loading";
 
     @Override
     public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
-        return AVAILABLE;
+        AsyncProfilerProperties.Loading loading = Binder.get(context.getEnvironment())
+                .bind(LOADING_PROPERTY, AsyncProfilerProperties.Loading.class)
+                .orElse(AsyncProfilerProperties.Loading.EAGER);
+        return loading == AsyncProfilerProperties.Loading.EAGER ? Loaded.AVAILABLE : Found.AVAILABLE;
+    }
+
+    /**
+     * Holds result of loading the native library, so that it is loaded once and only if eager loading is configured.
+     */
+    private static final class Loaded {
+        private static final boolean AVAILABLE;
+        static {
+            boolean available;
+            long startNanos = System.nanoTime();
+            try {
+                final AsyncProfiler instance = AsyncProfiler.getInstance();
+                log.info("AsyncProfilerEndpoint activated with " + instance.getVersion() + ", loaded in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+                available = true;
+            } catch (RuntimeException ex) {
+                log.warn("AsyncProfilerEndpoint not available: " + ex.getMessage());
+                available = false;
+            }
+            AVAILABLE = available;
+        }
+    }
+
+    /**
+     * Holds result of looking for the native library without loading it.
+     */
+    private static final class Found {
+        private static final boolean AVAILABLE;
+        static {
+            long startNanos = System.nanoTime();
+            String library = AsyncProfilerLoader.findNativeLibrary();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            if (library != null) {
+                log.info("AsyncProfilerEndpoint activated with " + library + ", found in " + millis + " ms, "
+                        + "to be loaded later");
+            } else {
+                log.warn("AsyncProfilerEndpoint not available: no native library for " + System.getProperty("os.name")
+                        + " " + System.getProperty("os.arch"));
+            }
+            AVAILABLE = library != null;
+        }
     }
 }
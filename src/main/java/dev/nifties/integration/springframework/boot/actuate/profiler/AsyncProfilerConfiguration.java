@@ -1,11 +1,23 @@
 package dev.nifties.integration.springframework.boot.actuate.profiler;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import one.profiler.AsyncProfiler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.context.annotation.*;
 
+import javax.servlet.DispatcherType;
+import java.io.File;
+
 /**
  * Spring context configuration for creating AsyncProfiler Actuator beans.
  *
@@ -14,20 +26,141 @@ import org.springframework.context.annotation.*;
  */
 @Configuration
 @Conditional(AsyncProfilerAvailableCondition.class)
+@EnableConfigurationProperties(AsyncProfilerProperties.class)
 public class AsyncProfilerConfiguration {
 
     /**
-     * Exposes AsyncProfiler instance as a Spring bean, so it would automatically be exposed as a JMX MBean.
+     * Loads the native library when configured with {@code management.endpoint.profiler.loading}.
+     */
+    @Bean
+    public AsyncProfilerLoader asyncProfilerLoader(AsyncProfilerProperties properties) {
+        return new AsyncProfilerLoader(properties.getLoading());
+    }
+
+    /**
+     * Exposes AsyncProfiler instance as a Spring bean, so it would automatically be exposed as a JMX MBean. Only with
+     * eager loading, as creating the bean loads the native library.
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "management.endpoint.profiler", name = "loading", havingValue = "eager",
+            matchIfMissing = true)
+    public static AsyncProfiler asyncProfiler(AsyncProfilerLoader asyncProfilerLoader) {
+        return asyncProfilerLoader.get();
+    }
+
+    /**
+     * Serializes access to the single process-wide AsyncProfiler instance. Profiler meters are registered only if
+     * there is a {@link MeterRegistry} bean.
+     */
+    @Bean
+    public ProfilingSessionManager profilingSessionManager(AsyncProfilerLoader asyncProfilerLoader,
+                                                           AsyncProfilerProperties properties,
+                                                           ObjectProvider<MeterRegistry> meterRegistry) {
+        return new ProfilingSessionManager(asyncProfilerLoader, properties.getSessions(),
+                meterRegistry.getIfAvailable());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "management.endpoint.profiler.continuous", name = "enabled", havingValue = "true")
+    public ContinuousProfiler continuousProfiler(ProfilingSessionManager profilingSessionManager,
+                                                 AsyncProfilerProperties properties) {
+        ContinuousProfiler continuousProfiler = new ContinuousProfiler(profilingSessionManager,
+                properties.getContinuous());
+        profilingSessionManager.getMetrics().bind(continuousProfiler);
+        return continuousProfiler;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "management.endpoint.profiler.triggers", name = "enabled", havingValue = "true")
+    public TriggeredProfiler triggeredProfiler(ProfilingSessionManager profilingSessionManager,
+                                               AsyncProfilerProperties properties,
+                                               ObjectProvider<MeterRegistry> meterRegistry) {
+        return new TriggeredProfiler(profilingSessionManager, properties.getTriggers(),
+                meterRegistry.getIfAvailable());
+    }
+
+    /**
+     * Sink of scheduled exports, unless one is declared by the application.
      */
     @Bean
-    public static AsyncProfiler asyncProfiler() {
-        return AsyncProfiler.getInstance();
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "management.endpoint.profiler.export", name = "enabled", havingValue = "true")
+    public ProfileSink profileSink(AsyncProfilerProperties properties) {
+        AsyncProfilerProperties.Export export = properties.getExport();
+        if (export.getSink() == AsyncProfilerProperties.Export.Sink.S3) {
+            return new S3ProfileSink(export.getS3());
+        }
+        return new FileSystemProfileSink(export.getDirectory() != null ? export.getDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-exports"));
     }
 
+    /**
+     * Exports are stored under {@code spring.application.name}, unless a service name is configured.
+     */
     @Bean
-    @ConditionalOnWebApplication
-    public AsyncProfilerWebEndpoint asyncProfilerWebEndpoint(AsyncProfiler asyncProfiler) {
-        return new AsyncProfilerWebEndpoint(asyncProfiler);
+    @ConditionalOnProperty(prefix = "management.endpoint.profiler.export", name = "enabled", havingValue = "true")
+    public ProfileExporter profileExporter(ProfilingSessionManager profilingSessionManager,
+                                           AsyncProfilerProperties properties, ProfileSink profileSink,
+                                           ObjectProvider<ContinuousProfiler> continuousProfiler,
+                                           Environment environment) {
+        AsyncProfilerProperties.Export export = properties.getExport();
+        String service = export.getService() != null ? export.getService()
+                : environment.getProperty("spring.application.name", "application");
+        return new ProfileExporter(profilingSessionManager, continuousProfiler.getIfAvailable(), profileSink, export,
+                service);
+    }
+
+    /**
+     * Servlet endpoint.
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    static class ServletEndpointConfiguration {
+
+        @Bean
+        public AsyncProfilerWebEndpoint asyncProfilerWebEndpoint(ProfilingSessionManager profilingSessionManager,
+                                                                 AsyncProfilerProperties properties,
+                                                                 ObjectProvider<ContinuousProfiler> continuousProfiler,
+                                                                 ObjectProvider<TriggeredProfiler> triggeredProfiler) {
+            return new AsyncProfilerWebEndpoint(profilingSessionManager, properties,
+                    continuousProfiler.getIfAvailable(), triggeredProfiler.getIfAvailable());
+        }
+
+    }
+
+    /**
+     * Request-scoped profiling filter of the servlet endpoint, registered first in the chain, so that the whole request
+     * is profiled. Left out where the servlet API is {@code jakarta.servlet} (Spring Boot 3), the endpoint then
+     * rejects request-scoped profiling.
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnClass(name = "javax.servlet.Filter")
+    static class RequestProfilingFilterConfiguration {
+
+        @Bean
+        public FilterRegistrationBean<RequestProfilingFilter> requestProfilingFilter(
+                AsyncProfilerWebEndpoint asyncProfilerWebEndpoint) {
+            FilterRegistrationBean<RequestProfilingFilter> registration = new FilterRegistrationBean<>(
+                    new RequestProfilingFilter(asyncProfilerWebEndpoint.getRequestSelector()));
+            registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+            registration.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ASYNC);
+            return registration;
+        }
+    }
+
+    /**
+     * Reactive endpoint, chosen instead of the servlet one in WebFlux applications.
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+    static class ReactiveEndpointConfiguration {
+
+        @Bean
+        public ReactiveAsyncProfilerWebEndpoint reactiveAsyncProfilerWebEndpoint(
+                ProfilingSessionManager profilingSessionManager, AsyncProfilerProperties properties) {
+            return new ReactiveAsyncProfilerWebEndpoint(profilingSessionManager, properties);
+        }
     }
 
 }
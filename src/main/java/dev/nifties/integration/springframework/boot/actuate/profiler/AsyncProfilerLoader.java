@@ -0,0 +1,189 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Loads the {@link AsyncProfiler} native library once, either during application startup, on first use or on a
+ * background thread once the application is ready, see {@link AsyncProfilerProperties.Loading}. Load time is logged
+ * and reported as {@code profiler.native.load} meter. A failure to load is remembered, so that the library is not
+ * extracted again on every request.
+ */
+public final class AsyncProfilerLoader implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Log log = LogFactory.getLog(AsyncProfilerLoader.class);
+
+    private static final String LIBRARY_NAME = "asyncProfiler";
+
+    private final Supplier<AsyncProfiler> factory;
+    private final AsyncProfilerProperties.Loading loading;
+
+    private volatile AsyncProfiler asyncProfiler;
+    private volatile RuntimeException failure;
+    private volatile long loadNanos = -1L;
+
+    public AsyncProfilerLoader(AsyncProfilerProperties.Loading loading) {
+        this(AsyncProfiler::getInstance, loading);
+    }
+
+    AsyncProfilerLoader(Supplier<AsyncProfiler> factory, AsyncProfilerProperties.Loading loading) {
+        this.factory = factory;
+        this.loading = loading;
+    }
+
+    /**
+     * @return loader of an already loaded instance
+     */
+    static AsyncProfilerLoader of(AsyncProfiler asyncProfiler) {
+        AsyncProfilerLoader loader = new AsyncProfilerLoader(() -> asyncProfiler,
+                AsyncProfilerProperties.Loading.EAGER);
+        loader.asyncProfiler = asyncProfiler;
+        loader.loadNanos = 0L;
+        return loader;
+    }
+
+    /**
+     * @return AsyncProfiler instance, loading the native library if it has not been loaded yet
+     * @throws IllegalStateException if the native library could not be loaded
+     */
+    public AsyncProfiler get() {
+        AsyncProfiler result = asyncProfiler;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            if (asyncProfiler == null) {
+                if (failure != null) {
+                    throw failure;
+                }
+                load();
+            }
+            return asyncProfiler;
+        }
+    }
+
+    /**
+     * @return AsyncProfiler instance, {@code null} if the native library has not been loaded yet
+     */
+    AsyncProfiler getIfLoaded() {
+        return asyncProfiler;
+    }
+
+    /**
+     * @return samples collected by the current profiling session, 0 without loading the native library
+     */
+    long getSamples() {
+        AsyncProfiler result = asyncProfiler;
+        return result != null ? result.getSamples() : 0L;
+    }
+
+    /**
+     * @return time it took to load the native library, in nanoseconds, negative if it has not been loaded yet
+     */
+    long getLoadNanos() {
+        return loadNanos;
+    }
+
+    AsyncProfilerProperties.Loading getLoading() {
+        return loading;
+    }
+
+    /**
+     * Starts loading the native library on a background thread, if configured so.
+     */
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (loading != AsyncProfilerProperties.Loading.BACKGROUND || asyncProfiler != null) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-loader-");
+        threadFactory.setDaemon(true);
+        threadFactory.setThreadPriority(Thread.MIN_PRIORITY);
+        threadFactory.newThread(() -> {
+            try {
+                get();
+            } catch (RuntimeException e) {
+                // already logged
+            }
+        }).start();
+    }
+
+    private void load() {
+        long startNanos = System.nanoTime();
+        try {
+            AsyncProfiler instance = factory.get();
+            loadNanos = System.nanoTime() - startNanos;
+            asyncProfiler = instance;
+            log.info("Loaded AsyncProfiler " + instance.getVersion() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(loadNanos) + " ms");
+        } catch (RuntimeException | LinkageError e) {
+            failure = new IllegalStateException("AsyncProfiler not available: " + e.getMessage(), e);
+            log.warn(failure.getMessage());
+            throw failure;
+        }
+    }
+
+    /**
+     * Finds the native library the way {@link AsyncProfiler#getInstance()} would load it, without loading it: the
+     * library bundled for the current platform, otherwise one on {@code java.library.path}.
+     *
+     * @return location of the native library, {@code null} if there is none for the current platform
+     */
+    static String findNativeLibrary() {
+        return findNativeLibrary(System.getProperty("os.name", ""), System.getProperty("os.arch", ""),
+                System.getProperty("java.library.path", ""));
+    }
+
+    static String findNativeLibrary(String osName, String osArch, String libraryPath) {
+        String platformTag = getPlatformTag(osName, osArch);
+        if (platformTag != null) {
+            String resource = "/" + platformTag + "/lib" + LIBRARY_NAME + ".so";
+            if (AsyncProfiler.class.getResource(resource) != null) {
+                return "classpath:" + resource;
+            }
+        }
+        String fileName = System.mapLibraryName(LIBRARY_NAME);
+        for (String directory : libraryPath.split(File.pathSeparator)) {
+            File file = new File(directory, fileName);
+            if (!directory.isEmpty() && file.isFile()) {
+                return file.getPath();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mirrors platform detection of {@link AsyncProfiler} itself, which is not accessible.
+     *
+     * @return directory of the bundled native library, {@code null} for unsupported platform
+     */
+    static String getPlatformTag(String osName, String osArch) {
+        String os = osName.toLowerCase(Locale.ROOT);
+        String arch = osArch.toLowerCase(Locale.ROOT);
+        if (os.contains("linux")) {
+            if (arch.equals("amd64") || arch.equals("x86_64") || arch.contains("x64")) {
+                return "linux-x64";
+            } else if (arch.equals("aarch64") || arch.contains("arm64")) {
+                return "linux-arm64";
+            } else if (arch.equals("aarch32") || arch.contains("arm")) {
+                return "linux-arm32";
+            } else if (arch.contains("86")) {
+                return "linux-x86";
+            } else if (arch.contains("ppc64")) {
+                return "linux-ppc64le";
+            }
+        } else if (os.contains("mac")) {
+            return "macos";
+        }
+        return null;
+    }
+}
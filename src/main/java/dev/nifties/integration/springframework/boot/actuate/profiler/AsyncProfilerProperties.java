@@ -0,0 +1,1100 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration properties of AsyncProfiler Actuator, bound from {@code management.endpoint.profiler.*}.
+ */
+@ConfigurationProperties(prefix = "management.endpoint.profiler")
+public class AsyncProfilerProperties {
+
+    /**
+     * When the AsyncProfiler native library is loaded.
+     */
+    private Loading loading = Loading.EAGER;
+
+    private final Continuous continuous = new Continuous();
+
+    private final Compression compression = new Compression();
+
+    private final Sessions sessions = new Sessions();
+
+    private final Captures captures = new Captures();
+
+    private final Triggers triggers = new Triggers();
+
+    private final Recordings recordings = new Recordings();
+
+    private final Downloads downloads = new Downloads();
+
+    private final Fleet fleet = new Fleet();
+
+    private final Export export = new Export();
+
+    public Loading getLoading() {
+        return loading;
+    }
+
+    public void setLoading(Loading loading) {
+        this.loading = loading;
+    }
+
+    public Continuous getContinuous() {
+        return continuous;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Sessions getSessions() {
+        return sessions;
+    }
+
+    public Captures getCaptures() {
+        return captures;
+    }
+
+    public Triggers getTriggers() {
+        return triggers;
+    }
+
+    public Recordings getRecordings() {
+        return recordings;
+    }
+
+    public Downloads getDownloads() {
+        return downloads;
+    }
+
+    public Fleet getFleet() {
+        return fleet;
+    }
+
+    public Export getExport() {
+        return export;
+    }
+
+    /**
+     * When the native library is loaded. Unless loaded eagerly, availability of the profiler is decided by looking
+     * for a native library for the current platform only, a library which then fails to load makes profiling
+     * requests fail rather than the endpoint disappear.
+     */
+    public enum Loading {
+        /**
+         * Loaded while the application context starts.
+         */
+        EAGER,
+        /**
+         * Loaded on first use of the profiler.
+         */
+        LAZY,
+        /**
+         * Loaded on a background thread once the application is ready, or on first use if that comes earlier.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Always-on profiling, recording JFR output into a bounded ring of fixed-duration chunk files.
+     */
+    public static class Continuous {
+
+        /**
+         * Whether continuous profiling should be started together with the application context.
+         */
+        private boolean enabled;
+
+        /**
+         * Profiling event, e.g. cpu, wall, itimer.
+         */
+        private String event = "cpu";
+
+        /**
+         * Additional comma separated AsyncProfiler options, e.g. "interval=10ms,threads".
+         */
+        private String options;
+
+        /**
+         * Duration covered by a single chunk file, chunks are rotated on this interval.
+         */
+        private Duration chunkDuration = Duration.ofMinutes(1);
+
+        /**
+         * Total disk space the completed chunks are allowed to occupy, oldest chunks are evicted first.
+         */
+        private DataSize maxSize = DataSize.ofMegabytes(256);
+
+        /**
+         * Maximum age of a completed chunk before it is evicted.
+         */
+        private Duration maxAge = Duration.ofHours(24);
+
+        /**
+         * Directory to keep chunk files in, defaults to "async-profiler-continuous" in the temporary directory.
+         */
+        private File directory;
+
+        private final Governor governor = new Governor();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public void setEvent(String event) {
+            this.event = event;
+        }
+
+        public String getOptions() {
+            return options;
+        }
+
+        public void setOptions(String options) {
+            this.options = options;
+        }
+
+        public Duration getChunkDuration() {
+            return chunkDuration;
+        }
+
+        public void setChunkDuration(Duration chunkDuration) {
+            this.chunkDuration = chunkDuration;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        public Governor getGovernor() {
+            return governor;
+        }
+    }
+
+    /**
+     * Keeps the cost of continuous profiling under a budget by adjusting the sampling interval between chunks, see
+     * {@link OverheadGovernor}.
+     */
+    public static class Governor {
+
+        /**
+         * Whether the sampling interval of continuous profiling should be adjusted to its measured overhead.
+         */
+        private boolean enabled;
+
+        /**
+         * Share of the available CPU profiling may take, e.g. 0.01 for 1%.
+         */
+        private double budget = 0.01d;
+
+        /**
+         * Estimated cost of taking a single sample, on the sampled thread.
+         */
+        private Duration sampleCost = Duration.ofNanos(20_000L);
+
+        /**
+         * Longest sampling interval, profiling is paused for a chunk if even this is over budget.
+         */
+        private Duration maxInterval = Duration.ofSeconds(1);
+
+        /**
+         * Number of recent adjustments kept to be listed by the endpoint.
+         */
+        private int history = 20;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getBudget() {
+            return budget;
+        }
+
+        public void setBudget(double budget) {
+            this.budget = budget;
+        }
+
+        public Duration getSampleCost() {
+            return sampleCost;
+        }
+
+        public void setSampleCost(Duration sampleCost) {
+            this.sampleCost = sampleCost;
+        }
+
+        public Duration getMaxInterval() {
+            return maxInterval;
+        }
+
+        public void setMaxInterval(Duration maxInterval) {
+            this.maxInterval = maxInterval;
+        }
+
+        public int getHistory() {
+            return history;
+        }
+
+        public void setHistory(int history) {
+            this.history = history;
+        }
+    }
+
+    /**
+     * On-the-fly compression of downloaded profiler output, negotiated with {@code Accept-Encoding} request header.
+     */
+    public static class Compression {
+
+        /**
+         * Whether profiler output should be compressed when the client accepts it.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Default compression level, can be overridden per request with "compression" parameter.
+         */
+        private Level level = Level.FAST;
+
+        /**
+         * Outputs smaller than this are sent uncompressed.
+         */
+        private DataSize minSize = DataSize.ofKilobytes(2);
+
+        /**
+         * Size of the buffer used to stream output through the compressor.
+         */
+        private DataSize bufferSize = DataSize.ofKilobytes(64);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public void setLevel(Level level) {
+            this.level = level;
+        }
+
+        public DataSize getMinSize() {
+            return minSize;
+        }
+
+        public void setMinSize(DataSize minSize) {
+            this.minSize = minSize;
+        }
+
+        public DataSize getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(DataSize bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Compression level, trading compression ratio for CPU time.
+         */
+        public enum Level {
+            FASTEST(1, 1),
+            FAST(3, 2),
+            DEFAULT(6, 3),
+            BEST(9, 19);
+
+            private final int gzipLevel;
+            private final int zstdLevel;
+
+            Level(int gzipLevel, int zstdLevel) {
+                this.gzipLevel = gzipLevel;
+                this.zstdLevel = zstdLevel;
+            }
+
+            int getGzipLevel() {
+                return gzipLevel;
+            }
+
+            int getZstdLevel() {
+                return zstdLevel;
+            }
+        }
+    }
+
+    /**
+     * Concurrency control over the single process-wide profiler.
+     */
+    public static class Sessions {
+
+        /**
+         * Idle time after which an active session is considered abandoned and stopped.
+         */
+        private Duration ttl = Duration.ofMinutes(30);
+
+        /**
+         * Upper limit for the time a conflicting start may wait for the active session to finish.
+         */
+        private Duration maxWait = Duration.ofMinutes(5);
+
+        /**
+         * Number of finished sessions kept for inspection.
+         */
+        private int history = 20;
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public Duration getMaxWait() {
+            return maxWait;
+        }
+
+        public void setMaxWait(Duration maxWait) {
+            this.maxWait = maxWait;
+        }
+
+        public int getHistory() {
+            return history;
+        }
+
+        public void setHistory(int history) {
+            this.history = history;
+        }
+    }
+
+    /**
+     * Captures kept in memory for differential flame graphs.
+     */
+    public static class Captures {
+
+        /**
+         * Number of most recent captures kept, oldest are dropped first.
+         */
+        private int maxCount = 10;
+
+        public int getMaxCount() {
+            return maxCount;
+        }
+
+        public void setMaxCount(int maxCount) {
+            this.maxCount = maxCount;
+        }
+    }
+
+    /**
+     * JFR recordings kept on disk and converted to other formats on demand, see {@link RecordingStore}.
+     */
+    public static class Recordings {
+
+        /**
+         * Number of most recent recordings kept, oldest are deleted first.
+         */
+        private int maxCount = 10;
+
+        /**
+         * Directory to keep recordings and rendered artifacts in, defaults to "async-profiler-recordings" in the
+         * temporary directory.
+         */
+        private File directory;
+
+        /**
+         * Total size of rendered artifacts kept for repeated downloads, least recently used are evicted first.
+         */
+        private DataSize cacheSize = DataSize.ofMegabytes(64);
+
+        /**
+         * Rendered artifacts up to this size are cached in memory, larger ones on disk.
+         */
+        private DataSize memoryThreshold = DataSize.ofMegabytes(1);
+
+        public int getMaxCount() {
+            return maxCount;
+        }
+
+        public void setMaxCount(int maxCount) {
+            this.maxCount = maxCount;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        public DataSize getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(DataSize cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public DataSize getMemoryThreshold() {
+            return memoryThreshold;
+        }
+
+        public void setMemoryThreshold(DataSize memoryThreshold) {
+            this.memoryThreshold = memoryThreshold;
+        }
+    }
+
+    /**
+     * Profiler output kept for resumable ranged downloads, see {@link DownloadStore}.
+     */
+    public static class Downloads {
+
+        /**
+         * How long output stays available for download, 0 deletes it as soon as it has been downloaded once.
+         */
+        private Duration retention = Duration.ofHours(1);
+
+        /**
+         * Total size of output kept on disk, oldest is deleted first. Output larger than this is never kept.
+         */
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+
+        /**
+         * Directory to keep output in, defaults to "async-profiler-downloads" in the temporary directory.
+         */
+        private File directory;
+
+        public Duration getRetention() {
+            return retention;
+        }
+
+        public void setRetention(Duration retention) {
+            this.retention = retention;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Profiles of the active session dumped on a schedule and archived into a {@link ProfileSink}, see
+     * {@link ProfileExporter}.
+     */
+    public static class Export {
+
+        /**
+         * Whether the active session should be dumped and exported on a schedule.
+         */
+        private boolean enabled;
+
+        /**
+         * Time between exports.
+         */
+        private Duration interval = Duration.ofHours(1);
+
+        /**
+         * AsyncProfiler text output format of exports, e.g. "collapsed" or "flat=200". History of continuous
+         * profiling is always exported as collapsed stacks.
+         */
+        private String format = "collapsed";
+
+        /**
+         * Name of the service exports are stored under, defaults to spring.application.name.
+         */
+        private String service;
+
+        /**
+         * Where exports are archived, unless a ProfileSink bean is declared.
+         */
+        private Sink sink = Sink.FILESYSTEM;
+
+        /**
+         * Directory of the filesystem sink, defaults to "async-profiler-exports" in the temporary directory.
+         */
+        private File directory;
+
+        /**
+         * Exports held in memory while waiting to be uploaded, further ones are spilled to disk.
+         */
+        private int queueSize = 16;
+
+        /**
+         * Maximum number of exports handed to the sink at once.
+         */
+        private int batchSize = 8;
+
+        /**
+         * Time to wait before retrying a failed upload, doubled after every further failure.
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+
+        /**
+         * Longest time to wait before retrying a failed upload.
+         */
+        private Duration maxRetryBackoff = Duration.ofMinutes(5);
+
+        /**
+         * Directory exports are spilled to while the sink is slow, defaults to "async-profiler-export-spill" in the
+         * temporary directory. Spilled exports are picked up again after a restart.
+         */
+        private File spillDirectory;
+
+        /**
+         * Total size of spilled exports, oldest are dropped first.
+         */
+        private DataSize maxSpillSize = DataSize.ofMegabytes(256);
+
+        private final S3 s3 = new S3();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public void setFormat(String format) {
+            this.format = format;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public void setService(String service) {
+            this.service = service;
+        }
+
+        public Sink getSink() {
+            return sink;
+        }
+
+        public void setSink(Sink sink) {
+            this.sink = sink;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getRetryBackoff() {
+            return retryBackoff;
+        }
+
+        public void setRetryBackoff(Duration retryBackoff) {
+            this.retryBackoff = retryBackoff;
+        }
+
+        public Duration getMaxRetryBackoff() {
+            return maxRetryBackoff;
+        }
+
+        public void setMaxRetryBackoff(Duration maxRetryBackoff) {
+            this.maxRetryBackoff = maxRetryBackoff;
+        }
+
+        public File getSpillDirectory() {
+            return spillDirectory;
+        }
+
+        public void setSpillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+        }
+
+        public DataSize getMaxSpillSize() {
+            return maxSpillSize;
+        }
+
+        public void setMaxSpillSize(DataSize maxSpillSize) {
+            this.maxSpillSize = maxSpillSize;
+        }
+
+        public S3 getS3() {
+            return s3;
+        }
+
+        public enum Sink {
+            /**
+             * {@link FileSystemProfileSink}, into a local directory.
+             */
+            FILESYSTEM,
+            /**
+             * {@link S3ProfileSink}, into S3-compatible object storage.
+             */
+            S3
+        }
+    }
+
+    /**
+     * S3-compatible object storage exports are archived into, see {@link S3ProfileSink}.
+     */
+    public static class S3 {
+
+        /**
+         * Endpoint of the storage, e.g. "http://minio:9000", defaults to AWS S3 of the configured region.
+         */
+        private URI endpoint;
+
+        private String region = "us-east-1";
+
+        private String bucket;
+
+        /**
+         * Key prefix of stored objects.
+         */
+        private String prefix;
+
+        private String accessKey;
+
+        private String secretKey;
+
+        /**
+         * Whether the bucket is addressed in the path rather than in the host name, as most S3-compatible storage
+         * expects.
+         */
+        private boolean pathStyle = true;
+
+        public URI getEndpoint() {
+            return endpoint;
+        }
+
+        public void setEndpoint(URI endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public void setRegion(String region) {
+            this.region = region;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public void setBucket(String bucket) {
+            this.bucket = bucket;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public void setPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public String getAccessKey() {
+            return accessKey;
+        }
+
+        public void setAccessKey(String accessKey) {
+            this.accessKey = accessKey;
+        }
+
+        public String getSecretKey() {
+            return secretKey;
+        }
+
+        public void setSecretKey(String secretKey) {
+            this.secretKey = secretKey;
+        }
+
+        public boolean isPathStyle() {
+            return pathStyle;
+        }
+
+        public void setPathStyle(boolean pathStyle) {
+            this.pathStyle = pathStyle;
+        }
+    }
+
+    /**
+     * Captures fanned out to peer instances and merged into a single profile, see {@link FleetProfiler}.
+     */
+    public static class Fleet {
+
+        /**
+         * Actuator base URLs of the instances to profile, e.g. "http://orders-1:8080/actuator".
+         */
+        private List<URI> peers = new ArrayList<>();
+
+        /**
+         * Maximum number of instances profiled at the same time.
+         */
+        private int concurrency = 8;
+
+        /**
+         * How long to wait for a connection to an instance.
+         */
+        private Duration connectTimeout = Duration.ofSeconds(5);
+
+        /**
+         * How long to wait for an instance to respond beyond the capture duration, an instance not responding in time
+         * is left out of the merged profile.
+         */
+        private Duration timeout = Duration.ofSeconds(30);
+
+        /**
+         * Headers sent to every instance, e.g. "Authorization".
+         */
+        private Map<String, String> headers = new LinkedHashMap<>();
+
+        public List<URI> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<URI> peers) {
+            this.peers = peers;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public void setHeaders(Map<String, String> headers) {
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Automatic captures started when a cheap signal stays above its threshold, see {@link TriggeredProfiler}.
+     */
+    public static class Triggers {
+
+        /**
+         * Whether signals should be watched and captures triggered automatically.
+         */
+        private boolean enabled;
+
+        /**
+         * How often signals are evaluated.
+         */
+        private Duration interval = Duration.ofSeconds(1);
+
+        /**
+         * How long a signal has to stay above its threshold before a capture is started.
+         */
+        private Duration holdFor = Duration.ofSeconds(10);
+
+        /**
+         * Duration of a triggered capture.
+         */
+        private Duration duration = Duration.ofSeconds(30);
+
+        /**
+         * Minimum time between the end of a triggered capture and the start of the next one.
+         */
+        private Duration cooldown = Duration.ofMinutes(10);
+
+        /**
+         * Maximum number of captures triggered within any hour, 0 disables triggering.
+         */
+        private int maxPerHour = 4;
+
+        /**
+         * Number of most recent capture files kept, older ones are deleted.
+         */
+        private int retained = 20;
+
+        /**
+         * Profiling event of triggered captures, e.g. cpu, wall, itimer.
+         */
+        private String event = "cpu";
+
+        /**
+         * Additional comma separated AsyncProfiler options, e.g. "interval=10ms,threads".
+         */
+        private String options;
+
+        /**
+         * Output format of triggered captures, "html" or "jfr".
+         */
+        private String format = "html";
+
+        /**
+         * Directory to keep capture files in, defaults to "async-profiler-triggers" in the temporary directory.
+         */
+        private File directory;
+
+        /**
+         * Process CPU load threshold, fraction of all available processors, {@code null} to disable.
+         */
+        private Double cpu = 0.9d;
+
+        /**
+         * Threshold of the fraction of time spent in garbage collection, {@code null} to disable.
+         */
+        private Double gc = 0.2d;
+
+        private final Meter meter = new Meter();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+
+        public Duration getHoldFor() {
+            return holdFor;
+        }
+
+        public void setHoldFor(Duration holdFor) {
+            this.holdFor = holdFor;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+
+        public void setDuration(Duration duration) {
+            this.duration = duration;
+        }
+
+        public Duration getCooldown() {
+            return cooldown;
+        }
+
+        public void setCooldown(Duration cooldown) {
+            this.cooldown = cooldown;
+        }
+
+        public int getMaxPerHour() {
+            return maxPerHour;
+        }
+
+        public void setMaxPerHour(int maxPerHour) {
+            this.maxPerHour = maxPerHour;
+        }
+
+        public int getRetained() {
+            return retained;
+        }
+
+        public void setRetained(int retained) {
+            this.retained = retained;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public void setEvent(String event) {
+            this.event = event;
+        }
+
+        public String getOptions() {
+            return options;
+        }
+
+        public void setOptions(String options) {
+            this.options = options;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public void setFormat(String format) {
+            this.format = format;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        public Double getCpu() {
+            return cpu;
+        }
+
+        public void setCpu(Double cpu) {
+            this.cpu = cpu;
+        }
+
+        public Double getGc() {
+            return gc;
+        }
+
+        public void setGc(Double gc) {
+            this.gc = gc;
+        }
+
+        public Meter getMeter() {
+            return meter;
+        }
+
+        /**
+         * Threshold on a Micrometer gauge, e.g. a published percentile of HTTP server requests:
+         * name "http.server.requests.percentile" with tag "phi" of "0.99".
+         */
+        public static class Meter {
+
+            /**
+             * Name of the gauge, {@code null} to disable.
+             */
+            private String name;
+
+            /**
+             * Tags narrowing down the gauge.
+             */
+            private Map<String, String> tags = new LinkedHashMap<>();
+
+            /**
+             * Threshold of the gauge value, in seconds for time gauges.
+             */
+            private double threshold;
+
+            public String getName() {
+                return name;
+            }
+
+            public void setName(String name) {
+                this.name = name;
+            }
+
+            public Map<String, String> getTags() {
+                return tags;
+            }
+
+            public void setTags(Map<String, String> tags) {
+                this.tags = tags;
+            }
+
+            public double getThreshold() {
+                return threshold;
+            }
+
+            public void setThreshold(double threshold) {
+                this.threshold = threshold;
+            }
+        }
+    }
+}
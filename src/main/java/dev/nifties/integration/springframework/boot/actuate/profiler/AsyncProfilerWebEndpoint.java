@@ -4,21 +4,46 @@ import dev.nifties.integration.springframework.boot.annotation.EnableAsyncProfil
 import one.profiler.AsyncProfiler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.actuate.endpoint.web.annotation.RestControllerEndpoint;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Objects;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * <p>
@@ -64,19 +89,59 @@ import java.util.stream.Stream;
  * Path variable and additional request parameters are translated into <a href=
  * "https://github.com/async-profiler/async-profiler/blob/v2.9/src/arguments.cpp#L52">
  * AsyncProfile execution arguments</a>. Currently <i>dump</i> and <i>stop</i> operations
- * will produce flame-graph HTML, all other operations will simply return output generated
- * by AsyncProfiler.<br/>
+ * will produce flame-graph HTML (or text with <i>collapsed</i>, <i>flat</i>, <i>traces</i> or <i>summary</i> option,
+ * gzipped pprof profile with <i>file=pprof</i>),
+ * all other operations will simply return output generated by AsyncProfiler.<br/>
  * Examples:
  * <ul>
  * <li>https://.../actuator/profiler/start - start profiling (will add event=cpu by
  * default)</li>
  * <li>https://.../actuator/profiler/start?event=wall - start wall profiling</li>
  * <li>https://.../actuator/profiler/stop - stop profiling and download flame-graph</li>
+ * <li>https://.../actuator/profiler/sessions - list active and recent profiling sessions, see
+ * {@link ProfilingSessionManager}</li>
+ * <li>https://.../actuator/profiler/summary?limit=20 - JSON list of the hottest methods of the active session,
+ * <i>duration=10</i> captures a new 10 second profile instead</li>
+ * <li>https://.../actuator/profiler/diff?baseline={id}&amp;duration=30 - profile for 30 seconds and render
+ * differential flame graph against a capture previously stored with POST on
+ * https://.../actuator/profiler/captures?duration=30</li>
+ * <li>https://.../actuator/profiler/history?from=2024-01-01T10:00:00Z&amp;to=2024-01-01T10:15:00Z - download JFR
+ * recorded by continuous profiling within given time range, see {@link ContinuousProfiler}</li>
+ * <li>https://.../actuator/profiler?duration=30&amp;uri=/orders/.*&amp;latency=500 - profile only threads serving
+ * requests to /orders/... once they run longer than 500 ms, <i>header=X-Debug</i> selects requests by header, see
+ * {@link RequestSelector}, <i>requests</i> operation then lists selected requests per route</li>
+ * <li>https://.../actuator/profiler/recordings?duration=30&amp;event=cpu,alloc,lock (POST) - record JFR once, then
+ * https://.../actuator/profiler/recordings/{id}?format=html&amp;event=alloc converts it on demand into a flame graph
+ * (or <i>collapsed</i> stacks, or the raw <i>jfr</i>) of any recorded event, see {@link RecordingStore}</li>
+ * <li>https://.../actuator/profiler?duration=30&amp;event=cpu,alloc=512k,lock=10ms - profile several events at
+ * once into a single recording and render a flame graph of each of them in one pass, the response lists their paths,
+ * <i>recordings/{id}/events</i> lists them again later</li>
+ * <li>https://.../actuator/profiler/recordings/{id}/heatmap?bucket=50ms - samples per time bucket and thread, to
+ * spot short latency spikes, selecting a time range opens its flame graph, see {@link TimelineIndex}</li>
+ * <li>https://.../actuator/profiler/downloads/{id} - download flame graph or JFR output again, with <i>Range</i>
+ * requests to resume an interrupted download, id is returned in {@value #HEADER_DOWNLOAD} header of the original
+ * download, see {@link DownloadStore}</li>
+ * <li>https://.../actuator/profiler/live?interval=5s - Server-Sent Events stream of the active session, each event
+ * carrying collapsed stacks sampled since the previous one, or with <i>format=summary</i> the hottest frames among
+ * them, see {@link LiveProfile}</li>
+ * <li>https://.../actuator/profiler/fleet?event=cpu&amp;duration=30 - profile all configured peer instances at once
+ * and merge their profiles into a single flame graph, see {@link FleetProfiler}</li>
+ * <li>https://.../actuator/profiler/governor - sampling interval of continuous profiling, adjusted to keep its
+ * overhead under budget, and recent adjustments, see {@link OverheadGovernor}</li>
+ * <li>https://.../actuator/profiler/triggers - list captures started automatically when CPU, GC or a gauge stayed
+ * above threshold, see {@link TriggeredProfiler}, <i>triggers/{id}</i> downloads one of them</li>
  * </ul>
  * </p>
  * <p>
+ * Only one profiling session can be active at a time. Starting returns session id in {@value #HEADER_SESSION}
+ * header, conflicting start fails with 409 Conflict, unless <i>wait</i> parameter specifies how many seconds to wait
+ * for the active session to finish. <i>owner</i> parameter (or authenticated principal) identifies who profiles.
+ * </p>
+ * <p>
  * Additionally, request on common <i>/actuator/profiler</i> endpoint will trigger
- * composite start, wait, stop operation for a specified duration (5 seconds by default).
+ * composite start, wait, stop operation for a specified duration (5 seconds by default). Waiting happens on a
+ * dedicated scheduler thread, so the servlet request thread is released for the whole duration of profiling. Output
+ * is collected and rendered on a small pool of its own, so that a slow conversion does not delay other timers.
  * </p>
  * Example:
  * <ul>
@@ -86,6 +151,9 @@ import java.util.stream.Stream;
  * but with additional options - total, to produce output in total milliseconds rather than samples, threads, to
  * include additional row with thread names in flame-graph.</li>
  * </ul>
+ * Downloads are compressed on the fly when the client sends {@code Accept-Encoding: gzip} (or zstd, if zstd-jni is
+ * available), <i>compression=fastest|fast|default|best|none</i> parameter overrides configured compression level.
+ * <br/>
  * For full documentation on all available options, please check AsyncProfiler home-page. This class really just
  * translates WEB request parameters into AsyncProfiler arguments.
  *
@@ -93,18 +161,146 @@ import java.util.stream.Stream;
  * @since 1.0.0
  */
 @RestControllerEndpoint(id = "profiler")
-public class AsyncProfilerWebEndpoint {
+public class AsyncProfilerWebEndpoint implements DisposableBean {
 
     private static final Log log = LogFactory.getLog(AsyncProfilerWebEndpoint.class);
 
-    private static final String OPERATION_START = "start";
-    public static final String FILE_EXTENSION_HTML = ".html";
-    public static final String FILE_EXTENSION_JFR = ".jfr";
+    private static final String OPERATION_START = ProfilerCommands.OPERATION_START;
+    public static final String FILE_EXTENSION_HTML = ProfilerCommands.FILE_EXTENSION_HTML;
+    public static final String FILE_EXTENSION_JFR = ProfilerCommands.FILE_EXTENSION_JFR;
+    public static final String FILE_EXTENSION_PPROF = ProfilerCommands.FILE_EXTENSION_PPROF;
+    private static final String OPERATION_RESUME = ProfilerCommands.OPERATION_RESUME;
+    private static final String OPERATION_STOP = ProfilerCommands.OPERATION_STOP;
+    private static final String PARAMETER_COMPRESSION = ProfilerCommands.PARAMETER_COMPRESSION;
+    private static final String PARAMETER_OWNER = ProfilerCommands.PARAMETER_OWNER;
+    private static final String PARAMETER_WAIT = ProfilerCommands.PARAMETER_WAIT;
+    private static final String PARAMETER_SESSION = ProfilerCommands.PARAMETER_SESSION;
+    private static final String PARAMETER_BASELINE = ProfilerCommands.PARAMETER_BASELINE;
+    private static final String PARAMETER_COMPARISON = ProfilerCommands.PARAMETER_COMPARISON;
+    private static final String PARAMETER_FORMAT = ProfilerCommands.PARAMETER_FORMAT;
+    private static final String FORMAT_JSON = "json";
+    private static final String PARAMETER_LIMIT = ProfilerCommands.PARAMETER_LIMIT;
+    private static final String PARAMETER_SORT = ProfilerCommands.PARAMETER_SORT;
+    private static final String PARAMETER_URI = ProfilerCommands.PARAMETER_URI;
+    private static final String PARAMETER_HEADER = ProfilerCommands.PARAMETER_HEADER;
+    private static final String PARAMETER_LATENCY = ProfilerCommands.PARAMETER_LATENCY;
+    private static final String PARAMETER_INTERVAL = ProfilerCommands.PARAMETER_INTERVAL;
+    private static final String FORMAT_SUMMARY = ProfilerCommands.FORMAT_SUMMARY;
+    public static final String HEADER_SESSION = "X-Profiler-Session";
+    public static final String HEADER_DOWNLOAD = "X-Profiler-Download";
+    /**
+     * Header of a fleet profile: number of peers merged into it, out of all configured peers, e.g. "38/40".
+     */
+    public static final String HEADER_PEERS = "X-Profiler-Peers";
+
+    /**
+     * Grace period given to the profiler to stop and write its output after a timed capture has elapsed.
+     */
+    private static final long STOP_TIMEOUT_MILLIS = 30_000L;
+
+    /**
+     * Threads and queued captures of the pool collecting output of timed captures. Only one session is active at a
+     * time, more are needed only while a previous capture is still being rendered.
+     */
+    private static final int COLLECTOR_THREADS = 2;
+    private static final int COLLECTOR_QUEUE_SIZE = 16;
+
+    /**
+     * Number of frames listed in each direction of JSON diff.
+     */
+    private static final int DIFF_FRAMES = 20;
+
+    private final ProfilingSessionManager sessions;
+
+    private final boolean ownsSessions;
+
+    /**
+     * Times captures, live ticks and request sweeps only, never runs anything slow.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Stops timed captures and writes or renders their output.
+     */
+    private final ExecutorService collectors;
+
+    /**
+     * Dumps and sends live snapshots, off the scheduler thread, so that a slow client does not delay anything else.
+     */
+    private final ExecutorService liveExecutor;
+
+    private final ContinuousProfiler continuousProfiler;
+
+    private final TriggeredProfiler triggeredProfiler;
+
+    private final ResponseCompression compression;
+    private final int bufferSize;
+
+    private final CaptureStore captures;
+
+    private final RecordingStore recordings;
 
-    private final AsyncProfiler asyncProfiler;
+    private final DownloadStore downloads;
+
+    /**
+     * Present only if peers are configured.
+     */
+    private final FleetProfiler fleetProfiler;
+
+    private final FlameGraphWriter flameGraphWriter = new FlameGraphWriter();
+    private final HeatmapWriter heatmapWriter = new HeatmapWriter();
+
+    private final RequestSelector requestSelector;
 
     public AsyncProfilerWebEndpoint(final AsyncProfiler asyncProfiler) {
-        this.asyncProfiler = asyncProfiler;
+        this(asyncProfiler, new AsyncProfilerProperties());
+    }
+
+    private AsyncProfilerWebEndpoint(final AsyncProfiler asyncProfiler, final AsyncProfilerProperties properties) {
+        this(new ProfilingSessionManager(asyncProfiler, properties.getSessions()), true, properties, null, null,
+                newScheduler());
+    }
+
+    /**
+     * @param continuousProfiler optional, serves <i>history</i> operation when continuous profiling is enabled
+     */
+    public AsyncProfilerWebEndpoint(final ProfilingSessionManager sessions, final AsyncProfilerProperties properties,
+                                    final ContinuousProfiler continuousProfiler) {
+        this(sessions, properties, continuousProfiler, null);
+    }
+
+    /**
+     * @param continuousProfiler optional, serves <i>history</i> operation when continuous profiling is enabled
+     * @param triggeredProfiler optional, serves <i>triggers</i> operation when triggered profiling is enabled
+     */
+    public AsyncProfilerWebEndpoint(final ProfilingSessionManager sessions, final AsyncProfilerProperties properties,
+                                    final ContinuousProfiler continuousProfiler,
+                                    final TriggeredProfiler triggeredProfiler) {
+        this(sessions, false, properties, continuousProfiler, triggeredProfiler, newScheduler());
+    }
+
+    private AsyncProfilerWebEndpoint(final ProfilingSessionManager sessions, final boolean ownsSessions,
+                                     final AsyncProfilerProperties properties,
+                                     final ContinuousProfiler continuousProfiler,
+                                     final TriggeredProfiler triggeredProfiler,
+                                     final ScheduledExecutorService scheduler) {
+        this.sessions = sessions;
+        this.ownsSessions = ownsSessions;
+        this.continuousProfiler = continuousProfiler;
+        this.triggeredProfiler = triggeredProfiler;
+        this.compression = new ResponseCompression(properties.getCompression());
+        this.bufferSize = (int) properties.getCompression().getBufferSize().toBytes();
+        this.captures = new CaptureStore(properties.getCaptures().getMaxCount());
+        this.recordings = new RecordingStore(properties.getRecordings(), flameGraphWriter);
+        this.downloads = new DownloadStore(properties.getDownloads(), scheduler);
+        sessions.getMetrics().bind(downloads);
+        this.fleetProfiler = FleetProfiler.of(properties.getFleet());
+        this.scheduler = scheduler;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-live-");
+        threadFactory.setDaemon(true);
+        this.liveExecutor = Executors.newCachedThreadPool(threadFactory);
+        this.collectors = newCollectors();
+        this.requestSelector = new RequestSelector(sessions.getLoader(), scheduler);
     }
 
     @GetMapping("{operation:^(?!dump|stop).+}")
@@ -114,26 +310,65 @@ public class AsyncProfilerWebEndpoint {
             log.debug("parameters: " + request.getParameterMap());
         }
 
-        final String command = getCommand(operation, request);
+        final RequestSelector.Criteria criteria;
+        final long waitMillis;
+        try {
+            criteria = getCriteria(request);
+            waitMillis = getWaitMillis(request);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        final String command = criteria != null ? getCommand(operation, request) + ",filter"
+                : getCommand(operation, request);
         log.info("command: " + command);
 
         final String result;
         try {
-            result = asyncProfiler.execute(command);
+            if (OPERATION_START.equals(operation) || OPERATION_RESUME.equals(operation)) {
+                ProfilingSession session = sessions.start(getOwner(request), command, waitMillis, 0L);
+                if (criteria != null) {
+                    requestSelector.select(session, criteria);
+                }
+                log.info(session.getStartOutput());
+                return ResponseEntity.ok().header(HEADER_SESSION, session.getId()).body(session.getStartOutput());
+            }
+            result = sessions.execute(command);
             log.info(result);
             return ResponseEntity.ok(result);
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Failed to invoke AsyncProfiler " + operation + ": " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (IOException | RuntimeException e) {
             log.error("Failed to invoke AsyncProfiler " + operation, e);
             return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
         }
     }
 
     @GetMapping("{operation:dump|stop}")
     public ResponseEntity<?> collectFlameGraph(@PathVariable String operation,
                        @RequestParam(value = "file", required = false) String fileName, WebRequest request) {
+        return compress(collectFlameGraph(operation, fileName, request.getParameter("total") != null,
+                        getTextFormat(fileName, request), request.getParameter(PARAMETER_SESSION)),
+                request.getHeader(HttpHeaders.ACCEPT_ENCODING), request.getParameter(PARAMETER_COMPRESSION));
+    }
+
+    /**
+     * @param textFormat text output format, e.g. "collapsed" or "flat=20", {@code null} for HTML or JFR
+     */
+    private ResponseEntity<?> collectFlameGraph(String operation, String fileName, boolean total, String textFormat,
+                                                String sessionId) {
         if (log.isDebugEnabled()) {
             log.debug("operation: " + operation);
         }
+        if (textFormat != null) {
+            return collectText(operation, total, textFormat, sessionId);
+        }
+        if (ProfilerCommands.isPprof(fileName)) {
+            return collectPprof(operation, total, sessionId);
+        }
         String fileExtension = FILE_EXTENSION_JFR.equalsIgnoreCase(fileName)
                 ? FILE_EXTENSION_JFR : FILE_EXTENSION_HTML;
         File file = null;
@@ -141,16 +376,24 @@ public class AsyncProfilerWebEndpoint {
             file = createTempFile(fileExtension);
 
             String command = operation;
-            if (request.getParameter("total") != null) {
+            if (total) {
                 command += ",total";
             }
             command += ",file=" + file.getAbsolutePath();
             log.info("command: " + command);
-            log.info(asyncProfiler.execute(command));
-            return ResponseEntity.ok()
-                    .contentType(FILE_EXTENSION_HTML.equals(fileExtension)
-                            ? MediaType.TEXT_HTML : MediaType.APPLICATION_OCTET_STREAM)
-                    .body(new TemporaryFileSystemResource(file));
+            log.info(OPERATION_STOP.equals(operation) ? sessions.stop(sessionId, command) : sessions.dump(command));
+            sessions.getMetrics().outputProduced(fileExtension.substring(1), file.length());
+            MediaType contentType = FILE_EXTENSION_HTML.equals(fileExtension)
+                    ? MediaType.TEXT_HTML : MediaType.APPLICATION_OCTET_STREAM;
+            DownloadStore.Download download = downloads.keep(file, file.getName(), contentType.toString());
+            if (download == null) {
+                return ResponseEntity.ok().contentType(contentType).body(new TemporaryFileSystemResource(file));
+            }
+            return ResponseEntity.ok().contentType(contentType).header(HEADER_DOWNLOAD, download.getId())
+                    .body(new FileSystemResource(file));
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Failed to invoke AsyncProfiler " + operation + ": " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (IOException | RuntimeException e) {
             log.error("Failed to invoke AsyncProfiler " + operation, e);
             if (file != null) {
@@ -160,59 +403,999 @@ public class AsyncProfilerWebEndpoint {
         }
     }
 
+    /**
+     * Text output is returned by AsyncProfiler as a string, so it is passed on without a temporary file round trip.
+     * Binary JFR and potentially large HTML output still go through a temporary file streamed off the heap.
+     */
+    private ResponseEntity<?> collectText(String operation, boolean total, String textFormat, String sessionId) {
+        String command = operation + (total ? ",total" : "") + "," + textFormat;
+        log.info("command: " + command);
+        try {
+            String output = OPERATION_STOP.equals(operation) ? sessions.stop(sessionId, command)
+                    : sessions.dump(command);
+            byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+            int equals = textFormat.indexOf('=');
+            sessions.getMetrics().outputProduced(equals < 0 ? textFormat : textFormat.substring(0, equals),
+                    bytes.length);
+            return ResponseEntity.ok()
+                    .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8))
+                    .body(new ByteArrayResource(bytes));
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Failed to invoke AsyncProfiler " + operation + ": " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to invoke AsyncProfiler " + operation, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
+
+    /**
+     * pprof profile is converted out of collapsed output while it is being streamed to the client.
+     */
+    private ResponseEntity<?> collectPprof(String operation, boolean total, String sessionId) {
+        String command = operation + (total ? ",total" : "") + ",collapsed";
+        log.info("command: " + command);
+        try {
+            ProfilingSession session = sessionId != null ? sessions.getSession(sessionId)
+                    : sessions.getActiveSession();
+            String output = OPERATION_STOP.equals(operation) ? sessions.stop(sessionId, command)
+                    : sessions.dump(command);
+            CallTree tree = CallTree.parseCollapsed(output);
+            if (session == null) {
+                return pprof(tree, 0, null, total, null);
+            }
+            return pprof(tree, 0, session.getEvent(), total, session.getStartTime());
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Failed to invoke AsyncProfiler " + operation + ": " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to invoke AsyncProfiler " + operation, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
+
+    /**
+     * @param startTime start of the profile, {@code null} if unknown
+     */
+    private static ResponseEntity<?> pprof(CallTree tree, int column, String event, boolean total, Instant startTime) {
+        long timeNanos = startTime != null
+                ? TimeUnit.SECONDS.toNanos(startTime.getEpochSecond()) + startTime.getNano() : 0L;
+        long durationNanos = startTime != null ? Duration.between(startTime, Instant.now()).toNanos() : 0L;
+        StreamingResponseBody body = out -> PprofWriter.write(tree, column, event, total, timeNanos, durationNanos,
+                out);
+        return ResponseEntity.ok()
+                .contentType(ProfilerCommands.APPLICATION_GZIP)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename("async-profiler-" + System.currentTimeMillis() + PprofWriter.FILE_SUFFIX)
+                        .build().toString())
+                .body(body);
+    }
+
     @GetMapping
-    public ResponseEntity<?> executeAndCollectFlamegraph(
+    public DeferredResult<ResponseEntity<?>> executeAndCollectFlamegraph(
             @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
             @RequestParam(value = "file", required = false) String fileName, WebRequest request) {
+        final boolean total = request.getParameter("total") != null;
+        final String textFormat = getTextFormat(fileName, request);
+        if (fileName == null && textFormat == null && isMultiEvent(request)) {
+            // AsyncProfiler renders a single event only, several are recorded into JFR and rendered per event
+            return record(duration, request, true);
+        }
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        final String compressionLevel = request.getParameter(PARAMETER_COMPRESSION);
+        return timedCapture(duration, request, session -> compress(
+                collectFlameGraph(OPERATION_STOP, fileName, total, textFormat, session.getId()),
+                acceptEncoding, compressionLevel));
+    }
+
+    /**
+     * Profiles for given duration, same as {@link #executeAndCollectFlamegraph}, but keeps the profile in memory
+     * for a later {@link #diff}.
+     *
+     * @return description of the stored capture, including its id
+     */
+    @PostMapping("captures")
+    public DeferredResult<ResponseEntity<?>> capture(
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            WebRequest request) {
+        return timedCapture(duration, request, session -> {
+            try {
+                return ResponseEntity.ok(collectCapture(session));
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to collect AsyncProfiler capture", e);
+                return ResponseEntity.internalServerError().body(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Lists captures stored for comparison, most recent first.
+     */
+    @GetMapping("captures")
+    public List<CaptureStore.Capture> captures() {
+        return captures.list();
+    }
+
+    /**
+     * Profiles for given duration recording JFR, which can later be downloaded as is or converted into other formats
+     * with {@link #recording}.
+     *
+     * @return description of the stored recording, including its id
+     */
+    @PostMapping("recordings")
+    public DeferredResult<ResponseEntity<?>> record(
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            WebRequest request) {
+        return record(duration, request, false);
+    }
+
+    /**
+     * @param renderEvents whether flame graphs of all recorded events should be rendered right away, responding with
+     *                     their index rather than the recording itself
+     */
+    private DeferredResult<ResponseEntity<?>> record(long duration, WebRequest request, boolean renderEvents) {
+        final boolean total = request.getParameter("total") != null;
+        final RecordingStore.Recording recording;
+        try {
+            recording = recordings.prepare();
+        } catch (IOException e) {
+            log.error("Failed to prepare AsyncProfiler recording", e);
+            DeferredResult<ResponseEntity<?>> result = new DeferredResult<>();
+            result.setResult(ResponseEntity.internalServerError().body(e.getMessage()));
+            return result;
+        }
+        return timedCapture(duration, request, ",jfr,file=" + recording.getFile().getAbsolutePath(), session -> {
+            try {
+                log.info(sessions.stop(session.getId(), OPERATION_STOP));
+                sessions.getMetrics().outputProduced(RecordingStore.FORMAT_JFR, recording.getSize());
+                recordings.add(recording, session);
+                return ResponseEntity.ok(renderEvents ? recordings.renderEvents(recording, total) : recording);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to collect AsyncProfiler recording", e);
+                recording.getFile().delete();
+                return ResponseEntity.internalServerError().body(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Lists stored JFR recordings, most recent first.
+     */
+    @GetMapping("recordings")
+    public List<RecordingStore.Recording> recordings() {
+        return recordings.list();
+    }
+
+    /**
+     * Downloads a stored recording as JFR, or converted into a flame graph or collapsed stacks of one of the recorded
+     * events. Converted views are cached, so repeated downloads do not parse the recording again.
+     *
+     * <i>from</i> and <i>to</i> parameters, ISO-8601 instants or epoch milliseconds, narrow converted views down to
+     * a time range, e.g. one selected on the {@link #heatmap}, only JFR chunks overlapping it are read.
+     *
+     * @param format "html" (default), "collapsed", "pprof" or "jfr"
+     * @param event "cpu", "alloc" or "lock", the first recorded event by default
+     */
+    @GetMapping("recordings/{id}")
+    public ResponseEntity<?> recording(@PathVariable String id,
+                                       @RequestParam(value = PARAMETER_FORMAT, required = false,
+                                               defaultValue = RecordingStore.FORMAT_HTML) String format,
+                                       @RequestParam(value = "event", required = false) String event,
+                                       WebRequest request) {
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            return ResponseEntity.notFound().build();
+        }
+        ResponseEntity<?> response;
+        if (RecordingStore.FORMAT_JFR.equalsIgnoreCase(format)) {
+            response = ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                            .filename("async-profiler-" + id + FILE_EXTENSION_JFR).build().toString())
+                    .body(new FileSystemResource(recording.getFile()));
+        } else if (RecordingStore.FORMATS.contains(format.toLowerCase(Locale.ROOT))) {
+            String renderedFormat = format.toLowerCase(Locale.ROOT);
+            final Instant from;
+            final Instant to;
+            try {
+                from = parseInstant(request.getParameter("from"));
+                to = parseInstant(request.getParameter("to"));
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest().body(e.getMessage());
+            }
+            try {
+                ArtifactCache.Artifact artifact = recordings.render(recording, renderedFormat, event,
+                        request.getParameter("total") != null, from, to);
+                ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+                if (RecordingStore.FORMAT_HTML.equals(renderedFormat)) {
+                    builder.contentType(MediaType.TEXT_HTML);
+                } else if (RecordingStore.FORMAT_COLLAPSED.equals(renderedFormat)) {
+                    builder.contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
+                } else {
+                    builder.contentType(ProfilerCommands.APPLICATION_GZIP)
+                            .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                                    .filename("async-profiler-" + id + PprofWriter.FILE_SUFFIX).build().toString());
+                }
+                response = builder.body(artifact.toResource());
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to convert AsyncProfiler recording " + id, e);
+                return ResponseEntity.internalServerError().body(e.getMessage());
+            }
+        } else {
+            return ResponseEntity.badRequest().body("Unsupported format " + format);
+        }
+        return compress(response, request.getHeader(HttpHeaders.ACCEPT_ENCODING),
+                request.getParameter(PARAMETER_COMPRESSION));
+    }
+
+    /**
+     * Renders flame graphs of all events of a stored recording, e.g. cpu, alloc and lock recorded together, out of a
+     * single pass over the recording and lists them. The flame graphs are then downloaded from {@link #recording}
+     * without converting again.
+     */
+    @GetMapping("recordings/{id}/events")
+    public ResponseEntity<?> events(@PathVariable String id, WebRequest request) {
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.ok(recordings.renderEvents(recording, request.getParameter("total") != null));
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to convert AsyncProfiler recording " + id, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
 
+    /**
+     * Renders a heatmap of samples of a stored recording per time bucket and thread, so that short latency spikes
+     * averaged away in a flame graph of the whole recording stand out. Dragging across the HTML heatmap opens a flame
+     * graph of just the selected time range. The recording is indexed on first request, in a single pass.
+     *
+     * @param format "html" (default) or "json"
+     * @param event "cpu", "alloc" or "lock", the first recorded event by default
+     * @param bucket bucket width, e.g. "50ms" or "1s", at least {@value TimelineIndex#MIN_BUCKET_MILLIS} ms
+     * @param limit maximum number of threads shown, the busiest ones
+     */
+    @GetMapping("recordings/{id}/heatmap")
+    public ResponseEntity<?> heatmap(@PathVariable String id,
+                                     @RequestParam(value = PARAMETER_FORMAT, required = false,
+                                             defaultValue = RecordingStore.FORMAT_HTML) String format,
+                                     @RequestParam(value = "event", required = false) String event,
+                                     @RequestParam(value = "bucket", required = false, defaultValue = "100ms")
+                                             String bucket,
+                                     @RequestParam(value = PARAMETER_LIMIT, required = false, defaultValue = "20")
+                                             int limit,
+                                     WebRequest request) {
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            return ResponseEntity.notFound().build();
+        }
+        boolean json = FORMAT_JSON.equalsIgnoreCase(format);
+        if (!json && !RecordingStore.FORMAT_HTML.equalsIgnoreCase(format)) {
+            return ResponseEntity.badRequest().body("Unsupported format " + format);
+        }
+        final long bucketNanos;
+        try {
+            bucketNanos = ProfilerCommands.getBucketNanos(bucket);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Invalid bucket " + bucket);
+        }
+        final TimelineIndex.Heatmap heatmap;
+        try {
+            heatmap = recordings.heatmap(recording, event, bucketNanos, limit);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to index AsyncProfiler recording " + id, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+        if (json) {
+            return ResponseEntity.ok(heatmap);
+        }
+        StreamingResponseBody body = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            heatmapWriter.write(heatmap, heatmap.getEvent() + " " + recording.getStartTime(),
+                    "../" + id + "?format=html&event=" + heatmap.getEvent(), writer);
+            writer.flush();
+        };
+        return compress(ResponseEntity.ok().contentType(MediaType.TEXT_HTML).body(body),
+                request.getHeader(HttpHeaders.ACCEPT_ENCODING), request.getParameter(PARAMETER_COMPRESSION));
+    }
+
+    /**
+     * Lists profiler output kept for download, most recent first.
+     */
+    @GetMapping("downloads")
+    public List<DownloadStore.Download> downloads() {
+        return downloads.list();
+    }
+
+    /**
+     * Downloads kept profiler output again, whole or a single byte range of it, so that an interrupted download can
+     * be resumed and a large one fetched over several connections. Content is sent as is, never compressed, so that
+     * ranges refer to the same bytes across requests.
+     *
+     * @param id id returned in {@value #HEADER_DOWNLOAD} header of the original download
+     */
+    @GetMapping("downloads/{id}")
+    public ResponseEntity<?> download(@PathVariable String id, WebRequest request) {
+        DownloadStore.Download download = downloads.get(id);
+        if (download == null) {
+            return ResponseEntity.notFound().build();
+        }
+        DownloadStore.Range range = download.range(request.getHeader(HttpHeaders.RANGE),
+                request.getHeader(HttpHeaders.IF_RANGE));
+        if (range != null && !range.isSatisfiable()) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, range.toContentRange(download)).build();
+        }
+        ResponseEntity.BodyBuilder builder = range == null ? ResponseEntity.ok()
+                : ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                        .header(HttpHeaders.CONTENT_RANGE, range.toContentRange(download));
+        long position = range == null ? 0L : range.getFirst();
+        long count = range == null ? download.getSize() : range.getLength();
+        StreamingResponseBody body = out -> download.transferTo(position, count, out);
+        return MeteredResponse.of(builder
+                .contentType(MediaType.parseMediaType(download.getContentType()))
+                .contentLength(count)
+                .eTag(download.getETag())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(download.getFileName()).build().toString())
+                .body(body), sessions.getMetrics());
+    }
+
+    /**
+     * Compares a stored baseline capture with another stored capture or, when <i>comparison</i> is omitted, with a
+     * fresh capture of given duration. Renders differential flame graph, or with <i>format=json</i> lists frames with
+     * the largest increase and decrease of self samples.
+     *
+     * @param baseline id of stored baseline capture
+     * @param comparison id of stored comparison capture, optional
+     */
+    @GetMapping("diff")
+    public DeferredResult<ResponseEntity<?>> diff(@RequestParam(PARAMETER_BASELINE) String baseline,
+            @RequestParam(value = PARAMETER_COMPARISON, required = false) String comparison,
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            WebRequest request) {
+        final boolean json = FORMAT_JSON.equalsIgnoreCase(request.getParameter(PARAMETER_FORMAT));
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        final String compressionLevel = request.getParameter(PARAMETER_COMPRESSION);
+        final CaptureStore.Capture baselineCapture = captures.get(baseline);
+        if (baselineCapture == null || comparison != null) {
+            DeferredResult<ResponseEntity<?>> result = new DeferredResult<>();
+            CaptureStore.Capture comparisonCapture = comparison != null ? captures.get(comparison) : null;
+            if (baselineCapture == null || comparisonCapture == null) {
+                result.setResult(ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body("Capture " + (baselineCapture == null ? baseline : comparison) + " not found"));
+            } else {
+                result.setResult(diff(baselineCapture, comparisonCapture, json, acceptEncoding, compressionLevel));
+            }
+            return result;
+        }
+        return timedCapture(duration, request, session -> {
+            try {
+                return diff(baselineCapture, collectCapture(session), json, acceptEncoding, compressionLevel);
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to collect AsyncProfiler capture", e);
+                return ResponseEntity.internalServerError().body(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Returns the hottest frames as compact JSON, suitable for frequent polling. Profile of the active session is
+     * dumped in memory, or, when <i>duration</i> is given, a new profile of that many seconds is captured.
+     *
+     * @param limit maximum number of frames listed
+     * @param sort "self" (default) or "total"
+     */
+    @GetMapping("summary")
+    public DeferredResult<ResponseEntity<?>> summary(
+            @RequestParam(value = "duration", required = false) Long duration,
+            @RequestParam(value = PARAMETER_LIMIT, required = false, defaultValue = "20") int limit,
+            @RequestParam(value = PARAMETER_SORT, required = false, defaultValue = "self") String sort,
+            WebRequest request) {
+        final boolean bySelf = !"total".equalsIgnoreCase(sort);
+        if (duration != null) {
+            return timedCapture(duration, request, session -> {
+                try {
+                    String collapsed = sessions.stop(session.getId(), OPERATION_STOP + ",collapsed");
+                    return ResponseEntity.ok(ProfileSummary.of(collapsed, limit, bySelf));
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to collect AsyncProfiler summary", e);
+                    return ResponseEntity.internalServerError().body(e.getMessage());
+                }
+            });
+        }
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>();
+        try {
+            result.setResult(ResponseEntity.ok(ProfileSummary.of(sessions.dump("dump,collapsed"), limit, bySelf)));
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to collect AsyncProfiler summary", e);
+            result.setResult(ResponseEntity.internalServerError().body(e.getMessage()));
+        }
+        return result;
+    }
+
+    /**
+     * Streams the active session as Server-Sent Events, each event carrying only what was sampled since the previous
+     * one, see {@link LiveProfile}. The stream ends once the session finishes.
+     *
+     * @param interval time between snapshots, e.g. "5s", at least a second, and longer for large profiles, as every
+     *                 snapshot dumps the whole profile collected so far
+     * @param format "summary" for the hottest frames, collapsed stacks otherwise
+     * @param session session expected to be active, optional
+     */
+    @GetMapping(path = "live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> live(
+            @RequestParam(value = PARAMETER_INTERVAL, required = false, defaultValue = "5s") String interval,
+            @RequestParam(value = PARAMETER_FORMAT, required = false) String format,
+            @RequestParam(value = PARAMETER_LIMIT, required = false, defaultValue = "20") int limit,
+            @RequestParam(value = PARAMETER_SORT, required = false, defaultValue = "self") String sort,
+            @RequestParam(value = PARAMETER_SESSION, required = false) String session) {
+        ProfilingSession active = sessions.getActiveSession();
+        if (active == null || (session != null && !session.equals(active.getId()))) {
+            return failedStream(HttpStatus.CONFLICT, session != null ? "Session " + session + " is not active"
+                    : "No active profiling session");
+        }
+        long intervalMillis;
+        try {
+            intervalMillis = ProfilerCommands.getIntervalMillis(interval);
+        } catch (IllegalArgumentException e) {
+            return failedStream(HttpStatus.BAD_REQUEST, "Invalid interval: " + interval);
+        }
+        LiveStream stream = new LiveStream(new LiveProfile(active, FORMAT_SUMMARY.equalsIgnoreCase(format), limit,
+                !"total".equalsIgnoreCase(sort)));
+        stream.schedule(intervalMillis);
+        return ResponseEntity.ok().header(HEADER_SESSION, active.getId()).body(stream.emitter);
+    }
+
+    /**
+     * @return stream of a single error event, as a stream request cannot be answered with a plain body
+     */
+    private static ResponseEntity<SseEmitter> failedStream(HttpStatus status, String message) {
+        SseEmitter emitter = new SseEmitter();
+        try {
+            emitter.send(SseEmitter.event().name("error").data(message));
+            emitter.complete();
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
+        return ResponseEntity.status(status).body(emitter);
+    }
+
+    /**
+     * Starts profiling on the request thread and schedules given collector to run once the duration elapses.
+     */
+    private DeferredResult<ResponseEntity<?>> timedCapture(long duration, WebRequest request,
+                                                           Function<ProfilingSession, ResponseEntity<?>> collector) {
+        return timedCapture(duration, request, "", collector);
+    }
+
+    /**
+     * @param options appended to the start command, e.g. output file of a JFR recording
+     */
+    private DeferredResult<ResponseEntity<?>> timedCapture(long duration, WebRequest request, String options,
+                                                           Function<ProfilingSession, ResponseEntity<?>> collector) {
+        final long durationMillis = duration * 1000L;
+        final DeferredResult<ResponseEntity<?>> result =
+                new DeferredResult<>(durationMillis + STOP_TIMEOUT_MILLIS);
         try {
-            final long durationMillis = duration * 1000L;
             if (log.isDebugEnabled()) {
                 log.debug("parameters: " + request.getParameterMap());
             }
 
-            final String command = getCommand("start", request);
+            final RequestSelector.Criteria criteria;
+            final long waitMillis;
+            try {
+                criteria = getCriteria(request);
+                waitMillis = getWaitMillis(request);
+            } catch (IllegalArgumentException e) {
+                result.setResult(ResponseEntity.badRequest().body(e.getMessage()));
+                return result;
+            }
+            final String command = (criteria != null ? getCommand(OPERATION_START, request) + ",filter"
+                    : getCommand(OPERATION_START, request)) + options;
 
             if (log.isInfoEnabled()) {
                 log.info("duration: " + durationMillis + ", command: " + command);
-                log.info(asyncProfiler.execute(command));
             }
-            Thread.sleep(durationMillis);
-            return collectFlameGraph("stop", fileName, request);
+            final ProfilingSession session = sessions.start(getOwner(request), command, waitMillis,
+                    durationMillis + STOP_TIMEOUT_MILLIS);
+            if (criteria != null) {
+                requestSelector.select(session, criteria);
+            }
+            log.info(session.getStartOutput());
+
+            final TimedCapture capture = new TimedCapture(result, session);
+            capture.schedule(() -> result.setResult(collector.apply(session)), durationMillis);
+            result.onTimeout(() -> {
+                if (capture.cancel()) {
+                    log.warn("Timed out waiting for AsyncProfiler to stop");
+                    result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE.value())
+                            .body("Timed out waiting for profiler to stop"));
+                }
+            });
+            result.onError(e -> {
+                if (capture.cancel()) {
+                    log.warn("Profiling request failed, capture cancelled: " + e.getMessage());
+                }
+            });
+            result.onCompletion(capture::cancel);
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Failed to invoke AsyncProfiler: " + e.getMessage());
+            result.setResult(ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage()));
         } catch (IOException | RuntimeException e) {
             log.error("Failed to invoke AsyncProfiler", e);
-            return ResponseEntity.internalServerError().body(e.getMessage());
+            result.setResult(ResponseEntity.internalServerError().body(e.getMessage()));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE.value()).body(e.getMessage());
+            result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage()));
+        }
+        return result;
+    }
+
+    /**
+     * Stops given session collecting its collapsed stacks straight from AsyncProfiler output into a stored capture.
+     */
+    private CaptureStore.Capture collectCapture(ProfilingSession session) throws IOException {
+        String collapsed = sessions.stop(session.getId(), OPERATION_STOP + ",collapsed");
+        return captures.add(session, CallTree.parseCollapsed(collapsed));
+    }
+
+    private ResponseEntity<?> diff(CaptureStore.Capture baseline, CaptureStore.Capture comparison, boolean json,
+                                   String acceptEncoding, String compressionLevel) {
+        // both profiles share a single two-column tree, baseline in column 0 and comparison in column 1
+        CallTree tree = new CallTree(2);
+        tree.merge(baseline.getTree(), 0, 0);
+        tree.merge(comparison.getTree(), 0, 1);
+        if (json) {
+            return ResponseEntity.ok(ProfileDiff.of(tree, 0, 1, DIFF_FRAMES));
+        }
+        String title = "Differential flame graph " + baseline.getStartTime() + " vs " + comparison.getStartTime();
+        StreamingResponseBody body = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            flameGraphWriter.writeDiff(tree, 0, 1, title, writer);
+            writer.flush();
+        };
+        return compress(ResponseEntity.ok().contentType(MediaType.TEXT_HTML).body(body),
+                acceptEncoding, compressionLevel);
+    }
+
+    /**
+     * Profiles all configured peer instances at once for given duration and merges their profiles, see
+     * {@link FleetProfiler}. Other parameters, such as <i>event</i>, are passed on to the peers. Peers which failed
+     * are left out, the number of merged peers is returned in {@value #HEADER_PEERS} header, 502 Bad Gateway only if
+     * none of them responded.
+     *
+     * @param format "html" (default), "collapsed", or "summary" for the hottest frames and outcome of each peer
+     */
+    @GetMapping("fleet")
+    public DeferredResult<ResponseEntity<?>> fleet(
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            @RequestParam(value = PARAMETER_FORMAT, required = false, defaultValue = RecordingStore.FORMAT_HTML)
+                    String format,
+            @RequestParam(value = PARAMETER_LIMIT, required = false, defaultValue = "20") int limit,
+            @RequestParam(value = PARAMETER_SORT, required = false, defaultValue = "self") String sort,
+            WebRequest request) {
+        if (fleetProfiler == null) {
+            DeferredResult<ResponseEntity<?>> result = new DeferredResult<>();
+            result.setResult(ResponseEntity.status(HttpStatus.NOT_FOUND).body("Fleet profiling is not configured"));
+            return result;
+        }
+        final String renderedFormat = format.toLowerCase(Locale.ROOT);
+        final String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        final String compressionLevel = request.getParameter(PARAMETER_COMPRESSION);
+        final String event = request.getParameter("event") != null ? request.getParameter("event") : "cpu";
+        final DeferredResult<ResponseEntity<?>> result =
+                new DeferredResult<>(fleetProfiler.getTimeoutMillis(duration));
+        result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                .body("Timed out waiting for peers")));
+        fleetProfiler.profile(duration, request.getParameterMap()).whenComplete((fleet, e) -> {
+            if (e != null) {
+                log.error("Failed to profile fleet", e);
+                result.setResult(ResponseEntity.internalServerError().body(e.getMessage()));
+                return;
+            }
+            ResponseEntity.BodyBuilder builder = ResponseEntity
+                    .status(fleet.getSucceeded() > 0 ? HttpStatus.OK : HttpStatus.BAD_GATEWAY)
+                    .header(HEADER_PEERS, fleet.getSucceeded() + "/" + fleet.getPeers().size());
+            if (fleet.getSucceeded() == 0) {
+                result.setResult(builder.body(fleet));
+            } else if (FORMAT_SUMMARY.equals(renderedFormat) || FORMAT_JSON.equals(renderedFormat)) {
+                result.setResult(builder.body(FleetProfiler.Summary.of(fleet, limit,
+                        !"total".equalsIgnoreCase(sort))));
+            } else if (RecordingStore.FORMAT_COLLAPSED.equals(renderedFormat)) {
+                StreamingResponseBody body = out -> {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    fleet.getTree().writeCollapsed(writer, 0);
+                    writer.flush();
+                };
+                result.setResult(compress(builder.contentType(new MediaType(MediaType.TEXT_PLAIN,
+                        StandardCharsets.UTF_8)).body(body), acceptEncoding, compressionLevel));
+            } else {
+                String title = event + " on " + fleet.getSucceeded() + " of " + fleet.getPeers().size()
+                        + " instances";
+                StreamingResponseBody body = out -> {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    flameGraphWriter.write(fleet.getTree(), 0, title, writer);
+                    writer.flush();
+                };
+                result.setResult(compress(builder.contentType(MediaType.TEXT_HTML).body(body), acceptEncoding,
+                        compressionLevel));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Lists active and recently finished profiling sessions.
+     */
+    @GetMapping("sessions")
+    public List<ProfilingSession> sessions() {
+        return sessions.getSessions();
+    }
+
+    @GetMapping("sessions/{id}")
+    public ResponseEntity<ProfilingSession> session(@PathVariable String id) {
+        ProfilingSession session = sessions.getSession(id);
+        return session != null ? ResponseEntity.ok(session) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Stops given profiling session, discarding collected data.
+     */
+    @DeleteMapping("sessions/{id}")
+    public ResponseEntity<String> stopSession(@PathVariable String id) {
+        if (sessions.getSession(id) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.ok(sessions.stop(id, OPERATION_STOP));
+        } catch (ProfilingSessionConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to stop profiling session " + id, e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Shows the overhead governor of continuous profiling: budget, measured overhead, current sampling interval and
+     * recent adjustments, see {@link OverheadGovernor}.
+     */
+    @GetMapping("governor")
+    public ResponseEntity<?> governor() {
+        OverheadGovernor governor = continuousProfiler != null ? continuousProfiler.getGovernor() : null;
+        if (governor == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Overhead governor is not enabled");
+        }
+        return ResponseEntity.ok(governor);
+    }
+
+    /**
+     * Looks up continuous profiling chunks recorded within given time range and returns them stitched into a single
+     * JFR recording.
+     *
+     * @param from start of the range, ISO-8601 instant or epoch milliseconds, all retained history by default
+     * @param to end of the range, ISO-8601 instant or epoch milliseconds, current time by default
+     */
+    @GetMapping("history")
+    public ResponseEntity<?> history(@RequestParam(value = "from", required = false) String from,
+                                     @RequestParam(value = "to", required = false) String to, WebRequest request) {
+        if (continuousProfiler == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Continuous profiling is not enabled");
+        }
+        final long fromMillis;
+        final long toMillis;
+        try {
+            fromMillis = from == null ? 0L : ProfilerCommands.parseInstant(from).toEpochMilli();
+            toMillis = to == null ? System.currentTimeMillis() : ProfilerCommands.parseInstant(to).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+
+        try {
+            final ConcatenatedFileResource resource;
+            // files opened up-front can be read after the chunks have been evicted and deleted
+            try (ContinuousProfiler.History history = continuousProfiler.history(fromMillis, toMillis)) {
+                resource = ConcatenatedFileResource.open(history.getChunks().stream()
+                        .map(ContinuousProfiler.Chunk::getFile).collect(Collectors.toList()));
+            }
+            if (resource.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No profiling history in requested range");
+            }
+            return compress(ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                            .filename("async-profiler-history-" + fromMillis + "-" + toMillis + FILE_EXTENSION_JFR)
+                            .build().toString())
+                    .body(resource), request.getHeader(HttpHeaders.ACCEPT_ENCODING),
+                    request.getParameter(PARAMETER_COMPRESSION));
+        } catch (IOException e) {
+            log.error("Failed to read profiling history", e);
+            return ResponseEntity.internalServerError().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Describes the most recent request-scoped profiling, started with <i>uri</i>, <i>header</i> or <i>latency</i>
+     * parameter, with selected requests, their wall and CPU time accounted per route. Samples themselves are not
+     * attributed to routes.
+     */
+    @GetMapping("requests")
+    public ResponseEntity<?> requests() {
+        RequestSelector.Selection selection = requestSelector.getSelection();
+        if (selection == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No request-scoped profiling has been started");
+        }
+        return ResponseEntity.ok(selection);
+    }
+
+    /**
+     * Lists captures started automatically by profiling triggers, most recent first.
+     */
+    @GetMapping("triggers")
+    public ResponseEntity<?> triggers() {
+        if (triggeredProfiler == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Triggered profiling is not enabled");
+        }
+        return ResponseEntity.ok(triggeredProfiler.getCaptures());
+    }
+
+    /**
+     * Downloads a capture started automatically by profiling triggers.
+     */
+    @GetMapping("triggers/{id}")
+    public ResponseEntity<?> trigger(@PathVariable String id, WebRequest request) {
+        TriggeredProfiler.Capture capture = triggeredProfiler != null ? triggeredProfiler.getCapture(id) : null;
+        if (capture == null) {
+            return ResponseEntity.notFound().build();
         }
+        MediaType contentType = id.endsWith(FILE_EXTENSION_JFR)
+                ? MediaType.APPLICATION_OCTET_STREAM : MediaType.TEXT_HTML;
+        return compress(ResponseEntity.ok()
+                        .contentType(contentType)
+                        .header(HttpHeaders.CONTENT_DISPOSITION,
+                                ContentDisposition.attachment().filename(id).build().toString())
+                        .body(new FileSystemResource(capture.getFile())),
+                request.getHeader(HttpHeaders.ACCEPT_ENCODING), request.getParameter(PARAMETER_COMPRESSION));
+    }
+
+    RequestSelector getRequestSelector() {
+        return requestSelector;
+    }
+
+    /**
+     * Shuts down the scheduler running timed captures, stopping any that are still in progress.
+     */
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+        collectors.shutdownNow();
+        liveExecutor.shutdownNow();
+        if (fleetProfiler != null) {
+            fleetProfiler.destroy();
+        }
+        recordings.destroy();
+        downloads.destroy();
+        if (ownsSessions) {
+            sessions.destroy();
+        }
+    }
+
+    /**
+     * Compresses response body if the client accepts it, metering the download when metrics are enabled. Resources
+     * left uncompressed are streamed through the compression buffer, see {@link ResourceResponseBody}.
+     */
+    private ResponseEntity<?> compress(ResponseEntity<?> response, String acceptEncoding, String level) {
+        ResponseEntity<?> compressed;
+        try {
+            compressed = compression.compress(response, acceptEncoding, level);
+        } catch (IOException e) {
+            log.warn("Failed to compress AsyncProfiler output, sending it uncompressed: " + e.getMessage());
+            compressed = response;
+        }
+        try {
+            compressed = ResourceResponseBody.of(compressed, bufferSize);
+        } catch (IOException e) {
+            log.warn("Failed to stream AsyncProfiler output, leaving it to the resource converter: " + e.getMessage());
+        }
+        return MeteredResponse.of(compressed, sessions.getMetrics());
+    }
+
+    /**
+     * @return whether the request profiles several events at once, e.g. <i>event=cpu,alloc=512k,lock=10ms</i>
+     */
+    private static boolean isMultiEvent(WebRequest request) {
+        return ProfilingSession.eventOf(getCommand(OPERATION_START, request)).contains("+");
     }
 
     private static String getCommand(String operation, WebRequest request) {
-        Objects.requireNonNull(operation);
-        String parameters = request.getParameterMap().entrySet().stream()
-                .filter(e -> !"duration".equalsIgnoreCase(e.getKey()))
-                .filter(e -> !"total".equals(e.getKey()))
-                .map(e -> parseParameter(e.getKey(), e.getValue())).collect(Collectors.joining(","));
+        return ProfilerCommands.getCommand(operation, request.getParameterMap());
+    }
 
-        if (OPERATION_START.equals(operation) && parameters.isEmpty()) {
-            parameters = "event=cpu";
+    /**
+     * @return AsyncProfiler output argument, {@code null} if HTML, JFR or pprof output was requested
+     */
+    private static String getTextFormat(String fileName, WebRequest request) {
+        return ProfilerCommands.getTextFormat(fileName, request::getParameter);
+    }
+
+    /**
+     * @return criteria of request-scoped profiling, {@code null} if not requested
+     * @throws IllegalArgumentException if the latency cannot be parsed, or request-scoped profiling is not available
+     */
+    private RequestSelector.Criteria getCriteria(WebRequest request) {
+        String uri = request.getParameter(PARAMETER_URI);
+        String header = request.getParameter(PARAMETER_HEADER);
+        String latency = request.getParameter(PARAMETER_LATENCY);
+        if (uri == null && header == null && latency == null) {
+            return null;
+        }
+        long latencyMillis = latency == null || latency.isEmpty() ? 0L : ProfilerCommands.getLatencyMillis(latency);
+        if (!requestSelector.isAttached()) {
+            throw new IllegalArgumentException("Request-scoped profiling requires the javax.servlet API");
         }
-        return parameters.isEmpty() ? operation : String.join(",", operation, parameters);
+        return new RequestSelector.Criteria(uri, header, latencyMillis);
     }
 
-    private static String parseParameter(String key, String[] values) {
-        if (values == null || values.length == 0
-                || (values.length == 1 && (values[0] == null || values[0].isEmpty()))) {
-            return key;
+    private static String getOwner(WebRequest request) {
+        String owner = request.getParameter(PARAMETER_OWNER);
+        if (owner == null && request.getUserPrincipal() != null) {
+            owner = request.getUserPrincipal().getName();
         }
-        return Stream.of(values).map(v -> key + "=" + v).collect(Collectors.joining(","));
+        return owner != null ? owner : "anonymous";
+    }
+
+    /**
+     * @throws IllegalArgumentException if the wait cannot be parsed
+     */
+    private static long getWaitMillis(WebRequest request) {
+        return ProfilerCommands.getWaitMillis(request.getParameter(PARAMETER_WAIT));
+    }
+
+    private static Instant parseInstant(String value) {
+        return value != null ? ProfilerCommands.parseInstant(value) : null;
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-timer-");
+        threadFactory.setDaemon(true);
+        return Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    private static ExecutorService newCollectors() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-collector-");
+        threadFactory.setDaemon(true);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(COLLECTOR_THREADS, COLLECTOR_THREADS, 60L,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(COLLECTOR_QUEUE_SIZE), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private File createTempFile(String extension) throws IOException {
         String date = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm").format(LocalDateTime.now());
-        File file = File.createTempFile("async-profiler-" + date, extension);
-        file.delete();
-        return file;
+        return downloads.createFile(DownloadStore.FILE_PREFIX + date, extension);
+    }
+
+    /**
+     * Tracks a single timed capture, making sure that the profiler is stopped exactly once - either by the scheduled
+     * collection or by a cancellation caused by a request timeout or a client disconnect.
+     */
+    private final class TimedCapture {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final DeferredResult<ResponseEntity<?>> result;
+        private final ProfilingSession session;
+        private volatile Future<?> future;
+
+        TimedCapture(DeferredResult<ResponseEntity<?>> result, ProfilingSession session) {
+            this.result = result;
+            this.session = session;
+        }
+
+        /**
+         * Hands given collector over to the collector pool once the delay elapses, the scheduler only times it.
+         */
+        void schedule(Runnable collect, long delayMillis) {
+            future = scheduler.schedule(() -> {
+                if (!done.compareAndSet(false, true) || result.isSetOrExpired()) {
+                    return;
+                }
+                try {
+                    collectors.execute(collect);
+                } catch (RejectedExecutionException e) {
+                    log.warn("Too many AsyncProfiler captures being collected, capture cancelled");
+                    stop();
+                    result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .body("Too many captures being collected"));
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return {@code true} if capture was still in progress and has been stopped by this call
+         */
+        boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            Future<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            stop();
+            return true;
+        }
+
+        private void stop() {
+            try {
+                log.info(sessions.stop(session.getId(), OPERATION_STOP));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to stop cancelled AsyncProfiler capture: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Pushes snapshots of a live profile to a single client. A tick finding the previous snapshot still being sent
+     * is dropped, the stream is completed once the session finishes or the client goes away.
+     */
+    private final class LiveStream {
+        private final LiveProfile live;
+        private final SseEmitter emitter = new SseEmitter(0L);
+        private volatile Future<?> future;
+
+        LiveStream(LiveProfile live) {
+            this.live = live;
+            emitter.onCompletion(this::cancel);
+            emitter.onTimeout(this::cancel);
+            emitter.onError(e -> cancel());
+        }
+
+        void schedule(long intervalMillis) {
+            future = scheduler.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private void tick() {
+            if (!live.isActive()) {
+                cancel();
+                emitter.complete();
+            } else if (live.tryAcquire()) {
+                try {
+                    liveExecutor.execute(this::send);
+                } catch (RuntimeException e) {
+                    live.release();
+                    throw e;
+                }
+            }
+        }
+
+        private void send() {
+            try {
+                String collapsed = sessions.dump("dump,collapsed");
+                if (!live.isActive()) {
+                    // finished while dumping, the output is not of this session
+                    return;
+                }
+                LiveProfile.Snapshot snapshot = live.next(collapsed);
+                emitter.send(SseEmitter.event().id(Long.toString(snapshot.getSequence())).name("profile")
+                        .data(snapshot, MediaType.APPLICATION_JSON));
+            } catch (IOException | RuntimeException e) {
+                log.debug("Live profile stream of " + live.getSession() + " closed: " + e.getMessage());
+                cancel();
+                emitter.completeWithError(e);
+            } finally {
+                live.release();
+            }
+        }
+
+        private void cancel() {
+            Future<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
     }
 }
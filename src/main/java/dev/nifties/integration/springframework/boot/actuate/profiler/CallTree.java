@@ -0,0 +1,722 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compact call tree (trie of stack frames) aggregated out of AsyncProfiler's {@code collapsed} output.
+ * <p>
+ * Frames are interned into integer ids and nodes are kept in parallel primitive arrays, so memory is proportional to
+ * the number of distinct stacks rather than the number of samples, and parsing does not allocate per sample. Each node
+ * keeps one or more columns of counts, so that several captures (e.g. baseline and comparison) can be aggregated into
+ * a single tree.
+ * <p>
+ * Not thread-safe.
+ */
+public final class CallTree {
+
+    static final int ROOT = 0;
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int columns;
+    private final FrameDictionary frames;
+
+    private int size;
+    private int[] parent;
+    private int[] frame;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private long[] self;
+    private long[] total;
+
+    /**
+     * Open addressing index of (parent, frame) keys to child node + 1, 0 marking an empty slot.
+     */
+    private long[] childKeys;
+    private int[] childNodes;
+
+    public CallTree() {
+        this(1);
+    }
+
+    /**
+     * @param columns number of count columns kept for each node
+     */
+    public CallTree(int columns) {
+        this(columns, new FrameDictionary());
+    }
+
+    private CallTree(int columns, FrameDictionary frames) {
+        if (columns < 1) {
+            throw new IllegalArgumentException("columns: " + columns);
+        }
+        this.columns = columns;
+        this.frames = frames;
+        parent = new int[INITIAL_CAPACITY];
+        frame = new int[INITIAL_CAPACITY];
+        firstChild = new int[INITIAL_CAPACITY];
+        lastChild = new int[INITIAL_CAPACITY];
+        nextSibling = new int[INITIAL_CAPACITY];
+        self = new long[INITIAL_CAPACITY * columns];
+        total = new long[INITIAL_CAPACITY * columns];
+        childKeys = new long[INITIAL_CAPACITY * 2];
+        childNodes = new int[INITIAL_CAPACITY * 2];
+        parent[ROOT] = NONE;
+        frame[ROOT] = NONE;
+        firstChild[ROOT] = NONE;
+        lastChild[ROOT] = NONE;
+        nextSibling[ROOT] = NONE;
+        size = 1;
+    }
+
+    /**
+     * Parses collapsed stacks, one {@code frame;frame;frame count} line per stack, root frame first.
+     */
+    public static CallTree parseCollapsed(String collapsed) {
+        CallTree tree = new CallTree();
+        tree.addCollapsed(collapsed, 0);
+        return tree;
+    }
+
+    public void addCollapsed(String collapsed, int column) {
+        try {
+            addCollapsed(new StringReader(collapsed), column);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds collapsed stacks read from given reader into given count column. Malformed lines are skipped.
+     */
+    public void addCollapsed(Reader reader, int column) throws IOException {
+        checkColumn(column);
+        readCollapsed(reader, new StackHandler() {
+            private int node;
+            private long count;
+
+            @Override
+            public void startStack(long count) {
+                this.node = ROOT;
+                this.count = count;
+                total[column] += count;
+            }
+
+            @Override
+            public void frame(char[] chars, int offset, int length) {
+                node = child(node, frames.intern(chars, offset, length));
+                total[node * columns + column] += count;
+            }
+
+            @Override
+            public void endStack() {
+                self[node * columns + column] += count;
+            }
+        });
+    }
+
+    /**
+     * Parses collapsed stacks read from given reader line by line into a reused buffer, passing frames of each stack
+     * to given handler without allocating per line. Malformed lines are skipped.
+     */
+    static void readCollapsed(Reader reader, StackHandler handler) throws IOException {
+        char[] buffer = new char[8192];
+        char[] line = new char[1024];
+        int length = 0;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    readLine(line, length, handler);
+                    length = 0;
+                } else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = c;
+                }
+            }
+        }
+        readLine(line, length, handler);
+    }
+
+    /**
+     * Adds a single stack.
+     *
+     * @param stack frame names, root frame first
+     */
+    public void addStack(String[] stack, long count, int column) {
+        checkColumn(column);
+        int node = ROOT;
+        total[column] += count;
+        for (String name : stack) {
+            node = child(node, frames.intern(name));
+            total[node * columns + column] += count;
+        }
+        self[node * columns + column] += count;
+    }
+
+    /**
+     * Adds all counts of another tree with the same number of columns.
+     */
+    public void merge(CallTree other) {
+        if (other.columns != columns) {
+            throw new IllegalArgumentException("Cannot merge " + other.columns + " columns into " + columns);
+        }
+        int[] mapping = map(other);
+        for (int node = 0; node < other.size; node++) {
+            for (int column = 0; column < columns; column++) {
+                self[mapping[node] * columns + column] += other.self[node * columns + column];
+                total[mapping[node] * columns + column] += other.total[node * columns + column];
+            }
+        }
+    }
+
+    /**
+     * Adds counts of given column of another tree into given column of this tree.
+     */
+    public void merge(CallTree other, int otherColumn, int column) {
+        other.checkColumn(otherColumn);
+        checkColumn(column);
+        int[] mapping = map(other);
+        for (int node = 0; node < other.size; node++) {
+            self[mapping[node] * columns + column] += other.self[node * other.columns + otherColumn];
+            total[mapping[node] * columns + column] += other.total[node * other.columns + otherColumn];
+        }
+    }
+
+    /**
+     * @return new tree keeping only stacks with at least one frame matching given pattern
+     */
+    public CallTree include(Pattern pattern) {
+        return filter(pattern, true);
+    }
+
+    /**
+     * @return new tree without stacks having any frame matching given pattern
+     */
+    public CallTree exclude(Pattern pattern) {
+        return filter(pattern, false);
+    }
+
+    /**
+     * @return frames with the highest self count in the first column, highest first
+     */
+    public List<FrameCount> topSelf(int limit) {
+        return top(limit, 0, true);
+    }
+
+    /**
+     * @return frames with the highest total count in the first column, highest first
+     */
+    public List<FrameCount> topTotal(int limit) {
+        return top(limit, 0, false);
+    }
+
+    /**
+     * Aggregates counts of the same frame appearing in multiple stacks. Total count of a recursive frame is counted
+     * once per stack.
+     *
+     * @param bySelf whether to order by self count, otherwise by total
+     */
+    public List<FrameCount> top(int limit, int column, boolean bySelf) {
+        long[] frameSelf = new long[frames.size()];
+        long[] frameTotal = new long[frames.size()];
+        aggregate(column, frameSelf, frameTotal);
+        int[] top = selectTop(bySelf ? frameSelf : frameTotal, limit);
+        List<FrameCount> result = new ArrayList<>(top.length);
+        for (int f : top) {
+            result.add(new FrameCount(frames.get(f), frameSelf[f], frameTotal[f]));
+        }
+        return result;
+    }
+
+    /**
+     * Writes stacks of given column back in collapsed format.
+     */
+    public void writeCollapsed(Appendable out, int column) throws IOException {
+        writeCollapsed(out, NONE, column);
+    }
+
+    /**
+     * Writes stacks whose self count in given column grew over base column, e.g. between two dumps of the same
+     * profiling session, counting only the growth.
+     */
+    public void writeCollapsedDelta(Appendable out, int baseColumn, int column) throws IOException {
+        checkColumn(baseColumn);
+        writeCollapsed(out, baseColumn, column);
+    }
+
+    private void writeCollapsed(Appendable out, int baseColumn, int column) throws IOException {
+        checkColumn(column);
+        int[][] path = {new int[64]};
+        StringBuilder line = new StringBuilder();
+        IOException[] failure = new IOException[1];
+        walk(new Visitor() {
+            @Override
+            public void enter(int node, int depth) {
+                if (depth == path[0].length) {
+                    path[0] = Arrays.copyOf(path[0], depth * 2);
+                }
+                path[0][depth] = frame[node];
+                long count = self[node * columns + column];
+                if (baseColumn != NONE) {
+                    count -= self[node * columns + baseColumn];
+                }
+                if (count <= 0 || failure[0] != null) {
+                    return;
+                }
+                line.setLength(0);
+                for (int i = 0; i <= depth; i++) {
+                    if (i > 0) {
+                        line.append(';');
+                    }
+                    line.append(frames.get(path[0][i]));
+                }
+                line.append(' ').append(count).append('\n');
+                try {
+                    out.append(line);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return number of distinct stack prefixes, excluding the root
+     */
+    public int getNodeCount() {
+        return size - 1;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * @return sum of all samples in given column
+     */
+    public long getTotal(int column) {
+        checkColumn(column);
+        return total[column];
+    }
+
+    /**
+     * Sums counts of given column per frame id. Total count of a recursive frame is counted once per stack.
+     */
+    void aggregate(int column, long[] frameSelf, long[] frameTotal) {
+        checkColumn(column);
+        int[] onStack = new int[frames.size()];
+        walk(new Visitor() {
+            @Override
+            public void enter(int node, int depth) {
+                int f = frame[node];
+                frameSelf[f] += self[node * columns + column];
+                if (onStack[f]++ == 0) {
+                    frameTotal[f] += total[node * columns + column];
+                }
+            }
+
+            @Override
+            public void exit(int node, int depth) {
+                onStack[frame[node]]--;
+            }
+        });
+    }
+
+    /**
+     * @return name of given frame id
+     */
+    String getFrame(int frameId) {
+        return frames.get(frameId);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int parent(int node) {
+        return parent[node];
+    }
+
+    int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    int frame(int node) {
+        return frame[node];
+    }
+
+    String frameName(int node) {
+        return frames.get(frame[node]);
+    }
+
+    long self(int node, int column) {
+        return self[node * columns + column];
+    }
+
+    long total(int node, int column) {
+        return total[node * columns + column];
+    }
+
+    /**
+     * Visits all nodes except the root depth-first, parents before children, without recursion.
+     */
+    void walk(Visitor visitor) {
+        int[] stack = new int[64];
+        int depth = 0;
+        int node = firstChild[ROOT];
+        while (node != NONE) {
+            visitor.enter(node, depth);
+            int child = firstChild[node];
+            if (child != NONE) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = node;
+                node = child;
+                continue;
+            }
+            visitor.exit(node, depth);
+            while (nextSibling[node] == NONE && depth > 0) {
+                node = stack[--depth];
+                visitor.exit(node, depth);
+            }
+            node = nextSibling[node];
+        }
+    }
+
+    private CallTree filter(Pattern pattern, boolean include) {
+        boolean[] matches = new boolean[frames.size()];
+        for (int f = 0; f < matches.length; f++) {
+            matches[f] = pattern.matcher(frames.get(f)).find();
+        }
+        CallTree result = new CallTree(columns, frames.copy());
+        int[][] path = {new int[64]};
+        int[] matched = new int[1];
+        walk(new Visitor() {
+            @Override
+            public void enter(int node, int depth) {
+                if (depth == path[0].length) {
+                    path[0] = Arrays.copyOf(path[0], depth * 2);
+                }
+                path[0][depth] = frame[node];
+                if (matches[frame[node]]) {
+                    matched[0]++;
+                }
+                if ((matched[0] > 0) == include) {
+                    result.addPath(path[0], depth + 1, self, node * columns);
+                }
+            }
+
+            @Override
+            public void exit(int node, int depth) {
+                if (matches[frame[node]]) {
+                    matched[0]--;
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds self counts of all columns to the stack of given frame ids, which must come from this tree's dictionary.
+     */
+    private void addPath(int[] path, int length, long[] counts, int offset) {
+        boolean empty = true;
+        for (int column = 0; column < columns; column++) {
+            empty &= counts[offset + column] == 0;
+        }
+        if (empty) {
+            return;
+        }
+        int node = ROOT;
+        addCounts(node, counts, offset, false);
+        for (int i = 0; i < length; i++) {
+            node = child(node, path[i]);
+            addCounts(node, counts, offset, false);
+        }
+        addCounts(node, counts, offset, true);
+    }
+
+    private void addCounts(int node, long[] counts, int offset, boolean toSelf) {
+        long[] target = toSelf ? self : total;
+        for (int column = 0; column < columns; column++) {
+            target[node * columns + column] += counts[offset + column];
+        }
+    }
+
+    private static void readLine(char[] line, int length, StackHandler handler) {
+        int end = length;
+        while (end > 0 && Character.isWhitespace(line[end - 1])) {
+            end--;
+        }
+        int space = end - 1;
+        while (space >= 0 && line[space] != ' ') {
+            space--;
+        }
+        if (space < 0 || space == end - 1) {
+            return;
+        }
+        long count = 0;
+        for (int i = space + 1; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') {
+                return;
+            }
+            count = count * 10 + (c - '0');
+        }
+        handler.startStack(count);
+        int start = 0;
+        for (int i = 0; i <= space; i++) {
+            if (i == space || line[i] == ';') {
+                if (i > start) {
+                    handler.frame(line, start, i - start);
+                }
+                start = i + 1;
+            }
+        }
+        handler.endStack();
+    }
+
+    /**
+     * @return node of this tree corresponding to each node of the other tree, creating missing ones
+     */
+    private int[] map(CallTree other) {
+        int[] frameMapping = new int[other.frames.size()];
+        for (int f = 0; f < frameMapping.length; f++) {
+            frameMapping[f] = frames.intern(other.frames.get(f));
+        }
+        int[] mapping = new int[other.size];
+        mapping[ROOT] = ROOT;
+        // parents are always created before their children
+        for (int node = 1; node < other.size; node++) {
+            mapping[node] = child(mapping[other.parent[node]], frameMapping[other.frame[node]]);
+        }
+        return mapping;
+    }
+
+    /**
+     * @return child node of given parent for given frame, created if missing
+     */
+    private int child(int parentNode, int frameId) {
+        long key = ((long) parentNode << 32) | (frameId & 0xFFFFFFFFL);
+        int mask = childKeys.length - 1;
+        int slot = mix(key) & mask;
+        int entry;
+        while ((entry = childNodes[slot]) != 0) {
+            if (childKeys[slot] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int node = newNode(parentNode, frameId);
+        childKeys[slot] = key;
+        childNodes[slot] = node + 1;
+        if (size * 2 > childKeys.length) {
+            rehash(childKeys.length * 2);
+        }
+        return node;
+    }
+
+    private int newNode(int parentNode, int frameId) {
+        if (size == parent.length) {
+            int capacity = size + (size >> 1);
+            parent = Arrays.copyOf(parent, capacity);
+            frame = Arrays.copyOf(frame, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            lastChild = Arrays.copyOf(lastChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            self = Arrays.copyOf(self, capacity * columns);
+            total = Arrays.copyOf(total, capacity * columns);
+        }
+        int node = size++;
+        parent[node] = parentNode;
+        frame[node] = frameId;
+        firstChild[node] = NONE;
+        lastChild[node] = NONE;
+        nextSibling[node] = NONE;
+        // children are kept in the order of their first appearance
+        if (lastChild[parentNode] == NONE) {
+            firstChild[parentNode] = node;
+        } else {
+            nextSibling[lastChild[parentNode]] = node;
+        }
+        lastChild[parentNode] = node;
+        return node;
+    }
+
+    private void rehash(int capacity) {
+        long[] newKeys = new long[capacity];
+        int[] newNodes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < childKeys.length; i++) {
+            if (childNodes[i] != 0) {
+                int slot = mix(childKeys[i]) & mask;
+                while (newNodes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = childKeys[i];
+                newNodes[slot] = childNodes[i];
+            }
+        }
+        childKeys = newKeys;
+        childNodes = newNodes;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void checkColumn(int column) {
+        if (column < 0 || column >= columns) {
+            throw new IndexOutOfBoundsException("column: " + column);
+        }
+    }
+
+    /**
+     * Picks indexes of the highest positive values using a bounded min-heap.
+     */
+    static int[] selectTop(long[] values, int limit) {
+        int[] heap = new int[Math.max(0, Math.min(limit, values.length))];
+        int heapSize = 0;
+        for (int i = 0; i < values.length && heap.length > 0; i++) {
+            if (values[i] <= 0) {
+                continue;
+            }
+            if (heapSize < heap.length) {
+                heap[heapSize] = i;
+                siftUp(heap, heapSize++, values);
+            } else if (values[i] > values[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, heapSize, values);
+            }
+        }
+        int[] result = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, values);
+        }
+        return result;
+    }
+
+    private static void siftUp(int[] heap, int index, long[] values) {
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            if (values[heap[parentIndex]] <= values[heap[index]]) {
+                return;
+            }
+            swap(heap, parentIndex, index);
+            index = parentIndex;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, long[] values) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && values[heap[left]] < values[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && values[heap[right]] < values[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(heap, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
+    /**
+     * Callback of {@link #walk(Visitor)}.
+     */
+    interface Visitor {
+        /**
+         * @param depth 0 for children of the root
+         */
+        void enter(int node, int depth);
+
+        default void exit(int node, int depth) {
+        }
+    }
+
+    /**
+     * Callback of {@link #readCollapsed(Reader, StackHandler)}, receiving stacks root frame first.
+     */
+    interface StackHandler {
+        void startStack(long count);
+
+        /**
+         * @param chars line buffer, valid only until the call returns
+         */
+        void frame(char[] chars, int offset, int length);
+
+        void endStack();
+    }
+
+    /**
+     * Aggregated counts of a single frame.
+     */
+    public static final class FrameCount {
+
+        private final String frame;
+        private final long self;
+        private final long total;
+
+        FrameCount(String frame, long self, long total) {
+            this.frame = frame;
+            this.self = self;
+            this.total = total;
+        }
+
+        public String getFrame() {
+            return frame;
+        }
+
+        public long getSelf() {
+            return self;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return frame + " (self: " + self + ", total: " + total + ")";
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps a bounded number of recent captures aggregated into {@link CallTree}s, so that they can later be compared
+ * with each other. The oldest capture is dropped first.
+ */
+public final class CaptureStore {
+
+    private final Map<String, Capture> captures;
+
+    CaptureStore(int maxCount) {
+        this.captures = new LinkedHashMap<String, Capture>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Capture> eldest) {
+                return size() > maxCount;
+            }
+        };
+    }
+
+    synchronized Capture add(ProfilingSession session, CallTree tree) {
+        Capture capture = new Capture(UUID.randomUUID().toString(), session.getOwner(), session.getEvent(),
+                session.getStartTime(), Instant.now(), tree);
+        captures.put(capture.getId(), capture);
+        return capture;
+    }
+
+    synchronized Capture get(String id) {
+        return captures.get(id);
+    }
+
+    /**
+     * @return stored captures, most recent first
+     */
+    synchronized List<Capture> list() {
+        List<Capture> result = new ArrayList<>(captures.values());
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Profile of a single completed capture.
+     */
+    public static final class Capture {
+
+        private final String id;
+        private final String owner;
+        private final String event;
+        private final Instant startTime;
+        private final Instant endTime;
+        private final CallTree tree;
+
+        Capture(String id, String owner, String event, Instant startTime, Instant endTime, CallTree tree) {
+            this.id = id;
+            this.owner = owner;
+            this.event = event;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.tree = tree;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public Instant getStartTime() {
+            return startTime;
+        }
+
+        public Instant getEndTime() {
+            return endTime;
+        }
+
+        public long getSamples() {
+            return tree.getTotal(0);
+        }
+
+        CallTree getTree() {
+            return tree;
+        }
+    }
+}
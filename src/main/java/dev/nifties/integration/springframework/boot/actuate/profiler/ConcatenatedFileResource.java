@@ -0,0 +1,84 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-once resource streaming several files one after another. All files are opened up-front, so they can be
+ * safely deleted (e.g. evicted by {@link ContinuousProfiler}) while the resource is still being read.
+ */
+final class ConcatenatedFileResource extends AbstractResource {
+    private final List<FileInputStream> streams;
+    private final long contentLength;
+    private final String description;
+    private boolean read;
+
+    private ConcatenatedFileResource(List<FileInputStream> streams, long contentLength, String description) {
+        this.streams = streams;
+        this.contentLength = contentLength;
+        this.description = description;
+    }
+
+    /**
+     * Opens given files, skipping the ones that no longer exist.
+     */
+    static ConcatenatedFileResource open(List<File> files) throws IOException {
+        List<FileInputStream> streams = new ArrayList<>(files.size());
+        long contentLength = 0;
+        try {
+            for (File file : files) {
+                FileInputStream stream;
+                try {
+                    stream = new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    continue;
+                }
+                streams.add(stream);
+                contentLength += stream.getChannel().size();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (FileInputStream stream : streams) {
+                stream.close();
+            }
+            throw e;
+        }
+        return new ConcatenatedFileResource(streams, contentLength, "concatenation of " + files);
+    }
+
+    boolean isEmpty() {
+        return streams.isEmpty();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (read) {
+            throw new IllegalStateException("Resource can only be read once: " + description);
+        }
+        read = true;
+        return new SequenceInputStream(Collections.enumeration(new ArrayList<InputStream>(streams)));
+    }
+}
@@ -0,0 +1,443 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Always-on profiling: keeps {@link AsyncProfiler} recording JFR into fixed-duration chunk files, rotating them on a
+ * single background thread and keeping a bounded ring of completed chunks on disk, limited both by total size and
+ * by age. Chunks overlapping a time range can then be looked up and concatenated into a single JFR recording, since
+ * JFR files are valid sequences of self-contained chunks.
+ * <p>
+ * Profiling runs as a never expiring session of {@link ProfilingSessionManager}, so on-demand profiling requests are
+ * rejected while continuous profiling is running.
+ * <p>
+ * Completed chunks are named {@code chunk-<startMillis>-<endMillis>.jfr}, so the ring survives application restarts.
+ * Chunks returned by {@link #history(long, long)} stay on disk until the returned {@link History} is closed, even if
+ * evicted from the ring meanwhile.
+ * <p>
+ * With an {@link OverheadGovernor} enabled, each chunk is profiled with a sampling interval adjusted to the overhead
+ * measured over the previous one, and profiling is paused for a chunk when over budget even at the longest interval.
+ */
+public class ContinuousProfiler implements SmartLifecycle {
+
+    private static final Log log = LogFactory.getLog(ContinuousProfiler.class);
+
+    private static final String CHUNK_PREFIX = "chunk-";
+    private static final String CHUNK_SUFFIX = ".jfr";
+    private static final String IN_PROGRESS_SUFFIX = ".part";
+    private static final Pattern CHUNK_NAME = Pattern.compile("chunk-(\\d+)-(\\d+)\\.jfr");
+
+    private static final long ROTATE_TIMEOUT_MILLIS = 30_000L;
+
+    private static final String OWNER = "continuous";
+
+    private final ProfilingSessionManager sessions;
+    private final AsyncProfilerProperties.Continuous properties;
+    private final File directory;
+    private final Clock clock;
+
+    /**
+     * Present only if enabled.
+     */
+    private final OverheadGovernor governor;
+
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+    private long totalBytes;
+
+    private ScheduledExecutorService scheduler;
+    private ProfilingSession session;
+    private File currentFile;
+    private long currentStartMillis;
+
+    /**
+     * Start of the chunk the governor measures next, and samples of its parts cut off by forced rotations.
+     */
+    private long governedStartNanos;
+    private long governedSamples;
+
+    public ContinuousProfiler(ProfilingSessionManager sessions, AsyncProfilerProperties.Continuous properties) {
+        this(sessions, properties, Clock.systemUTC());
+    }
+
+    ContinuousProfiler(ProfilingSessionManager sessions, AsyncProfilerProperties.Continuous properties, Clock clock) {
+        this.sessions = sessions;
+        this.properties = properties;
+        this.directory = properties.getDirectory() != null ? properties.getDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-continuous");
+        this.clock = clock;
+        this.governor = OverheadGovernor.of(properties);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.error("Continuous profiling not started, failed to create directory " + directory);
+            return;
+        }
+        loadChunks();
+        try {
+            governedStartNanos = System.nanoTime();
+            startChunk();
+        } catch (IOException | RuntimeException e) {
+            log.error("Continuous profiling not started", e);
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-continuous-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long intervalMillis = properties.getChunkDuration().toMillis();
+        scheduler.scheduleWithFixedDelay(this::rotateQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Continuous profiling started, keeping chunks in " + directory);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = scheduler;
+            scheduler = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(ROTATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                completeChunk(true);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to complete continuous profiling chunk: " + e.getMessage());
+            }
+        }
+        log.info("Continuous profiling stopped");
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * Returns completed chunks overlapping given time range, oldest first. If the range reaches into the chunk
+     * currently being recorded, it is rotated first, so that the most recent samples are included as well. Such a
+     * forced rotation is not taken into account by the governor, which keeps measuring scheduled chunks as a whole.
+     * <p>
+     * Returned chunks are pinned: evicting them only removes them from the ring, their files are deleted once the
+     * history is closed. Callers are expected to close it as soon as the files have been opened or read.
+     *
+     * @param fromMillis start of time range, epoch milliseconds, inclusive
+     * @param toMillis end of time range, epoch milliseconds, inclusive
+     */
+    public History history(long fromMillis, long toMillis) {
+        ScheduledExecutorService executor;
+        long inProgressSince;
+        synchronized (this) {
+            executor = scheduler;
+            inProgressSince = currentFile != null ? currentStartMillis : Long.MAX_VALUE;
+        }
+        if (executor != null && toMillis >= inProgressSince) {
+            try {
+                executor.submit(() -> {
+                    rotate(true);
+                    return null;
+                }).get(ROTATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Failed to rotate continuous profiling chunk: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            List<Chunk> result = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                if (chunk.getEndMillis() >= fromMillis && chunk.getStartMillis() <= toMillis) {
+                    chunk.pins++;
+                    result.add(chunk);
+                }
+            }
+            return new History(result);
+        }
+    }
+
+    synchronized List<Chunk> getChunks() {
+        return new ArrayList<>(chunks);
+    }
+
+    /**
+     * @return profiled event, as configured
+     */
+    String getEvent() {
+        return properties.getEvent();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return governor adjusting the sampling interval, {@code null} if not enabled
+     */
+    public OverheadGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Completes current chunk and immediately starts the next one, unless the governor pauses profiling, then evicts
+     * chunks exceeding size and age limits.
+     */
+    synchronized void rotate() throws IOException {
+        rotate(false);
+    }
+
+    /**
+     * @param forced whether the rotation has been requested by a history query rather than scheduled, in which case
+     *               the governor is not updated and a paused profiler is left paused
+     */
+    private synchronized void rotate(boolean forced) throws IOException {
+        if (forced && currentFile == null) {
+            return;
+        }
+        boolean pause = false;
+        if (governor != null) {
+            // samples are counted since the profiler was started for the current chunk
+            boolean profiled = currentFile != null;
+            long samples = governedSamples + (profiled ? sessions.getLoader().getSamples() : 0L);
+            if (forced) {
+                governedSamples = samples;
+            } else {
+                governor.update(samples, System.nanoTime() - governedStartNanos, profiled);
+                governedSamples = 0L;
+                governedStartNanos = System.nanoTime();
+                pause = governor.isPaused();
+            }
+        }
+        // the session is released while paused, so that on-demand profiling is possible meanwhile
+        completeChunk(pause);
+        if (!pause) {
+            startChunk();
+        }
+        evict();
+    }
+
+    private void rotateQuietly() {
+        try {
+            rotate();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to rotate continuous profiling chunk", e);
+        }
+    }
+
+    private void startChunk() throws IOException {
+        long startMillis = clock.millis();
+        File file = new File(directory, CHUNK_PREFIX + startMillis + CHUNK_SUFFIX + IN_PROGRESS_SUFFIX);
+        String options = governor != null ? governor.applyTo(properties.getOptions()) : properties.getOptions();
+        String command = "start,event=" + properties.getEvent()
+                + (StringUtils.hasText(options) ? "," + options : "")
+                + ",jfr,file=" + file.getAbsolutePath();
+        if (log.isDebugEnabled()) {
+            log.debug("command: " + command);
+        }
+        if (session != null) {
+            sessions.execute(session, command);
+        } else {
+            try {
+                session = sessions.start(OWNER, command, 0L, -1L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while starting continuous profiling");
+            }
+        }
+        currentFile = file;
+        currentStartMillis = startMillis;
+    }
+
+    /**
+     * @param last whether the session should be finished, rather than kept for the next chunk
+     */
+    private void completeChunk(boolean last) throws IOException {
+        if (session != null && session.getState() != ProfilingSession.State.ACTIVE) {
+            log.warn("Continuous profiling " + session + " has been stopped externally");
+            session = null;
+            currentFile = null;
+        }
+        if (currentFile == null) {
+            return;
+        }
+        File file = currentFile;
+        currentFile = null;
+        if (last) {
+            String sessionId = session.getId();
+            session = null;
+            sessions.stop(sessionId, "stop");
+        } else {
+            sessions.execute(session, "stop");
+        }
+        long endMillis = clock.millis();
+        if (!file.isFile()) {
+            log.warn("Continuous profiling chunk " + file + " has not been written");
+            return;
+        }
+        File target = new File(directory, CHUNK_PREFIX + currentStartMillis + "-" + endMillis + CHUNK_SUFFIX);
+        Files.move(file.toPath(), target.toPath());
+        addChunk(new Chunk(target, currentStartMillis, endMillis, target.length()));
+    }
+
+    private void evict() {
+        long maxBytes = properties.getMaxSize().toBytes();
+        long minEndMillis = clock.millis() - properties.getMaxAge().toMillis();
+        Chunk oldest;
+        while ((oldest = chunks.peekFirst()) != null
+                && (totalBytes > maxBytes || oldest.getEndMillis() < minEndMillis)) {
+            chunks.removeFirst();
+            totalBytes -= oldest.getSize();
+            oldest.evicted = true;
+            if (oldest.pins == 0) {
+                delete(oldest);
+            }
+        }
+    }
+
+    private synchronized void release(List<Chunk> pinned) {
+        for (Chunk chunk : pinned) {
+            if (--chunk.pins == 0 && chunk.evicted) {
+                delete(chunk);
+            }
+        }
+    }
+
+    private static void delete(Chunk chunk) {
+        if (!chunk.getFile().delete() && chunk.getFile().exists()) {
+            log.warn("Failed to delete continuous profiling chunk " + chunk.getFile());
+        }
+    }
+
+    private void addChunk(Chunk chunk) {
+        chunks.addLast(chunk);
+        totalBytes += chunk.getSize();
+    }
+
+    /**
+     * Picks up chunks left by previous runs and removes incomplete ones.
+     */
+    private void loadChunks() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Chunk> found = new ArrayList<>();
+        for (File file : files) {
+            Matcher matcher = CHUNK_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                found.add(new Chunk(file, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+                        file.length()));
+            } else if (file.getName().startsWith(CHUNK_PREFIX) && file.getName().endsWith(IN_PROGRESS_SUFFIX)) {
+                file.delete();
+            }
+        }
+        Chunk[] sorted = found.toArray(new Chunk[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.getStartMillis(), b.getStartMillis()));
+        for (Chunk chunk : sorted) {
+            addChunk(chunk);
+        }
+        evict();
+    }
+
+    /**
+     * Chunks overlapping a time range, kept on disk until closed.
+     */
+    public final class History implements Closeable {
+        private final List<Chunk> chunks;
+        private boolean closed;
+
+        History(List<Chunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        /**
+         * @return pinned chunks, oldest first
+         */
+        public List<Chunk> getChunks() {
+            return chunks;
+        }
+
+        /**
+         * Unpins the chunks, deleting the ones evicted meanwhile.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(chunks);
+            }
+        }
+    }
+
+    /**
+     * Completed JFR chunk file covering a time range.
+     */
+    public static final class Chunk {
+        private final File file;
+        private final long startMillis;
+        private final long endMillis;
+        private final long size;
+
+        /**
+         * Open histories holding the chunk, and whether it has left the ring; guarded by the profiler.
+         */
+        private int pins;
+        private boolean evicted;
+
+        Chunk(File file, long startMillis, long endMillis, long size) {
+            this.file = file;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.size = size;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
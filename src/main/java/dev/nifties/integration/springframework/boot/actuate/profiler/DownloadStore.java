@@ -0,0 +1,378 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps profiler output on disk under an id for a retention window, so that an interrupted download of a large flame
+ * graph or JFR can be resumed with HTTP range requests instead of profiling again. Output expires after the
+ * retention, and the oldest is deleted first once the total size exceeds the disk budget.
+ * <p>
+ * Expired output is deleted by a periodic purge on the endpoint scheduler, and output left behind by a previous run,
+ * which can no longer be downloaded, is deleted on start once it is older than the retention.
+ * <p>
+ * Ranges are read with positional {@link FileChannel#transferTo(long, long, WritableByteChannel)}, each request on
+ * its own channel, so parallel ranged fetches of the same file do not contend on a shared file position.
+ */
+public final class DownloadStore {
+
+    private static final Log log = LogFactory.getLog(DownloadStore.class);
+
+    static final String FILE_PREFIX = "async-profiler-";
+
+    private static final long MAX_PURGE_PERIOD_MILLIS = 60_000L;
+
+    private final File directory;
+    private final long retentionMillis;
+    private final long maxSize;
+
+    /**
+     * Kept downloads, oldest first.
+     */
+    private final Map<String, Download> downloads = new LinkedHashMap<>();
+    private long size;
+
+    private final ScheduledFuture<?> purge;
+
+    DownloadStore(AsyncProfilerProperties.Downloads properties) {
+        this(properties, null);
+    }
+
+    /**
+     * @param scheduler scheduler to purge expired output on, {@code null} to purge only when downloads are looked up
+     */
+    DownloadStore(AsyncProfilerProperties.Downloads properties, ScheduledExecutorService scheduler) {
+        this.directory = properties.getDirectory() != null ? properties.getDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-downloads");
+        this.retentionMillis = properties.getRetention().toMillis();
+        this.maxSize = properties.getMaxSize().toBytes();
+        deleteLeftovers();
+        if (scheduler != null && retentionMillis > 0) {
+            long periodMillis = Math.min(retentionMillis, MAX_PURGE_PERIOD_MILLIS);
+            this.purge = scheduler.scheduleWithFixedDelay(this::purgeQuietly, periodMillis, periodMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.purge = null;
+        }
+    }
+
+    /**
+     * @return path of a new output file in the store directory, or in the temporary directory when retention is
+     * disabled, not created yet, as AsyncProfiler creates it itself
+     */
+    File createFile(String prefix, String suffix) throws IOException {
+        File parent = null;
+        if (retentionMillis > 0) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create directory " + directory);
+            }
+            parent = directory;
+        }
+        File file = File.createTempFile(prefix, suffix, parent);
+        Files.delete(file.toPath());
+        return file;
+    }
+
+    /**
+     * Keeps given output file, created with {@link #createFile}, for later downloads.
+     *
+     * @param fileName name the output is downloaded as
+     * @return kept download, {@code null} if retention is disabled or the file is larger than the whole budget, in
+     * which case the file is left to be deleted once downloaded
+     */
+    Download keep(File file, String fileName, String contentType) {
+        long length = file.length();
+        if (retentionMillis <= 0 || length > maxSize) {
+            return null;
+        }
+        String id = UUID.randomUUID().toString();
+        Instant now = Instant.now();
+        Download download = new Download(id, file, fileName, contentType, length, now,
+                now.plusMillis(retentionMillis));
+        List<Download> evicted;
+        synchronized (this) {
+            downloads.put(id, download);
+            size += length;
+            evicted = evict(now);
+        }
+        evicted.forEach(DownloadStore::delete);
+        return download;
+    }
+
+    Download get(String id) {
+        purge();
+        synchronized (this) {
+            return downloads.get(id);
+        }
+    }
+
+    /**
+     * @return kept downloads, most recent first
+     */
+    List<Download> list() {
+        purge();
+        List<Download> result;
+        synchronized (this) {
+            result = new ArrayList<>(downloads.values());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Deletes expired downloads.
+     */
+    void purge() {
+        List<Download> evicted;
+        synchronized (this) {
+            evicted = evict(Instant.now());
+        }
+        evicted.forEach(DownloadStore::delete);
+    }
+
+    private void purgeQuietly() {
+        try {
+            purge();
+        } catch (RuntimeException e) {
+            log.warn("Failed to purge expired downloads: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes output of previous runs older than the retention. Their ids are gone with the previous run, so they
+     * can never be downloaded again, while younger ones may still belong to another instance sharing the directory.
+     */
+    private void deleteLeftovers() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+        if (files == null) {
+            return;
+        }
+        long minModifiedMillis = System.currentTimeMillis() - retentionMillis;
+        for (File file : files) {
+            if (file.isFile() && file.lastModified() < minModifiedMillis
+                    && !file.delete() && file.exists()) {
+                log.warn("Failed to delete download left by a previous run " + file);
+            }
+        }
+    }
+
+    /**
+     * @return total size of kept downloads, in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Deletes all kept downloads.
+     */
+    void destroy() {
+        if (purge != null) {
+            purge.cancel(false);
+        }
+        List<Download> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(downloads.values());
+            downloads.clear();
+            size = 0L;
+        }
+        evicted.forEach(DownloadStore::delete);
+    }
+
+    /**
+     * Removes expired downloads, then the oldest ones until the total size fits the budget.
+     *
+     * @return removed downloads, whose files are to be deleted outside of the lock
+     */
+    private List<Download> evict(Instant now) {
+        List<Download> evicted = new ArrayList<>();
+        Iterator<Download> iterator = downloads.values().iterator();
+        while (iterator.hasNext()) {
+            Download download = iterator.next();
+            if (size <= maxSize && download.expiryTime.isAfter(now)) {
+                // downloads are kept in the order they expire
+                break;
+            }
+            iterator.remove();
+            size -= download.size;
+            evicted.add(download);
+        }
+        return evicted;
+    }
+
+    private static void delete(Download download) {
+        // on POSIX systems downloads already in progress keep reading the unlinked file
+        if (!download.file.delete() && download.file.exists()) {
+            log.warn("Failed to delete download " + download.file);
+        }
+    }
+
+    /**
+     * Single kept output.
+     */
+    public static final class Download {
+
+        private final String id;
+        private final File file;
+        private final String fileName;
+        private final String contentType;
+        private final long size;
+        private final Instant createdTime;
+        private final Instant expiryTime;
+
+        Download(String id, File file, String fileName, String contentType, long size, Instant createdTime,
+                 Instant expiryTime) {
+            this.id = id;
+            this.file = file;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.createdTime = createdTime;
+            this.expiryTime = expiryTime;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Instant getCreatedTime() {
+            return createdTime;
+        }
+
+        public Instant getExpiryTime() {
+            return expiryTime;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return strong entity tag, content of a download never changes
+         */
+        String getETag() {
+            return "\"" + id + "\"";
+        }
+
+        /**
+         * Resolves requested byte range. Only a single range is served partially, multiple ranges, an unparseable
+         * header or an {@code If-Range} not matching this download get the whole content, as HTTP allows.
+         *
+         * @param range {@code Range} request header, may be {@code null}
+         * @param ifRange {@code If-Range} request header, may be {@code null}
+         * @return requested range, {@code null} for the whole content
+         */
+        Range range(String range, String ifRange) {
+            if (range == null || (ifRange != null && !ifRange.equals(getETag()))) {
+                return null;
+            }
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (ranges.size() != 1) {
+                return null;
+            }
+            try {
+                HttpRange httpRange = ranges.get(0);
+                long first = httpRange.getRangeStart(size);
+                long last = httpRange.getRangeEnd(size);
+                return first <= last && first < size ? new Range(first, last) : Range.UNSATISFIABLE;
+            } catch (IllegalArgumentException e) {
+                return Range.UNSATISFIABLE;
+            }
+        }
+
+        /**
+         * Writes given part of the content, reading it at explicit positions.
+         */
+        void transferTo(long position, long count, OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long end = position + count;
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            }
+        }
+    }
+
+    /**
+     * Byte range of a download, both positions inclusive.
+     */
+    static final class Range {
+
+        static final Range UNSATISFIABLE = new Range(-1L, -2L);
+
+        private final long first;
+        private final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        boolean isSatisfiable() {
+            return first >= 0;
+        }
+
+        long getFirst() {
+            return first;
+        }
+
+        long getLast() {
+            return last;
+        }
+
+        long getLength() {
+            return last - first + 1;
+        }
+
+        /**
+         * @return {@code Content-Range} response header of this range of given download
+         */
+        String toContentRange(Download download) {
+            return isSatisfiable() ? "bytes " + first + "-" + last + "/" + download.size
+                    : "bytes */" + download.size;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Archives exports into a local directory, e.g. a mounted network volume, each under its key as relative path. Files
+ * are written next to their target first and moved into place, so a partially written export is never visible.
+ */
+public final class FileSystemProfileSink implements ProfileSink {
+
+    private final File directory;
+
+    public FileSystemProfileSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void store(List<ProfileExport> batch) throws IOException {
+        for (ProfileExport export : batch) {
+            File target = new File(directory, export.getKey());
+            File parent = target.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent);
+            }
+            File temporary = new File(parent, "." + target.getName() + ".part");
+            try (InputStream in = export.open()) {
+                Files.copy(in, temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+}
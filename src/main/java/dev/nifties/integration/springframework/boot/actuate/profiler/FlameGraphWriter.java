@@ -0,0 +1,151 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Renders a {@link CallTree} as a self-contained HTML flame graph. Frames are written straight out of the tree while
+ * it is being walked, without building an intermediate model.
+ * <p>
+ * Differential flame graphs are sized by the comparison profile and colored by the change of self samples relative to
+ * the baseline profile, normalized to the same total: red frames got hotter, blue ones cooler.
+ */
+final class FlameGraphWriter {
+
+    private static final String TEMPLATE = "flame-graph.html";
+    private static final String TITLE_PLACEHOLDER = "/*title*/";
+    private static final String FRAMES_PLACEHOLDER = "/*frames*/";
+
+    /**
+     * Template split around the title (twice) and the frames placeholder.
+     */
+    private final String[] parts;
+
+    FlameGraphWriter() {
+        String template = loadTemplate(TEMPLATE);
+        int title = template.indexOf(TITLE_PLACEHOLDER);
+        int secondTitle = template.indexOf(TITLE_PLACEHOLDER, title + 1);
+        int frames = template.indexOf(FRAMES_PLACEHOLDER);
+        parts = new String[]{
+                template.substring(0, title),
+                template.substring(title + TITLE_PLACEHOLDER.length(), secondTitle),
+                template.substring(secondTitle + TITLE_PLACEHOLDER.length(), frames),
+                template.substring(frames + FRAMES_PLACEHOLDER.length())
+        };
+    }
+
+    /**
+     * Writes flame graph of given column.
+     */
+    void write(CallTree tree, int column, String title, Writer out) throws IOException {
+        write(tree, column, -1, 1d, title, out);
+    }
+
+    /**
+     * Writes differential flame graph of comparison column against baseline column.
+     */
+    void writeDiff(CallTree tree, int baselineColumn, int comparisonColumn, String title, Writer out)
+            throws IOException {
+        long baselineTotal = tree.getTotal(baselineColumn);
+        double scale = baselineTotal == 0 ? 0d : (double) tree.getTotal(comparisonColumn) / baselineTotal;
+        write(tree, comparisonColumn, baselineColumn, scale, title, out);
+    }
+
+    private void write(CallTree tree, int column, int baselineColumn, double scale, String title, Writer out)
+            throws IOException {
+        String escapedTitle = escapeHtml(title);
+        out.write(parts[0]);
+        out.write(escapedTitle);
+        out.write(parts[1]);
+        out.write(escapedTitle);
+        out.write(parts[2]);
+        writeFrames(tree, column, baselineColumn, scale, out);
+        out.write(parts[3]);
+    }
+
+    private static void writeFrames(CallTree tree, int column, int baselineColumn, double scale, Writer out)
+            throws IOException {
+        long[][] cursor = {new long[64]};
+        StringBuilder line = new StringBuilder(256);
+        try {
+            tree.walk((node, depth) -> {
+                long width = tree.total(node, column);
+                if (depth + 1 >= cursor[0].length) {
+                    cursor[0] = Arrays.copyOf(cursor[0], cursor[0].length * 2);
+                }
+                long left = cursor[0][depth];
+                cursor[0][depth] = left + width;
+                cursor[0][depth + 1] = left;
+                if (width == 0) {
+                    return;
+                }
+                long self = tree.self(node, column);
+                line.setLength(0);
+                line.append("f(").append(depth).append(',').append(left).append(',').append(width).append(',')
+                        .append(self).append(',');
+                appendJsString(line, tree.frameName(node));
+                if (baselineColumn >= 0) {
+                    line.append(',').append(Math.round(self - tree.self(node, baselineColumn) * scale));
+                }
+                line.append(")\n");
+                try {
+                    out.append(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static void appendJsString(StringBuilder out, String value) {
+        out.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\'':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '<':
+                    // never let frame names close the script element
+                    out.append("\\x3c");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        out.append('\'');
+    }
+
+    static String escapeHtml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * @param name name of an HTML template resource next to this class
+     */
+    static String loadTemplate(String name) {
+        try (InputStream in = FlameGraphWriter.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalStateException("Template " + name + " not found");
+            }
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
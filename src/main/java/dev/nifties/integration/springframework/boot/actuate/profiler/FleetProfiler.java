@@ -0,0 +1,341 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Profiles a fleet of instances at once: a timed capture in collapsed format is requested from the profiler endpoint
+ * of every configured peer, at most {@link AsyncProfilerProperties.Fleet#getConcurrency() concurrency} of them at a
+ * time, and responses are merged into a single {@link CallTree} as they arrive. A single instance gives a noisy
+ * picture of a replicated service, the merged profile shows where the whole fleet spends its time.
+ * <p>
+ * Each response is parsed while it is being read and merged right after, so memory held is that of the merged tree
+ * plus one tree per response in flight. A peer failing to connect, responding with an error or not responding within
+ * the capture duration plus {@link AsyncProfilerProperties.Fleet#getTimeout() timeout} is left out, the merged
+ * profile of the remaining peers is still returned, together with the outcome of each peer.
+ * <p>
+ * Read timeout only bounds silence between reads, so each peer also has a wall-clock deadline of connect timeout,
+ * capture duration and timeout: a peer still responding by then is disconnected and left out.
+ */
+public final class FleetProfiler {
+
+    private static final Log log = LogFactory.getLog(FleetProfiler.class);
+
+    /**
+     * Parameters consumed by the coordinating endpoint rather than passed on to peers.
+     */
+    private static final Set<String> LOCAL_PARAMETERS = new HashSet<>(Arrays.asList(
+            ProfilerCommands.PARAMETER_DURATION, ProfilerCommands.PARAMETER_FORMAT,
+            ProfilerCommands.PARAMETER_COMPRESSION, ProfilerCommands.PARAMETER_LIMIT, ProfilerCommands.PARAMETER_SORT,
+            "file", "o", "collapsed", "flat", "traces", "summary"));
+
+    private final List<URI> peers;
+    private final AsyncProfilerProperties.Fleet properties;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService deadlines;
+
+    FleetProfiler(AsyncProfilerProperties.Fleet properties) {
+        this.peers = Collections.unmodifiableList(new ArrayList<>(properties.getPeers()));
+        this.properties = properties;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-fleet-");
+        threadFactory.setDaemon(true);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, properties.getConcurrency()), threadFactory);
+        CustomizableThreadFactory deadlineFactory = new CustomizableThreadFactory("async-profiler-fleet-deadline-");
+        deadlineFactory.setDaemon(true);
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(deadlineFactory);
+    }
+
+    /**
+     * @return profiler for configured peers, {@code null} if there are none
+     */
+    static FleetProfiler of(AsyncProfilerProperties.Fleet properties) {
+        return properties.getPeers().isEmpty() ? null : new FleetProfiler(properties);
+    }
+
+    /**
+     * Starts a capture of given duration on all peers.
+     *
+     * @param parameters request parameters passed on to peers, except for those consumed locally such as format
+     * @return profile merged out of all peers which responded, completed once every peer has responded or failed
+     */
+    CompletableFuture<Result> profile(long durationSeconds, Map<String, String[]> parameters) {
+        String query = getQuery(durationSeconds, parameters);
+        CallTree tree = new CallTree();
+        List<CompletableFuture<Peer>> futures = new ArrayList<>(peers.size());
+        for (URI peer : peers) {
+            CompletableFuture<Peer> future = new CompletableFuture<>();
+            executor.execute(() -> capture(peer, query, durationSeconds, tree, future));
+            futures.add(future);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Peer> results = new ArrayList<>(futures.size());
+            futures.forEach(future -> results.add(future.join()));
+            return new Result(tree, results);
+        });
+    }
+
+    /**
+     * @return longest time profiling all peers may take, with peers waiting for a free slot profiled one after
+     * another
+     */
+    long getTimeoutMillis(long durationSeconds) {
+        int concurrency = Math.max(1, properties.getConcurrency());
+        long rounds = (peers.size() + concurrency - 1) / concurrency;
+        return rounds * getDeadlineMillis(durationSeconds);
+    }
+
+    /**
+     * @return longest time profiling a single peer may take once started
+     */
+    long getDeadlineMillis(long durationSeconds) {
+        return TimeUnit.SECONDS.toMillis(durationSeconds) + properties.getConnectTimeout().toMillis()
+                + properties.getTimeout().toMillis();
+    }
+
+    List<URI> getPeers() {
+        return peers;
+    }
+
+    void destroy() {
+        executor.shutdownNow();
+        deadlines.shutdownNow();
+    }
+
+    /**
+     * Completes given result with the outcome of profiling given peer, unless its deadline passes first, in which case
+     * the peer is completed as failed and disconnected, so that the capture ends as well.
+     */
+    private void capture(URI peer, String query, long durationSeconds, CallTree merged,
+                         CompletableFuture<Peer> result) {
+        long start = System.nanoTime();
+        long deadlineMillis = getDeadlineMillis(durationSeconds);
+        URI uri = URI.create(peer.toString().replaceAll("/+$", "") + "/profiler?" + query);
+        HttpURLConnection connection = null;
+        ScheduledFuture<?> deadline = null;
+        try {
+            connection = (HttpURLConnection) uri.toURL().openConnection();
+            HttpURLConnection opened = connection;
+            deadline = deadlines.schedule(() -> {
+                boolean expired;
+                synchronized (merged) {
+                    expired = result.complete(Peer.failed(peer, 0, "No response within " + deadlineMillis + " ms",
+                            System.nanoTime() - start));
+                }
+                if (expired) {
+                    log.warn("Failed to profile " + peer + ": no response within " + deadlineMillis + " ms");
+                    opened.disconnect();
+                }
+            }, deadlineMillis, TimeUnit.MILLISECONDS);
+            connection.setConnectTimeout((int) properties.getConnectTimeout().toMillis());
+            // the peer responds only once its capture is done
+            connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE,
+                    TimeUnit.SECONDS.toMillis(durationSeconds) + properties.getTimeout().toMillis()));
+            connection.setRequestProperty(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            properties.getHeaders().forEach(connection::setRequestProperty);
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                result.complete(Peer.failed(peer, status, "HTTP " + status, System.nanoTime() - start));
+                return;
+            }
+            CallTree tree = new CallTree();
+            try (Reader reader = new InputStreamReader(getInputStream(connection), StandardCharsets.UTF_8)) {
+                tree.addCollapsed(reader, 0);
+            }
+            // merged only if not left out by the deadline meanwhile
+            synchronized (merged) {
+                if (!result.isDone()) {
+                    merged.merge(tree);
+                    result.complete(new Peer(peer, status, tree.getTotal(0), null, System.nanoTime() - start));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!result.isDone()) {
+                log.warn("Failed to profile " + peer + ": " + e);
+            }
+            result.complete(Peer.failed(peer, 0, e.toString(), System.nanoTime() - start));
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static InputStream getInputStream(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(in) : in;
+    }
+
+    static String getQuery(long durationSeconds, Map<String, String[]> parameters) {
+        StringBuilder query = new StringBuilder("collapsed&" + ProfilerCommands.PARAMETER_DURATION + "=")
+                .append(durationSeconds);
+        parameters.forEach((key, values) -> {
+            if (LOCAL_PARAMETERS.contains(key)) {
+                return;
+            }
+            if (values == null || values.length == 0) {
+                query.append('&').append(encode(key));
+                return;
+            }
+            for (String value : values) {
+                query.append('&').append(encode(key));
+                if (value != null && !value.isEmpty()) {
+                    query.append('=').append(encode(value));
+                }
+            }
+        });
+        return query.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Profile merged out of all peers which responded.
+     */
+    public static final class Result {
+
+        private final CallTree tree;
+        private final List<Peer> peers;
+
+        Result(CallTree tree, List<Peer> peers) {
+            this.tree = tree;
+            this.peers = Collections.unmodifiableList(peers);
+        }
+
+        CallTree getTree() {
+            return tree;
+        }
+
+        /**
+         * @return outcome of each peer, in configured order
+         */
+        public List<Peer> getPeers() {
+            return peers;
+        }
+
+        /**
+         * @return number of peers merged into the profile
+         */
+        public int getSucceeded() {
+            return (int) peers.stream().filter(Peer::isSucceeded).count();
+        }
+    }
+
+    /**
+     * Outcome of a single peer.
+     */
+    public static final class Peer {
+
+        private final URI url;
+        private final int status;
+        private final long samples;
+        private final String error;
+        private final long millis;
+
+        Peer(URI url, int status, long samples, String error, long nanos) {
+            this.url = url;
+            this.status = status;
+            this.samples = samples;
+            this.error = error;
+            this.millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        static Peer failed(URI url, int status, String error, long nanos) {
+            return new Peer(url, status, 0L, error, nanos);
+        }
+
+        public URI getUrl() {
+            return url;
+        }
+
+        public boolean isSucceeded() {
+            return error == null;
+        }
+
+        /**
+         * @return HTTP status of the response, 0 if there was none
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return time from request to merged response
+         */
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    /**
+     * Hottest frames of the merged profile, together with the outcome of each peer.
+     */
+    public static final class Summary {
+
+        private final ProfileSummary profile;
+        private final List<Peer> peers;
+
+        Summary(ProfileSummary profile, List<Peer> peers) {
+            this.profile = profile;
+            this.peers = peers;
+        }
+
+        static Summary of(Result result, int limit, boolean bySelf) {
+            return new Summary(ProfileSummary.of(result.getTree(), 0, limit, bySelf), result.getPeers());
+        }
+
+        public long getSamples() {
+            return profile.getSamples();
+        }
+
+        public List<CallTree.FrameCount> getFrames() {
+            return profile.getFrames();
+        }
+
+        public List<Peer> getPeers() {
+            return peers;
+        }
+    }
+}
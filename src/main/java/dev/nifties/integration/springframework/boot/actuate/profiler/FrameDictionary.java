@@ -0,0 +1,144 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Interns stack frame names into dense integer ids. Lookups by a range of characters do not allocate, a new
+ * {@link String} is only created the first time a frame is seen.
+ * <p>
+ * Not thread-safe.
+ */
+final class FrameDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private String[] names;
+    private int size;
+
+    /**
+     * Open addressing table of frame id + 1, 0 marking an empty slot.
+     */
+    private int[] table;
+    private int[] hashes;
+
+    FrameDictionary() {
+        names = new String[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+        hashes = new int[INITIAL_CAPACITY];
+    }
+
+    private FrameDictionary(FrameDictionary source) {
+        names = source.names.clone();
+        size = source.size;
+        table = source.table.clone();
+        hashes = source.hashes.clone();
+    }
+
+    int intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    int intern(CharSequence chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int id = entry - 1;
+            if (hashes[id] == hash && equals(names[id], chars, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(chars.subSequence(offset, offset + length).toString(), hash, slot);
+    }
+
+    int intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int id = entry - 1;
+            if (hashes[id] == hash && equals(names[id], chars, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(new String(chars, offset, length), hash, slot);
+    }
+
+    String get(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    FrameDictionary copy() {
+        return new FrameDictionary(this);
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id + 1;
+        }
+        table = newTable;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, CharSequence chars, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars.charAt(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(String name, char[] chars, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Renders a {@link TimelineIndex.Heatmap} as a self-contained HTML page: a row of time buckets per thread, colored by
+ * the number of samples. Selecting a time range opens a flame graph of just that range.
+ */
+final class HeatmapWriter {
+
+    private static final String TEMPLATE = "heatmap.html";
+    private static final String TITLE_PLACEHOLDER = "/*title*/";
+    private static final String DATA_PLACEHOLDER = "/*data*/";
+
+    /**
+     * Template split around the title (twice) and the data placeholder.
+     */
+    private final String[] parts;
+
+    HeatmapWriter() {
+        String template = FlameGraphWriter.loadTemplate(TEMPLATE);
+        int title = template.indexOf(TITLE_PLACEHOLDER);
+        int secondTitle = template.indexOf(TITLE_PLACEHOLDER, title + 1);
+        int data = template.indexOf(DATA_PLACEHOLDER);
+        parts = new String[]{
+                template.substring(0, title),
+                template.substring(title + TITLE_PLACEHOLDER.length(), secondTitle),
+                template.substring(secondTitle + TITLE_PLACEHOLDER.length(), data),
+                template.substring(data + DATA_PLACEHOLDER.length())
+        };
+    }
+
+    /**
+     * @param flameGraphUrl URL of a flame graph of the recording, to which the selected range is appended as
+     *                      <i>from</i> and <i>to</i> parameters in epoch milliseconds
+     */
+    void write(TimelineIndex.Heatmap heatmap, String title, String flameGraphUrl, Writer out) throws IOException {
+        String escapedTitle = FlameGraphWriter.escapeHtml(title);
+        out.write(parts[0]);
+        out.write(escapedTitle);
+        out.write(parts[1]);
+        out.write(escapedTitle);
+        out.write(parts[2]);
+        StringBuilder data = new StringBuilder(256);
+        data.append("{event: ");
+        FlameGraphWriter.appendJsString(data, heatmap.getEvent());
+        data.append(", start: ").append(heatmap.getStartMillis())
+                .append(", bucket: ").append(heatmap.getBucketMillis())
+                .append(", url: ");
+        FlameGraphWriter.appendJsString(data, flameGraphUrl);
+        data.append(", rows: [\n");
+        out.write(data.toString());
+        writeRow(heatmap.getTotal(), out);
+        for (TimelineIndex.Row row : heatmap.getThreads()) {
+            out.write(",\n");
+            writeRow(row, out);
+        }
+        out.write("]}");
+        out.write(parts[3]);
+    }
+
+    private static void writeRow(TimelineIndex.Row row, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(row.getCounts().length * 2 + 64);
+        line.append('[');
+        FlameGraphWriter.appendJsString(line, row.getName());
+        line.append(", [");
+        int[] counts = row.getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(counts[i]);
+        }
+        line.append("]]");
+        out.write(line.toString());
+    }
+}
@@ -0,0 +1,110 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header of a single chunk of a JFR file: where the chunk is and which time it covers. Chunks are self-contained, each
+ * with its own constant pools, so a time range of a recording can be read by mapping only the chunks overlapping it.
+ * Headers are read without parsing any events.
+ */
+final class JfrChunk {
+
+    private static final int MAGIC = 0x464c5200;
+    private static final int HEADER_SIZE = 64;
+
+    private final long offset;
+    private final long size;
+    private final long startNanos;
+    private final long durationNanos;
+    private final long startTicks;
+    private final long ticksPerSecond;
+
+    JfrChunk(long offset, long size, long startNanos, long durationNanos, long startTicks, long ticksPerSecond) {
+        this.offset = offset;
+        this.size = size;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.startTicks = startTicks;
+        this.ticksPerSecond = ticksPerSecond;
+    }
+
+    /**
+     * Reads headers of all complete chunks of a JFR file, an incomplete chunk at its end is left out.
+     */
+    static List<JfrChunk> read(FileChannel channel) throws IOException {
+        List<JfrChunk> chunks = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long length = channel.size();
+        long position = 0L;
+        while (position + HEADER_SIZE <= length) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    throw new EOFException("Truncated JFR chunk header at " + position);
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a JFR chunk at " + position);
+            }
+            long size = header.getLong(8);
+            if (size < HEADER_SIZE || position + size > length) {
+                break;
+            }
+            chunks.add(new JfrChunk(position, size, header.getLong(32), header.getLong(40), header.getLong(48),
+                    header.getLong(56)));
+            position += size;
+        }
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @return content of this chunk, to be read with {@code JfrReader(ByteBuffer)}
+     */
+    ByteBuffer map(FileChannel channel) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * @return whether this chunk covers any time within given range, end exclusive
+     */
+    boolean overlaps(long fromNanos, long toNanos) {
+        return startNanos < toNanos && getEndNanos() >= fromNanos;
+    }
+
+    /**
+     * @return epoch time of given event timestamp of this chunk, in nanoseconds
+     */
+    long toNanos(long ticks) {
+        return startNanos + (long) ((ticks - startTicks) * 1e9d / ticksPerSecond);
+    }
+
+    /**
+     * @return event timestamp of this chunk at given epoch time in nanoseconds, saturated rather than overflowing, so
+     * that {@link Long#MIN_VALUE} and {@link Long#MAX_VALUE} stand for an open range
+     */
+    long toTicks(long nanos) {
+        return (long) (startTicks + ((double) nanos - startNanos) * (ticksPerSecond / 1e9d));
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getEndNanos() {
+        return startNanos + durationNanos;
+    }
+}
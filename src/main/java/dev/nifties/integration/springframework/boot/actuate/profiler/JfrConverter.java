@@ -0,0 +1,220 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.jfr.ClassRef;
+import one.jfr.JfrReader;
+import one.jfr.MethodRef;
+import one.jfr.StackTrace;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.ExecutionSample;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts JFR recordings written by AsyncProfiler into a {@link CallTree} with one count column per event type,
+ * using the streaming JFR parser of async-profiler converter. Events are read one at a time and counted per distinct
+ * stack, so frames are resolved only once per stack rather than once per event.
+ * <p>
+ * Frames are named the same way as in AsyncProfiler collapsed output, so converted profiles can be compared with
+ * live ones. Allocated and contended classes are added as leaf frames, marked {@code _[k]} for allocations outside
+ * TLAB and for locks, {@code _[i]} for allocations in new TLAB.
+ * <p>
+ * A time range is converted out of the {@link JfrChunk chunks} overlapping it only, each mapped and read on its own.
+ */
+final class JfrConverter {
+
+    static final String EVENT_CPU = "cpu";
+    static final String EVENT_ALLOC = "alloc";
+    static final String EVENT_LOCK = "lock";
+
+    /**
+     * Event types in the order of columns of converted trees.
+     */
+    static final List<String> EVENTS = Collections.unmodifiableList(Arrays.asList(EVENT_CPU, EVENT_ALLOC, EVENT_LOCK));
+
+    private static final String FRAME_TYPE = "jdk.types.FrameType";
+
+    private JfrConverter() {
+    }
+
+    /**
+     * @param total whether events should be weighted by their value (allocated bytes, lock wait time) rather than
+     *              counted
+     */
+    static CallTree convert(File jfr, boolean total) throws IOException {
+        CallTree tree = new CallTree(EVENTS.size());
+        try (JfrReader reader = new JfrReader(jfr.getAbsolutePath())) {
+            // constant pools are per chunk, so stacks have to be resolved before moving on to the next chunk
+            reader.stopAtNewChunk = true;
+            while (!reader.eof()) {
+                new Chunk(reader, tree, total, Long.MIN_VALUE, Long.MAX_VALUE).convert();
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Converts events within given time range only, reading just the chunks overlapping it.
+     *
+     * @param chunks chunks of the recording, see {@link JfrChunk#read}
+     * @param fromNanos start of the range, epoch time in nanoseconds
+     * @param toNanos end of the range, exclusive
+     */
+    static CallTree convert(File jfr, boolean total, List<JfrChunk> chunks, long fromNanos, long toNanos)
+            throws IOException {
+        CallTree tree = new CallTree(EVENTS.size());
+        try (FileChannel channel = FileChannel.open(jfr.toPath(), StandardOpenOption.READ)) {
+            for (JfrChunk chunk : chunks) {
+                if (chunk.overlaps(fromNanos, toNanos)) {
+                    try (JfrReader reader = new JfrReader(chunk.map(channel))) {
+                        new Chunk(reader, tree, total, chunk.toTicks(fromNanos), chunk.toTicks(toNanos)).convert();
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return column of given event, -1 if it is not one of {@link #EVENTS}
+     */
+    static int column(Event event) {
+        if (event instanceof ExecutionSample) {
+            return 0;
+        } else if (event instanceof AllocationSample) {
+            return 1;
+        } else if (event instanceof ContendedLock) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /**
+     * @param event event type, execution samples of cpu, wall or itimer profiling are all counted as "cpu"
+     * @return column of given event type
+     */
+    static int column(String event) {
+        int column = EVENTS.indexOf(event);
+        return column < 0 ? 0 : column;
+    }
+
+    private static final class Chunk {
+
+        private final JfrReader reader;
+        private final CallTree tree;
+        private final boolean total;
+        private final long fromTicks;
+        private final long toTicks;
+        private final Map<Long, long[]> counts = new HashMap<>();
+        private final Map<Long, String> frameNames = new HashMap<>();
+        private final int kernelType;
+        private final int nativeType;
+        private final int cppType;
+
+        /**
+         * @param fromTicks events before this timestamp are skipped
+         * @param toTicks events at or after this timestamp are skipped
+         */
+        Chunk(JfrReader reader, CallTree tree, boolean total, long fromTicks, long toTicks) {
+            this.reader = reader;
+            this.tree = tree;
+            this.total = total;
+            this.fromTicks = fromTicks;
+            this.toTicks = toTicks;
+            this.kernelType = reader.getEnumKey(FRAME_TYPE, "Kernel");
+            this.nativeType = reader.getEnumKey(FRAME_TYPE, "Native");
+            this.cppType = reader.getEnumKey(FRAME_TYPE, "C++");
+        }
+
+        void convert() throws IOException {
+            Event event;
+            while ((event = reader.readEvent()) != null) {
+                int column = column(event);
+                if (column < 0 || event.time < fromTicks || event.time >= toTicks) {
+                    continue;
+                }
+                long classKey = 0L;
+                if (event instanceof AllocationSample) {
+                    AllocationSample allocation = (AllocationSample) event;
+                    classKey = ((long) allocation.classId << 1) | (allocation.tlabSize == 0 ? 1L : 0L);
+                } else if (event instanceof ContendedLock) {
+                    classKey = ((long) ((ContendedLock) event).classId << 1) | 1L;
+                }
+                // column, leaf class with its frame type and stack trace packed into a single key
+                long key = ((long) column << 62) | (classKey << 32) | (event.stackTraceId & 0xFFFFFFFFL);
+                long[] count = counts.get(key);
+                if (count == null) {
+                    counts.put(key, count = new long[1]);
+                }
+                count[0] += total ? event.value() : 1L;
+            }
+            for (Map.Entry<Long, long[]> entry : counts.entrySet()) {
+                long key = entry.getKey();
+                int column = (int) (key >>> 62);
+                long classKey = (key >>> 32) & 0x3FFFFFFFL;
+                addStack((int) key, column, classKey, entry.getValue()[0]);
+            }
+        }
+
+        private void addStack(int stackTraceId, int column, long classKey, long count) {
+            StackTrace stackTrace = reader.stackTraces.get(stackTraceId);
+            int depth = stackTrace != null ? stackTrace.methods.length : 0;
+            boolean leafClass = column != 0;
+            String[] stack = new String[depth + (leafClass ? 1 : 0)];
+            // stack traces list the top frame first, call tree wants the root first
+            for (int i = 0; i < depth; i++) {
+                stack[depth - 1 - i] = frameName(stackTrace.methods[i], stackTrace.types[i]);
+            }
+            if (leafClass) {
+                stack[depth] = className((int) (classKey >>> 1)) + ((classKey & 1L) != 0 ? "_[k]" : "_[i]");
+            }
+            tree.addStack(stack, count, column);
+        }
+
+        private String frameName(long methodId, byte type) {
+            Long key = methodId << 8 | (type & 0xFF);
+            String name = frameNames.get(key);
+            if (name == null) {
+                frameNames.put(key, name = resolveFrameName(methodId, type));
+            }
+            return name;
+        }
+
+        private String resolveFrameName(long methodId, byte type) {
+            MethodRef method = reader.methods.get(methodId);
+            if (method == null) {
+                return "unknown";
+            }
+            String methodName = symbol(method.name);
+            if (type == kernelType) {
+                return methodName + "_[k]";
+            }
+            if (type == nativeType || type == cppType) {
+                return methodName;
+            }
+            ClassRef cls = reader.classes.get(method.cls);
+            String className = cls != null ? symbol(cls.name) : "";
+            return className.isEmpty() ? methodName : className + "." + methodName;
+        }
+
+        private String className(int classId) {
+            ClassRef cls = reader.classes.get(classId);
+            return cls != null ? symbol(cls.name).replace('/', '.') : "unknown";
+        }
+
+        private String symbol(long id) {
+            byte[] bytes = reader.symbols.get(id);
+            return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : "unknown";
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of a single live stream of a profiling session: turns periodic cumulative {@code dump,collapsed} outputs into
+ * deltas since the previous snapshot sent, so that each event carries only what was sampled in between and its size
+ * does not grow with the length of the session.
+ * <p>
+ * A tick coming while the previous snapshot is still being dumped or sent is dropped rather than queued. The next
+ * snapshot then covers the dropped ticks as well, so a slow client gets fewer, larger deltas and loses no samples.
+ * <p>
+ * AsyncProfiler can only dump the whole profile collected so far, so each snapshot dumps and parses output growing
+ * with the number of distinct stacks, however little changed since the previous one. To bound that cost, ticks are
+ * also dropped until an interval floor of a second per {@link #BYTES_PER_SECOND} of the previous output has passed
+ * since the previous snapshot, however short the requested interval.
+ */
+final class LiveProfile {
+
+    /**
+     * Cumulative output size adding a second to the minimum time between snapshots.
+     */
+    static final long BYTES_PER_SECOND = 1024L * 1024L;
+
+    private final ProfilingSession session;
+    private final boolean summary;
+    private final int limit;
+    private final boolean bySelf;
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private CallTree previous = new CallTree();
+    private long sequence;
+    private int dropped;
+    private volatile long notBeforeNanos = System.nanoTime();
+
+    /**
+     * @param summary whether to send the hottest frames of each delta rather than its collapsed stacks
+     * @param limit maximum number of frames listed in a summary
+     * @param bySelf whether summary frames should be ordered by self samples, otherwise by total
+     */
+    LiveProfile(ProfilingSession session, boolean summary, int limit, boolean bySelf) {
+        this.session = session;
+        this.summary = summary;
+        this.limit = limit;
+        this.bySelf = bySelf;
+    }
+
+    ProfilingSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return whether the session streamed is still active
+     */
+    boolean isActive() {
+        return session.getState() == ProfilingSession.State.ACTIVE;
+    }
+
+    /**
+     * Claims a tick, to be {@link #release() released} once its snapshot has been sent.
+     *
+     * @return {@code false} if the previous snapshot is still in progress or the interval floor has not passed yet,
+     * and this tick is dropped
+     */
+    boolean tryAcquire() {
+        if (!isDue()) {
+            return false;
+        }
+        if (busy.compareAndSet(false, true)) {
+            return true;
+        }
+        drop();
+        return false;
+    }
+
+    /**
+     * @return whether the interval floor set by the size of the previous output has passed, otherwise the tick is
+     * counted as dropped
+     */
+    boolean isDue() {
+        if (System.nanoTime() - notBeforeNanos >= 0) {
+            return true;
+        }
+        drop();
+        return false;
+    }
+
+    /**
+     * Counts a tick dropped, e.g. for lack of demand of a reactive client.
+     */
+    synchronized void drop() {
+        dropped++;
+    }
+
+    void release() {
+        busy.set(false);
+    }
+
+    /**
+     * Computes delta of given cumulative output since the previous snapshot, which it then becomes.
+     *
+     * @param collapsed output of {@code dump,collapsed} of the session streamed
+     */
+    synchronized Snapshot next(String collapsed) {
+        CallTree current = CallTree.parseCollapsed(collapsed);
+        // previous snapshot in column 0 and the current one in column 1
+        CallTree tree = new CallTree(2);
+        tree.merge(previous, 0, 0);
+        tree.merge(current, 0, 1);
+        StringBuilder delta = new StringBuilder();
+        try {
+            tree.writeCollapsedDelta(delta, 0, 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        previous = current;
+        notBeforeNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1) * collapsed.length() / BYTES_PER_SECOND;
+        Snapshot snapshot;
+        if (summary) {
+            ProfileSummary top = ProfileSummary.of(delta.toString(), limit, bySelf);
+            snapshot = new Snapshot(++sequence, dropped, top.getSamples(), null, top.getFrames());
+        } else {
+            snapshot = new Snapshot(++sequence, dropped, tree.getTotal(1) - tree.getTotal(0), delta.toString(),
+                    null);
+        }
+        dropped = 0;
+        return snapshot;
+    }
+
+    /**
+     * Samples collected since the previous snapshot, sent as a single event.
+     */
+    public static final class Snapshot {
+
+        private final long sequence;
+        private final Instant time = Instant.now();
+        private final int dropped;
+        private final long samples;
+        private final String collapsed;
+        private final List<CallTree.FrameCount> frames;
+
+        Snapshot(long sequence, int dropped, long samples, String collapsed, List<CallTree.FrameCount> frames) {
+            this.sequence = sequence;
+            this.dropped = dropped;
+            this.samples = samples;
+            this.collapsed = collapsed;
+            this.frames = frames;
+        }
+
+        /**
+         * @return number of this snapshot within the stream, starting with 1
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        /**
+         * @return ticks dropped since the previous snapshot, whose samples are included in this one
+         */
+        public int getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return samples collected since the previous snapshot
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return collapsed stacks sampled since the previous snapshot, {@code null} if a summary was requested
+         */
+        public String getCollapsed() {
+            return collapsed;
+        }
+
+        /**
+         * @return hottest frames since the previous snapshot, {@code null} unless a summary was requested
+         */
+        public List<CallTree.FrameCount> getFrames() {
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Meters downloads of the servlet endpoint, see {@link ProfilerMetrics}. Kept apart from the metrics themselves, as
+ * {@link StreamingResponseBody} is a Spring MVC type, missing in WebFlux applications.
+ */
+final class MeteredResponse {
+
+    private MeteredResponse() {
+    }
+
+    /**
+     * Wraps resource or streaming body of a successful response, so that bytes sent to the client and time spent
+     * sending them are recorded once the body has been written.
+     */
+    static ResponseEntity<?> of(ResponseEntity<?> response, ProfilerMetrics metrics) {
+        Object body = response.getBody();
+        if (!response.getStatusCode().is2xxSuccessful()
+                || !(body instanceof Resource || body instanceof StreamingResponseBody)) {
+            return response;
+        }
+        String encoding = response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        ProfilerMetrics.Download download = metrics.startDownload(encoding != null ? encoding : "identity");
+        if (download == null) {
+            return response;
+        }
+        Object metered;
+        if (body instanceof Resource) {
+            metered = new MeteredResource((Resource) body, download);
+        } else {
+            StreamingResponseBody streaming = (StreamingResponseBody) body;
+            metered = (StreamingResponseBody) out -> {
+                CountingOutputStream counting = new CountingOutputStream(out);
+                boolean success = false;
+                try {
+                    streaming.writeTo(counting);
+                    success = true;
+                } finally {
+                    download.record(counting.count, success);
+                }
+            };
+        }
+        return ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders()).body(metered);
+    }
+
+    /**
+     * Delegating resource counting bytes read out of it, recorded when its stream is closed.
+     */
+    private static final class MeteredResource extends AbstractResource {
+        private final Resource delegate;
+        private final ProfilerMetrics.Download download;
+
+        MeteredResource(Resource delegate, ProfilerMetrics.Download download) {
+            this.delegate = delegate;
+            this.download = download;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(delegate.getInputStream()) {
+                private long count;
+                private boolean exhausted;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0) {
+                        exhausted = true;
+                    } else {
+                        count++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read < 0) {
+                        exhausted = true;
+                    } else {
+                        count += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        download.record(count, exhausted);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
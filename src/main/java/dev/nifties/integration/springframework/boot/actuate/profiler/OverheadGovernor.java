@@ -0,0 +1,271 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.File;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the overhead of continuous profiling under a budget, a share of the CPU available to the process. After each
+ * chunk the cost of profiling it is estimated out of the CPU time of profiler threads, read out of /proc where
+ * available, plus the number of samples taken times an estimated
+ * {@link AsyncProfilerProperties.Governor#getSampleCost() cost per sample}, as samples are taken in signal handlers
+ * on the sampled threads themselves. The next chunk is then profiled with a sampling interval raised in proportion to
+ * the excess, or lowered back towards the configured interval once well under budget. If even the
+ * {@link AsyncProfilerProperties.Governor#getMaxInterval() longest interval} is over budget, profiling is paused for
+ * a chunk.
+ * <p>
+ * AsyncProfiler cannot change the interval of a running session, so adjustments take effect when chunks are rotated.
+ * Only time-based events (cpu, itimer, ctimer, wall) are governed, the interval of allocation and lock profiling is
+ * in bytes and nanoseconds of contention rather than time between samples. Every adjustment is logged and kept to be
+ * listed by the endpoint.
+ */
+public final class OverheadGovernor {
+
+    private static final Log log = LogFactory.getLog(OverheadGovernor.class);
+
+    /**
+     * Events sampled on an interval of time.
+     */
+    private static final List<String> TIMED_EVENTS = Arrays.asList("cpu", "itimer", "ctimer", "wall");
+
+    /**
+     * AsyncProfiler default interval of time-based events.
+     */
+    private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private static final Pattern INTERVAL_OPTION = Pattern.compile("(^|,)interval=([^,]*)");
+
+    /**
+     * Overhead ratio to budget under which the interval is lowered again, low enough for the halved interval to stay
+     * under budget.
+     */
+    private static final double LOWER_BELOW = 0.4d;
+
+    /**
+     * Headroom added when raising the interval, so that it does not end up just at the budget.
+     */
+    private static final double RAISE_HEADROOM = 1.25d;
+
+    private final AsyncProfilerProperties.Governor properties;
+    private final long baseIntervalNanos;
+    private final long maxIntervalNanos;
+    private final int processors;
+    private final LongSupplier profilerCpuNanos;
+    private final Clock clock;
+
+    private final Deque<Adjustment> adjustments = new ArrayDeque<>();
+    private long intervalNanos;
+    private boolean paused;
+    private double overhead = Double.NaN;
+    private long lastCpuNanos;
+
+    OverheadGovernor(AsyncProfilerProperties.Governor properties, long baseIntervalNanos, int processors,
+                     LongSupplier profilerCpuNanos, Clock clock) {
+        this.properties = properties;
+        this.baseIntervalNanos = baseIntervalNanos;
+        this.maxIntervalNanos = Math.max(baseIntervalNanos, properties.getMaxInterval().toNanos());
+        this.processors = Math.max(1, processors);
+        this.profilerCpuNanos = profilerCpuNanos;
+        this.clock = clock;
+        this.intervalNanos = baseIntervalNanos;
+        this.lastCpuNanos = profilerCpuNanos.getAsLong();
+    }
+
+    /**
+     * @return governor of given continuous profiling, {@code null} if it is disabled or the event is not sampled on
+     * an interval of time
+     */
+    static OverheadGovernor of(AsyncProfilerProperties.Continuous continuous) {
+        if (!continuous.getGovernor().isEnabled()) {
+            return null;
+        }
+        if (!TIMED_EVENTS.contains(continuous.getEvent())) {
+            log.warn("Overhead governor not enabled, " + continuous.getEvent() + " is not sampled on an interval of "
+                    + "time");
+            return null;
+        }
+        String interval = getIntervalOption(continuous.getOptions());
+        long baseIntervalNanos = interval != null ? DurationStyle.detectAndParse(interval, ChronoUnit.NANOS).toNanos()
+                : DEFAULT_INTERVAL_NANOS;
+        File tasks = new File("/proc/self/task");
+        LongSupplier profilerCpuNanos = () -> 0L;
+        if (tasks.isDirectory()) {
+            ProfilerMetrics.ThreadCpu threadCpu = new ProfilerMetrics.ThreadCpu(tasks);
+            profilerCpuNanos = () -> (long) (threadCpu.seconds() * 1e9d);
+        } else {
+            log.info("Overhead governor counts samples only, profiler thread CPU time is not available");
+        }
+        return new OverheadGovernor(continuous.getGovernor(), baseIntervalNanos,
+                Runtime.getRuntime().availableProcessors(), profilerCpuNanos, Clock.systemUTC());
+    }
+
+    /**
+     * Takes the overhead of the chunk just completed into account.
+     *
+     * @param samples samples taken during the chunk
+     * @param elapsedNanos duration of the chunk
+     * @param profiled whether the chunk was profiled, rather than paused
+     */
+    synchronized void update(long samples, long elapsedNanos, boolean profiled) {
+        long cpuNanos = profilerCpuNanos.getAsLong();
+        long threadNanos = Math.max(0L, cpuNanos - lastCpuNanos);
+        lastCpuNanos = cpuNanos;
+        if (!profiled) {
+            if (paused) {
+                paused = false;
+                adjust("resume", intervalNanos, Double.NaN);
+            }
+            return;
+        }
+        if (elapsedNanos <= 0L) {
+            return;
+        }
+        double cost = threadNanos + (double) samples * properties.getSampleCost().toNanos();
+        overhead = cost / ((double) elapsedNanos * processors);
+        double ratio = overhead / properties.getBudget();
+        if (ratio > 1d) {
+            if (intervalNanos >= maxIntervalNanos) {
+                paused = true;
+                adjust("pause", intervalNanos, overhead);
+            } else {
+                adjust("raise", Math.min(maxIntervalNanos, (long) Math.ceil(intervalNanos * ratio * RAISE_HEADROOM)),
+                        overhead);
+            }
+        } else if (ratio < LOWER_BELOW && intervalNanos > baseIntervalNanos) {
+            adjust("lower", Math.max(baseIntervalNanos, intervalNanos / 2), overhead);
+        }
+    }
+
+    private void adjust(String action, long newIntervalNanos, double measured) {
+        Adjustment adjustment = new Adjustment(clock.instant(), action, intervalNanos, newIntervalNanos, measured);
+        intervalNanos = newIntervalNanos;
+        adjustments.addFirst(adjustment);
+        while (adjustments.size() > Math.max(0, properties.getHistory())) {
+            adjustments.removeLast();
+        }
+        log.info("Profiling overhead governor: " + adjustment);
+    }
+
+    /**
+     * @return given AsyncProfiler options with the interval replaced by the current one
+     */
+    synchronized String applyTo(String options) {
+        String others = options != null ? INTERVAL_OPTION.matcher(options).replaceAll("$1")
+                .replaceAll(",{2,}", ",").replaceAll("^,|,$", "") : "";
+        return (others.isEmpty() ? "" : others + ",") + "interval=" + intervalNanos;
+    }
+
+    static String getIntervalOption(String options) {
+        if (options == null) {
+            return null;
+        }
+        Matcher matcher = INTERVAL_OPTION.matcher(options);
+        return matcher.find() ? matcher.group(2) : null;
+    }
+
+    public double getBudget() {
+        return properties.getBudget();
+    }
+
+    /**
+     * @return share of the available CPU profiling took during the last profiled chunk, NaN before the first one
+     */
+    public synchronized double getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * @return sampling interval of the next chunk, in nanoseconds
+     */
+    public synchronized long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * @return configured sampling interval, in nanoseconds
+     */
+    public long getBaseIntervalNanos() {
+        return baseIntervalNanos;
+    }
+
+    /**
+     * @return whether the next chunk is skipped, as profiling was over budget even at the longest interval
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return recent adjustments, most recent first
+     */
+    public synchronized List<Adjustment> getAdjustments() {
+        return Collections.unmodifiableList(new ArrayList<>(adjustments));
+    }
+
+    /**
+     * Single change of the sampling interval.
+     */
+    public static final class Adjustment {
+
+        private final Instant time;
+        private final String action;
+        private final long fromNanos;
+        private final long toNanos;
+        private final double overhead;
+
+        Adjustment(Instant time, String action, long fromNanos, long toNanos, double overhead) {
+            this.time = time;
+            this.action = action;
+            this.fromNanos = fromNanos;
+            this.toNanos = toNanos;
+            this.overhead = overhead;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        /**
+         * @return "raise", "lower", "pause" or "resume"
+         */
+        public String getAction() {
+            return action;
+        }
+
+        public long getFromNanos() {
+            return fromNanos;
+        }
+
+        public long getToNanos() {
+            return toNanos;
+        }
+
+        /**
+         * @return overhead which caused the adjustment, NaN when resuming
+         */
+        public double getOverhead() {
+            return overhead;
+        }
+
+        @Override
+        public String toString() {
+            return action + " interval " + fromNanos + " ns -> " + toNanos + " ns"
+                    + (Double.isNaN(overhead) ? "" : String.format(", overhead %.3f%%", overhead * 100d));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.proto.Proto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a {@link CallTree} as gzipped <a href="https://github.com/google/pprof/blob/main/proto/profile.proto">pprof
+ * profile.proto</a>, readable by pprof compatible tooling.
+ * <p>
+ * Protobuf lets repeated fields of a message be interleaved, so every message is written out as soon as it is known:
+ * the first stack referring to a frame is preceded by its name in the string table, its function and its location.
+ * Each distinct frame is written once, with the same id for its function and location, and the profile never exists
+ * as a whole in memory - only the call tree and a bitmap of frames already written do.
+ */
+final class PprofWriter {
+
+    static final String FILE_SUFFIX = ".pb.gz";
+
+    // Profile
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_DURATION_NANOS = 10;
+
+    // ValueType
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+
+    // Sample
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+
+    // Location
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_LINE = 4;
+
+    // Line
+    private static final int LINE_FUNCTION_ID = 1;
+
+    // Function
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+
+    private PprofWriter() {
+    }
+
+    /**
+     * Writes stacks of given column as a gzipped profile.
+     *
+     * @param event profiling event the counts come from, e.g. "cpu", "alloc" or "lock"
+     * @param total whether counts are event values (nanoseconds, bytes) rather than samples
+     * @param timeNanos start of the profile in epoch nanoseconds, 0 if unknown
+     * @param durationNanos duration of the profile, 0 if unknown
+     */
+    static void write(CallTree tree, int column, String event, boolean total, long timeNanos, long durationNanos,
+                      OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+        new Writer(tree, column, gzip).write(valueType(event, total), timeNanos, durationNanos);
+        gzip.finish();
+    }
+
+    /**
+     * @return pprof sample type and unit of given event
+     */
+    static String[] valueType(String event, boolean total) {
+        if (!total) {
+            return new String[]{"samples", "count"};
+        }
+        if (event != null && event.startsWith("alloc")) {
+            return new String[]{"alloc_space", "bytes"};
+        }
+        if (event != null && event.startsWith("lock")) {
+            return new String[]{"delay", "nanoseconds"};
+        }
+        return new String[]{event != null ? event : "cpu", "nanoseconds"};
+    }
+
+    private static final class Writer {
+
+        private final CallTree tree;
+        private final int column;
+        private final OutputStream out;
+
+        /**
+         * Field of the profile being written, framing a single message or string.
+         */
+        private final Proto field = new Proto(256);
+        private final Proto message = new Proto(256);
+        private final Proto nested = new Proto(64);
+        private final Proto packed = new Proto(256);
+
+        private final boolean[] written;
+        private long strings;
+
+        Writer(CallTree tree, int column, OutputStream out) {
+            this.tree = tree;
+            this.column = column;
+            this.out = out;
+            this.written = new boolean[tree.getFrameCount()];
+        }
+
+        void write(String[] valueType, long timeNanos, long durationNanos) throws IOException {
+            // string table has to start with an empty string
+            string("");
+            long type = string(valueType[0]);
+            long unit = string(valueType[1]);
+            message.reset();
+            message.field(VALUE_TYPE_TYPE, type).field(VALUE_TYPE_UNIT, unit);
+            writeField(PROFILE_SAMPLE_TYPE, message);
+            if (timeNanos > 0) {
+                field.reset();
+                writeField(field.field(PROFILE_TIME_NANOS, timeNanos));
+            }
+            if (durationNanos > 0) {
+                field.reset();
+                writeField(field.field(PROFILE_DURATION_NANOS, durationNanos));
+            }
+            writeSamples();
+        }
+
+        private void writeSamples() throws IOException {
+            int[][] path = {new int[64]};
+            IOException[] failure = new IOException[1];
+            tree.walk(new CallTree.Visitor() {
+                @Override
+                public void enter(int node, int depth) {
+                    if (depth == path[0].length) {
+                        path[0] = Arrays.copyOf(path[0], depth * 2);
+                    }
+                    path[0][depth] = tree.frame(node);
+                    long count = tree.self(node, column);
+                    if (count == 0 || failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        writeSample(path[0], depth, count);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        private void writeSample(int[] path, int depth, long count) throws IOException {
+            packed.reset();
+            // locations of a sample are listed leaf first
+            for (int i = depth; i >= 0; i--) {
+                int frame = path[i];
+                if (!written[frame]) {
+                    writeFrame(frame);
+                }
+                packed.writeLong(frame + 1L);
+            }
+            message.reset();
+            message.field(SAMPLE_LOCATION_ID, packed);
+            nested.reset();
+            nested.writeLong(count);
+            message.field(SAMPLE_VALUE, nested);
+            writeField(PROFILE_SAMPLE, message);
+        }
+
+        private void writeFrame(int frame) throws IOException {
+            written[frame] = true;
+            long id = frame + 1L;
+            long name = string(tree.getFrame(frame));
+            message.reset();
+            message.field(FUNCTION_ID, id).field(FUNCTION_NAME, name).field(FUNCTION_SYSTEM_NAME, name);
+            writeField(PROFILE_FUNCTION, message);
+
+            nested.reset();
+            nested.field(LINE_FUNCTION_ID, id);
+            message.reset();
+            message.field(LOCATION_ID, id).field(LOCATION_LINE, nested);
+            writeField(PROFILE_LOCATION, message);
+        }
+
+        /**
+         * @return index of given string, which is always appended to the string table
+         */
+        private long string(String value) throws IOException {
+            field.reset();
+            writeField(field.field(PROFILE_STRING_TABLE, value));
+            return strings++;
+        }
+
+        private void writeField(int index, Proto value) throws IOException {
+            field.reset();
+            writeField(field.field(index, value));
+        }
+
+        private void writeField(Proto value) throws IOException {
+            out.write(value.buffer(), 0, value.size());
+        }
+    }
+}
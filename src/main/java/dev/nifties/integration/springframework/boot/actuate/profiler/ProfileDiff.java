@@ -0,0 +1,123 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Frames with the largest change of self samples between a baseline and a comparison profile. Baseline counts are
+ * normalized to the total of the comparison profile, so captures of different length or sampling rate can be
+ * compared.
+ */
+public final class ProfileDiff {
+
+    private final long baselineSamples;
+    private final long comparisonSamples;
+    private final List<FrameDelta> increased;
+    private final List<FrameDelta> decreased;
+
+    private ProfileDiff(long baselineSamples, long comparisonSamples, List<FrameDelta> increased,
+                        List<FrameDelta> decreased) {
+        this.baselineSamples = baselineSamples;
+        this.comparisonSamples = comparisonSamples;
+        this.increased = increased;
+        this.decreased = decreased;
+    }
+
+    /**
+     * @param limit maximum number of frames listed in each direction
+     */
+    static ProfileDiff of(CallTree tree, int baselineColumn, int comparisonColumn, int limit) {
+        int frameCount = tree.getFrameCount();
+        long[] baselineSelf = new long[frameCount];
+        long[] comparisonSelf = new long[frameCount];
+        long[] unused = new long[frameCount];
+        tree.aggregate(baselineColumn, baselineSelf, unused);
+        tree.aggregate(comparisonColumn, comparisonSelf, unused);
+
+        long baselineTotal = tree.getTotal(baselineColumn);
+        long comparisonTotal = tree.getTotal(comparisonColumn);
+        double scale = baselineTotal == 0 ? 0d : (double) comparisonTotal / baselineTotal;
+        long[] growth = new long[frameCount];
+        long[] shrinkage = new long[frameCount];
+        for (int f = 0; f < frameCount; f++) {
+            long delta = Math.round(comparisonSelf[f] - baselineSelf[f] * scale);
+            growth[f] = delta;
+            shrinkage[f] = -delta;
+        }
+        return new ProfileDiff(baselineTotal, comparisonTotal,
+                deltas(tree, CallTree.selectTop(growth, limit), baselineSelf, comparisonSelf, scale),
+                deltas(tree, CallTree.selectTop(shrinkage, limit), baselineSelf, comparisonSelf, scale));
+    }
+
+    private static List<FrameDelta> deltas(CallTree tree, int[] frames, long[] baselineSelf, long[] comparisonSelf,
+                                           double scale) {
+        List<FrameDelta> result = new ArrayList<>(frames.length);
+        for (int f : frames) {
+            result.add(new FrameDelta(tree.getFrame(f), Math.round(baselineSelf[f] * scale), comparisonSelf[f]));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public long getBaselineSamples() {
+        return baselineSamples;
+    }
+
+    public long getComparisonSamples() {
+        return comparisonSamples;
+    }
+
+    /**
+     * @return frames that got hotter, largest increase first
+     */
+    public List<FrameDelta> getIncreased() {
+        return increased;
+    }
+
+    /**
+     * @return frames that got cooler, largest decrease first
+     */
+    public List<FrameDelta> getDecreased() {
+        return decreased;
+    }
+
+    /**
+     * Self samples of a single frame in both profiles.
+     */
+    public static final class FrameDelta {
+
+        private final String frame;
+        private final long baseline;
+        private final long comparison;
+
+        FrameDelta(String frame, long baseline, long comparison) {
+            this.frame = frame;
+            this.baseline = baseline;
+            this.comparison = comparison;
+        }
+
+        public String getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return self samples in the baseline profile, normalized to the comparison total
+         */
+        public long getBaseline() {
+            return baseline;
+        }
+
+        public long getComparison() {
+            return comparison;
+        }
+
+        public long getDelta() {
+            return comparison - baseline;
+        }
+
+        @Override
+        public String toString() {
+            return frame + " (" + baseline + " -> " + comparison + ")";
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+
+/**
+ * Single compressed profile handed to a {@link ProfileSink}, held in memory until it has been spilled to disk while
+ * waiting for a slow sink.
+ */
+public final class ProfileExport {
+
+    private final String key;
+    private final Instant time;
+    private final byte[] bytes;
+    private final File file;
+
+    private ProfileExport(String key, Instant time, byte[] bytes, File file) {
+        this.key = key;
+        this.time = time;
+        this.bytes = bytes;
+        this.file = file;
+    }
+
+    static ProfileExport of(String key, Instant time, byte[] bytes) {
+        return new ProfileExport(key, time, bytes, null);
+    }
+
+    static ProfileExport spilled(String key, Instant time, File file) {
+        return new ProfileExport(key, time, null, file);
+    }
+
+    /**
+     * @return relative path the export is stored under, e.g.
+     * {@code orders/2024/01/01/10/profile-20240101T100000Z.collapsed.gz}
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return time the profile was dumped at
+     */
+    public Instant getTime() {
+        return time;
+    }
+
+    public long getSize() {
+        return bytes != null ? bytes.length : file.length();
+    }
+
+    /**
+     * @return gzip compressed content
+     */
+    public InputStream open() throws IOException {
+        return bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(file.toPath());
+    }
+
+    /**
+     * @return gzip compressed content, read into memory if the export has been spilled to disk
+     */
+    public byte[] getBytes() throws IOException {
+        return bytes != null ? bytes : Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * @return file the export has been spilled to, {@code null} if it is held in memory
+     */
+    File getFile() {
+        return file;
+    }
+}
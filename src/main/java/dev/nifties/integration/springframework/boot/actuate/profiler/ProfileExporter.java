@@ -0,0 +1,418 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodically dumps the active profiling session, compresses the output and archives it into a {@link ProfileSink},
+ * so that profiles of the whole fleet can be kept and compared long after instances are gone.
+ * <p>
+ * Dumps are taken on a scheduler thread under the shared read lock of {@link ProfilingSessionManager}, so they never
+ * hold up profiling nor application threads. Uploads run on a separate thread, fed through a bounded in-memory queue
+ * and handed to the sink in batches. A failed batch is retried with exponential backoff, meanwhile further exports
+ * are spilled to disk once the queue is full, up to a size limit after which the oldest spilled ones are dropped.
+ * Spilled exports are picked up again after a restart.
+ * <p>
+ * Dumps hold samples collected since the profiler was last started. While continuous profiling is running, it
+ * restarts the profiler for every chunk, so exports are converted from the {@link ContinuousProfiler} history of the
+ * past interval instead, always as collapsed stacks of the continuously profiled event.
+ * <p>
+ * Exports are keyed {@code <service>/yyyy/MM/dd/HH/profile-<yyyyMMdd'T'HHmmss'Z'>.<format>.gz}, in UTC.
+ */
+public class ProfileExporter implements SmartLifecycle {
+
+    private static final Log log = LogFactory.getLog(ProfileExporter.class);
+
+    private static final DateTimeFormatter KEY_DIRECTORY = DateTimeFormatter.ofPattern("yyyy/MM/dd/HH")
+            .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter KEY_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+    private static final String SPILL_SUFFIX = ".part";
+
+    private static final long STOP_TIMEOUT_MILLIS = 30_000L;
+
+    private static final String FORMAT_COLLAPSED = "collapsed";
+
+    private final ProfilingSessionManager sessions;
+
+    /**
+     * Present only if continuous profiling is enabled.
+     */
+    private final ContinuousProfiler continuousProfiler;
+    private final ProfileSink sink;
+    private final AsyncProfilerProperties.Export properties;
+    private final String service;
+    private final File spillDirectory;
+    private final Clock clock;
+
+    private final BlockingQueue<ProfileExport> queue;
+
+    /**
+     * Spilled exports, oldest first.
+     */
+    private final Deque<ProfileExport> spilled = new ArrayDeque<>();
+    private long spilledBytes;
+
+    private ScheduledExecutorService scheduler;
+    private Thread uploader;
+    private volatile boolean running;
+
+    public ProfileExporter(ProfilingSessionManager sessions, ProfileSink sink,
+                           AsyncProfilerProperties.Export properties, String service) {
+        this(sessions, null, sink, properties, service);
+    }
+
+    /**
+     * @param continuousProfiler continuous profiler to export history of while it runs, {@code null} if not enabled
+     */
+    public ProfileExporter(ProfilingSessionManager sessions, ContinuousProfiler continuousProfiler, ProfileSink sink,
+                           AsyncProfilerProperties.Export properties, String service) {
+        this(sessions, continuousProfiler, sink, properties, service, Clock.systemUTC());
+    }
+
+    ProfileExporter(ProfilingSessionManager sessions, ProfileSink sink, AsyncProfilerProperties.Export properties,
+                    String service, Clock clock) {
+        this(sessions, null, sink, properties, service, clock);
+    }
+
+    ProfileExporter(ProfilingSessionManager sessions, ContinuousProfiler continuousProfiler, ProfileSink sink,
+                    AsyncProfilerProperties.Export properties, String service, Clock clock) {
+        this.sessions = sessions;
+        this.continuousProfiler = continuousProfiler;
+        this.sink = sink;
+        this.properties = properties;
+        this.service = service;
+        this.spillDirectory = properties.getSpillDirectory() != null ? properties.getSpillDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-export-spill");
+        this.clock = clock;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, properties.getQueueSize()));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        loadSpilled();
+        running = true;
+        CustomizableThreadFactory uploaderFactory = new CustomizableThreadFactory("async-profiler-upload-");
+        uploaderFactory.setDaemon(true);
+        uploader = uploaderFactory.newThread(this::upload);
+        uploader.start();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-export-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long intervalMillis = properties.getInterval().toMillis();
+        scheduler.scheduleAtFixedRate(this::exportQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Profile export started, every " + properties.getInterval() + " into " + sink);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor;
+        Thread thread;
+        synchronized (this) {
+            executor = scheduler;
+            thread = uploader;
+            scheduler = null;
+            uploader = null;
+            running = false;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        thread.interrupt();
+        try {
+            executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // whatever has not been uploaded yet is kept for the next run
+        List<ProfileExport> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        synchronized (this) {
+            for (ProfileExport export : pending) {
+                spill(export);
+            }
+        }
+        log.info("Profile export stopped");
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * Dumps the active session, or converts continuous profiling history of the past interval, and queues it for
+     * upload, spilling it to disk if the queue is full.
+     *
+     * @return queued export, {@code null} if there is no active session nor history
+     */
+    ProfileExport export() throws IOException {
+        Instant time = clock.instant();
+        String format = properties.getFormat();
+        String output;
+        if (continuousProfiler != null && continuousProfiler.isRunning()) {
+            format = FORMAT_COLLAPSED;
+            output = history(time);
+            if (output == null) {
+                log.debug("No continuous profiling history to export");
+                return null;
+            }
+        } else if (sessions.getActiveSession() == null) {
+            log.debug("No active profiling session to export");
+            return null;
+        } else {
+            output = sessions.dump("dump," + format);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(output.length() / 4 + 64);
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(output.getBytes(StandardCharsets.UTF_8));
+        }
+        ProfileExport export = ProfileExport.of(getKey(time, format), time, bytes.toByteArray());
+        if (!queue.offer(export)) {
+            synchronized (this) {
+                export = spill(export);
+            }
+        }
+        return export;
+    }
+
+    private void exportQuietly() {
+        try {
+            export();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to export profile", e);
+        }
+    }
+
+    /**
+     * @return collapsed stacks of the continuously profiled event recorded within the interval before given time,
+     * {@code null} if no chunk overlaps it
+     */
+    private String history(Instant time) throws IOException {
+        long toMillis = time.toEpochMilli();
+        long fromMillis = toMillis - properties.getInterval().toMillis();
+        CallTree tree = new CallTree(JfrConverter.EVENTS.size());
+        try (ContinuousProfiler.History history = continuousProfiler.history(fromMillis, toMillis)) {
+            if (history.getChunks().isEmpty()) {
+                return null;
+            }
+            for (ContinuousProfiler.Chunk chunk : history.getChunks()) {
+                try (FileChannel channel = FileChannel.open(chunk.getFile().toPath(), StandardOpenOption.READ)) {
+                    // chunks straddling the interval boundary are cut, so that consecutive exports do not overlap
+                    tree.merge(JfrConverter.convert(chunk.getFile(), false, JfrChunk.read(channel),
+                            TimeUnit.MILLISECONDS.toNanos(fromMillis), TimeUnit.MILLISECONDS.toNanos(toMillis)));
+                }
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        tree.writeCollapsed(out, JfrConverter.column(continuousProfiler.getEvent()));
+        return out.toString();
+    }
+
+    String getKey(Instant time, String format) {
+        int comma = format.indexOf(',');
+        String extension = (comma >= 0 ? format.substring(0, comma) : format).replaceAll("=.*", "");
+        return service + "/" + KEY_DIRECTORY.format(time) + "/profile-" + KEY_TIME.format(time) + "." + extension
+                + ".gz";
+    }
+
+    /**
+     * Uploads batches until stopped, oldest exports first, retrying failed batches with exponential backoff.
+     */
+    private void upload() {
+        long backoffMillis = properties.getRetryBackoff().toMillis();
+        List<ProfileExport> batch = new ArrayList<>();
+        while (running) {
+            try {
+                if (batch.isEmpty()) {
+                    fillBatch(batch);
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                }
+                sink.store(batch);
+                if (log.isDebugEnabled()) {
+                    log.debug("Exported " + batch.stream().map(ProfileExport::getKey)
+                            .collect(Collectors.joining(", ")));
+                }
+                synchronized (this) {
+                    for (ProfileExport export : batch) {
+                        if (export.getFile() != null) {
+                            deleteSpilled(export);
+                        }
+                    }
+                }
+                batch.clear();
+                backoffMillis = properties.getRetryBackoff().toMillis();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                // spilled exports may have been dropped over the spill limit meanwhile
+                batch.removeIf(export -> export.getFile() != null && !export.getFile().exists());
+                log.warn("Failed to store " + batch.size() + " profile exports, retrying in " + backoffMillis
+                        + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, properties.getMaxRetryBackoff().toMillis());
+            }
+        }
+        // a batch still failing is kept for the next run
+        synchronized (this) {
+            for (ProfileExport export : batch) {
+                if (export.getFile() == null) {
+                    spill(export);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes spilled exports first, as they are older than queued ones, then tops the batch up from the queue.
+     * Spilled exports stay on disk until stored.
+     */
+    private void fillBatch(List<ProfileExport> batch) throws InterruptedException {
+        int batchSize = Math.max(1, properties.getBatchSize());
+        synchronized (this) {
+            for (ProfileExport export : spilled) {
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+                batch.add(export);
+            }
+        }
+        if (batch.isEmpty()) {
+            ProfileExport first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+        }
+        queue.drainTo(batch, batchSize - batch.size());
+    }
+
+    /**
+     * Writes given export to disk, dropping the oldest spilled ones if over the size limit.
+     *
+     * @return spilled export, or given one if it could not be written
+     */
+    private ProfileExport spill(ProfileExport export) {
+        File file = new File(spillDirectory, export.getKey());
+        File temporary = new File(file.getParentFile(), file.getName() + SPILL_SUFFIX);
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (OutputStream out = Files.newOutputStream(temporary.toPath())) {
+                out.write(export.getBytes());
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Failed to spill profile export " + export.getKey() + ", dropping it", e);
+            temporary.delete();
+            return export;
+        }
+        ProfileExport result = ProfileExport.spilled(export.getKey(), export.getTime(), file);
+        spilled.addLast(result);
+        spilledBytes += result.getSize();
+        long maxBytes = properties.getMaxSpillSize().toBytes();
+        ProfileExport oldest;
+        while (spilledBytes > maxBytes && (oldest = spilled.peekFirst()) != null) {
+            log.warn("Profile exports over spill limit of " + properties.getMaxSpillSize() + ", dropping "
+                    + oldest.getKey());
+            deleteSpilled(oldest);
+        }
+        return result;
+    }
+
+    private void deleteSpilled(ProfileExport export) {
+        if (spilled.remove(export)) {
+            spilledBytes -= export.getSize();
+        }
+        File file = export.getFile();
+        if (!file.delete() && file.exists()) {
+            log.warn("Failed to delete spilled profile export " + file);
+        }
+    }
+
+    /**
+     * Picks up exports spilled by previous runs and removes incomplete ones.
+     */
+    private synchronized void loadSpilled() {
+        if (!spillDirectory.isDirectory()) {
+            return;
+        }
+        Path root = spillDirectory.toPath();
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            log.warn("Failed to list spilled profile exports in " + spillDirectory + ": " + e.getMessage());
+            return;
+        }
+        files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (file.getName().endsWith(SPILL_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            String key = root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            ProfileExport export = ProfileExport.spilled(key, Instant.ofEpochMilli(file.lastModified()), file);
+            spilled.addLast(export);
+            spilledBytes += export.getSize();
+        }
+        if (!spilled.isEmpty()) {
+            log.info("Picked up " + spilled.size() + " spilled profile exports");
+        }
+    }
+
+    ProfileSink getSink() {
+        return sink;
+    }
+
+    int getQueued() {
+        return queue.size();
+    }
+
+    synchronized List<ProfileExport> getSpilled() {
+        return new ArrayList<>(spilled);
+    }
+
+    synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+}
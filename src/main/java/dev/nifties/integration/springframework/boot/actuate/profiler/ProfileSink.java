@@ -0,0 +1,22 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage scheduled profile exports are archived into, see {@link ProfileExporter}. Implementations ship for a local
+ * directory ({@link FileSystemProfileSink}) and for S3-compatible object storage ({@link S3ProfileSink}), any other
+ * storage can be plugged in by declaring a {@code ProfileSink} bean.
+ * <p>
+ * Sinks are called from a single uploader thread, never from profiling or application threads, so they may block.
+ */
+public interface ProfileSink {
+
+    /**
+     * Stores a batch of exports. A failed batch is retried as a whole, so storing an export again under the same key
+     * must overwrite it.
+     *
+     * @throws IOException if the batch could not be stored and should be retried later
+     */
+    void store(List<ProfileExport> batch) throws IOException;
+}
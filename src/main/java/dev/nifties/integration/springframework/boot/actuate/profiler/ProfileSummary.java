@@ -0,0 +1,127 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flat profile: self and total samples per frame, aggregated out of collapsed stacks in a single pass without
+ * building a call tree. Meant to be polled by dashboards, so that the hottest methods can be tracked without
+ * rendering full flame graphs.
+ */
+public final class ProfileSummary {
+
+    private final long samples;
+    private final List<CallTree.FrameCount> frames;
+
+    private ProfileSummary(long samples, List<CallTree.FrameCount> frames) {
+        this.samples = samples;
+        this.frames = frames;
+    }
+
+    static ProfileSummary of(String collapsed, int limit, boolean bySelf) {
+        try {
+            return of(new StringReader(collapsed), limit, bySelf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param limit maximum number of frames listed
+     * @param bySelf whether frames should be ordered by self samples, otherwise by total
+     */
+    static ProfileSummary of(Reader collapsed, int limit, boolean bySelf) throws IOException {
+        Aggregator aggregator = new Aggregator();
+        CallTree.readCollapsed(collapsed, aggregator);
+        return aggregator.summary(limit, bySelf);
+    }
+
+    /**
+     * Summarizes a profile already parsed into a call tree.
+     */
+    static ProfileSummary of(CallTree tree, int column, int limit, boolean bySelf) {
+        return new ProfileSummary(tree.getTotal(column), tree.top(limit, column, bySelf));
+    }
+
+    /**
+     * @return total number of samples in the profile
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return hottest frames, hottest first
+     */
+    public List<CallTree.FrameCount> getFrames() {
+        return frames;
+    }
+
+    /**
+     * Accumulates counts per interned frame id. A frame appearing several times in the same stack (recursion) adds
+     * to its total only once, tracked by stamping the frame with the number of the line it was last counted on.
+     */
+    private static final class Aggregator implements CallTree.StackHandler {
+
+        private final FrameDictionary dictionary = new FrameDictionary();
+        private long[] self = new long[1024];
+        private long[] total = new long[1024];
+        private int[] lastLine = new int[1024];
+        private int lineNumber;
+        private long samples;
+        private long count;
+        private int leaf;
+
+        @Override
+        public void startStack(long count) {
+            this.count = count;
+            lineNumber++;
+            samples += count;
+            leaf = -1;
+        }
+
+        @Override
+        public void frame(char[] chars, int offset, int length) {
+            leaf = dictionary.intern(chars, offset, length);
+            ensureCapacity(leaf);
+            if (lastLine[leaf] != lineNumber) {
+                lastLine[leaf] = lineNumber;
+                total[leaf] += count;
+            }
+        }
+
+        @Override
+        public void endStack() {
+            if (leaf >= 0) {
+                self[leaf] += count;
+            }
+        }
+
+        ProfileSummary summary(int limit, boolean bySelf) {
+            int size = dictionary.size();
+            long[] selfCounts = Arrays.copyOf(self, size);
+            long[] totalCounts = Arrays.copyOf(total, size);
+            int[] top = CallTree.selectTop(bySelf ? selfCounts : totalCounts, limit);
+            List<CallTree.FrameCount> frames = new ArrayList<>(top.length);
+            for (int f : top) {
+                frames.add(new CallTree.FrameCount(dictionary.get(f), selfCounts[f], totalCounts[f]));
+            }
+            return new ProfileSummary(samples, Collections.unmodifiableList(frames));
+        }
+
+        private void ensureCapacity(int frame) {
+            if (frame >= self.length) {
+                int capacity = Math.max(frame + 1, self.length * 2);
+                self = Arrays.copyOf(self, capacity);
+                total = Arrays.copyOf(total, capacity);
+                lastLine = Arrays.copyOf(lastLine, capacity);
+            }
+        }
+    }
+}
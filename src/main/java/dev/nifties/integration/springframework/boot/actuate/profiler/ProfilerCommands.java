@@ -0,0 +1,187 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.MediaType;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Translates request parameters into AsyncProfiler commands, shared by the servlet and the reactive endpoint. Kept
+ * apart from both, so that neither pulls in classes of the other web stack.
+ */
+final class ProfilerCommands {
+
+    static final String OPERATION_START = "start";
+    static final String OPERATION_RESUME = "resume";
+    static final String OPERATION_STOP = "stop";
+
+    static final String PARAMETER_DURATION = "duration";
+    static final String PARAMETER_TOTAL = "total";
+    static final String PARAMETER_COMPRESSION = "compression";
+    static final String PARAMETER_OWNER = "owner";
+    static final String PARAMETER_WAIT = "wait";
+    static final String PARAMETER_SESSION = "session";
+    static final String PARAMETER_BASELINE = "baseline";
+    static final String PARAMETER_COMPARISON = "comparison";
+    static final String PARAMETER_FORMAT = "format";
+    static final String PARAMETER_LIMIT = "limit";
+    static final String PARAMETER_SORT = "sort";
+    static final String PARAMETER_URI = "uri";
+    static final String PARAMETER_HEADER = "header";
+    static final String PARAMETER_LATENCY = "latency";
+    /**
+     * Time between live snapshots, not an endpoint parameter, as other operations pass it on as sampling interval.
+     */
+    static final String PARAMETER_INTERVAL = "interval";
+
+    static final String FORMAT_SUMMARY = "summary";
+
+    static final String FILE_EXTENSION_HTML = ".html";
+    static final String FILE_EXTENSION_JFR = ".jfr";
+    static final String FILE_EXTENSION_PPROF = ".pprof";
+
+    /**
+     * Content type of bodies that are compressed already, e.g. pprof profiles, which are passed on as they are.
+     */
+    static final MediaType APPLICATION_GZIP = new MediaType("application", "gzip");
+
+    /**
+     * Request parameters consumed by the endpoint itself rather than passed on to AsyncProfiler.
+     */
+    private static final Set<String> ENDPOINT_PARAMETERS = new HashSet<>(Arrays.asList(
+            PARAMETER_DURATION, PARAMETER_TOTAL, PARAMETER_COMPRESSION, PARAMETER_OWNER, PARAMETER_WAIT,
+            PARAMETER_SESSION, PARAMETER_BASELINE, PARAMETER_COMPARISON, PARAMETER_FORMAT, PARAMETER_LIMIT,
+            PARAMETER_SORT, PARAMETER_URI, PARAMETER_HEADER, PARAMETER_LATENCY));
+
+    /**
+     * Text output formats small enough to be passed straight from AsyncProfiler output into the response.
+     */
+    private static final List<String> TEXT_FORMATS = Arrays.asList("collapsed", "flat", "traces", "summary");
+
+    /**
+     * Shortest time between live snapshots, as each of them dumps the whole profile.
+     */
+    private static final long MIN_INTERVAL_MILLIS = 1_000L;
+
+    private ProfilerCommands() {
+    }
+
+    /**
+     * Translates request parameters, except for those consumed by the endpoint, into AsyncProfiler command.
+     */
+    static String getCommand(String operation, Map<String, String[]> parameterMap) {
+        Objects.requireNonNull(operation);
+        String parameters = parameterMap.entrySet().stream()
+                .filter(e -> !ENDPOINT_PARAMETERS.contains(e.getKey()))
+                .filter(e -> !PARAMETER_DURATION.equalsIgnoreCase(e.getKey()))
+                // pprof is converted by the endpoint, AsyncProfiler itself is asked for collapsed output
+                .filter(e -> !("file".equals(e.getKey()) && e.getValue() != null && e.getValue().length == 1
+                        && isPprof(e.getValue()[0])))
+                .map(e -> parseParameter(e.getKey(), e.getValue())).collect(Collectors.joining(","));
+
+        if (OPERATION_START.equals(operation) && parameters.isEmpty()) {
+            parameters = "event=cpu";
+        }
+        return parameters.isEmpty() ? operation : String.join(",", operation, parameters);
+    }
+
+    static String parseParameter(String key, String[] values) {
+        if (values == null || values.length == 0
+                || (values.length == 1 && (values[0] == null || values[0].isEmpty()))) {
+            return key;
+        }
+        return Stream.of(values).map(v -> key + "=" + v).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Picks text output format out of request parameters, either a format option like <i>collapsed</i> or
+     * <i>flat=20</i>, or <i>o=collapsed</i>.
+     *
+     * @param parameters looks up first value of a request parameter
+     * @return AsyncProfiler output argument, {@code null} if HTML, JFR or pprof output was requested
+     */
+    static String getTextFormat(String fileName, Function<String, String> parameters) {
+        if (fileName != null && (FILE_EXTENSION_JFR.equalsIgnoreCase(fileName) || isPprof(fileName))) {
+            return null;
+        }
+        String output = parameters.apply("o");
+        if (output != null && TEXT_FORMATS.contains(output)) {
+            return output;
+        }
+        for (String format : TEXT_FORMATS) {
+            String value = parameters.apply(format);
+            if (value != null) {
+                return value.isEmpty() ? format : format + "=" + value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether pprof output was requested with <i>file=pprof</i> or <i>file=.pprof</i>
+     */
+    static boolean isPprof(String fileName) {
+        return FILE_EXTENSION_PPROF.equalsIgnoreCase(fileName) || FILE_EXTENSION_PPROF.substring(1)
+                .equalsIgnoreCase(fileName);
+    }
+
+    /**
+     * @param wait time to wait for a conflicting session to finish, e.g. "30s", "500ms" or a number of seconds
+     * @return time to wait in milliseconds, {@code 0} if not given
+     * @throws IllegalArgumentException if the wait cannot be parsed
+     */
+    static long getWaitMillis(String wait) {
+        if (wait == null || wait.isEmpty()) {
+            return 0L;
+        }
+        return Math.max(0L, DurationStyle.detectAndParse(wait, ChronoUnit.SECONDS).toMillis());
+    }
+
+    /**
+     * @param interval time between live snapshots, e.g. "5s", "500ms" or a number of seconds
+     * @return time between live snapshots, at least a second
+     * @throws IllegalArgumentException if the interval cannot be parsed
+     */
+    static long getIntervalMillis(String interval) {
+        return Math.max(MIN_INTERVAL_MILLIS, DurationStyle.detectAndParse(interval, ChronoUnit.SECONDS).toMillis());
+    }
+
+    /**
+     * @param latency time a request has to run before it is profiled, e.g. "500ms", "1s" or a number of milliseconds
+     * @return latency threshold in milliseconds
+     * @throws IllegalArgumentException if the latency cannot be parsed
+     */
+    static long getLatencyMillis(String latency) {
+        return DurationStyle.detectAndParse(latency, ChronoUnit.MILLIS).toMillis();
+    }
+
+    /**
+     * @param bucket heatmap bucket width, e.g. "100ms", "1s" or a number of milliseconds
+     * @return bucket width in nanoseconds
+     * @throws IllegalArgumentException if the width cannot be parsed
+     */
+    static long getBucketNanos(String bucket) {
+        return DurationStyle.detectAndParse(bucket, ChronoUnit.MILLIS).toNanos();
+    }
+
+    /**
+     * @param value ISO-8601 instant or epoch milliseconds
+     * @throws java.time.format.DateTimeParseException if the value is neither
+     */
+    static Instant parseInstant(String value) {
+        if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+            return Instant.ofEpochMilli(Long.parseLong(value));
+        }
+        return Instant.parse(value);
+    }
+}
@@ -0,0 +1,282 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Micrometer meters of profiler usage and of profiling overhead. Created without a {@link MeterRegistry} it records
+ * nothing, so the actuator works the same way in applications without metrics.
+ * <p>
+ * Meters registered:
+ * <ul>
+ * <li>{@code profiler.sessions.active} - long task timer of active sessions, tagged by event</li>
+ * <li>{@code profiler.sessions} - duration of finished sessions, tagged by event and final state</li>
+ * <li>{@code profiler.command} - time spent in AsyncProfiler commands, e.g. writing output on stop or dump</li>
+ * <li>{@code profiler.output} - size of produced profiles, tagged by format</li>
+ * <li>{@code profiler.temp.disk} - disk space taken by profiler output kept for downloads, see {@link DownloadStore}</li>
+ * <li>{@code profiler.continuous.disk} - disk space taken by continuous profiling chunks</li>
+ * <li>{@code profiler.governor.overhead} and {@code profiler.governor.interval} - overhead of continuous profiling
+ * measured by {@link OverheadGovernor} and the sampling interval it set</li>
+ * <li>{@code profiler.download} and {@code profiler.download.bytes} - time and bytes streamed to clients, tagged by
+ * content encoding, together giving download throughput</li>
+ * <li>{@code profiler.samples} - samples collected by the current profiling session</li>
+ * <li>{@code profiler.native.load} - time it took to load the native library, once it has been loaded</li>
+ * <li>{@code profiler.threads.cpu} - CPU time of native AsyncProfiler threads, where /proc is available</li>
+ * </ul>
+ */
+final class ProfilerMetrics {
+
+    static final ProfilerMetrics NONE = new ProfilerMetrics(null);
+
+    /**
+     * Commands timed under their own name, anything else is tagged as "other" to keep tag cardinality bounded.
+     */
+    private static final Set<String> OPERATIONS = new HashSet<>(Arrays.asList(
+            "start", "resume", "stop", "dump", "check", "status", "meminfo", "list", "version"));
+
+    private final MeterRegistry registry;
+    private final Map<String, LongTaskTimer.Sample> activeSessions = new ConcurrentHashMap<>();
+
+    private ProfilerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param registry registry to register meters in, {@code null} to record nothing
+     */
+    static ProfilerMetrics of(MeterRegistry registry, AsyncProfilerLoader loader) {
+        if (registry == null) {
+            return NONE;
+        }
+        ProfilerMetrics metrics = new ProfilerMetrics(registry);
+        Gauge.builder("profiler.samples", loader, AsyncProfilerLoader::getSamples)
+                .description("Samples collected by the current profiling session")
+                .register(registry);
+        TimeGauge.builder("profiler.native.load", loader, TimeUnit.NANOSECONDS,
+                        l -> l.getLoadNanos() >= 0 ? l.getLoadNanos() : Double.NaN)
+                .description("Time it took to load the AsyncProfiler native library")
+                .register(registry);
+        File tasks = new File("/proc/self/task");
+        if (tasks.isDirectory()) {
+            FunctionCounter.builder("profiler.threads.cpu", new ThreadCpu(tasks), ThreadCpu::seconds)
+                    .description("CPU time consumed by native AsyncProfiler threads")
+                    .baseUnit("seconds")
+                    .register(registry);
+        }
+        return metrics;
+    }
+
+    void bind(DownloadStore downloads) {
+        if (registry != null) {
+            Gauge.builder("profiler.temp.disk", downloads, DownloadStore::getSize)
+                    .description("Disk space taken by profiler output kept for downloads")
+                    .baseUnit(BaseUnits.BYTES)
+                    .register(registry);
+        }
+    }
+
+    void bind(ContinuousProfiler continuousProfiler) {
+        if (registry != null) {
+            Gauge.builder("profiler.continuous.disk", continuousProfiler, ContinuousProfiler::getTotalBytes)
+                    .description("Disk space taken by continuous profiling chunks")
+                    .baseUnit(BaseUnits.BYTES)
+                    .register(registry);
+            OverheadGovernor governor = continuousProfiler.getGovernor();
+            if (governor != null) {
+                Gauge.builder("profiler.governor.overhead", governor, OverheadGovernor::getOverhead)
+                        .description("Share of the available CPU continuous profiling took during the last chunk")
+                        .register(registry);
+                TimeGauge.builder("profiler.governor.interval", governor, TimeUnit.NANOSECONDS,
+                                OverheadGovernor::getIntervalNanos)
+                        .description("Sampling interval of continuous profiling set by the overhead governor")
+                        .register(registry);
+            }
+        }
+    }
+
+    void sessionStarted(ProfilingSession session) {
+        if (registry != null) {
+            activeSessions.put(session.getId(), LongTaskTimer.builder("profiler.sessions.active")
+                    .description("Active profiling sessions")
+                    .tag("event", session.getEvent())
+                    .register(registry).start());
+        }
+    }
+
+    void sessionFinished(ProfilingSession session) {
+        if (registry == null) {
+            return;
+        }
+        LongTaskTimer.Sample sample = activeSessions.remove(session.getId());
+        if (sample != null) {
+            sample.stop();
+        }
+        Timer.builder("profiler.sessions")
+                .description("Duration of finished profiling sessions")
+                .tag("event", session.getEvent())
+                .tag("state", session.getState().name().toLowerCase(Locale.ROOT))
+                .register(registry)
+                .record(Duration.between(session.getStartTime(), session.getEndTime()));
+    }
+
+    void commandExecuted(String command, long nanos, boolean success) {
+        if (registry != null) {
+            int comma = command.indexOf(',');
+            String operation = comma < 0 ? command : command.substring(0, comma);
+            Timer.builder("profiler.command")
+                    .description("Time spent executing AsyncProfiler commands")
+                    .tag("operation", OPERATIONS.contains(operation) ? operation : "other")
+                    .tag("outcome", success ? "success" : "failure")
+                    .register(registry)
+                    .record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void outputProduced(String format, long bytes) {
+        if (registry != null) {
+            DistributionSummary.builder("profiler.output")
+                    .description("Size of produced profiles")
+                    .baseUnit(BaseUnits.BYTES)
+                    .tag("format", format)
+                    .register(registry)
+                    .record(bytes);
+        }
+    }
+
+    /**
+     * Starts timing a download, see {@link MeteredResponse}.
+     *
+     * @param encoding content encoding of the body streamed
+     * @return download to be recorded once the body has been written, {@code null} if nothing is recorded
+     */
+    Download startDownload(String encoding) {
+        return registry != null ? new Download(encoding) : null;
+    }
+
+    /**
+     * A single download being timed.
+     */
+    final class Download {
+        private final String encoding;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private Download(String encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * Records bytes sent and time spent sending them, once only.
+         */
+        void record(long bytes, boolean success) {
+            if (!recorded.compareAndSet(false, true)) {
+                return;
+            }
+            String outcome = success ? "success" : "failure";
+            Timer.builder("profiler.download")
+                    .description("Time spent streaming profiles to clients")
+                    .tag("encoding", encoding)
+                    .tag("outcome", outcome)
+                    .register(registry)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            DistributionSummary.builder("profiler.download.bytes")
+                    .description("Bytes of profiles streamed to clients")
+                    .baseUnit(BaseUnits.BYTES)
+                    .tag("encoding", encoding)
+                    .tag("outcome", outcome)
+                    .register(registry)
+                    .record(bytes);
+        }
+    }
+
+    /**
+     * Reads CPU time of the native AsyncProfiler threads out of /proc. Time of threads that have since terminated is
+     * retained, so that the total only ever grows. Profiling signal handlers run on the sampled threads themselves and
+     * are not included.
+     * <p>
+     * Native threads are named "Async-profiler ...", while Java threads of this actuator, such as its timer, export
+     * and upload pools, are named "async-profiler-..." and are not profiling overhead. Thread names in /proc are cut to
+     * 15 characters, so the case is what tells them apart.
+     */
+    static final class ThreadCpu {
+
+        private static final String THREAD_PREFIX = "Async-profiler";
+        /**
+         * USER_HZ, the unit of /proc CPU times, is 100 on all mainstream Linux architectures.
+         */
+        private static final double TICKS_PER_SECOND = 100d;
+
+        private final File tasks;
+        private Map<String, Long> live = new HashMap<>();
+        private long retiredTicks;
+
+        ThreadCpu(File tasks) {
+            this.tasks = tasks;
+        }
+
+        synchronized double seconds() {
+            Map<String, Long> current = new HashMap<>();
+            File[] threads = tasks.listFiles();
+            if (threads != null) {
+                for (File thread : threads) {
+                    long ticks = ticks(thread);
+                    if (ticks >= 0) {
+                        current.put(thread.getName(), ticks);
+                    }
+                }
+            }
+            for (Map.Entry<String, Long> previous : live.entrySet()) {
+                if (!current.containsKey(previous.getKey())) {
+                    retiredTicks += previous.getValue();
+                }
+            }
+            live = current;
+            long ticks = retiredTicks;
+            for (long value : current.values()) {
+                ticks += value;
+            }
+            return ticks / TICKS_PER_SECOND;
+        }
+
+        /**
+         * @return user and system CPU ticks of given thread, -1 if it is not a profiler thread or is gone
+         */
+        private static long ticks(File thread) {
+            try {
+                String name = new String(Files.readAllBytes(new File(thread, "comm").toPath()),
+                        StandardCharsets.UTF_8);
+                if (!name.startsWith(THREAD_PREFIX)) {
+                    return -1L;
+                }
+                String stat = new String(Files.readAllBytes(new File(thread, "stat").toPath()),
+                        StandardCharsets.UTF_8);
+                // thread name in parentheses may contain spaces, fields are counted after its closing one
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            } catch (IOException | RuntimeException e) {
+                return -1L;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.time.Instant;
+
+/**
+ * A single profiling session tracked by {@link ProfilingSessionManager}: who started profiling, with what event and
+ * when.
+ */
+public final class ProfilingSession {
+
+    /**
+     * Lifecycle state of a session.
+     */
+    public enum State {
+        ACTIVE,
+        STOPPED,
+        EXPIRED
+    }
+
+    private final String id;
+    private final String owner;
+    private final String event;
+    private final String command;
+    private final Instant startTime;
+    private final long ttlMillis;
+
+    private volatile String startOutput;
+    private volatile State state = State.ACTIVE;
+    private volatile long lastAccessMillis;
+    private volatile Instant endTime;
+
+    ProfilingSession(String id, String owner, String command, long ttlMillis) {
+        this.id = id;
+        this.owner = owner;
+        this.command = command;
+        this.event = eventOf(command);
+        this.ttlMillis = ttlMillis;
+        this.startTime = Instant.now();
+        this.lastAccessMillis = startTime.toEpochMilli();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    public Instant getEndTime() {
+        return endTime;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return idle time after which session is considered abandoned and stopped, 0 if it never expires
+     */
+    public long getTtlMillis() {
+        return Math.max(0L, ttlMillis);
+    }
+
+    /**
+     * @return whether session was started never to expire, like continuous profiling, so it can only be stopped by
+     *         its id
+     */
+    boolean isPinned() {
+        return ttlMillis < 0;
+    }
+
+    String getStartOutput() {
+        return startOutput;
+    }
+
+    void started(String output) {
+        this.startOutput = output;
+    }
+
+    void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    boolean isExpired(long nowMillis) {
+        return ttlMillis > 0 && nowMillis - lastAccessMillis > ttlMillis;
+    }
+
+    void finish(State finalState) {
+        endTime = Instant.now();
+        state = finalState;
+    }
+
+    /**
+     * Extracts profiling event out of AsyncProfiler command, e.g. "start,event=wall,interval=1ms" gives "wall".
+     */
+    static String eventOf(String command) {
+        String event = null;
+        for (String argument : command.split(",")) {
+            if (argument.startsWith("event=")) {
+                event = event == null ? argument.substring("event=".length())
+                        : event + "+" + argument.substring("event=".length());
+            } else if (argument.equals("alloc") || argument.startsWith("alloc=")
+                    || argument.equals("lock") || argument.startsWith("lock=")) {
+                String name = argument.indexOf('=') > 0 ? argument.substring(0, argument.indexOf('=')) : argument;
+                event = event == null ? name : event + "+" + name;
+            }
+        }
+        return event == null ? "cpu" : event;
+    }
+
+    @Override
+    public String toString() {
+        return "session " + id + " (owner: " + owner + ", event: " + event + ", started: " + startTime + ")";
+    }
+}
@@ -0,0 +1,13 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+/**
+ * Thrown when a profiling session cannot be started or controlled because profiler is busy with another session.
+ */
+public class ProfilingSessionConflictException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProfilingSessionConflictException(String message) {
+        super(message);
+    }
+}
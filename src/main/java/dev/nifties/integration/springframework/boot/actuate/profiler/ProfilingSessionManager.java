@@ -0,0 +1,274 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import one.profiler.AsyncProfiler;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Serializes access to the process-wide {@link AsyncProfiler} instance. Only one profiling session may be active at
+ * a time: conflicting starts either wait in a fair queue for the active session to finish or fail fast with
+ * {@link ProfilingSessionConflictException}. Starting and stopping are exclusive, while any number of concurrent
+ * {@code dump} requests may read the active session. Sessions left without activity for longer than their TTL are
+ * considered abandoned and stopped automatically.
+ * <p>
+ * Commands not affecting profiler state (e.g. {@code status}, {@code list}, {@code version}) go straight through.
+ */
+public class ProfilingSessionManager implements DisposableBean {
+
+    private static final Log log = LogFactory.getLog(ProfilingSessionManager.class);
+
+    private final AsyncProfilerLoader loader;
+    private final AsyncProfilerProperties.Sessions properties;
+    private final ProfilerMetrics metrics;
+
+    private final Semaphore slot = new Semaphore(1, true);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, ProfilingSession> sessions = new ConcurrentHashMap<>();
+    private final Deque<String> finished = new ArrayDeque<>();
+    private final ScheduledExecutorService reaper;
+
+    private volatile ProfilingSession active;
+
+    public ProfilingSessionManager(AsyncProfiler asyncProfiler, AsyncProfilerProperties.Sessions properties) {
+        this(asyncProfiler, properties, null);
+    }
+
+    /**
+     * @param meterRegistry registry of profiler metrics, see {@link ProfilerMetrics}, {@code null} if there is none
+     */
+    public ProfilingSessionManager(AsyncProfiler asyncProfiler, AsyncProfilerProperties.Sessions properties,
+                                   MeterRegistry meterRegistry) {
+        this(AsyncProfilerLoader.of(asyncProfiler), properties, meterRegistry);
+    }
+
+    /**
+     * @param loader loads the native library on first command, unless it has been loaded already
+     * @param meterRegistry registry of profiler metrics, see {@link ProfilerMetrics}, {@code null} if there is none
+     */
+    public ProfilingSessionManager(AsyncProfilerLoader loader, AsyncProfilerProperties.Sessions properties,
+                                   MeterRegistry meterRegistry) {
+        this.loader = loader;
+        this.properties = properties;
+        this.metrics = ProfilerMetrics.of(meterRegistry, loader);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-sessions-");
+        threadFactory.setDaemon(true);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long period = Math.max(1_000L, Math.min(60_000L, properties.getTtl().toMillis() / 4));
+        reaper.scheduleWithFixedDelay(this::expireAbandoned, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new profiling session, waiting up to {@code waitMillis} (capped by configured maximum) for the
+     * currently active session to finish.
+     *
+     * @param owner who is starting the session
+     * @param command AsyncProfiler command starting profiling, e.g. "start,event=cpu"
+     * @param ttlMillis idle time after which session is stopped automatically, 0 for configured default, negative
+     *                  for never
+     * @throws ProfilingSessionConflictException if another session is still active after waiting
+     */
+    public ProfilingSession start(String owner, String command, long waitMillis, long ttlMillis)
+            throws IOException, InterruptedException {
+        long wait = Math.max(0L, Math.min(waitMillis, properties.getMaxWait().toMillis()));
+        if (!slot.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+            ProfilingSession current = active;
+            throw new ProfilingSessionConflictException("Profiler is busy with "
+                    + (current != null ? current : "another session"));
+        }
+        boolean started = false;
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            ProfilingSession session = new ProfilingSession(UUID.randomUUID().toString(), owner, command,
+                    ttlMillis == 0 ? properties.getTtl().toMillis() : ttlMillis);
+            String result = executeTimed(command);
+            session.started(result);
+            metrics.sessionStarted(session);
+            log.info("Started " + session + ": " + result);
+            sessions.put(session.getId(), session);
+            active = session;
+            started = true;
+            return session;
+        } finally {
+            writeLock.unlock();
+            if (!started) {
+                slot.release();
+            }
+        }
+    }
+
+    /**
+     * Stops profiling with given command, finishing the active session.
+     *
+     * @param sessionId session expected to be active, or {@code null} to stop whatever is running, unless it never
+     *                  expires, like continuous profiling, and has to be stopped by its id
+     * @param command AsyncProfiler command, e.g. "stop" or "stop,file=..."
+     * @return AsyncProfiler output
+     * @throws ProfilingSessionConflictException if given session is not the active one, or no session is given while
+     *                                           the active one never expires
+     */
+    public String stop(String sessionId, String command) throws IOException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            ProfilingSession current = active;
+            if (sessionId != null && (current == null || !current.getId().equals(sessionId))) {
+                throw new ProfilingSessionConflictException("Session " + sessionId + " is not active");
+            }
+            if (sessionId == null && current != null && current.isPinned()) {
+                throw new ProfilingSessionConflictException(current + " does not expire and has to be stopped by id");
+            }
+            try {
+                return executeTimed(command);
+            } finally {
+                if (current != null) {
+                    finish(current, ProfilingSession.State.STOPPED);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Executes an exclusive command on behalf of given session without finishing it, e.g. to restart recording into
+     * a new file.
+     *
+     * @throws ProfilingSessionConflictException if given session is not the active one
+     */
+    public String execute(ProfilingSession session, String command) throws IOException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (active != session) {
+                throw new ProfilingSessionConflictException(session + " is not active");
+            }
+            session.touch();
+            return executeTimed(command);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Dumps data of the active session, multiple dumps may run concurrently.
+     */
+    public String dump(String command) throws IOException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            ProfilingSession current = active;
+            if (current != null) {
+                current.touch();
+            }
+            return executeTimed(command);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Executes a command not affecting profiler state.
+     */
+    public String execute(String command) throws IOException {
+        return executeTimed(command);
+    }
+
+    public ProfilingSession getActiveSession() {
+        return active;
+    }
+
+    public ProfilingSession getSession(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * @return active and recently finished sessions, most recent first
+     */
+    public List<ProfilingSession> getSessions() {
+        List<ProfilingSession> result = new ArrayList<>(sessions.values());
+        result.sort(Comparator.comparing(ProfilingSession::getStartTime).reversed());
+        return result;
+    }
+
+    AsyncProfilerLoader getLoader() {
+        return loader;
+    }
+
+    ProfilerMetrics getMetrics() {
+        return metrics;
+    }
+
+    void expireAbandoned() {
+        ProfilingSession current = active;
+        if (current == null || !current.isExpired(System.currentTimeMillis())) {
+            return;
+        }
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (active != current) {
+                return;
+            }
+            log.warn("Stopping abandoned " + current);
+            try {
+                executeTimed("stop");
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to stop abandoned " + current + ": " + e.getMessage());
+            }
+            finish(current, ProfilingSession.State.EXPIRED);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        reaper.shutdownNow();
+    }
+
+    private String executeTimed(String command) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            String result = loader.get().execute(command);
+            success = true;
+            return result;
+        } finally {
+            metrics.commandExecuted(command, System.nanoTime() - startNanos, success);
+        }
+    }
+
+    private void finish(ProfilingSession session, ProfilingSession.State state) {
+        session.finish(state);
+        active = null;
+        slot.release();
+        metrics.sessionFinished(session);
+        log.info("Finished " + session + " as " + state);
+        synchronized (finished) {
+            finished.addLast(session.getId());
+            while (finished.size() > properties.getHistory()) {
+                sessions.remove(finished.removeFirst());
+            }
+        }
+    }
+}
@@ -0,0 +1,810 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.endpoint.web.annotation.RestControllerEndpoint;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.Principal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Reactive counterpart of {@link AsyncProfilerWebEndpoint} for WebFlux applications, picked automatically by
+ * {@link AsyncProfilerConfiguration} when the application is a reactive one.
+ * <p>
+ * Serves the same <i>/actuator/profiler</i> commands, timed captures, recordings, live streams and sessions. Timed captures wait
+ * with {@link Mono#delay}, so no thread is held for the duration of profiling, a client disconnecting during the
+ * capture stops it. AsyncProfiler itself is blocking, so its commands run on the bounded elastic scheduler. Output
+ * files are streamed as {@code DataBuffer}s, or sent with zero-copy file transfer when the server supports it, and
+ * temporary files are deleted once the response has been written, failed or been cancelled.
+ * <p>
+ * Request-scoped profiling relies on a servlet filter and is not available here. Responses are not compressed by
+ * the endpoint, server compression ({@code server.compression.enabled}) applies instead.
+ */
+@RestControllerEndpoint(id = "profiler")
+public class ReactiveAsyncProfilerWebEndpoint implements DisposableBean {
+
+    private static final Log log = LogFactory.getLog(ReactiveAsyncProfilerWebEndpoint.class);
+
+    private static final String OPERATION_START = ProfilerCommands.OPERATION_START;
+    private static final String OPERATION_RESUME = ProfilerCommands.OPERATION_RESUME;
+    private static final String OPERATION_STOP = ProfilerCommands.OPERATION_STOP;
+
+    /**
+     * Grace period given to the profiler to stop and write its output after a timed capture has elapsed.
+     */
+    private static final long STOP_TIMEOUT_MILLIS = 30_000L;
+
+    /**
+     * Size of buffers output files are read into when zero-copy transfer is not available.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+
+    private final ProfilingSessionManager sessions;
+
+    private final RecordingStore recordings;
+
+    private final DownloadStore downloads;
+
+    private final FleetProfiler fleetProfiler;
+
+    private final FlameGraphWriter flameGraphWriter = new FlameGraphWriter();
+
+    private final HeatmapWriter heatmapWriter = new HeatmapWriter();
+
+    public ReactiveAsyncProfilerWebEndpoint(final ProfilingSessionManager sessions,
+                                            final AsyncProfilerProperties properties) {
+        this.sessions = sessions;
+        this.recordings = new RecordingStore(properties.getRecordings(), flameGraphWriter);
+        this.downloads = new DownloadStore(properties.getDownloads());
+        this.fleetProfiler = FleetProfiler.of(properties.getFleet());
+    }
+
+    @GetMapping("{operation:^(?!dump|stop).+}")
+    public Mono<ResponseEntity<String>> executeCommand(@PathVariable String operation, ServerWebExchange exchange) {
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        if (log.isDebugEnabled()) {
+            log.debug("operation: " + operation);
+            log.debug("parameters: " + parameters);
+        }
+        if (isRequestScoped(parameters)) {
+            return Mono.just(requestScopedNotSupported());
+        }
+        final long waitMillis;
+        try {
+            waitMillis = getWaitMillis(parameters);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().body(e.getMessage()));
+        }
+        final String command = ProfilerCommands.getCommand(operation, toParameterMap(parameters));
+        log.info("command: " + command);
+
+        if (OPERATION_START.equals(operation) || OPERATION_RESUME.equals(operation)) {
+            return start(exchange, command, waitMillis, 0L)
+                    .map(session -> ResponseEntity.ok().header(AsyncProfilerWebEndpoint.HEADER_SESSION,
+                            session.getId()).body(session.getStartOutput()))
+                    .onErrorResume(e -> Mono.just(failure(operation, e, HttpStatus.BAD_REQUEST)));
+        }
+        return blocking(() -> sessions.execute(command))
+                .doOnNext(log::info)
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> Mono.just(failure(operation, e, HttpStatus.BAD_REQUEST)));
+    }
+
+    @GetMapping("{operation:dump|stop}")
+    public Mono<Void> collectFlameGraph(@PathVariable String operation,
+                                        @RequestParam(value = "file", required = false) String fileName,
+                                        ServerWebExchange exchange) {
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        return collect(operation, fileName, parameters, parameters.getFirst(ProfilerCommands.PARAMETER_SESSION),
+                exchange.getResponse());
+    }
+
+    /**
+     * Profiles for given duration and downloads the result, same as
+     * {@link AsyncProfilerWebEndpoint#executeAndCollectFlamegraph}.
+     */
+    @GetMapping
+    public Mono<Void> executeAndCollectFlamegraph(
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            @RequestParam(value = "file", required = false) String fileName, ServerWebExchange exchange) {
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        ServerHttpResponse response = exchange.getResponse();
+        final long waitMillis;
+        try {
+            waitMillis = getWaitMillis(parameters);
+        } catch (IllegalArgumentException e) {
+            return writeText(response, HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (fileName == null && ProfilerCommands.getTextFormat(null, name -> getParameter(parameters, name)) == null
+                && ProfilingSession.eventOf(ProfilerCommands.getCommand(OPERATION_START, toParameterMap(parameters)))
+                .contains("+")) {
+            // AsyncProfiler renders a single event only, several are recorded into JFR and rendered per event, then
+            // the client is redirected to their index, as this response is written without message converters
+            boolean total = parameters.containsKey("total");
+            String path = exchange.getRequest().getPath().value().replaceAll("/+$", "");
+            return recordCapture(duration, waitMillis, exchange)
+                    .flatMap(recording -> blocking(() -> recordings.renderEvents(recording, total)))
+                    .flatMap(index -> {
+                        response.setStatusCode(HttpStatus.SEE_OTHER);
+                        response.getHeaders().setLocation(URI.create(path + "/recordings/"
+                                + index.getRecording().getId() + "/events" + (total ? "?total" : "")));
+                        return response.setComplete();
+                    })
+                    .onErrorResume(e -> writeFailure(response, "recording", e, HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+        return timedCapture(duration, waitMillis, exchange, "",
+                session -> collect(OPERATION_STOP, fileName, parameters, session.getId(), response))
+                .onErrorResume(e -> writeFailure(response, "timed capture", e, HttpStatus.INTERNAL_SERVER_ERROR));
+    }
+
+    /**
+     * Profiles for given duration recording JFR, see {@link AsyncProfilerWebEndpoint#record}.
+     */
+    @PostMapping("recordings")
+    public Mono<ResponseEntity<?>> record(
+            @RequestParam(value = "duration", required = false, defaultValue = "5") long duration,
+            ServerWebExchange exchange) {
+        final long waitMillis;
+        try {
+            waitMillis = getWaitMillis(exchange.getRequest().getQueryParams());
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().body(e.getMessage()));
+        }
+        return recordCapture(duration, waitMillis, exchange)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .onErrorResume(e -> Mono.just(failure("recording", e, HttpStatus.INTERNAL_SERVER_ERROR)));
+    }
+
+    private Mono<RecordingStore.Recording> recordCapture(long duration, long waitMillis, ServerWebExchange exchange) {
+        return blocking(recordings::prepare).flatMap(recording -> timedCapture(duration, waitMillis, exchange,
+                ",jfr,file=" + recording.getFile().getAbsolutePath(), session -> blocking(() -> {
+                    log.info(sessions.stop(session.getId(), OPERATION_STOP));
+                    sessions.getMetrics().outputProduced(RecordingStore.FORMAT_JFR, recording.getSize());
+                    return recordings.add(recording, session);
+                }))
+                .doOnError(e -> delete(recording.getFile()))
+                .doOnCancel(() -> delete(recording.getFile())));
+    }
+
+    /**
+     * Lists stored JFR recordings, most recent first.
+     */
+    @GetMapping("recordings")
+    public List<RecordingStore.Recording> recordings() {
+        return recordings.list();
+    }
+
+    /**
+     * Downloads a stored recording as JFR, or converted into one of {@link RecordingStore#FORMATS}, see
+     * {@link AsyncProfilerWebEndpoint#recording}.
+     */
+    @GetMapping("recordings/{id}")
+    public Mono<Void> recording(@PathVariable String id,
+                                @RequestParam(value = ProfilerCommands.PARAMETER_FORMAT, required = false,
+                                        defaultValue = RecordingStore.FORMAT_HTML) String format,
+                                @RequestParam(value = "event", required = false) String event,
+                                ServerWebExchange exchange) {
+        ServerHttpResponse response = exchange.getResponse();
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            response.setStatusCode(HttpStatus.NOT_FOUND);
+            return response.setComplete();
+        }
+        String renderedFormat = format.toLowerCase(Locale.ROOT);
+        if (RecordingStore.FORMAT_JFR.equals(renderedFormat)) {
+            return write(response, Output.file(MediaType.APPLICATION_OCTET_STREAM,
+                    "async-profiler-" + id + ProfilerCommands.FILE_EXTENSION_JFR, recording.getFile(), false));
+        }
+        if (!RecordingStore.FORMATS.contains(renderedFormat)) {
+            return writeText(response, HttpStatus.BAD_REQUEST, "Unsupported format " + format);
+        }
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        boolean total = parameters.containsKey(ProfilerCommands.PARAMETER_TOTAL);
+        final Instant from;
+        final Instant to;
+        try {
+            from = parseInstant(parameters.getFirst("from"));
+            to = parseInstant(parameters.getFirst("to"));
+        } catch (DateTimeParseException e) {
+            return writeText(response, HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return blocking(() -> recordings.render(recording, renderedFormat, event, total, from, to))
+                .flatMap(artifact -> {
+                    MediaType contentType = RecordingStore.FORMAT_HTML.equals(renderedFormat) ? MediaType.TEXT_HTML
+                            : RecordingStore.FORMAT_COLLAPSED.equals(renderedFormat) ? TEXT_PLAIN_UTF8
+                            : ProfilerCommands.APPLICATION_GZIP;
+                    String fileName = RecordingStore.FORMAT_PPROF.equals(renderedFormat)
+                            ? "async-profiler-" + id + PprofWriter.FILE_SUFFIX : null;
+                    if (artifact.getBytes() != null) {
+                        return write(response, Output.bytes(contentType, fileName, artifact.getBytes()));
+                    }
+                    // an artifact too large to be cached is rendered for this download only
+                    return write(response, Output.file(contentType, fileName, artifact.getFile(),
+                            !artifact.isCached()));
+                })
+                .onErrorResume(e -> writeFailure(response, "recording " + id, e, HttpStatus.INTERNAL_SERVER_ERROR));
+    }
+
+    /**
+     * Renders flame graphs of all events of a stored recording in a single pass and lists them, see
+     * {@link AsyncProfilerWebEndpoint#events}.
+     */
+    @GetMapping("recordings/{id}/events")
+    public Mono<ResponseEntity<Object>> events(@PathVariable String id, ServerWebExchange exchange) {
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            return Mono.just(ResponseEntity.notFound().build());
+        }
+        boolean total = exchange.getRequest().getQueryParams().containsKey("total");
+        return blocking(() -> ResponseEntity.ok((Object) recordings.renderEvents(recording, total)))
+                .onErrorResume(e -> Mono.just(ResponseEntity.internalServerError()
+                        .body(failure("recording " + id, e, HttpStatus.INTERNAL_SERVER_ERROR).getBody())));
+    }
+
+    /**
+     * Renders a heatmap of samples of a stored recording per time bucket and thread, see
+     * {@link AsyncProfilerWebEndpoint#heatmap}.
+     */
+    @GetMapping("recordings/{id}/heatmap")
+    public Mono<ResponseEntity<Object>> heatmap(@PathVariable String id,
+                                                @RequestParam(value = ProfilerCommands.PARAMETER_FORMAT,
+                                                        required = false, defaultValue = RecordingStore.FORMAT_HTML)
+                                                        String format,
+                                                @RequestParam(value = "event", required = false) String event,
+                                                @RequestParam(value = "bucket", required = false,
+                                                        defaultValue = "100ms") String bucket,
+                                                @RequestParam(value = ProfilerCommands.PARAMETER_LIMIT,
+                                                        required = false, defaultValue = "20") int limit) {
+        RecordingStore.Recording recording = recordings.get(id);
+        if (recording == null) {
+            return Mono.just(ResponseEntity.notFound().build());
+        }
+        boolean json = "json".equalsIgnoreCase(format);
+        if (!json && !RecordingStore.FORMAT_HTML.equalsIgnoreCase(format)) {
+            return Mono.just(ResponseEntity.badRequest().body("Unsupported format " + format));
+        }
+        final long bucketNanos;
+        try {
+            bucketNanos = ProfilerCommands.getBucketNanos(bucket);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().body("Invalid bucket " + bucket));
+        }
+        return blocking(() -> {
+            TimelineIndex.Heatmap heatmap = recordings.heatmap(recording, event, bucketNanos, limit);
+            if (json) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body((Object) heatmap);
+            }
+            // a heatmap holds at most a few hundred thousand counts, small enough to be written in memory
+            StringWriter html = new StringWriter();
+            heatmapWriter.write(heatmap, heatmap.getEvent() + " " + recording.getStartTime(),
+                    "../" + id + "?format=html&event=" + heatmap.getEvent(), html);
+            return ResponseEntity.ok().contentType(MediaType.TEXT_HTML).body((Object) html.toString());
+        }).onErrorResume(e -> Mono.just(ResponseEntity.internalServerError()
+                .body(failure("recording " + id, e, HttpStatus.INTERNAL_SERVER_ERROR).getBody())));
+    }
+
+    /**
+     * Profiles all configured peer instances at once and merges their profiles, see
+     * {@link AsyncProfilerWebEndpoint#fleet}.
+     */
+    @GetMapping("fleet")
+    public Mono<ResponseEntity<Object>> fleet(
+            @RequestParam(value = ProfilerCommands.PARAMETER_DURATION, required = false, defaultValue = "5")
+                    long duration,
+            @RequestParam(value = ProfilerCommands.PARAMETER_FORMAT, required = false,
+                    defaultValue = RecordingStore.FORMAT_HTML) String format,
+            @RequestParam(value = ProfilerCommands.PARAMETER_LIMIT, required = false, defaultValue = "20") int limit,
+            @RequestParam(value = ProfilerCommands.PARAMETER_SORT, required = false, defaultValue = "self")
+                    String sort,
+            ServerWebExchange exchange) {
+        if (fleetProfiler == null) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_FOUND).body("Fleet profiling is not configured"));
+        }
+        String renderedFormat = format.toLowerCase(Locale.ROOT);
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        String event = parameters.getFirst("event") != null ? parameters.getFirst("event") : "cpu";
+        return Mono.fromFuture(fleetProfiler.profile(duration, toParameterMap(parameters)))
+                .timeout(Duration.ofMillis(fleetProfiler.getTimeoutMillis(duration)))
+                .map(fleet -> {
+                    ResponseEntity.BodyBuilder builder = ResponseEntity
+                            .status(fleet.getSucceeded() > 0 ? HttpStatus.OK : HttpStatus.BAD_GATEWAY)
+                            .header(AsyncProfilerWebEndpoint.HEADER_PEERS,
+                                    fleet.getSucceeded() + "/" + fleet.getPeers().size());
+                    if (fleet.getSucceeded() == 0) {
+                        return builder.body((Object) fleet);
+                    }
+                    if (ProfilerCommands.FORMAT_SUMMARY.equals(renderedFormat) || "json".equals(renderedFormat)) {
+                        return builder.body((Object) FleetProfiler.Summary.of(fleet, limit,
+                                !"total".equalsIgnoreCase(sort)));
+                    }
+                    StringWriter out = new StringWriter();
+                    try {
+                        if (RecordingStore.FORMAT_COLLAPSED.equals(renderedFormat)) {
+                            fleet.getTree().writeCollapsed(out, 0);
+                            return builder.contentType(TEXT_PLAIN_UTF8).body((Object) out.toString());
+                        }
+                        flameGraphWriter.write(fleet.getTree(), 0, event + " on " + fleet.getSucceeded() + " of "
+                                + fleet.getPeers().size() + " instances", out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return builder.contentType(MediaType.TEXT_HTML).body((Object) out.toString());
+                })
+                .onErrorResume(TimeoutException.class, e -> Mono.just(ResponseEntity
+                        .status(HttpStatus.GATEWAY_TIMEOUT).body("Timed out waiting for peers")));
+    }
+
+    /**
+     * Lists profiler output kept for download, most recent first.
+     */
+    @GetMapping("downloads")
+    public List<DownloadStore.Download> downloads() {
+        return downloads.list();
+    }
+
+    /**
+     * Downloads kept profiler output again, whole or a single byte range of it, see
+     * {@link AsyncProfilerWebEndpoint#download}.
+     */
+    @GetMapping("downloads/{id}")
+    public Mono<Void> download(@PathVariable String id, ServerWebExchange exchange) {
+        ServerHttpResponse response = exchange.getResponse();
+        DownloadStore.Download download = downloads.get(id);
+        if (download == null) {
+            response.setStatusCode(HttpStatus.NOT_FOUND);
+            return response.setComplete();
+        }
+        HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        DownloadStore.Range range = download.range(requestHeaders.getFirst(HttpHeaders.RANGE),
+                requestHeaders.getFirst(HttpHeaders.IF_RANGE));
+        HttpHeaders headers = response.getHeaders();
+        if (range != null && !range.isSatisfiable()) {
+            response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            headers.set(HttpHeaders.CONTENT_RANGE, range.toContentRange(download));
+            return response.setComplete();
+        }
+        if (range != null) {
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+            headers.set(HttpHeaders.CONTENT_RANGE, range.toContentRange(download));
+        }
+        headers.setContentType(MediaType.parseMediaType(download.getContentType()));
+        headers.setETag(download.getETag());
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setContentDisposition(ContentDisposition.attachment().filename(download.getFileName()).build());
+        return writeFile(response, download.getFile(), range == null ? 0L : range.getFirst(),
+                range == null ? download.getSize() : range.getLength());
+    }
+
+    /**
+     * Streams the active session as Server-Sent Events, each event carrying only what was sampled since the previous
+     * one, see {@link LiveProfile}. Ticks the client has no demand for are dropped, the stream completes once the
+     * session finishes.
+     *
+     * @param interval time between snapshots, e.g. "5s", at least a second, and longer for large profiles, as every
+     *                 snapshot dumps the whole profile collected so far
+     * @param format "summary" for the hottest frames, collapsed stacks otherwise
+     * @param session session expected to be active, optional
+     */
+    @GetMapping(path = "live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<Flux<ServerSentEvent<Object>>> live(
+            @RequestParam(value = ProfilerCommands.PARAMETER_INTERVAL, required = false, defaultValue = "5s")
+                    String interval,
+            @RequestParam(value = ProfilerCommands.PARAMETER_FORMAT, required = false) String format,
+            @RequestParam(value = ProfilerCommands.PARAMETER_LIMIT, required = false, defaultValue = "20") int limit,
+            @RequestParam(value = ProfilerCommands.PARAMETER_SORT, required = false, defaultValue = "self")
+                    String sort,
+            @RequestParam(value = ProfilerCommands.PARAMETER_SESSION, required = false) String session) {
+        ProfilingSession active = sessions.getActiveSession();
+        if (active == null || (session != null && !session.equals(active.getId()))) {
+            return failedStream(HttpStatus.CONFLICT, session != null ? "Session " + session + " is not active"
+                    : "No active profiling session");
+        }
+        long intervalMillis;
+        try {
+            intervalMillis = ProfilerCommands.getIntervalMillis(interval);
+        } catch (IllegalArgumentException e) {
+            return failedStream(HttpStatus.BAD_REQUEST, "Invalid interval: " + interval);
+        }
+        LiveProfile live = new LiveProfile(active, ProfilerCommands.FORMAT_SUMMARY.equalsIgnoreCase(format), limit,
+                !"total".equalsIgnoreCase(sort));
+        Flux<ServerSentEvent<Object>> events = Flux.interval(Duration.ofMillis(intervalMillis))
+                .onBackpressureDrop(tick -> live.drop())
+                .takeWhile(tick -> live.isActive())
+                .filter(tick -> live.isDue())
+                .concatMap(tick -> blocking(() -> sessions.dump("dump,collapsed"))
+                        // finished while dumping, the output is not of this session
+                        .filter(collapsed -> live.isActive())
+                        .map(live::next), 1)
+                .map(snapshot -> ServerSentEvent.builder((Object) snapshot)
+                        .id(Long.toString(snapshot.getSequence())).event("profile").build())
+                .onErrorResume(e -> {
+                    log.warn("Live profile stream of " + live.getSession() + " failed: " + e.getMessage());
+                    return Mono.just(ServerSentEvent.builder((Object) e.getMessage()).event("error").build());
+                });
+        return ResponseEntity.ok().header(AsyncProfilerWebEndpoint.HEADER_SESSION, active.getId()).body(events);
+    }
+
+    /**
+     * Lists active and recently finished profiling sessions.
+     */
+    @GetMapping("sessions")
+    public List<ProfilingSession> sessions() {
+        return sessions.getSessions();
+    }
+
+    @GetMapping("sessions/{id}")
+    public ResponseEntity<ProfilingSession> session(@PathVariable String id) {
+        ProfilingSession session = sessions.getSession(id);
+        return session != null ? ResponseEntity.ok(session) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Stops given profiling session, discarding collected data.
+     */
+    @DeleteMapping("sessions/{id}")
+    public Mono<ResponseEntity<String>> stopSession(@PathVariable String id) {
+        if (sessions.getSession(id) == null) {
+            return Mono.just(ResponseEntity.notFound().build());
+        }
+        return blocking(() -> sessions.stop(id, OPERATION_STOP))
+                .map(ResponseEntity::ok)
+                .onErrorResume(e -> Mono.just(failure("stop session " + id, e, HttpStatus.INTERNAL_SERVER_ERROR)));
+    }
+
+    /**
+     * Deletes stored recordings and kept downloads.
+     */
+    @Override
+    public void destroy() {
+        if (fleetProfiler != null) {
+            fleetProfiler.destroy();
+        }
+        recordings.destroy();
+        downloads.destroy();
+    }
+
+    /**
+     * Starts profiling, waits for given duration without holding a thread and then runs given collector. Profiling
+     * is stopped if the subscriber cancels before the duration has elapsed, e.g. when the client disconnects.
+     *
+     * @param waitMillis time to wait for a conflicting session to finish
+     * @param options appended to the start command, e.g. output file of a JFR recording
+     */
+    private <T> Mono<T> timedCapture(long duration, long waitMillis, ServerWebExchange exchange, String options,
+                                     Function<ProfilingSession, Mono<T>> collector) {
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        if (isRequestScoped(parameters)) {
+            return Mono.error(new IllegalArgumentException(requestScopedNotSupported().getBody()));
+        }
+        final long durationMillis = duration * 1000L;
+        final String command = ProfilerCommands.getCommand(OPERATION_START, toParameterMap(parameters)) + options;
+        if (log.isInfoEnabled()) {
+            log.info("duration: " + durationMillis + ", command: " + command);
+        }
+        return start(exchange, command, waitMillis, durationMillis + STOP_TIMEOUT_MILLIS).flatMap(session -> {
+            AtomicBoolean collecting = new AtomicBoolean();
+            return Mono.delay(Duration.ofMillis(durationMillis))
+                    .then(Mono.defer(() -> {
+                        collecting.set(true);
+                        return collector.apply(session);
+                    }))
+                    .doOnCancel(() -> {
+                        if (!collecting.get()) {
+                            log.warn("Profiling request cancelled, stopping capture " + session.getId());
+                            stopQuietly(session);
+                        }
+                    });
+        });
+    }
+
+    private Mono<ProfilingSession> start(ServerWebExchange exchange, String command, long waitMillis,
+                                         long ttlMillis) {
+        MultiValueMap<String, String> parameters = exchange.getRequest().getQueryParams();
+        String owner = parameters.getFirst(ProfilerCommands.PARAMETER_OWNER);
+        Mono<String> resolvedOwner = owner != null ? Mono.just(owner)
+                : exchange.getPrincipal().map(Principal::getName).defaultIfEmpty("anonymous");
+        return resolvedOwner
+                .flatMap(name -> blocking(() -> sessions.start(name, command, waitMillis, ttlMillis)))
+                .doOnNext(session -> log.info(session.getStartOutput()));
+    }
+
+    private void stopQuietly(ProfilingSession session) {
+        Schedulers.boundedElastic().schedule(() -> {
+            try {
+                log.info(sessions.stop(session.getId(), OPERATION_STOP));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to stop cancelled AsyncProfiler capture: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Dumps or stops profiling and writes its output as text, HTML, JFR or pprof into the response.
+     */
+    private Mono<Void> collect(String operation, String fileName, MultiValueMap<String, String> parameters,
+                               String sessionId, ServerHttpResponse response) {
+        boolean total = parameters.containsKey(ProfilerCommands.PARAMETER_TOTAL);
+        String textFormat = ProfilerCommands.getTextFormat(fileName, name -> getParameter(parameters, name));
+        return blocking(() -> produce(operation, fileName, total, textFormat, sessionId))
+                .flatMap(output -> write(response, output))
+                .onErrorResume(e -> writeFailure(response, operation, e, HttpStatus.INTERNAL_SERVER_ERROR));
+    }
+
+    private Output produce(String operation, String fileName, boolean total, String textFormat, String sessionId)
+            throws IOException {
+        if (textFormat != null) {
+            String command = operation + (total ? ",total" : "") + "," + textFormat;
+            log.info("command: " + command);
+            byte[] bytes = execute(operation, sessionId, command).getBytes(StandardCharsets.UTF_8);
+            int equals = textFormat.indexOf('=');
+            sessions.getMetrics().outputProduced(equals < 0 ? textFormat : textFormat.substring(0, equals),
+                    bytes.length);
+            return Output.bytes(TEXT_PLAIN_UTF8, null, bytes);
+        }
+        if (ProfilerCommands.isPprof(fileName)) {
+            return producePprof(operation, total, sessionId);
+        }
+        String fileExtension = ProfilerCommands.FILE_EXTENSION_JFR.equalsIgnoreCase(fileName)
+                ? ProfilerCommands.FILE_EXTENSION_JFR : ProfilerCommands.FILE_EXTENSION_HTML;
+        File file = downloads.createFile("async-profiler-", fileExtension);
+        try {
+            String command = operation + (total ? ",total" : "") + ",file=" + file.getAbsolutePath();
+            log.info("command: " + command);
+            log.info(execute(operation, sessionId, command));
+            sessions.getMetrics().outputProduced(fileExtension.substring(1), file.length());
+            MediaType contentType = ProfilerCommands.FILE_EXTENSION_HTML.equals(fileExtension)
+                    ? MediaType.TEXT_HTML : MediaType.APPLICATION_OCTET_STREAM;
+            DownloadStore.Download download = downloads.keep(file, file.getName(), contentType.toString());
+            if (download == null) {
+                return Output.file(contentType, null, file, true);
+            }
+            return Output.file(contentType, null, file, false).kept(download.getId());
+        } catch (IOException | RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    /**
+     * pprof profile is converted out of collapsed output into a temporary file, deleted once downloaded.
+     */
+    private Output producePprof(String operation, boolean total, String sessionId) throws IOException {
+        String command = operation + (total ? ",total" : "") + ",collapsed";
+        log.info("command: " + command);
+        ProfilingSession session = sessionId != null ? sessions.getSession(sessionId) : sessions.getActiveSession();
+        CallTree tree = CallTree.parseCollapsed(execute(operation, sessionId, command));
+        Instant startTime = session != null ? session.getStartTime() : null;
+        long timeNanos = startTime != null
+                ? TimeUnit.SECONDS.toNanos(startTime.getEpochSecond()) + startTime.getNano() : 0L;
+        long durationNanos = startTime != null ? Duration.between(startTime, Instant.now()).toNanos() : 0L;
+        File file = File.createTempFile("async-profiler-", PprofWriter.FILE_SUFFIX);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+            PprofWriter.write(tree, 0, session != null ? session.getEvent() : null, total, timeNanos, durationNanos,
+                    out);
+        } catch (IOException | RuntimeException e) {
+            delete(file);
+            throw e;
+        }
+        sessions.getMetrics().outputProduced(RecordingStore.FORMAT_PPROF, file.length());
+        return Output.file(ProfilerCommands.APPLICATION_GZIP,
+                "async-profiler-" + System.currentTimeMillis() + PprofWriter.FILE_SUFFIX, file, true);
+    }
+
+    private String execute(String operation, String sessionId, String command) throws IOException {
+        return OPERATION_STOP.equals(operation) ? sessions.stop(sessionId, command) : sessions.dump(command);
+    }
+
+    /**
+     * Writes given output into the response, a file zero-copy if the server supports it. Temporary file is deleted
+     * however writing ends.
+     */
+    private static Mono<Void> write(ServerHttpResponse response, Output output) {
+        HttpHeaders headers = response.getHeaders();
+        headers.setContentType(output.contentType);
+        if (output.fileName != null) {
+            headers.setContentDisposition(ContentDisposition.attachment().filename(output.fileName).build());
+        }
+        if (output.downloadId != null) {
+            headers.set(AsyncProfilerWebEndpoint.HEADER_DOWNLOAD, output.downloadId);
+        }
+        if (output.bytes != null) {
+            headers.setContentLength(output.bytes.length);
+            return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(output.bytes)));
+        }
+        File file = output.file;
+        Mono<Void> body = writeFile(response, file, 0L, file.length());
+        return output.temporary ? body.doFinally(signal -> delete(file)) : body;
+    }
+
+    /**
+     * Writes given part of a file, zero-copy if the server supports it, otherwise read at explicit positions into
+     * buffers, so that concurrent ranged downloads of the same file do not interfere.
+     */
+    private static Mono<Void> writeFile(ServerHttpResponse response, File file, long position, long count) {
+        response.getHeaders().setContentLength(count);
+        if (response instanceof ZeroCopyHttpOutputMessage) {
+            return ((ZeroCopyHttpOutputMessage) response).writeWith(file, position, count);
+        }
+        return response.writeWith(DataBufferUtils.takeUntilByteCount(DataBufferUtils.readAsynchronousFileChannel(
+                () -> AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ), position,
+                response.bufferFactory(), BUFFER_SIZE), count));
+    }
+
+    private static Mono<Void> writeFailure(ServerHttpResponse response, String operation, Throwable e,
+                                           HttpStatus status) {
+        if (response.isCommitted()) {
+            return Mono.error(e);
+        }
+        ResponseEntity<String> failure = failure(operation, e, status);
+        return writeText(response, failure.getStatusCode(), failure.getBody());
+    }
+
+    private static Mono<Void> writeText(ServerHttpResponse response, HttpStatus status, String text) {
+        response.setStatusCode(status);
+        return write(response, Output.bytes(TEXT_PLAIN_UTF8, null,
+                (text != null ? text : "").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Maps a failure to the same status the servlet endpoint responds with.
+     *
+     * @param status status of unexpected failures
+     */
+    private static ResponseEntity<String> failure(String operation, Throwable e, HttpStatus status) {
+        if (e instanceof ProfilingSessionConflictException) {
+            log.warn("Failed to invoke AsyncProfiler " + operation + ": " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        }
+        if (e instanceof InterruptedException) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+        }
+        log.error("Failed to invoke AsyncProfiler " + operation, e);
+        return ResponseEntity.status(status).body(e.getMessage());
+    }
+
+    /**
+     * @return stream of a single error event, as a stream request cannot be answered with a plain body
+     */
+    private static ResponseEntity<Flux<ServerSentEvent<Object>>> failedStream(HttpStatus status, String message) {
+        return ResponseEntity.status(status).body(Flux.just(ServerSentEvent.builder((Object) message)
+                .event("error").build()));
+    }
+
+    private static ResponseEntity<String> requestScopedNotSupported() {
+        return ResponseEntity.badRequest().body("Request-scoped profiling is supported in servlet applications only");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the wait cannot be parsed
+     */
+    private static long getWaitMillis(MultiValueMap<String, String> parameters) {
+        return ProfilerCommands.getWaitMillis(parameters.getFirst(ProfilerCommands.PARAMETER_WAIT));
+    }
+
+    private static boolean isRequestScoped(MultiValueMap<String, String> parameters) {
+        return parameters.containsKey(ProfilerCommands.PARAMETER_URI)
+                || parameters.containsKey(ProfilerCommands.PARAMETER_HEADER)
+                || parameters.containsKey(ProfilerCommands.PARAMETER_LATENCY);
+    }
+
+    /**
+     * Runs a blocking AsyncProfiler call off the event loop.
+     */
+    private static <T> Mono<T> blocking(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * @return first value of given parameter, empty for a flag without value such as <i>collapsed</i>, {@code null}
+     * if it is missing
+     */
+    private static String getParameter(MultiValueMap<String, String> parameters, String name) {
+        if (!parameters.containsKey(name)) {
+            return null;
+        }
+        String value = parameters.getFirst(name);
+        return value != null ? value : "";
+    }
+
+    private static Instant parseInstant(String value) {
+        return value != null ? ProfilerCommands.parseInstant(value) : null;
+    }
+
+    private static Map<String, String[]> toParameterMap(MultiValueMap<String, String> parameters) {
+        Map<String, String[]> parameterMap = new LinkedHashMap<>();
+        parameters.forEach((key, values) -> parameterMap.put(key, values.toArray(new String[0])));
+        return parameterMap;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Profiler output about to be written into the response, held either in memory or in a file.
+     */
+    private static final class Output {
+        private final MediaType contentType;
+        private final String fileName;
+        private final byte[] bytes;
+        private final File file;
+        private final boolean temporary;
+        private String downloadId;
+
+        private Output(MediaType contentType, String fileName, byte[] bytes, File file, boolean temporary) {
+            this.contentType = contentType;
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.file = file;
+            this.temporary = temporary;
+        }
+
+        /**
+         * @param fileName name of the downloaded attachment, {@code null} to display inline
+         */
+        static Output bytes(MediaType contentType, String fileName, byte[] bytes) {
+            return new Output(contentType, fileName, bytes, null, false);
+        }
+
+        /**
+         * @param temporary whether the file should be deleted once written
+         */
+        static Output file(MediaType contentType, String fileName, File file, boolean temporary) {
+            return new Output(contentType, fileName, null, file, temporary);
+        }
+
+        /**
+         * @param downloadId id the output has been kept under for later downloads
+         */
+        Output kept(String downloadId) {
+            this.downloadId = downloadId;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a bounded number of JFR recordings on disk, so that a single capture can be downloaded in several shapes:
+ * as JFR for JMC, or converted on demand into a flame graph or collapsed stacks of any of the recorded events.
+ * Conversions go through {@link JfrConverter} without profiling again, rendered artifacts are kept in an
+ * {@link ArtifactCache}, so repeated downloads of the same view cost nothing. The oldest recording is deleted first.
+ * <p>
+ * A {@link TimelineIndex} of a recording is built on first request for a heatmap, views of a time range are converted
+ * out of the JFR chunks overlapping that range only. Flame graphs of all events of a multi-event recording can be
+ * rendered at once, out of a single pass over the recording.
+ */
+public final class RecordingStore {
+
+    private static final Log log = LogFactory.getLog(RecordingStore.class);
+
+    static final String FORMAT_JFR = "jfr";
+    static final String FORMAT_HTML = "html";
+    static final String FORMAT_COLLAPSED = "collapsed";
+    static final String FORMAT_PPROF = "pprof";
+
+    /**
+     * Formats recordings are converted into.
+     */
+    static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList(FORMAT_HTML, FORMAT_COLLAPSED,
+            FORMAT_PPROF));
+
+    private static final String RECORDING_SUFFIX = ".jfr";
+
+    private final File directory;
+    private final Map<String, Recording> recordings;
+    private final ArtifactCache cache;
+    private final FlameGraphWriter flameGraphWriter;
+
+    RecordingStore(AsyncProfilerProperties.Recordings properties, FlameGraphWriter flameGraphWriter) {
+        this.directory = properties.getDirectory() != null ? properties.getDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-recordings");
+        this.cache = new ArtifactCache(new File(directory, "cache"), properties.getCacheSize().toBytes(),
+                properties.getMemoryThreshold().toBytes());
+        this.flameGraphWriter = flameGraphWriter;
+        int maxCount = properties.getMaxCount();
+        this.recordings = new LinkedHashMap<String, Recording>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Recording> eldest) {
+                if (size() <= maxCount) {
+                    return false;
+                }
+                delete(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return new recording id and the file AsyncProfiler should record it into
+     */
+    Recording prepare() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        String id = UUID.randomUUID().toString();
+        return new Recording(id, new File(directory, id + RECORDING_SUFFIX));
+    }
+
+    /**
+     * Stores a recording once given session has been stopped and its JFR file written.
+     */
+    synchronized Recording add(Recording recording, ProfilingSession session) {
+        recording.complete(session.getOwner(), session.getEvent(), session.getStartTime(), Instant.now());
+        recordings.put(recording.getId(), recording);
+        return recording;
+    }
+
+    synchronized Recording get(String id) {
+        return recordings.get(id);
+    }
+
+    /**
+     * @return stored recordings, most recent first
+     */
+    synchronized List<Recording> list() {
+        List<Recording> result = new ArrayList<>(recordings.values());
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Converts given recording into a flame graph, collapsed stacks or pprof profile, or returns the cached result of
+     * an earlier conversion.
+     *
+     * @param format one of {@link #FORMATS}
+     * @param event event type to render, e.g. "cpu", "alloc" or "lock", the first recorded event by default
+     * @param total whether allocated bytes and lock wait time should be rendered rather than sample counts
+     */
+    ArtifactCache.Artifact render(Recording recording, String format, String event, boolean total)
+            throws IOException {
+        return render(recording, format, event, total, null, null);
+    }
+
+    /**
+     * Converts events of given recording within a time range only, reading just the JFR chunks overlapping it.
+     *
+     * @param from start of the range, the start of the recording if null
+     * @param to end of the range, exclusive, the end of the recording if null
+     * @see #render(Recording, String, String, boolean)
+     */
+    ArtifactCache.Artifact render(Recording recording, String format, String event, boolean total, Instant from,
+                                  Instant to) throws IOException {
+        int column = column(recording, event);
+        boolean range = from != null || to != null;
+        Instant startTime = from != null ? from : recording.getStartTime();
+        Instant endTime = to != null ? to : recording.getEndTime();
+        String key = recording.getId() + "/" + format + "/" + JfrConverter.EVENTS.get(column)
+                + (total ? "/total" : "")
+                + (range ? "/" + toNanos(startTime) + "-" + toNanos(endTime) : "");
+        return cache.get(key, out -> {
+            long start = System.nanoTime();
+            CallTree tree = range
+                    ? JfrConverter.convert(recording.getFile(), total, recording.chunks(), toNanos(startTime),
+                    toNanos(endTime))
+                    : JfrConverter.convert(recording.getFile(), total);
+            write(tree, column, format, total, startTime, endTime, range, out);
+            if (log.isDebugEnabled()) {
+                log.debug("Converted " + key + " in " + (System.nanoTime() - start) / 1_000_000L + " ms");
+            }
+        });
+    }
+
+    /**
+     * Renders flame graphs of all events of given recording out of a single pass over its JFR file, as converted
+     * trees hold a column per event anyway. Flame graphs are cached under the same keys as those of
+     * {@link #render(Recording, String, String, boolean)}, so they are downloaded without converting again.
+     *
+     * @param total whether allocated bytes and lock wait time should be rendered rather than sample counts
+     * @return index of the rendered flame graphs, one per recorded event, kept as long as the recording
+     */
+    Index renderEvents(Recording recording, boolean total) throws IOException {
+        synchronized (recording) {
+            Index index = recording.getIndex(total);
+            if (index == null) {
+                index = convertEvents(recording, total);
+                recording.setIndex(total, index);
+            }
+            return index;
+        }
+    }
+
+    private Index convertEvents(Recording recording, boolean total) throws IOException {
+        List<Integer> columns = new ArrayList<>();
+        for (String event : recording.getEvent().split("\\+")) {
+            int column = JfrConverter.column(event);
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        long start = System.nanoTime();
+        CallTree tree = JfrConverter.convert(recording.getFile(), total);
+        List<View> views = new ArrayList<>();
+        for (int column : columns) {
+            String event = JfrConverter.EVENTS.get(column);
+            ArtifactCache.Artifact artifact = cache.get(recording.getId() + "/" + FORMAT_HTML + "/" + event
+                            + (total ? "/total" : ""),
+                    out -> write(tree, column, FORMAT_HTML, total, recording.getStartTime(), recording.getEndTime(),
+                            false, out));
+            views.add(new View(event, tree.getTotal(column), artifact.getSize(), "recordings/" + recording.getId()
+                    + "?format=" + FORMAT_HTML + "&event=" + event + (total ? "&total" : "")));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Rendered " + columns.size() + " events of recording " + recording.getId() + " in "
+                    + (System.nanoTime() - start) / 1_000_000L + " ms");
+        }
+        return new Index(recording, views);
+    }
+
+    private void write(CallTree tree, int column, String format, boolean total, Instant startTime, Instant endTime,
+                       boolean range, OutputStream out) throws IOException {
+        String eventName = JfrConverter.EVENTS.get(column);
+        if (FORMAT_PPROF.equals(format)) {
+            PprofWriter.write(tree, column, eventName, total, toNanos(startTime),
+                    Duration.between(startTime, endTime).toNanos(), out);
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (FORMAT_COLLAPSED.equals(format)) {
+            tree.writeCollapsed(writer, column);
+        } else {
+            flameGraphWriter.write(tree, column, eventName + " " + startTime + (range ? " - " + endTime : ""),
+                    writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Counts samples of given recording per time bucket and thread, indexing the recording on first use.
+     *
+     * @param event event type to count, the first recorded event by default
+     * @param bucketNanos bucket width, rounded to a multiple of the indexed width
+     * @param limit maximum number of threads listed
+     */
+    TimelineIndex.Heatmap heatmap(Recording recording, String event, long bucketNanos, int limit)
+            throws IOException {
+        return recording.timeline().heatmap(column(recording, event), bucketNanos, limit);
+    }
+
+    private static int column(Recording recording, String event) {
+        return JfrConverter.column(event != null ? event : recording.getEvent().split("\\+")[0]);
+    }
+
+    private static long toNanos(Instant instant) {
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    /**
+     * Deletes all recordings and cached artifacts.
+     */
+    synchronized void destroy() {
+        recordings.values().forEach(this::delete);
+        recordings.clear();
+        cache.clear();
+    }
+
+    ArtifactCache getCache() {
+        return cache;
+    }
+
+    private void delete(Recording recording) {
+        cache.invalidate(recording.getId() + "/");
+        if (!recording.getFile().delete() && recording.getFile().exists()) {
+            log.warn("Failed to delete recording " + recording.getFile());
+        }
+    }
+
+    /**
+     * Per-event views of a single multi-event recording.
+     */
+    public static final class Index {
+
+        private final Recording recording;
+        private final List<View> views;
+
+        Index(Recording recording, List<View> views) {
+            this.recording = recording;
+            this.views = Collections.unmodifiableList(views);
+        }
+
+        public Recording getRecording() {
+            return recording;
+        }
+
+        public List<View> getViews() {
+            return views;
+        }
+    }
+
+    /**
+     * Flame graph of one event of a recording.
+     */
+    public static final class View {
+
+        private final String event;
+        private final long samples;
+        private final long size;
+        private final String path;
+
+        View(String event, long samples, long size, String path) {
+            this.event = event;
+            this.samples = samples;
+            this.size = size;
+            this.path = path;
+        }
+
+        /**
+         * @return "cpu", "alloc" or "lock"
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        /**
+         * @return number of samples, or allocated bytes and lock wait time if totals were requested
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return size of the rendered flame graph, in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return path of the flame graph, relative to the endpoint
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Single JFR recording.
+     */
+    public static final class Recording {
+
+        private final String id;
+        private final File file;
+        private String owner;
+        private String event;
+        private Instant startTime;
+        private Instant endTime;
+        private List<JfrChunk> chunks;
+        private TimelineIndex timeline;
+        private Index index;
+        private Index totalIndex;
+
+        Recording(String id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void complete(String owner, String event, Instant startTime, Instant endTime) {
+            this.owner = owner;
+            this.event = event;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public Instant getStartTime() {
+            return startTime;
+        }
+
+        public Instant getEndTime() {
+            return endTime;
+        }
+
+        public long getSize() {
+            return file.length();
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return headers of the JFR chunks of this recording, read on first use
+         */
+        synchronized List<JfrChunk> chunks() throws IOException {
+            if (chunks == null) {
+                chunks = timeline != null ? timeline.getChunks() : readChunks();
+            }
+            return chunks;
+        }
+
+        /**
+         * @return time-bucketed index of this recording, built on first use and kept as long as the recording
+         */
+        synchronized TimelineIndex timeline() throws IOException {
+            if (timeline == null) {
+                long start = System.nanoTime();
+                timeline = TimelineIndex.build(file);
+                chunks = timeline.getChunks();
+                if (log.isDebugEnabled()) {
+                    log.debug("Indexed recording " + id + " in " + (System.nanoTime() - start) / 1_000_000L + " ms");
+                }
+            }
+            return timeline;
+        }
+
+        synchronized Index getIndex(boolean total) {
+            return total ? totalIndex : index;
+        }
+
+        synchronized void setIndex(boolean total, Index index) {
+            if (total) {
+                this.totalIndex = index;
+            } else {
+                this.index = index;
+            }
+        }
+
+        private List<JfrChunk> readChunks() throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return JfrChunk.read(channel);
+            }
+        }
+    }
+}
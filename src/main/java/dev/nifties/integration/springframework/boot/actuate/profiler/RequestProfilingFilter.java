@@ -0,0 +1,53 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * Feeds HTTP requests to {@link RequestSelector}, so that threads serving selected ones are profiled. Registered
+ * only where {@code javax.servlet} is available, request-scoped profiling is not available on {@code jakarta.servlet}.
+ * <p>
+ * While no selection is active, requests pass through after a single volatile read, without any allocation.
+ */
+public class RequestProfilingFilter implements Filter {
+
+    private final RequestSelector selector;
+
+    RequestProfilingFilter(RequestSelector selector) {
+        this.selector = selector;
+        selector.attach();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        RequestSelector.Selection current = selector.getActiveSelection();
+        if (current == null || !(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!current.getCriteria().matches(httpRequest.getRequestURI(), httpRequest::getHeader)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        RequestSelector.InFlight inFlight = selector.enter(current);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            selector.exit(current, inFlight, route(httpRequest));
+        }
+    }
+
+    private static String route(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return request.getMethod() + " " + (pattern != null ? pattern : request.getRequestURI());
+    }
+}
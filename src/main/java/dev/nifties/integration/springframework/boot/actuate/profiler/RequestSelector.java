@@ -0,0 +1,349 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Restricts sampling of a profiling session to threads serving selected HTTP requests, using AsyncProfiler thread
+ * filter: the session is started with {@code filter} option and threads are added to the filter for as long as they
+ * serve a matching request. Requests are selected by URI pattern and/or header, optionally only once they have been
+ * running longer than a latency threshold - such threads are picked up by a sweep on the endpoint scheduler.
+ * <p>
+ * AsyncProfiler does not tag samples with request context, and samples are not attributed to routes. Per route only
+ * the number of requests and wall and CPU time of the profiled ones are accounted, which hints at the routes the
+ * profile is made of.
+ * <p>
+ * Requests are fed in by {@link RequestProfilingFilter}, kept apart so that nothing else depends on the servlet API,
+ * which is {@code javax.servlet} or {@code jakarta.servlet} depending on the Spring Boot version. Without the filter
+ * registered the selector is not {@link #isAttached() attached} and request-scoped profiling is not available.
+ */
+public final class RequestSelector {
+
+    /**
+     * Routes tracked per selection, any further ones are accounted together, as URIs of unmapped requests could
+     * otherwise grow the map without bounds.
+     */
+    private static final int MAX_ROUTES = 500;
+    private static final String OTHER_ROUTE = "other";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final AsyncProfilerLoader loader;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile Selection selection;
+    private volatile boolean attached;
+
+    RequestSelector(AsyncProfilerLoader loader, ScheduledExecutorService scheduler) {
+        this.loader = loader;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Marks the selector as fed by a filter.
+     */
+    void attach() {
+        attached = true;
+    }
+
+    /**
+     * @return whether a filter feeds requests in, otherwise selecting them would profile nothing
+     */
+    boolean isAttached() {
+        return attached;
+    }
+
+    /**
+     * Starts selecting requests for given session, which has to be started with {@code filter} option.
+     */
+    synchronized void select(ProfilingSession session, Criteria criteria) {
+        Selection previous = selection;
+        if (previous != null) {
+            previous.cancelSweep();
+        }
+        Selection next = new Selection(session, criteria);
+        if (criteria.latencyNanos > 0) {
+            long periodMillis = Math.max(1L, Math.min(100L, criteria.getLatencyMillis() / 2));
+            next.sweep = scheduler.scheduleWithFixedDelay(next::sweep, periodMillis, periodMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        selection = next;
+    }
+
+    /**
+     * @return most recent selection, active or finished, {@code null} if there has been none
+     */
+    Selection getSelection() {
+        return selection;
+    }
+
+    /**
+     * @return selection requests are matched against, {@code null} if none is active
+     */
+    Selection getActiveSelection() {
+        Selection current = selection;
+        return current != null && current.isActive() ? current : null;
+    }
+
+    /**
+     * Starts serving a request matched by given selection on the current thread, profiling it right away unless
+     * the selection has a latency threshold.
+     */
+    InFlight enter(Selection selection) {
+        InFlight inFlight = new InFlight(Thread.currentThread());
+        if (selection.criteria.latencyNanos > 0) {
+            selection.inFlight.put(inFlight.thread, inFlight);
+        } else {
+            inFlight.add();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Finishes serving a request, accounting it under given route.
+     */
+    void exit(Selection selection, InFlight inFlight, String route) {
+        selection.inFlight.remove(inFlight.thread);
+        boolean profiled = inFlight.remove();
+        selection.account(route, inFlight, profiled);
+    }
+
+    /**
+     * Which requests should be profiled.
+     */
+    public static final class Criteria {
+
+        private final Pattern uri;
+        private final String header;
+        private final String headerValue;
+        private final long latencyNanos;
+
+        /**
+         * @param uri regular expression the request URI has to match, {@code null} for any
+         * @param header header the request has to carry, optionally as "name=value", {@code null} for any
+         * @param latencyMillis time a request has to run before its thread is profiled, 0 to profile right away
+         */
+        Criteria(String uri, String header, long latencyMillis) {
+            this.uri = uri != null ? Pattern.compile(uri) : null;
+            int equals = header != null ? header.indexOf('=') : -1;
+            this.header = equals < 0 ? header : header.substring(0, equals);
+            this.headerValue = equals < 0 ? null : header.substring(equals + 1);
+            this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, latencyMillis));
+        }
+
+        /**
+         * @param headers value of a request header by name
+         */
+        boolean matches(String requestUri, UnaryOperator<String> headers) {
+            if (uri != null && !uri.matcher(requestUri).matches()) {
+                return false;
+            }
+            if (header != null) {
+                String value = headers.apply(header);
+                return value != null && (headerValue == null || headerValue.equals(value));
+            }
+            return true;
+        }
+
+        public String getUri() {
+            return uri != null ? uri.pattern() : null;
+        }
+
+        public String getHeader() {
+            return header == null ? null : headerValue == null ? header : header + "=" + headerValue;
+        }
+
+        public long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        }
+    }
+
+    /**
+     * Requests selected for a single profiling session, with their accounting per route.
+     */
+    public static final class Selection {
+
+        private final ProfilingSession session;
+        private final Criteria criteria;
+        private final Map<Thread, InFlight> inFlight = new ConcurrentHashMap<>();
+        private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+        private volatile ScheduledFuture<?> sweep;
+
+        Selection(ProfilingSession session, Criteria criteria) {
+            this.session = session;
+            this.criteria = criteria;
+        }
+
+        boolean isActive() {
+            if (session.getState() == ProfilingSession.State.ACTIVE) {
+                return true;
+            }
+            cancelSweep();
+            return false;
+        }
+
+        public String getSession() {
+            return session.getId();
+        }
+
+        public ProfilingSession.State getState() {
+            return session.getState();
+        }
+
+        public Criteria getCriteria() {
+            return criteria;
+        }
+
+        /**
+         * @return routes of selected requests, largest CPU time of profiled requests first
+         */
+        public List<RouteStats> getRoutes() {
+            List<RouteStats> result = new ArrayList<>(routes.values());
+            result.sort(Comparator.comparingLong(RouteStats::getProfiledCpuMillis).reversed());
+            return result;
+        }
+
+        /**
+         * Adds threads of requests that have been running longer than the latency threshold to the filter.
+         */
+        void sweep() {
+            if (!isActive()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (InFlight request : inFlight.values()) {
+                if (now - request.startNanos >= criteria.latencyNanos) {
+                    request.add();
+                }
+            }
+        }
+
+        void cancelSweep() {
+            ScheduledFuture<?> scheduled = sweep;
+            if (scheduled != null) {
+                sweep = null;
+                scheduled.cancel(false);
+            }
+        }
+
+        void account(String route, InFlight request, boolean profiled) {
+            RouteStats stats = routes.get(route);
+            if (stats == null) {
+                stats = routes.size() < MAX_ROUTES ? routes.computeIfAbsent(route, RouteStats::new)
+                        : routes.computeIfAbsent(OTHER_ROUTE, RouteStats::new);
+            }
+            stats.requests.increment();
+            if (profiled) {
+                stats.profiled.increment();
+                stats.wallNanos.add(System.nanoTime() - request.profiledSinceNanos);
+                if (request.startCpuNanos >= 0) {
+                    stats.cpuNanos.add(Math.max(0L, currentThreadCpuNanos() - request.startCpuNanos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread serving a selected request, added to the profiler thread filter at most once.
+     */
+    final class InFlight {
+
+        private final Thread thread;
+        private final long startNanos = System.nanoTime();
+        private long profiledSinceNanos;
+        private long startCpuNanos = -1L;
+        private boolean added;
+        private boolean done;
+
+        InFlight(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void add() {
+            if (!added && !done) {
+                added = true;
+                profiledSinceNanos = System.nanoTime();
+                loader.get().addThread(thread);
+                if (thread == Thread.currentThread()) {
+                    startCpuNanos = currentThreadCpuNanos();
+                } else if (THREADS.isThreadCpuTimeSupported()) {
+                    startCpuNanos = THREADS.getThreadCpuTime(thread.getId());
+                }
+            }
+        }
+
+        /**
+         * @return whether the thread has been profiled
+         */
+        synchronized boolean remove() {
+            done = true;
+            if (added) {
+                loader.get().removeThread(thread);
+            }
+            return added;
+        }
+    }
+
+    private static long currentThreadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1L;
+    }
+
+    /**
+     * Selected requests of a single route.
+     */
+    public static final class RouteStats {
+
+        private final String route;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder profiled = new LongAdder();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        RouteStats(String route) {
+            this.route = route;
+        }
+
+        /**
+         * @return request method and matched pattern, e.g. "GET /orders/{id}"
+         */
+        public String getRoute() {
+            return route;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * @return requests whose threads have been profiled, fewer than all with a latency threshold
+         */
+        public long getProfiled() {
+            return profiled.sum();
+        }
+
+        /**
+         * @return wall time during which threads of this route were profiled
+         */
+        public long getProfiledWallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(wallNanos.sum());
+        }
+
+        /**
+         * @return CPU time consumed by threads of this route while profiled
+         */
+        public long getProfiledCpuMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(cpuNanos.sum());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Streams a {@link Resource} to the client through {@link Resource#readableChannel()} and a single buffer of
+ * configured size, instead of leaving it to Spring MVC's {@code ResourceHttpMessageConverter}, which copies its input
+ * stream in 4 KB chunks. Servlet output streams are not channels, so content still passes through the heap once, but
+ * in as few reads and writes as the buffer allows.
+ */
+final class ResourceResponseBody implements StreamingResponseBody {
+
+    private final Resource resource;
+    private final int bufferSize;
+
+    ResourceResponseBody(Resource resource, int bufferSize) {
+        this.resource = resource;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Replaces resource body of given response with its stream, setting {@code Content-Length} the resource
+     * converter would have set. Responses with other bodies are returned as is.
+     */
+    static ResponseEntity<?> of(ResponseEntity<?> response, int bufferSize) throws IOException {
+        Object body = response.getBody();
+        if (!(body instanceof Resource)) {
+            return response;
+        }
+        Resource resource = (Resource) body;
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        if (resource.exists() && !headers.containsKey(HttpHeaders.CONTENT_LENGTH)) {
+            headers.setContentLength(resource.contentLength());
+        }
+        return ResponseEntity.status(response.getStatusCode()).headers(headers)
+                .body(new ResourceResponseBody(resource, bufferSize));
+    }
+
+    Resource getResource() {
+        return resource;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        try (ReadableByteChannel channel = resource.readableChannel()) {
+            while (channel.read(wrapped) != -1) {
+                if (wrapped.position() > 0) {
+                    out.write(buffer, 0, wrapped.position());
+                    wrapped.clear();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses profiler output while it is being streamed to the client, honouring {@code Accept-Encoding} request
+ * header. Supports gzip and, when <a href="https://github.com/luben/zstd-jni">zstd-jni</a> is on the classpath and its
+ * native library loads on this platform, zstd. Output is pumped through a single fixed size buffer, no compressed copy
+ * is ever written to disk.
+ * <p>
+ * Bodies are Spring MVC {@link StreamingResponseBody} instances, so this class is used by the servlet endpoint only.
+ */
+final class ResponseCompression {
+
+    private static final Log log = LogFactory.getLog(ResponseCompression.class);
+
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_ZSTD = "zstd";
+    static final String LEVEL_NONE = "none";
+
+    private static final boolean ZSTD_PRESENT = ClassUtils.isPresent("com.github.luben.zstd.ZstdOutputStream",
+            ResponseCompression.class.getClassLoader());
+
+    /**
+     * Probed once, as zstd-jni loads its native library only once it is first used, which would otherwise fail in
+     * the middle of a response.
+     */
+    private static final boolean ZSTD_AVAILABLE = ZSTD_PRESENT && Zstd.isLoadable();
+
+    private final AsyncProfilerProperties.Compression properties;
+    private final boolean zstdAvailable;
+
+    ResponseCompression(AsyncProfilerProperties.Compression properties) {
+        this(properties, ZSTD_AVAILABLE);
+    }
+
+    ResponseCompression(AsyncProfilerProperties.Compression properties, boolean zstdAvailable) {
+        this.properties = properties;
+        this.zstdAvailable = zstdAvailable;
+    }
+
+    /**
+     * Picks the preferred supported encoding out of {@code Accept-Encoding} header value, zstd winning ties.
+     *
+     * @return content encoding or {@code null} if response should not be compressed
+     */
+    String negotiate(String acceptEncoding) {
+        if (!properties.isEnabled() || !StringUtils.hasText(acceptEncoding)) {
+            return null;
+        }
+        String selected = null;
+        double selectedQuality = 0d;
+        for (String token : StringUtils.tokenizeToStringArray(acceptEncoding, ",")) {
+            String[] parts = StringUtils.tokenizeToStringArray(token, ";");
+            String coding = parts[0].toLowerCase(Locale.ROOT);
+            double quality = parseQuality(parts);
+            String candidate;
+            if (ENCODING_ZSTD.equals(coding) && zstdAvailable) {
+                candidate = ENCODING_ZSTD;
+            } else if (ENCODING_GZIP.equals(coding) || "x-gzip".equals(coding) || "*".equals(coding)) {
+                candidate = ENCODING_GZIP;
+            } else {
+                continue;
+            }
+            if (quality > selectedQuality || (quality == selectedQuality && ENCODING_ZSTD.equals(candidate))) {
+                selected = candidate;
+                selectedQuality = quality;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Replaces resource or streaming body of given response with its compressed stream if the client accepts a
+     * supported encoding. Responses with other bodies, gzipped content or resources smaller than configured minimum
+     * are returned as is.
+     *
+     * @param acceptEncoding {@code Accept-Encoding} header of the request
+     * @param level requested compression level, configured default if {@code null}, "none" to disable compression
+     */
+    ResponseEntity<?> compress(ResponseEntity<?> response, String acceptEncoding, String level) throws IOException {
+        Object body = response.getBody();
+        if (!(body instanceof Resource || body instanceof StreamingResponseBody)
+                || !response.getStatusCode().is2xxSuccessful() || LEVEL_NONE.equalsIgnoreCase(level)
+                || ProfilerCommands.APPLICATION_GZIP.equalsTypeAndSubtype(response.getHeaders().getContentType())) {
+            return response;
+        }
+        String encoding = negotiate(acceptEncoding);
+        if (encoding == null
+                || (body instanceof Resource && ((Resource) body).contentLength() < properties.getMinSize().toBytes())) {
+            return response;
+        }
+        AsyncProfilerProperties.Compression.Level compressionLevel = parseLevel(level);
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        headers.remove(HttpHeaders.CONTENT_LENGTH);
+        headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        return ResponseEntity.status(response.getStatusCode()).headers(headers)
+                .body(body instanceof Resource ? body((Resource) body, encoding, compressionLevel)
+                        : body((StreamingResponseBody) body, encoding, compressionLevel));
+    }
+
+    StreamingResponseBody body(StreamingResponseBody body, String encoding,
+                               AsyncProfilerProperties.Compression.Level level) {
+        int bufferSize = (int) properties.getBufferSize().toBytes();
+        return out -> {
+            try (OutputStream compressed = compressor(StreamUtils.nonClosing(out), encoding, level, bufferSize)) {
+                body.writeTo(StreamUtils.nonClosing(compressed));
+            }
+        };
+    }
+
+    StreamingResponseBody body(Resource resource, String encoding, AsyncProfilerProperties.Compression.Level level) {
+        int bufferSize = (int) properties.getBufferSize().toBytes();
+        return out -> {
+            try (InputStream in = resource.getInputStream();
+                 OutputStream compressed = compressor(StreamUtils.nonClosing(out), encoding, level, bufferSize)) {
+                byte[] buffer = new byte[bufferSize];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    compressed.write(buffer, 0, read);
+                }
+            }
+        };
+    }
+
+    private static OutputStream compressor(OutputStream out, String encoding,
+                                           AsyncProfilerProperties.Compression.Level level, int bufferSize)
+            throws IOException {
+        if (ENCODING_ZSTD.equals(encoding)) {
+            return Zstd.outputStream(out, level.getZstdLevel());
+        }
+        return new GZIPOutputStream(out, bufferSize) {
+            {
+                def.setLevel(level.getGzipLevel());
+            }
+        };
+    }
+
+    private AsyncProfilerProperties.Compression.Level parseLevel(String level) {
+        if (!StringUtils.hasText(level)) {
+            return properties.getLevel();
+        }
+        try {
+            return AsyncProfilerProperties.Compression.Level.valueOf(level.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return properties.getLevel();
+        }
+    }
+
+    private static double parseQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0d;
+                }
+            }
+        }
+        return 1d;
+    }
+
+    /**
+     * Isolates references to optional zstd-jni classes.
+     */
+    private static final class Zstd {
+        static OutputStream outputStream(OutputStream out, int level) throws IOException {
+            return new ZstdOutputStream(out, level);
+        }
+
+        /**
+         * @return whether the native library could be loaded, otherwise responses fall back to gzip
+         */
+        static boolean isLoadable() {
+            try (OutputStream out = new ZstdOutputStream(new ByteArrayOutputStream())) {
+                out.write(0);
+                return true;
+            } catch (IOException | RuntimeException | LinkageError e) {
+                log.warn("zstd-jni is present but unusable, falling back to gzip: " + e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Archives exports into S3 or S3-compatible object storage, such as MinIO or Ceph, with plain {@code PUT Object}
+ * requests signed with AWS Signature Version 4, so that no AWS SDK is needed on the classpath. Objects are stored
+ * under the configured prefix followed by the export key.
+ */
+public final class S3ProfileSink implements ProfileSink {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+    private static final int TIMEOUT_MILLIS = 30_000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AsyncProfilerProperties.S3 properties;
+    private final Clock clock;
+
+    public S3ProfileSink(AsyncProfilerProperties.S3 properties) {
+        this(properties, Clock.systemUTC());
+    }
+
+    S3ProfileSink(AsyncProfilerProperties.S3 properties, Clock clock) {
+        if (properties.getBucket() == null) {
+            throw new IllegalArgumentException("S3 bucket is not configured");
+        }
+        this.properties = properties;
+        this.clock = clock;
+    }
+
+    @Override
+    public void store(List<ProfileExport> batch) throws IOException {
+        for (ProfileExport export : batch) {
+            put(export);
+        }
+    }
+
+    private void put(ProfileExport export) throws IOException {
+        byte[] content = export.getBytes();
+        URI uri = getObjectUri(export.getKey());
+        String amzDate = AMZ_DATE.format(clock.instant());
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", uri.getPort() >= 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+        headers.put("content-type", "application/gzip");
+        headers.put("x-amz-content-sha256", hex(sha256(content)));
+        headers.put("x-amz-date", amzDate);
+        String authorization = authorization("PUT", uri.getRawPath(), "", headers, headers.get("x-amz-content-sha256"),
+                amzDate, properties.getRegion(), properties.getAccessKey(), properties.getSecretKey());
+
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(content.length);
+            // host is set by the connection itself, to the same value
+            headers.forEach((name, value) -> {
+                if (!"host".equals(name)) {
+                    connection.setRequestProperty(name, value);
+                }
+            });
+            connection.setRequestProperty(HttpHeaders.AUTHORIZATION, authorization);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(content);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Failed to store " + uri + ": HTTP " + status + " " + readError(connection));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + properties.getBucket() + (properties.getPrefix() != null
+                ? "/" + properties.getPrefix().replaceAll("^/+|/+$", "") : "");
+    }
+
+    /**
+     * @return URI of given object, the bucket either in the path or, unless path-style access is configured, in the
+     * host name
+     */
+    URI getObjectUri(String key) {
+        String endpoint = properties.getEndpoint() != null ? properties.getEndpoint().toString()
+                : "https://s3." + properties.getRegion() + ".amazonaws.com";
+        URI base = URI.create(endpoint.replaceAll("/+$", ""));
+        String prefix = properties.getPrefix() != null ? properties.getPrefix().replaceAll("^/+|/+$", "") : "";
+        String path = "/" + encodePath((prefix.isEmpty() ? "" : prefix + "/") + key);
+        if (properties.isPathStyle()) {
+            return URI.create(base + "/" + encodePath(properties.getBucket()) + path);
+        }
+        return URI.create(base.getScheme() + "://" + properties.getBucket() + "." + base.getRawAuthority()
+                + base.getRawPath() + path);
+    }
+
+    /**
+     * Signs a request with AWS Signature Version 4.
+     *
+     * @param headers lower case header names to sign, sorted
+     * @return value of the Authorization header
+     */
+    static String authorization(String method, String canonicalUri, String canonicalQuery, Map<String, String> headers,
+                                String payloadHash, String amzDate, String region, String accessKey,
+                                String secretKey) {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            signedHeaders.append(signedHeaders.length() > 0 ? ";" : "").append(header.getKey());
+        }
+        String canonicalRequest = method + '\n' + canonicalUri + '\n' + canonicalQuery + '\n' + canonicalHeaders
+                + '\n' + signedHeaders + '\n' + payloadHash;
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = ALGORITHM + '\n' + amzDate + '\n' + scope + '\n'
+                + hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        String signature = hex(hmac(key, stringToSign));
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + signature;
+    }
+
+    /**
+     * URI-encodes an object key the way S3 expects it in the canonical request: everything except unreserved
+     * characters and path separators.
+     */
+    static String encodePath(String path) {
+        StringBuilder encoded = new StringBuilder(path.length() + 16);
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                    || c == '_' || c == '~' || c == '/') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(HEX[c >> 4]))
+                        .append(Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        try (InputStream in = connection.getErrorStream()) {
+            if (in == null) {
+                return "";
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while (out.size() < 1024 && (read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -1,20 +1,25 @@
 package dev.nifties.integration.springframework.boot.actuate.profiler;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.springframework.core.io.FileSystemResource;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Originally, copied from Spring Boot's HeapDumpWebEndpoint, wraps File as a WriteableResource, deleting the underlying
- * file from file-system as soon as the resource is read and stream closed.
+ * file from file-system as soon as the resource is opened for reading.
+ * <p>
+ * File is opened with {@link StandardOpenOption#DELETE_ON_CLOSE}, which on POSIX systems unlinks it right after
+ * opening, so disk space is reclaimed as soon as the descriptor is closed - even if the client disconnects half-way
+ * through the download. The servlet endpoint streams it through {@link #readableChannel()}, see
+ * {@link ResourceResponseBody}.
  */
 final class TemporaryFileSystemResource extends FileSystemResource {
-    private final Log logger = LogFactory.getLog(getClass());
+
+    private volatile long openedLength = -1L;
 
     TemporaryFileSystemResource(File file) {
         super(file);
@@ -22,56 +27,74 @@ final class TemporaryFileSystemResource extends FileSystemResource {
 
     @Override
     public ReadableByteChannel readableChannel() throws IOException {
-        ReadableByteChannel readableChannel = super.readableChannel();
-        return new ReadableByteChannel() {
-
-            @Override
-            public boolean isOpen() {
-                return readableChannel.isOpen();
-            }
-
-            @Override
-            public void close() throws IOException {
-                closeThenDeleteFile(readableChannel);
-            }
-
-            @Override
-            public int read(ByteBuffer dst) throws IOException {
-                return readableChannel.read(dst);
-            }
-        };
+        return open();
     }
 
     @Override
     public InputStream getInputStream() throws IOException {
-        return new FilterInputStream(super.getInputStream()) {
-            @Override
-            public void close() throws IOException {
-                closeThenDeleteFile(this.in);
-            }
-        };
+        return new FileChannelInputStream(open());
     }
 
-    private void closeThenDeleteFile(Closeable closeable) throws IOException {
-        try {
-            closeable.close();
-        } finally {
-            deleteFile();
-        }
-    }
-
-    private void deleteFile() {
-        try {
-            Files.delete(getFile().toPath());
-        } catch (IOException ex) {
-            TemporaryFileSystemResource.this.logger
-                    .warn("Failed to delete temporary file '" + getFile() + "'", ex);
-        }
+    @Override
+    public long contentLength() throws IOException {
+        long length = openedLength;
+        return length >= 0 ? length : super.contentLength();
     }
 
     @Override
     public boolean isFile() {
-        // Prevent zero-copy so we can delete the file on close
+        // File is unlinked as soon as it's opened, its path must not be used to read it again
         return false;
     }
+
+    private FileChannel open() throws IOException {
+        FileChannel channel = FileChannel.open(getFile().toPath(), StandardOpenOption.READ,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        openedLength = channel.size();
+        return channel;
+    }
+
+    /**
+     * {@link InputStream} view of a {@link FileChannel}, so that the descriptor opened with
+     * {@link StandardOpenOption#DELETE_ON_CLOSE} is the one being read.
+     */
+    private static final class FileChannelInputStream extends InputStream {
+        private final FileChannel channel;
+
+        FileChannelInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long position = channel.position();
+            long skipped = Math.max(0L, Math.min(n, channel.size() - position));
+            channel.position(position + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, channel.size() - channel.position()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
 }
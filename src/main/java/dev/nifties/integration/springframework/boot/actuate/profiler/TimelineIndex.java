@@ -0,0 +1,257 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.jfr.JfrReader;
+import one.jfr.event.Event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples of a JFR recording counted per time bucket, per event type and per thread, so that short stalls averaged
+ * away in a flame graph of the whole recording show up on a heatmap, and a flame graph of just the stalled time range
+ * can then be converted out of the chunks overlapping it.
+ * <p>
+ * The index is built in a single streaming pass over the recording, one chunk at a time, counting events into an
+ * {@code int} array per thread and event type. Buckets are at least {@value #MIN_BUCKET_MILLIS} ms wide, wider for
+ * long recordings, so that no array grows over {@value #MAX_BUCKETS} buckets. Coarser heatmaps are aggregated out of
+ * the same index.
+ */
+final class TimelineIndex {
+
+    static final long MIN_BUCKET_MILLIS = 10L;
+    static final int MAX_BUCKETS = 10_000;
+
+    private final List<JfrChunk> chunks;
+    private final long startNanos;
+    private final long bucketNanos;
+    private final int buckets;
+
+    /**
+     * Counts per bucket for each event column, in the order of {@link JfrConverter#EVENTS}, all threads together.
+     */
+    private final int[][] totals;
+
+    /**
+     * Counts per bucket for each event column and thread name.
+     */
+    private final List<Map<String, int[]>> threads;
+
+    private TimelineIndex(List<JfrChunk> chunks, long startNanos, long bucketNanos, int buckets) {
+        this.chunks = chunks;
+        this.startNanos = startNanos;
+        this.bucketNanos = bucketNanos;
+        this.buckets = buckets;
+        this.totals = new int[JfrConverter.EVENTS.size()][buckets];
+        this.threads = new ArrayList<>();
+        for (int i = 0; i < JfrConverter.EVENTS.size(); i++) {
+            threads.add(new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Reads chunk headers to find the time covered, then counts events of all chunks in one pass.
+     */
+    static TimelineIndex build(File jfr) throws IOException {
+        try (FileChannel channel = FileChannel.open(jfr.toPath(), StandardOpenOption.READ)) {
+            List<JfrChunk> chunks = JfrChunk.read(channel);
+            if (chunks.isEmpty()) {
+                throw new IOException("No complete chunk in " + jfr);
+            }
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            for (JfrChunk chunk : chunks) {
+                start = Math.min(start, chunk.getStartNanos());
+                end = Math.max(end, chunk.getEndNanos());
+            }
+            long duration = Math.max(1L, end - start);
+            long bucketNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_BUCKET_MILLIS),
+                    (duration + MAX_BUCKETS - 1) / MAX_BUCKETS);
+            int buckets = (int) Math.min(MAX_BUCKETS, (duration + bucketNanos - 1) / bucketNanos);
+            TimelineIndex index = new TimelineIndex(chunks, start, bucketNanos, buckets);
+            for (JfrChunk chunk : chunks) {
+                try (JfrReader reader = new JfrReader(chunk.map(channel))) {
+                    index.add(chunk, reader);
+                }
+            }
+            return index;
+        }
+    }
+
+    private void add(JfrChunk chunk, JfrReader reader) throws IOException {
+        // thread ids are only meaningful within the chunk, which has its own constant pool of thread names
+        Map<Integer, int[][]> threadCounts = new HashMap<>();
+        Event event;
+        while ((event = reader.readEvent()) != null) {
+            int column = JfrConverter.column(event);
+            if (column < 0) {
+                continue;
+            }
+            int bucket = bucket(chunk.toNanos(event.time));
+            totals[column][bucket]++;
+            int[][] counts = threadCounts.get(event.tid);
+            if (counts == null) {
+                threadCounts.put(event.tid, counts = new int[totals.length][]);
+            }
+            if (counts[column] == null) {
+                String name = reader.threads.get(event.tid);
+                counts[column] = threads.get(column).computeIfAbsent(name != null ? name : "[tid=" + event.tid + "]",
+                        key -> new int[buckets]);
+            }
+            counts[column][bucket]++;
+        }
+    }
+
+    private int bucket(long nanos) {
+        // an event stamped just outside of the chunks falls into the first or the last bucket
+        return (int) Math.max(0L, Math.min(buckets - 1, (nanos - startNanos) / bucketNanos));
+    }
+
+    List<JfrChunk> getChunks() {
+        return chunks;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getEndNanos() {
+        return startNanos + buckets * bucketNanos;
+    }
+
+    long getBucketNanos() {
+        return bucketNanos;
+    }
+
+    int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Aggregates the index into a heatmap of given event.
+     *
+     * @param column event column, see {@link JfrConverter#column(String)}
+     * @param bucketNanos requested bucket width, rounded to a multiple of the indexed width
+     * @param limit maximum number of threads listed, the busiest ones
+     */
+    Heatmap heatmap(int column, long bucketNanos, int limit) {
+        int factor = (int) Math.max(1L, Math.min(buckets, Math.round((double) bucketNanos / this.bucketNanos)));
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, int[]> entry : threads.get(column).entrySet()) {
+            rows.add(new Row(entry.getKey(), aggregate(entry.getValue(), factor)));
+        }
+        rows.sort((a, b) -> Long.compare(b.getTotal(), a.getTotal()));
+        return new Heatmap(JfrConverter.EVENTS.get(column), startNanos, this.bucketNanos * factor,
+                new Row("all threads", aggregate(totals[column], factor)),
+                Collections.unmodifiableList(rows.subList(0, Math.min(Math.max(0, limit), rows.size()))));
+    }
+
+    private static int[] aggregate(int[] counts, int factor) {
+        if (factor == 1) {
+            return Arrays.copyOf(counts, counts.length);
+        }
+        int[] result = new int[(counts.length + factor - 1) / factor];
+        for (int i = 0; i < counts.length; i++) {
+            result[i / factor] += counts[i];
+        }
+        return result;
+    }
+
+    /**
+     * Samples of a single event type per time bucket.
+     */
+    public static final class Heatmap {
+
+        private final String event;
+        private final long startNanos;
+        private final long bucketNanos;
+        private final Row total;
+        private final List<Row> threads;
+
+        Heatmap(String event, long startNanos, long bucketNanos, Row total, List<Row> threads) {
+            this.event = event;
+            this.startNanos = startNanos;
+            this.bucketNanos = bucketNanos;
+            this.total = total;
+            this.threads = threads;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public Instant getStartTime() {
+            return Instant.ofEpochSecond(0L, startNanos);
+        }
+
+        /**
+         * @return epoch time the first bucket starts at, in milliseconds
+         */
+        public long getStartMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(startNanos);
+        }
+
+        /**
+         * @return width of a bucket, in milliseconds
+         */
+        public double getBucketMillis() {
+            return bucketNanos / 1e6d;
+        }
+
+        /**
+         * @return samples of all threads together
+         */
+        public Row getTotal() {
+            return total;
+        }
+
+        /**
+         * @return samples of the busiest threads, busiest first
+         */
+        public List<Row> getThreads() {
+            return threads;
+        }
+    }
+
+    /**
+     * Samples per time bucket of a thread, or of all threads.
+     */
+    public static final class Row {
+
+        private final String name;
+        private final int[] counts;
+        private final long total;
+
+        Row(String name, int[] counts) {
+            this.name = name;
+            this.counts = counts;
+            long sum = 0L;
+            for (int count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int[] getCounts() {
+            return counts;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Starts profiling automatically when a cheap signal - process CPU load, share of time spent in garbage collection
+ * or a Micrometer gauge such as a published HTTP latency percentile - stays above its threshold for a configured
+ * time. Captures are bounded by a cooldown after each capture and by a budget of captures per hour, completed
+ * captures are kept as files in a directory, the oldest ones being deleted first.
+ * <p>
+ * Signals are evaluated on a single scheduler thread. Evaluation only reads MBean attributes and primitive state
+ * prepared up front, so it does not allocate unless a capture is actually started.
+ * <p>
+ * Captures run as regular sessions of {@link ProfilingSessionManager}: while another session is active, e.g. an
+ * on-demand or continuous profiling, triggers are skipped.
+ */
+public class TriggeredProfiler implements SmartLifecycle {
+
+    private static final Log log = LogFactory.getLog(TriggeredProfiler.class);
+
+    private static final String CAPTURE_PREFIX = "trigger-";
+    private static final String IN_PROGRESS_SUFFIX = ".part";
+    private static final Pattern CAPTURE_NAME = Pattern.compile("trigger-(\\d+)-(\\d+)-(\\w+)\\.(html|jfr)");
+    private static final String FORMAT_JFR = "jfr";
+    private static final String FORMAT_HTML = "html";
+
+    private static final String OWNER = "trigger";
+
+    /**
+     * Grace period on top of the capture duration before the session is considered abandoned.
+     */
+    private static final long STOP_TIMEOUT_MILLIS = 30_000L;
+
+    private final ProfilingSessionManager sessions;
+    private final AsyncProfilerProperties.Triggers properties;
+    private final File directory;
+    private final String format;
+    private final Clock clock;
+    private final Signal[] signals;
+
+    /**
+     * Per signal, time since which it has been above its threshold, -1 while it is below.
+     */
+    private final long[] breachedSince;
+    /**
+     * Ring of start times of the most recent captures, sized by the hourly budget.
+     */
+    private final long[] captureTimes;
+    private int nextCapture;
+    private long cooldownUntil = Long.MIN_VALUE;
+
+    private final Deque<Capture> captures = new ArrayDeque<>();
+
+    private ScheduledExecutorService scheduler;
+    private ProfilingSession session;
+    private File currentFile;
+    private String currentSignal;
+    private long currentStartMillis;
+
+    /**
+     * @param meterRegistry registry to look up gauge signal in, {@code null} if there is none
+     */
+    public TriggeredProfiler(ProfilingSessionManager sessions, AsyncProfilerProperties.Triggers properties,
+                             MeterRegistry meterRegistry) {
+        this(sessions, properties, Clock.systemUTC(), signals(properties, meterRegistry));
+    }
+
+    TriggeredProfiler(ProfilingSessionManager sessions, AsyncProfilerProperties.Triggers properties, Clock clock,
+                      Signal... signals) {
+        this.sessions = sessions;
+        this.properties = properties;
+        this.directory = properties.getDirectory() != null ? properties.getDirectory()
+                : new File(System.getProperty("java.io.tmpdir"), "async-profiler-triggers");
+        this.format = FORMAT_JFR.equalsIgnoreCase(properties.getFormat()) ? FORMAT_JFR : FORMAT_HTML;
+        this.clock = clock;
+        this.signals = signals;
+        this.breachedSince = new long[signals.length];
+        Arrays.fill(breachedSince, -1L);
+        this.captureTimes = new long[Math.max(0, properties.getMaxPerHour())];
+        Arrays.fill(captureTimes, Long.MIN_VALUE);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (signals.length == 0) {
+            log.warn("Triggered profiling not started, no signals configured");
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.error("Triggered profiling not started, failed to create directory " + directory);
+            return;
+        }
+        loadCaptures();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("async-profiler-triggers-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long intervalMillis = properties.getInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::evaluateQuietly, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+        log.info("Triggered profiling started, watching " + Arrays.toString(signals));
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = scheduler;
+            scheduler = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            completeCapture();
+        }
+        log.info("Triggered profiling stopped");
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * @return retained captures, most recent first
+     */
+    public synchronized List<Capture> getCaptures() {
+        List<Capture> result = new ArrayList<>(captures);
+        Collections.reverse(result);
+        return result;
+    }
+
+    public synchronized Capture getCapture(String id) {
+        for (Capture capture : captures) {
+            if (capture.getId().equals(id)) {
+                return capture;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Samples all signals and starts a capture if one of them has been above its threshold long enough, unless
+     * cooling down, out of hourly budget or already capturing.
+     */
+    synchronized void evaluate() {
+        long now = clock.millis();
+        int fired = -1;
+        for (int i = 0; i < signals.length; i++) {
+            // every signal is sampled on every tick, so that rate based ones keep their previous readings current
+            if (signals[i].sample(now) >= signals[i].threshold) {
+                if (breachedSince[i] < 0) {
+                    breachedSince[i] = now;
+                }
+                if (fired < 0 && now - breachedSince[i] >= properties.getHoldFor().toMillis()) {
+                    fired = i;
+                }
+            } else {
+                breachedSince[i] = -1L;
+            }
+        }
+        if (fired < 0 || currentFile != null || now < cooldownUntil || !withinBudget(now)) {
+            return;
+        }
+        startCapture(signals[fired], now);
+    }
+
+    synchronized void completeCapture() {
+        if (currentFile == null) {
+            return;
+        }
+        File file = currentFile;
+        currentFile = null;
+        long endMillis = clock.millis();
+        cooldownUntil = endMillis + properties.getCooldown().toMillis();
+        String sessionId = session.getId();
+        session = null;
+        try {
+            // AsyncProfiler picks the output format by file extension, which the in-progress suffix hides
+            sessions.stop(sessionId, FORMAT_JFR.equals(format) ? "stop"
+                    : "stop,flamegraph,file=" + file.getAbsolutePath());
+        } catch (ProfilingSessionConflictException e) {
+            log.warn("Triggered capture has been stopped externally: " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to stop triggered capture", e);
+        }
+        if (!file.isFile()) {
+            log.warn("Triggered capture " + file + " has not been written");
+            return;
+        }
+        File target = new File(directory, CAPTURE_PREFIX + currentStartMillis + "-" + endMillis + "-"
+                + currentSignal + "." + format);
+        try {
+            Files.move(file.toPath(), target.toPath());
+        } catch (IOException e) {
+            log.error("Failed to keep triggered capture " + file, e);
+            file.delete();
+            return;
+        }
+        log.info("Triggered capture completed: " + target);
+        addCapture(new Capture(target, currentSignal, currentStartMillis, endMillis));
+        evict();
+    }
+
+    private void startCapture(Signal signal, long now) {
+        File file = new File(directory, CAPTURE_PREFIX + now + "-" + signal.name + "." + format + IN_PROGRESS_SUFFIX);
+        String command = "start,event=" + properties.getEvent()
+                + (StringUtils.hasText(properties.getOptions()) ? "," + properties.getOptions() : "")
+                + (FORMAT_JFR.equals(format) ? ",jfr,file=" + file.getAbsolutePath() : "");
+        long durationMillis = properties.getDuration().toMillis();
+        try {
+            session = sessions.start(OWNER + ":" + signal.name, command, 0L, durationMillis + STOP_TIMEOUT_MILLIS);
+        } catch (ProfilingSessionConflictException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Triggered capture skipped: " + e.getMessage());
+            }
+            return;
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to start triggered capture", e);
+            cooldownUntil = now + properties.getCooldown().toMillis();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        log.warn("Signal " + signal + " above threshold for " + properties.getHoldFor() + ", profiling for "
+                + properties.getDuration());
+        captureTimes[nextCapture] = now;
+        nextCapture = (nextCapture + 1) % captureTimes.length;
+        currentFile = file;
+        currentSignal = signal.name;
+        currentStartMillis = now;
+        if (scheduler != null) {
+            scheduler.schedule(this::completeCapture, durationMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The ring holds start times of as many captures as the budget allows, so the oldest of them has to be more
+     * than an hour old.
+     */
+    private boolean withinBudget(long now) {
+        return captureTimes.length > 0 && captureTimes[nextCapture] <= now - TimeUnit.HOURS.toMillis(1);
+    }
+
+    private void evaluateQuietly() {
+        try {
+            evaluate();
+        } catch (RuntimeException e) {
+            log.error("Failed to evaluate profiling triggers", e);
+        }
+    }
+
+    private void evict() {
+        while (captures.size() > properties.getRetained()) {
+            Capture oldest = captures.removeFirst();
+            if (!oldest.getFile().delete() && oldest.getFile().exists()) {
+                log.warn("Failed to delete triggered capture " + oldest.getFile());
+            }
+        }
+    }
+
+    private void addCapture(Capture capture) {
+        captures.addLast(capture);
+    }
+
+    /**
+     * Picks up captures left by previous runs and removes incomplete ones.
+     */
+    private void loadCaptures() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Capture> found = new ArrayList<>();
+        for (File file : files) {
+            Matcher matcher = CAPTURE_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                found.add(new Capture(file, matcher.group(3), Long.parseLong(matcher.group(1)),
+                        Long.parseLong(matcher.group(2))));
+            } else if (file.getName().startsWith(CAPTURE_PREFIX) && file.getName().endsWith(IN_PROGRESS_SUFFIX)) {
+                file.delete();
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.getStartMillis(), b.getStartMillis()));
+        for (Capture capture : found) {
+            addCapture(capture);
+        }
+        evict();
+    }
+
+    private static Signal[] signals(AsyncProfilerProperties.Triggers properties, MeterRegistry meterRegistry) {
+        List<Signal> signals = new ArrayList<>();
+        if (properties.getCpu() != null) {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                signals.add(new CpuSignal((com.sun.management.OperatingSystemMXBean) os, properties.getCpu()));
+            } else {
+                log.warn("Process CPU load is not available, CPU trigger disabled");
+            }
+        }
+        if (properties.getGc() != null) {
+            signals.add(new GcSignal(ManagementFactory.getGarbageCollectorMXBeans(), properties.getGc()));
+        }
+        AsyncProfilerProperties.Triggers.Meter meter = properties.getMeter();
+        if (StringUtils.hasText(meter.getName())) {
+            if (meterRegistry != null) {
+                signals.add(new GaugeSignal(meterRegistry, meter.getName(), meter.getTags(), meter.getThreshold()));
+            } else {
+                log.warn("No MeterRegistry available, trigger on " + meter.getName() + " disabled");
+            }
+        }
+        return signals.toArray(new Signal[0]);
+    }
+
+    /**
+     * A cheap measurement compared against a threshold on every evaluation.
+     */
+    abstract static class Signal {
+
+        final String name;
+        final double threshold;
+
+        Signal(String name, double threshold) {
+            this.name = name;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @param nowMillis current time, for signals measuring rates
+         */
+        abstract double sample(long nowMillis);
+
+        @Override
+        public String toString() {
+            return name + " >= " + threshold;
+        }
+    }
+
+    /**
+     * Recent CPU load of the whole process, as a fraction of all available processors.
+     */
+    static final class CpuSignal extends Signal {
+
+        private final com.sun.management.OperatingSystemMXBean os;
+
+        CpuSignal(com.sun.management.OperatingSystemMXBean os, double threshold) {
+            super("cpu", threshold);
+            this.os = os;
+        }
+
+        @Override
+        double sample(long nowMillis) {
+            return os.getProcessCpuLoad();
+        }
+    }
+
+    /**
+     * Fraction of time since the previous sample spent in garbage collection pauses, summed over all collectors.
+     * Collectors accounting concurrent cycles, such as <i>ZGC Cycles</i>, <i>Shenandoah Cycles</i> or <i>G1
+     * Concurrent GC</i>, are left out, as their time runs alongside the application and would count up to whole
+     * intervals as GC.
+     */
+    static final class GcSignal extends Signal {
+
+        private final GarbageCollectorMXBean[] collectors;
+        private long previousMillis = -1L;
+        private long previousGcMillis;
+
+        GcSignal(List<GarbageCollectorMXBean> collectors, double threshold) {
+            super("gc", threshold);
+            this.collectors = collectors.stream()
+                    .filter(collector -> !isConcurrent(collector.getName()))
+                    .toArray(GarbageCollectorMXBean[]::new);
+        }
+
+        private static boolean isConcurrent(String name) {
+            return name.endsWith(" Cycles") || name.equals("G1 Concurrent GC");
+        }
+
+        @Override
+        double sample(long nowMillis) {
+            long gcMillis = 0L;
+            for (GarbageCollectorMXBean collector : collectors) {
+                gcMillis += Math.max(0L, collector.getCollectionTime());
+            }
+            double ratio = previousMillis < 0 || nowMillis <= previousMillis ? 0d
+                    : (double) (gcMillis - previousGcMillis) / (nowMillis - previousMillis);
+            previousMillis = nowMillis;
+            previousGcMillis = gcMillis;
+            return ratio;
+        }
+    }
+
+    /**
+     * Value of a Micrometer gauge, time gauges in seconds. The gauge is looked up lazily, as percentile gauges only
+     * show up after the first recording, and at most once a minute until it is found.
+     */
+    static final class GaugeSignal extends Signal {
+
+        private static final long LOOKUP_INTERVAL_MILLIS = 60_000L;
+
+        private final MeterRegistry registry;
+        private final String meterName;
+        private final String[] tags;
+        private Gauge gauge;
+        private long nextLookupMillis;
+
+        GaugeSignal(MeterRegistry registry, String meterName, Map<String, String> tags, double threshold) {
+            super("meter", threshold);
+            this.registry = registry;
+            this.meterName = meterName;
+            this.tags = tags.entrySet().stream()
+                    .flatMap(e -> Stream.of(e.getKey(), e.getValue())).toArray(String[]::new);
+        }
+
+        @Override
+        double sample(long nowMillis) {
+            if (gauge == null) {
+                if (nowMillis < nextLookupMillis) {
+                    return Double.NaN;
+                }
+                nextLookupMillis = nowMillis + LOOKUP_INTERVAL_MILLIS;
+                gauge = registry.find(meterName).tags(tags).gauge();
+            }
+            return gauge instanceof TimeGauge ? ((TimeGauge) gauge).value(TimeUnit.SECONDS)
+                    : gauge != null ? gauge.value() : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return meterName + " >= " + threshold;
+        }
+    }
+
+    /**
+     * Completed triggered capture kept on disk.
+     */
+    public static final class Capture {
+
+        private final File file;
+        private final String signal;
+        private final long startMillis;
+        private final long endMillis;
+
+        Capture(File file, String signal, long startMillis, long endMillis) {
+            this.file = file;
+            this.signal = signal;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+
+        public String getId() {
+            return file.getName();
+        }
+
+        /**
+         * @return name of the signal that triggered the capture: cpu, gc or meter
+         */
+        public String getSignal() {
+            return signal;
+        }
+
+        public Instant getStartTime() {
+            return Instant.ofEpochMilli(startMillis);
+        }
+
+        public Instant getEndTime() {
+            return Instant.ofEpochMilli(endMillis);
+        }
+
+        public long getSize() {
+            return file.length();
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getStartMillis() {
+            return startMillis;
+        }
+    }
+}
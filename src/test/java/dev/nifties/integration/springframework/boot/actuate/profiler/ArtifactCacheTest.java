@@ -0,0 +1,131 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    @Test
+    public void smallArtifactsInMemoryLargeOnDisk() throws IOException {
+        ArtifactCache cache = new ArtifactCache(directory.toFile(), 100L, 10L);
+        ArtifactCache.Artifact small = cache.get("a/html", renderer(5));
+        assertTrue(small.toResource() instanceof ByteArrayResource);
+        assertEquals(0, directory.toFile().list().length);
+
+        ArtifactCache.Artifact large = cache.get("b/html", renderer(20));
+        assertEquals(20, read(large.toResource()).length());
+        assertEquals(1, directory.toFile().list().length);
+
+        assertSame(small, cache.get("a/html", renderer(5)));
+        assertSame(large, cache.get("b/html", renderer(20)));
+        assertEquals(2, renders.get());
+        assertEquals(25L, cache.getSize());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        ArtifactCache cache = new ArtifactCache(directory.toFile(), 30L, 0L);
+        cache.get("a/html", renderer(10));
+        cache.get("b/html", renderer(10));
+        cache.get("c/html", renderer(10));
+        cache.get("a/html", renderer(10));
+        cache.get("d/html", renderer(10));
+        assertEquals(3, cache.getCount());
+        assertEquals(30L, cache.getSize());
+        assertEquals(3, directory.toFile().list().length);
+        assertEquals(4, renders.get());
+
+        // b was the least recently used one
+        cache.get("b/html", renderer(10));
+        assertEquals(5, renders.get());
+        cache.get("a/html", renderer(10));
+        assertEquals(5, renders.get());
+
+        cache.invalidate("a/");
+        assertEquals(2, cache.getCount());
+        cache.clear();
+        assertEquals(0L, cache.getSize());
+        assertEquals(0, directory.toFile().list().length);
+    }
+
+    @Test
+    public void artifactLargerThanCacheIsNotCached() throws IOException {
+        ArtifactCache cache = new ArtifactCache(directory.toFile(), 30L, 0L);
+        ArtifactCache.Artifact artifact = cache.get("a/html", renderer(40));
+        assertFalse(artifact.isCached());
+        assertEquals(0L, cache.getSize());
+        assertEquals(40, read(artifact.toResource()).length());
+        assertEquals(0, directory.toFile().list().length);
+    }
+
+    @Test
+    public void failedRenderingIsNotCached() {
+        ArtifactCache cache = new ArtifactCache(directory.toFile(), 30L, 0L);
+        assertThrows(IOException.class, () -> cache.get("a/html", out -> {
+            throw new IOException("Corrupted recording");
+        }));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, directory.toFile().list().length);
+    }
+
+    @Test
+    public void concurrentRequestsRenderOnce() throws Exception {
+        ArtifactCache cache = new ArtifactCache(new File(directory.toFile(), "cache"), 100L, 100L);
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ArtifactCache.Artifact> first = executor.submit(() -> cache.get("a/html", out -> {
+                rendering.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                renderer(5).render(out);
+            }));
+            assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            Future<ArtifactCache.Artifact> second = executor.submit(() -> cache.get("a/html", renderer(5)));
+            Thread.sleep(50L);
+            release.countDown();
+            assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, renders.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ArtifactCache.Renderer renderer(int size) {
+        return out -> {
+            renders.incrementAndGet();
+            for (int i = 0; i < size; i++) {
+                out.write('x');
+            }
+        };
+    }
+
+    private static String read(Resource resource) throws IOException {
+        return StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncProfilerLoaderTest {
+
+    @Test
+    public void loadOnFirstUse() {
+        AsyncProfiler asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.getSamples()).thenReturn(42L);
+        AtomicInteger loads = new AtomicInteger();
+        AsyncProfilerLoader loader = new AsyncProfilerLoader(() -> {
+            loads.incrementAndGet();
+            return asyncProfiler;
+        }, AsyncProfilerProperties.Loading.LAZY);
+
+        assertNull(loader.getIfLoaded());
+        assertEquals(0L, loader.getSamples());
+        assertTrue(loader.getLoadNanos() < 0);
+        // not loaded in the background unless configured so
+        loader.onApplicationEvent(Mockito.mock(ApplicationReadyEvent.class));
+        assertEquals(0, loads.get());
+
+        assertSame(asyncProfiler, loader.get());
+        assertSame(asyncProfiler, loader.get());
+        assertEquals(1, loads.get());
+        assertEquals(42L, loader.getSamples());
+        assertTrue(loader.getLoadNanos() >= 0);
+    }
+
+    @Test
+    public void loadInBackground() throws InterruptedException {
+        AsyncProfiler asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        AsyncProfilerLoader loader = new AsyncProfilerLoader(() -> asyncProfiler,
+                AsyncProfilerProperties.Loading.BACKGROUND);
+
+        loader.onApplicationEvent(Mockito.mock(ApplicationReadyEvent.class));
+        for (int i = 0; i < 100 && loader.getIfLoaded() == null; i++) {
+            Thread.sleep(50L);
+        }
+        assertSame(asyncProfiler, loader.getIfLoaded());
+    }
+
+    @Test
+    public void failureIsRemembered() {
+        AtomicInteger loads = new AtomicInteger();
+        AsyncProfilerLoader loader = new AsyncProfilerLoader(() -> {
+            loads.incrementAndGet();
+            throw new UnsatisfiedLinkError("libasyncProfiler.so: cannot open shared object file");
+        }, AsyncProfilerProperties.Loading.LAZY);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, loader::get);
+        assertSame(e, assertThrows(IllegalStateException.class, loader::get));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void platformTag() {
+        assertEquals("linux-x64", AsyncProfilerLoader.getPlatformTag("Linux", "amd64"));
+        assertEquals("linux-arm64", AsyncProfilerLoader.getPlatformTag("Linux", "aarch64"));
+        assertEquals("linux-x86", AsyncProfilerLoader.getPlatformTag("Linux", "i386"));
+        assertEquals("macos", AsyncProfilerLoader.getPlatformTag("Mac OS X", "aarch64"));
+        assertNull(AsyncProfilerLoader.getPlatformTag("Windows 10", "amd64"));
+    }
+
+    @Test
+    public void findNativeLibrary(@TempDir Path directory) throws IOException {
+        assertEquals("classpath:/linux-x64/libasyncProfiler.so",
+                AsyncProfilerLoader.findNativeLibrary("Linux", "amd64", ""));
+        assertNull(AsyncProfilerLoader.findNativeLibrary("Windows 10", "amd64", directory.toString()));
+
+        Path library = Files.createFile(directory.resolve(System.mapLibraryName("asyncProfiler")));
+        assertEquals(library.toString(),
+                AsyncProfilerLoader.findNativeLibrary("Windows 10", "amd64", directory.toString()));
+    }
+}
@@ -4,16 +4,36 @@ import one.profiler.AsyncProfiler;
 import org.junit.jupiter.api.*;
 import org.mockito.*;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.context.request.WebRequest;
-
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -23,16 +43,25 @@ public class AsyncProfilerWebEndpointTest {
     @Mock
     private AsyncProfiler asyncProfiler;
 
-    @InjectMocks
     private AsyncProfilerWebEndpoint asyncProfilerWebEndpoint;
 
     @BeforeAll
     public void initMocks() {
         MockitoAnnotations.initMocks(this);
+        asyncProfilerWebEndpoint = new AsyncProfilerWebEndpoint(asyncProfiler);
+    }
+
+    @AfterAll
+    public void destroyEndpoint() {
+        asyncProfilerWebEndpoint.destroy();
     }
 
     @AfterEach
     public void resetMocks() {
+        // do not let a failed test leave the profiling session active for the others
+        asyncProfilerWebEndpoint.sessions().stream()
+                .filter(session -> session.getState() == ProfilingSession.State.ACTIVE)
+                .forEach(session -> asyncProfilerWebEndpoint.stopSession(session.getId()));
         Mockito.reset(asyncProfiler);
     }
 
@@ -47,12 +76,67 @@ public class AsyncProfilerWebEndpointTest {
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
 
-        responseEntity = asyncProfilerWebEndpoint.executeCommand("stop", request);
-        Mockito.verify(asyncProfiler).execute("stop");
+        responseEntity = asyncProfilerWebEndpoint.executeCommand("status", request);
+        Mockito.verify(asyncProfiler).execute("status");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
     }
 
+    @Test
+    public void rejectInvalidLatency() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameter("latency")).thenReturn("slow");
+
+        assertEquals(HttpStatus.BAD_REQUEST, asyncProfilerWebEndpoint.executeCommand("start", request)
+                .getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L,
+                null, request)).getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.never()).execute(ArgumentMatchers.anyString());
+    }
+
+    @Test
+    public void rejectInvalidWait() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameter("wait")).thenReturn("abc");
+
+        assertEquals(HttpStatus.BAD_REQUEST, asyncProfilerWebEndpoint.executeCommand("start", request)
+                .getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L,
+                null, request)).getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.never()).execute(ArgumentMatchers.anyString());
+    }
+
+    @Test
+    public void rejectRequestScopedWithoutFilter() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameter("uri")).thenReturn("/orders/.*");
+
+        assertFalse(asyncProfilerWebEndpoint.getRequestSelector().isAttached());
+        assertEquals(HttpStatus.BAD_REQUEST, asyncProfilerWebEndpoint.executeCommand("start", request)
+                .getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L,
+                null, request)).getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.never()).execute(ArgumentMatchers.anyString());
+    }
+
+    @Test
+    public void executeCommandConflict() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        ResponseEntity<String> responseEntity = asyncProfilerWebEndpoint.executeCommand("start", request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        String sessionId = responseEntity.getHeaders().getFirst(AsyncProfilerWebEndpoint.HEADER_SESSION);
+        assertNotNull(sessionId);
+        assertEquals(sessionId, asyncProfilerWebEndpoint.sessions().get(0).getId());
+
+        responseEntity = asyncProfilerWebEndpoint.executeCommand("start", request);
+        assertEquals(HttpStatus.CONFLICT, responseEntity.getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.times(1)).execute("start,event=cpu");
+
+        assertEquals(HttpStatus.OK, asyncProfilerWebEndpoint.stopSession(sessionId).getStatusCode());
+        assertEquals(ProfilingSession.State.STOPPED, asyncProfilerWebEndpoint.session(sessionId).getBody().getState());
+        assertEquals(HttpStatus.NOT_FOUND, asyncProfilerWebEndpoint.session("unknown").getStatusCode());
+    }
+
     @Test
     public void collectFlameGraph() throws IOException {
         WebRequest request = Mockito.mock(WebRequest.class);
@@ -64,8 +148,7 @@ public class AsyncProfilerWebEndpointTest {
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertEquals(MediaType.TEXT_HTML, responseEntity.getHeaders().getContentType());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        Resource resource = (Resource)responseEntity.getBody();
+        Resource resource = resource(responseEntity);
         assertTrue(resource.getFile().getName().endsWith(".html"));
         Mockito.verify(asyncProfiler).execute("dump,file=" + resource.getFile().getAbsolutePath());
 
@@ -75,8 +158,7 @@ public class AsyncProfilerWebEndpointTest {
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertEquals(MediaType.TEXT_HTML, responseEntity.getHeaders().getContentType());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         assertTrue(resource.getFile().getName().endsWith(".html"));
         Mockito.verify(asyncProfiler).execute("stop,file=" + resource.getFile().getAbsolutePath());
 
@@ -88,8 +170,7 @@ public class AsyncProfilerWebEndpointTest {
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertEquals(MediaType.TEXT_HTML, responseEntity.getHeaders().getContentType());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         assertTrue(resource.getFile().getName().endsWith(".html"));
         Mockito.verify(asyncProfiler).execute("stop,total,file=" + resource.getFile().getAbsolutePath());
 
@@ -100,12 +181,199 @@ public class AsyncProfilerWebEndpointTest {
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertEquals(MediaType.APPLICATION_OCTET_STREAM, responseEntity.getHeaders().getContentType());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         assertTrue(resource.getFile().getName().endsWith(".jfr"));
         Mockito.verify(asyncProfiler).execute("stop,file=" + resource.getFile().getAbsolutePath());
     }
 
+    @Test
+    public void streamFlameGraph() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        byte[] content = new byte[200_000];
+        Arrays.fill(content, (byte) 'x');
+        Mockito.when(asyncProfiler.execute(ArgumentMatchers.startsWith("dump,file="))).thenAnswer(invocation -> {
+            String command = invocation.getArgument(0);
+            Files.write(Paths.get(command.substring("dump,file=".length())), content);
+            return "OK";
+        });
+
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("dump", null, request);
+        assertNotNull(resource(responseEntity));
+        assertEquals(content.length, responseEntity.getHeaders().getContentLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) responseEntity.getBody()).writeTo(out);
+
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void timedOutCaptureIsStoppedOnce() throws Exception {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameterMap()).thenReturn(Collections.emptyMap());
+        DeferredResult<ResponseEntity<?>> result = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L, null,
+                request);
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+        servletRequest.setAsyncSupported(true);
+        WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(servletRequest);
+        asyncManager.setAsyncWebRequest(new StandardServletAsyncWebRequest(servletRequest,
+                new MockHttpServletResponse()));
+        asyncManager.startDeferredResultProcessing(result);
+        MockAsyncContext asyncContext = (MockAsyncContext) servletRequest.getAsyncContext();
+
+        // container gives up on the request, then the client disconnects
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseEntity<?>) result.getResult()).getStatusCode());
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onError(new AsyncEvent(asyncContext, new IOException("Broken pipe")));
+            listener.onComplete(new AsyncEvent(asyncContext));
+        }
+        // past the duration, the scheduled collection must not stop it again
+        Thread.sleep(1_500L);
+
+        Mockito.verify(asyncProfiler).execute("start,event=cpu");
+        Mockito.verify(asyncProfiler, Mockito.times(1)).execute(ArgumentMatchers.startsWith("stop"));
+    }
+
+    @Test
+    public void timedCaptureIsCollectedOffTheScheduler() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameterMap()).thenReturn(Collections.emptyMap());
+        AtomicReference<String> thread = new AtomicReference<>();
+        Mockito.when(asyncProfiler.execute(ArgumentMatchers.startsWith("stop"))).thenAnswer(invocation -> {
+            thread.set(Thread.currentThread().getName());
+            return "OK";
+        });
+
+        awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
+
+        assertTrue(thread.get().startsWith("async-profiler-collector-"), thread.get());
+    }
+
+    @Test
+    public void collectText() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameter("collapsed")).thenReturn("");
+        Mockito.when(asyncProfiler.execute("dump,collapsed")).thenReturn("main;run 10\n");
+
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("dump", null, request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertTrue(MediaType.TEXT_PLAIN.isCompatibleWith(responseEntity.getHeaders().getContentType()));
+        Resource resource = resource(responseEntity);
+        assertFalse(resource.isFile());
+        assertEquals("main;run 10\n", StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.UTF_8));
+
+        // stop?flat=20&total
+        Mockito.reset(asyncProfiler, request);
+        Mockito.when(request.getParameter("flat")).thenReturn("20");
+        Mockito.when(request.getParameter("total")).thenReturn("");
+        Mockito.when(asyncProfiler.execute("stop,total,flat=20")).thenReturn("flat");
+        responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("stop", null, request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        Mockito.verify(asyncProfiler).execute("stop,total,flat=20");
+        Mockito.verify(asyncProfiler, Mockito.never()).execute(ArgumentMatchers.contains("file="));
+
+        // timed capture with o=collapsed
+        Mockito.reset(asyncProfiler, request);
+        Mockito.when(request.getParameter("o")).thenReturn("collapsed");
+        Mockito.when(request.getParameterMap()).thenReturn(buildParameterMap("o", "collapsed"));
+        Mockito.when(asyncProfiler.execute("stop,collapsed")).thenReturn("main;run 10\n");
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        Mockito.verify(asyncProfiler).execute("start,o=collapsed");
+        Mockito.verify(asyncProfiler).execute("stop,collapsed");
+    }
+
+    @Test
+    public void collectCompressedFlameGraph() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+        byte[] content = new byte[100_000];
+        Mockito.when(asyncProfiler.execute(ArgumentMatchers.startsWith("dump,file="))).then(invocation -> {
+            String command = invocation.getArgument(0);
+            Files.write(Paths.get(command.substring("dump,file=".length())), content);
+            return "OK";
+        });
+
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("dump", null, request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(MediaType.TEXT_HTML, responseEntity.getHeaders().getContentType());
+        assertEquals("gzip", responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertInstanceOf(StreamingResponseBody.class, responseEntity.getBody());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) responseEntity.getBody()).writeTo(out);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    public void resumeDownload() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip");
+        byte[] content = new byte[100_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Mockito.when(asyncProfiler.execute(ArgumentMatchers.startsWith("stop,file="))).then(invocation -> {
+            String command = invocation.getArgument(0);
+            Files.write(Paths.get(command.substring("stop,file=".length())), content);
+            return "OK";
+        });
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("stop", ".jfr", request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        // the first download is compressed, the kept output is not
+        assertEquals("gzip", responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        String id = responseEntity.getHeaders().getFirst(AsyncProfilerWebEndpoint.HEADER_DOWNLOAD);
+        assertNotNull(id);
+        assertEquals(id, asyncProfilerWebEndpoint.downloads().get(0).getId());
+
+        WebRequest rangeRequest = Mockito.mock(WebRequest.class);
+        Mockito.when(rangeRequest.getHeader(HttpHeaders.RANGE)).thenReturn("bytes=1000-1999");
+        responseEntity = asyncProfilerWebEndpoint.download(id, rangeRequest);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, responseEntity.getStatusCode());
+        assertEquals("bytes 1000-1999/100000", responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals("bytes", responseEntity.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(1000L, responseEntity.getHeaders().getContentLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) responseEntity.getBody()).writeTo(out);
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), out.toByteArray());
+
+        // resuming against a different entity gets the whole content
+        Mockito.when(rangeRequest.getHeader(HttpHeaders.IF_RANGE)).thenReturn("\"other\"");
+        responseEntity = asyncProfilerWebEndpoint.download(id, rangeRequest);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(100_000L, responseEntity.getHeaders().getContentLength());
+
+        Mockito.when(rangeRequest.getHeader(HttpHeaders.IF_RANGE)).thenReturn(null);
+        Mockito.when(rangeRequest.getHeader(HttpHeaders.RANGE)).thenReturn("bytes=100000-");
+        responseEntity = asyncProfilerWebEndpoint.download(id, rangeRequest);
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, responseEntity.getStatusCode());
+        assertEquals("bytes */100000", responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+
+        assertEquals(HttpStatus.NOT_FOUND, asyncProfilerWebEndpoint.download("unknown", rangeRequest)
+                .getStatusCode());
+    }
+
+    @Test
+    public void collectPprof() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip");
+        Mockito.when(asyncProfiler.execute("stop,collapsed")).thenReturn("main;parse 10\nmain;write 5\n");
+
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.collectFlameGraph("stop", "pprof", request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(ProfilerCommands.APPLICATION_GZIP, responseEntity.getHeaders().getContentType());
+        // the profile is gzipped already
+        assertNull(responseEntity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) responseEntity.getBody()).writeTo(out);
+        byte[] profile = StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(new String(profile, StandardCharsets.UTF_8).contains("parse"));
+    }
+
     @Test
     public void executeAndCollectFlameGraph() throws IOException {
         WebRequest request = Mockito.mock(WebRequest.class);
@@ -115,7 +383,7 @@ public class AsyncProfilerWebEndpointTest {
         // duration=1
         Mockito.reset(asyncProfiler, request);
         long startTime = System.currentTimeMillis();
-        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L, null, request);
+        ResponseEntity<?> responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L, null, request));
         long elapsedMillis = System.currentTimeMillis() - startTime;
         assertTrue(elapsedMillis >= 1_000L,
                 "Expected elapsedMillis to be at least 1 sec, but was " + elapsedMillis + " ms");
@@ -123,8 +391,7 @@ public class AsyncProfilerWebEndpointTest {
         inOrder.verify(asyncProfiler).execute("start,event=cpu");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        Resource resource = (Resource)responseEntity.getBody();
+        Resource resource = resource(responseEntity);
         inOrder.verify(asyncProfiler).execute("stop,file=" + resource.getFile().getAbsolutePath());
 
         // event=wall
@@ -132,7 +399,7 @@ public class AsyncProfilerWebEndpointTest {
         Mockito.when(request.getParameterMap()).thenReturn(buildParameterMap("event", "wall"));
 
         startTime = System.currentTimeMillis();
-        responseEntity = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request);
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
         elapsedMillis = System.currentTimeMillis() - startTime;
         assertTrue(elapsedMillis < 100L,
                 "Expected elapsedMillis to be less then 100 ms, but was " + elapsedMillis + " ms");
@@ -141,8 +408,7 @@ public class AsyncProfilerWebEndpointTest {
         inOrder.verify(asyncProfiler).execute("start,event=wall");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         inOrder.verify(asyncProfiler).execute("stop,file=" + resource.getFile().getAbsolutePath());
 
         // event=wall&total
@@ -152,7 +418,7 @@ public class AsyncProfilerWebEndpointTest {
         Mockito.when(request.getParameter("total")).thenReturn("");
 
         startTime = System.currentTimeMillis();
-        responseEntity = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request);
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
         elapsedMillis = System.currentTimeMillis() - startTime;
         assertTrue(elapsedMillis < 100L,
                 "Expected elapsedMillis to be less then 100 ms, but was " + elapsedMillis + " ms");
@@ -161,8 +427,7 @@ public class AsyncProfilerWebEndpointTest {
         inOrder.verify(asyncProfiler).execute("start,event=wall");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         inOrder.verify(asyncProfiler).execute("stop,total,file=" + resource.getFile().getAbsolutePath());
 
         // alloc=100k&threads
@@ -172,7 +437,7 @@ public class AsyncProfilerWebEndpointTest {
         Mockito.when(request.getParameter("threads")).thenReturn("");
 
         startTime = System.currentTimeMillis();
-        responseEntity = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request);
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
         elapsedMillis = System.currentTimeMillis() - startTime;
         assertTrue(elapsedMillis < 100L,
                 "Expected elapsedMillis to be less then 100 ms, but was " + elapsedMillis + " ms");
@@ -181,8 +446,7 @@ public class AsyncProfilerWebEndpointTest {
         inOrder.verify(asyncProfiler).execute("start,alloc=100k,threads");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         inOrder.verify(asyncProfiler).execute("stop,file=" + resource.getFile().getAbsolutePath());
 
         // event=ctimer&interval=999us&threads&total
@@ -194,7 +458,7 @@ public class AsyncProfilerWebEndpointTest {
         Mockito.when(request.getParameter("total")).thenReturn("");
 
         startTime = System.currentTimeMillis();
-        responseEntity = asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request);
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null, request));
         elapsedMillis = System.currentTimeMillis() - startTime;
         assertTrue(elapsedMillis < 100L,
                 "Expected elapsedMillis to be less then 100 ms, but was " + elapsedMillis + " ms");
@@ -203,11 +467,195 @@ public class AsyncProfilerWebEndpointTest {
         inOrder.verify(asyncProfiler).execute("start,event=ctimer,interval=999us,threads");
         assertNotNull(responseEntity);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
-        assertInstanceOf(Resource.class, responseEntity.getBody());
-        resource = (Resource)responseEntity.getBody();
+        resource = resource(responseEntity);
         inOrder.verify(asyncProfiler).execute("stop,total,file=" + resource.getFile().getAbsolutePath());
     }
 
+    @Test
+    public void executeAndCollectFlameGraphReleasesRequestThread() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+
+        long startTime = System.currentTimeMillis();
+        DeferredResult<ResponseEntity<?>> deferredResult =
+                asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L, null, request);
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        assertTrue(elapsedMillis < 500L,
+                "Expected request thread to be released immediately, but was " + elapsedMillis + " ms");
+        assertFalse(deferredResult.hasResult());
+        Mockito.verify(asyncProfiler).execute("start,event=cpu");
+
+        ResponseEntity<?> responseEntity = awaitResult(deferredResult);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+    }
+
+    @Test
+    public void executeAndCollectFlameGraphStartFailure() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(asyncProfiler.execute("start,event=cpu")).thenThrow(new IllegalStateException("Profiler already started"));
+
+        DeferredResult<ResponseEntity<?>> deferredResult =
+                asyncProfilerWebEndpoint.executeAndCollectFlamegraph(1L, null, request);
+        assertTrue(deferredResult.hasResult());
+        ResponseEntity<?> responseEntity = (ResponseEntity<?>) deferredResult.getResult();
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, responseEntity.getStatusCode());
+        assertEquals("Profiler already started", responseEntity.getBody());
+    }
+
+    @Test
+    public void captureAndDiff() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(asyncProfiler.execute("stop,collapsed"))
+                .thenReturn("main;parse 10\nmain;write 10\n", "main;parse 30\nmain;write 10\n");
+
+        ResponseEntity<?> responseEntity = awaitResult(asyncProfilerWebEndpoint.capture(0L, request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        CaptureStore.Capture baseline = (CaptureStore.Capture) responseEntity.getBody();
+        assertEquals(20, baseline.getSamples());
+        assertEquals(baseline.getId(), asyncProfilerWebEndpoint.captures().get(0).getId());
+
+        // fresh comparison capture
+        Mockito.when(request.getParameter("format")).thenReturn("json");
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.diff(baseline.getId(), null, 0L, request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        ProfileDiff diff = (ProfileDiff) responseEntity.getBody();
+        assertEquals(20, diff.getBaselineSamples());
+        assertEquals(40, diff.getComparisonSamples());
+        assertEquals("parse", diff.getIncreased().get(0).getFrame());
+        assertEquals(10, diff.getIncreased().get(0).getDelta());
+        assertEquals("write", diff.getDecreased().get(0).getFrame());
+        assertEquals(-10, diff.getDecreased().get(0).getDelta());
+        Mockito.verify(asyncProfiler, Mockito.times(2)).execute("start,event=cpu");
+
+        // two stored captures
+        String comparison = asyncProfilerWebEndpoint.captures().get(0).getId();
+        Mockito.when(request.getParameter("format")).thenReturn(null);
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.diff(baseline.getId(), comparison, 0L, request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(MediaType.TEXT_HTML, responseEntity.getHeaders().getContentType());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) responseEntity.getBody()).writeTo(out);
+        String html = out.toString("UTF-8");
+        assertTrue(html.contains("f(1,0,30,30,'parse',10)"), html);
+
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.diff("unknown", null, 0L, request));
+        assertEquals(HttpStatus.NOT_FOUND, responseEntity.getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.times(2)).execute("start,event=cpu");
+    }
+
+    @Test
+    public void recordAndDownload() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(asyncProfiler.execute(Mockito.startsWith("start,event=cpu,jfr,file="))).then(invocation -> {
+            String command = invocation.getArgument(0);
+            Files.write(Paths.get(command.substring(command.indexOf("file=") + "file=".length())),
+                    "FLR".getBytes(StandardCharsets.UTF_8));
+            return "Profiling started";
+        });
+
+        ResponseEntity<?> responseEntity = awaitResult(asyncProfilerWebEndpoint.record(0L, request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        RecordingStore.Recording recording = (RecordingStore.Recording) responseEntity.getBody();
+        assertEquals(3L, recording.getSize());
+        assertEquals(recording.getId(), asyncProfilerWebEndpoint.recordings().get(0).getId());
+        Mockito.verify(asyncProfiler).execute("stop");
+
+        responseEntity = asyncProfilerWebEndpoint.recording(recording.getId(), "jfr", null, request);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM, responseEntity.getHeaders().getContentType());
+        assertEquals("FLR", StreamUtils.copyToString(resource(responseEntity).getInputStream(),
+                StandardCharsets.UTF_8));
+
+        responseEntity = asyncProfilerWebEndpoint.recording(recording.getId(), "svg", null, request);
+        assertEquals(HttpStatus.BAD_REQUEST, responseEntity.getStatusCode());
+        responseEntity = asyncProfilerWebEndpoint.recording("unknown", "jfr", null, request);
+        assertEquals(HttpStatus.NOT_FOUND, responseEntity.getStatusCode());
+    }
+
+    @Test
+    public void multiEventCaptureRendersEachEvent() throws IOException {
+        AsyncProfiler nativeProfiler = null;
+        try {
+            nativeProfiler = AsyncProfiler.getInstance();
+        } catch (Throwable e) {
+            // no native library for this platform
+        }
+        Assumptions.assumeTrue(nativeProfiler != null, "AsyncProfiler is not available");
+        AsyncProfiler recorder = nativeProfiler;
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(request.getParameterMap()).thenReturn(buildParameterMap("event", "itimer,alloc=1k"));
+        // the mock starts real profiling, so that there is a recording to convert
+        Mockito.when(asyncProfiler.execute(Mockito.startsWith("start,event=itimer,alloc=1k,jfr,file=")))
+                .then(invocation -> recorder.execute(invocation.getArgument(0)));
+        Mockito.when(asyncProfiler.execute("stop")).then(invocation -> recorder.execute("stop"));
+
+        ResponseEntity<?> responseEntity = awaitResult(asyncProfilerWebEndpoint.executeAndCollectFlamegraph(0L, null,
+                request));
+
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        RecordingStore.Index index = (RecordingStore.Index) responseEntity.getBody();
+        assertEquals("itimer+alloc", index.getRecording().getEvent());
+        assertEquals(2, index.getViews().size());
+        assertEquals("alloc", index.getViews().get(1).getEvent());
+        assertEquals(HttpStatus.OK, asyncProfilerWebEndpoint.events(index.getRecording().getId(), request)
+                .getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, asyncProfilerWebEndpoint.events("unknown", request).getStatusCode());
+    }
+
+    @Test
+    public void summary() throws IOException {
+        WebRequest request = Mockito.mock(WebRequest.class);
+        Mockito.when(asyncProfiler.execute("dump,collapsed")).thenReturn("main;parse 10\nmain;write 5\n");
+        ResponseEntity<?> responseEntity = awaitResult(asyncProfilerWebEndpoint.summary(null, 1, "self", request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        ProfileSummary summary = (ProfileSummary) responseEntity.getBody();
+        assertEquals(15, summary.getSamples());
+        assertEquals(1, summary.getFrames().size());
+        assertEquals("parse", summary.getFrames().get(0).getFrame());
+
+        Mockito.when(asyncProfiler.execute("stop,collapsed")).thenReturn("main;parse 10\nmain;write 5\n");
+        responseEntity = awaitResult(asyncProfilerWebEndpoint.summary(0L, 1, "total", request));
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals("main", ((ProfileSummary) responseEntity.getBody()).getFrames().get(0).getFrame());
+        Mockito.verify(asyncProfiler).execute("start,event=cpu");
+    }
+
+    @Test
+    public void live() throws IOException {
+        assertEquals(HttpStatus.CONFLICT, asyncProfilerWebEndpoint.live("1s", null, 20, "self", null)
+                .getStatusCode());
+
+        WebRequest request = Mockito.mock(WebRequest.class);
+        asyncProfilerWebEndpoint.executeCommand("start", request);
+        Mockito.when(asyncProfiler.execute("dump,collapsed")).thenReturn("main;parse 10\n");
+        assertEquals(HttpStatus.BAD_REQUEST, asyncProfilerWebEndpoint.live("soon", null, 20, "self", null)
+                .getStatusCode());
+
+        ResponseEntity<?> responseEntity = asyncProfilerWebEndpoint.live("1s", null, 20, "self", null);
+        assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+        assertEquals(asyncProfilerWebEndpoint.sessions().get(0).getId(),
+                responseEntity.getHeaders().getFirst(AsyncProfilerWebEndpoint.HEADER_SESSION));
+        Mockito.verify(asyncProfiler, Mockito.timeout(10_000L)).execute("dump,collapsed");
+    }
+
+    private static Resource resource(ResponseEntity<?> responseEntity) {
+        assertInstanceOf(ResourceResponseBody.class, responseEntity.getBody());
+        return ((ResourceResponseBody) responseEntity.getBody()).getResource();
+    }
+
+    private ResponseEntity<?> awaitResult(DeferredResult<ResponseEntity<?>> deferredResult) {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (!deferredResult.hasResult()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for deferred result");
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+        return (ResponseEntity<?>) deferredResult.getResult();
+    }
+
     private Map<String, String[]> buildParameterMap(String ... parameters) {
         final Map<String, String[]> parameterMap = new LinkedHashMap<>();
         for (int i = 0; i < parameters.length; i += 2) {
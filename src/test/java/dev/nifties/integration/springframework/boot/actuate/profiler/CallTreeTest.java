@@ -0,0 +1,105 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CallTreeTest {
+
+    private static final String COLLAPSED = "main;run;parse 10\n"
+            + "main;run;parse;read 5\n"
+            + "main;run;write 3\n"
+            + "main;gc 2\r\n"
+            + "malformed line\n"
+            + "\n";
+
+    @Test
+    public void parseCollapsed() throws IOException {
+        CallTree tree = CallTree.parseCollapsed(COLLAPSED);
+        assertEquals(20, tree.getTotal(0));
+        assertEquals(6, tree.getNodeCount());
+        assertEquals(6, tree.getFrameCount());
+
+        StringBuilder out = new StringBuilder();
+        tree.writeCollapsed(out, 0);
+        List<String> lines = Arrays.asList(out.toString().split("\n"));
+        assertEquals(4, lines.size());
+        assertTrue(lines.contains("main;run;parse 10"));
+        assertTrue(lines.contains("main;run;parse;read 5"));
+        assertTrue(lines.contains("main;run;write 3"));
+        assertTrue(lines.contains("main;gc 2"));
+    }
+
+    @Test
+    public void topSelfAndTotal() {
+        CallTree tree = CallTree.parseCollapsed(COLLAPSED);
+        List<CallTree.FrameCount> topSelf = tree.topSelf(2);
+        assertEquals(2, topSelf.size());
+        assertEquals("parse", topSelf.get(0).getFrame());
+        assertEquals(10, topSelf.get(0).getSelf());
+        assertEquals(15, topSelf.get(0).getTotal());
+        assertEquals("read", topSelf.get(1).getFrame());
+
+        List<CallTree.FrameCount> topTotal = tree.topTotal(10);
+        assertEquals(6, topTotal.size());
+        assertEquals("main", topTotal.get(0).getFrame());
+        assertEquals(20, topTotal.get(0).getTotal());
+        assertEquals("run", topTotal.get(1).getFrame());
+        assertEquals(18, topTotal.get(1).getTotal());
+    }
+
+    @Test
+    public void recursiveFrameCountedOncePerStack() {
+        CallTree tree = CallTree.parseCollapsed("main;fib;fib;fib 7\nmain;fib 1\n");
+        CallTree.FrameCount fib = tree.topSelf(1).get(0);
+        assertEquals("fib", fib.getFrame());
+        assertEquals(8, fib.getTotal());
+        assertEquals(8, fib.getSelf());
+    }
+
+    @Test
+    public void merge() {
+        CallTree tree = CallTree.parseCollapsed(COLLAPSED);
+        tree.merge(CallTree.parseCollapsed("main;run;parse 10\nmain;idle 4\n"));
+        assertEquals(34, tree.getTotal(0));
+        assertEquals(7, tree.getNodeCount());
+        assertEquals(20, tree.topSelf(1).get(0).getSelf());
+
+        CallTree diff = new CallTree(2);
+        diff.merge(CallTree.parseCollapsed(COLLAPSED), 0, 0);
+        diff.merge(CallTree.parseCollapsed("main;run;parse 1\n"), 0, 1);
+        assertEquals(20, diff.getTotal(0));
+        assertEquals(1, diff.getTotal(1));
+        assertEquals(6, diff.getNodeCount());
+        assertEquals("parse", diff.top(1, 1, true).get(0).getFrame());
+    }
+
+    @Test
+    public void filter() {
+        CallTree tree = CallTree.parseCollapsed(COLLAPSED);
+        CallTree parsing = tree.include(Pattern.compile("^parse$"));
+        assertEquals(15, parsing.getTotal(0));
+        assertEquals(4, parsing.getNodeCount());
+
+        CallTree withoutRun = tree.exclude(Pattern.compile("run"));
+        assertEquals(2, withoutRun.getTotal(0));
+        assertEquals("gc", withoutRun.topSelf(1).get(0).getFrame());
+    }
+
+    @Test
+    public void largeProfile() {
+        StringBuilder collapsed = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            collapsed.append("main;worker").append(i % 100).append(";task").append(i).append(" 1000\n");
+        }
+        CallTree tree = CallTree.parseCollapsed(collapsed.toString());
+        assertEquals(20_000_000L, tree.getTotal(0));
+        assertEquals(1 + 100 + 20_000, tree.getNodeCount());
+        assertEquals(200_000L, tree.topTotal(2).get(1).getTotal());
+    }
+}
@@ -0,0 +1,295 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class ContinuousProfilerTest {
+
+    private static final int CHUNK_BYTES = 100;
+
+    @TempDir
+    Path directory;
+
+    private AsyncProfiler asyncProfiler;
+    private ProfilingSessionManager sessions;
+    private MutableClock clock;
+    private AsyncProfilerProperties.Continuous properties;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).then(invocation -> {
+            String command = invocation.getArgument(0);
+            int index = command.indexOf("file=");
+            if (command.startsWith("start") && index >= 0) {
+                Files.write(new File(command.substring(index + "file=".length())).toPath(), new byte[CHUNK_BYTES]);
+            }
+            return "OK";
+        });
+        sessions = new ProfilingSessionManager(asyncProfiler, new AsyncProfilerProperties.Sessions());
+        clock = new MutableClock(1_000_000L);
+        properties = new AsyncProfilerProperties.Continuous();
+        properties.setDirectory(directory.toFile());
+        properties.setOptions("interval=10ms");
+        properties.setChunkDuration(Duration.ofHours(1));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessions.destroy();
+    }
+
+    @Test
+    public void rotateAndQueryHistory() throws IOException {
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            assertTrue(profiler.isRunning());
+            assertEquals("continuous", sessions.getActiveSession().getOwner());
+            File partFile = new File(directory.toFile(), "chunk-1000000.jfr.part");
+            Mockito.verify(asyncProfiler).execute("start,event=cpu,interval=10ms,jfr,file=" + partFile.getAbsolutePath());
+            assertTrue(profiler.getChunks().isEmpty());
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            clock.advance(60_000L);
+            profiler.rotate();
+
+            List<ContinuousProfiler.Chunk> chunks = profiler.getChunks();
+            assertEquals(2, chunks.size());
+            assertEquals("chunk-1000000-1060000.jfr", chunks.get(0).getFile().getName());
+            assertEquals("chunk-1060000-1120000.jfr", chunks.get(1).getFile().getName());
+            assertFalse(partFile.exists());
+            assertEquals(2 * CHUNK_BYTES, profiler.getTotalBytes());
+
+            assertEquals(1, size(profiler.history(1_070_000L, 1_080_000L)));
+            assertEquals(2, size(profiler.history(1_000_000L, 1_100_000L)));
+            assertEquals(0, size(profiler.history(0L, 999_999L)));
+
+            // range reaching into the chunk being recorded rotates it
+            clock.advance(1_000L);
+            assertEquals(3, size(profiler.history(1_000_000L, clock.millis())));
+        } finally {
+            profiler.stop();
+        }
+        assertFalse(profiler.isRunning());
+        assertNull(sessions.getActiveSession());
+        // stopping completes the chunk started by the last rotation
+        assertEquals(4, profiler.getChunks().size());
+    }
+
+    @Test
+    public void evictBySize() throws IOException {
+        properties.setMaxSize(DataSize.ofBytes(2 * CHUNK_BYTES));
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            for (int i = 0; i < 5; i++) {
+                clock.advance(60_000L);
+                profiler.rotate();
+            }
+            List<ContinuousProfiler.Chunk> chunks = profiler.getChunks();
+            assertEquals(2, chunks.size());
+            assertEquals(1_180_000L, chunks.get(0).getStartMillis());
+            assertEquals(1_300_000L, chunks.get(1).getEndMillis());
+            assertEquals(3, directory.toFile().list((dir, name) -> name.startsWith("chunk-")).length);
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    @Test
+    public void pinnedChunksOutliveEviction() throws IOException {
+        properties.setMaxSize(DataSize.ofBytes(CHUNK_BYTES));
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            clock.advance(60_000L);
+            profiler.rotate();
+            ContinuousProfiler.History history = profiler.history(0L, 1_060_000L);
+            File pinned = history.getChunks().get(0).getFile();
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            assertNotEquals(pinned, profiler.getChunks().get(0).getFile());
+            assertEquals(CHUNK_BYTES, profiler.getTotalBytes());
+            assertTrue(pinned.exists());
+
+            history.close();
+            assertFalse(pinned.exists());
+            history.close();
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    @Test
+    public void evictByAge() throws IOException {
+        properties.setMaxAge(Duration.ofMinutes(2));
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            for (int i = 0; i < 5; i++) {
+                clock.advance(60_000L);
+                profiler.rotate();
+            }
+            List<ContinuousProfiler.Chunk> chunks = profiler.getChunks();
+            assertEquals(3, chunks.size());
+            assertEquals(1_180_000L, chunks.get(0).getEndMillis());
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    @Test
+    public void loadChunksFromPreviousRun() throws IOException {
+        Files.write(directory.resolve("chunk-10-20.jfr"), new byte[]{1, 2});
+        Files.write(directory.resolve("chunk-20-30.jfr"), new byte[]{3});
+        Files.write(directory.resolve("chunk-30.jfr.part"), new byte[]{4});
+
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            assertFalse(Files.exists(directory.resolve("chunk-30.jfr.part")));
+            List<ContinuousProfiler.Chunk> chunks;
+            try (ContinuousProfiler.History history = profiler.history(0L, 25L)) {
+                chunks = history.getChunks();
+            }
+            assertEquals(2, chunks.size());
+
+            ConcatenatedFileResource resource = ConcatenatedFileResource.open(
+                    Arrays.asList(chunks.get(0).getFile(), new File(directory.toFile(), "missing.jfr"),
+                            chunks.get(1).getFile()));
+            assertEquals(3L, resource.contentLength());
+            try (InputStream in = resource.getInputStream()) {
+                assertEquals(1, in.read());
+                assertEquals(2, in.read());
+                assertEquals(3, in.read());
+                assertEquals(-1, in.read());
+            }
+            assertThrows(IllegalStateException.class, resource::getInputStream);
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    @Test
+    public void governorRaisesIntervalThenPauses() throws IOException {
+        properties.getGovernor().setEnabled(true);
+        properties.getGovernor().setMaxInterval(Duration.ofMillis(100L));
+        // far more samples than a chunk could take within budget
+        Mockito.when(asyncProfiler.getSamples()).thenReturn(1_000_000_000L);
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            OverheadGovernor governor = profiler.getGovernor();
+            assertEquals(10_000_000L, governor.getBaseIntervalNanos());
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            assertEquals(100_000_000L, governor.getIntervalNanos());
+            File partFile = new File(directory.toFile(), "chunk-1060000.jfr.part");
+            Mockito.verify(asyncProfiler).execute("start,event=cpu,interval=100000000,jfr,file="
+                    + partFile.getAbsolutePath());
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            assertTrue(governor.isPaused());
+            assertNull(sessions.getActiveSession());
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            assertFalse(governor.isPaused());
+            assertEquals("continuous", sessions.getActiveSession().getOwner());
+            assertEquals(Arrays.asList("resume", "pause", "raise"), governor.getAdjustments().stream()
+                    .map(OverheadGovernor.Adjustment::getAction).collect(Collectors.toList()));
+            assertEquals(2, profiler.getChunks().size());
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    @Test
+    public void historyRotationDoesNotUpdateGovernor() throws IOException {
+        properties.getGovernor().setEnabled(true);
+        properties.getGovernor().setMaxInterval(Duration.ofMillis(100L));
+        Mockito.when(asyncProfiler.getSamples()).thenReturn(1_000_000_000L);
+        ContinuousProfiler profiler = new ContinuousProfiler(sessions, properties, clock);
+        profiler.start();
+        try {
+            OverheadGovernor governor = profiler.getGovernor();
+            for (int i = 0; i < 3; i++) {
+                clock.advance(1_000L);
+                assertEquals(i + 1, size(profiler.history(0L, Long.MAX_VALUE)));
+            }
+            assertTrue(governor.getAdjustments().isEmpty());
+            assertEquals(governor.getBaseIntervalNanos(), governor.getIntervalNanos());
+
+            clock.advance(60_000L);
+            profiler.rotate();
+            assertEquals(Collections.singletonList("raise"), governor.getAdjustments().stream()
+                    .map(OverheadGovernor.Adjustment::getAction).collect(Collectors.toList()));
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    private static int size(ContinuousProfiler.History history) {
+        try (ContinuousProfiler.History closed = history) {
+            return closed.getChunks().size();
+        }
+    }
+
+    private static final class MutableClock extends Clock {
+        private long millis;
+
+        MutableClock(long millis) {
+            this.millis = millis;
+        }
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DownloadStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void evictOldestOverBudget() throws IOException {
+        DownloadStore store = new DownloadStore(properties(Duration.ofHours(1), 10));
+        DownloadStore.Download first = store.keep(write(store, "12345"), "first.html", "text/html");
+        DownloadStore.Download second = store.keep(write(store, "12345"), "second.html", "text/html");
+        assertEquals(10L, store.getSize());
+
+        DownloadStore.Download third = store.keep(write(store, "1"), "third.html", "text/html");
+        assertNull(store.get(first.getId()));
+        assertFalse(first.getFile().exists());
+        assertNotNull(store.get(second.getId()));
+        assertEquals(third.getId(), store.list().get(0).getId());
+        assertEquals(6L, store.getSize());
+
+        // larger than the whole budget, left to be deleted once downloaded
+        File large = write(store, "12345678901");
+        assertNull(store.keep(large, "large.jfr", "application/octet-stream"));
+        assertTrue(large.exists());
+        assertEquals(2, store.list().size());
+
+        store.destroy();
+        assertFalse(second.getFile().exists());
+        assertEquals(0L, store.getSize());
+    }
+
+    @Test
+    public void expireAfterRetention() throws IOException, InterruptedException {
+        DownloadStore store = new DownloadStore(properties(Duration.ofMillis(50), 1024));
+        DownloadStore.Download download = store.keep(write(store, "content"), "flame.html", "text/html");
+        assertNotNull(store.get(download.getId()));
+        Thread.sleep(100L);
+        assertNull(store.get(download.getId()));
+        assertFalse(download.getFile().exists());
+
+        // retention disabled
+        store = new DownloadStore(properties(Duration.ZERO, 1024));
+        File file = write(store, "content");
+        assertNotEquals(directory.toFile(), file.getParentFile());
+        assertNull(store.keep(file, "flame.html", "text/html"));
+        file.delete();
+    }
+
+    @Test
+    public void deleteLeftoversOfPreviousRun() throws IOException {
+        File old = directory.resolve("async-profiler-old.html").toFile();
+        File recent = directory.resolve("async-profiler-recent.html").toFile();
+        File other = directory.resolve("other.html").toFile();
+        for (File file : Arrays.asList(old, recent, other)) {
+            Files.write(file.toPath(), new byte[1]);
+        }
+        long twoHoursAgo = System.currentTimeMillis() - Duration.ofHours(2).toMillis();
+        assertTrue(old.setLastModified(twoHoursAgo));
+        assertTrue(other.setLastModified(twoHoursAgo));
+
+        DownloadStore store = new DownloadStore(properties(Duration.ofHours(1), 1024));
+
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+        store.destroy();
+    }
+
+    @Test
+    public void purgeOnSchedule() throws IOException, InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            DownloadStore store = new DownloadStore(properties(Duration.ofMillis(50), 1024), scheduler);
+            DownloadStore.Download download = store.keep(write(store, "content"), "flame.html", "text/html");
+
+            // nothing looks the download up, the scheduled purge deletes it
+            long deadline = System.currentTimeMillis() + 10_000L;
+            while (download.getFile().exists()) {
+                assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for purge");
+                Thread.sleep(10L);
+            }
+            assertEquals(0L, store.getSize());
+            store.destroy();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void range() throws IOException {
+        DownloadStore store = new DownloadStore(properties(Duration.ofHours(1), 1024));
+        DownloadStore.Download download = store.keep(write(store, "0123456789"), "flame.html", "text/html");
+
+        assertNull(download.range(null, null));
+        assertNull(download.range("bytes=0-1,5-6", null));
+        assertNull(download.range("bits=0-1", null));
+        assertNull(download.range("bytes=2-5", "\"other\""));
+
+        DownloadStore.Range range = download.range("bytes=2-5", download.getETag());
+        assertEquals("bytes 2-5/10", range.toContentRange(download));
+        assertEquals("2345", read(download, range));
+        assertEquals("789", read(download, download.range("bytes=-3", null)));
+        assertEquals("89", read(download, download.range("bytes=8-100", null)));
+        assertFalse(download.range("bytes=10-", null).isSatisfiable());
+        assertEquals("bytes */10", download.range("bytes=10-", null).toContentRange(download));
+        store.destroy();
+    }
+
+    private AsyncProfilerProperties.Downloads properties(Duration retention, long maxSize) {
+        AsyncProfilerProperties.Downloads properties = new AsyncProfilerProperties.Downloads();
+        properties.setDirectory(directory.toFile());
+        properties.setRetention(retention);
+        properties.setMaxSize(DataSize.ofBytes(maxSize));
+        return properties;
+    }
+
+    private static File write(DownloadStore store, String content) throws IOException {
+        File file = store.createFile("test-", ".html");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(DownloadStore.Download download, DownloadStore.Range range) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        download.transferTo(range.getFirst(), range.getLength(), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
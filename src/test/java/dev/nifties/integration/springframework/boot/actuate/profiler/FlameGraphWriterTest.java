@@ -0,0 +1,50 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlameGraphWriterTest {
+
+    private final FlameGraphWriter writer = new FlameGraphWriter();
+
+    @Test
+    public void write() throws IOException {
+        CallTree tree = CallTree.parseCollapsed("main;run;parse 10\nmain;run;write 5\nmain;gc 5\n");
+        StringWriter out = new StringWriter();
+        writer.write(tree, 0, "CPU <profile>", out);
+        String html = out.toString();
+        assertTrue(html.contains("<title>CPU &lt;profile&gt;</title>"));
+        assertTrue(html.contains("f(0,0,20,0,'main')"));
+        // children are laid out one after another starting at the parent's left edge
+        assertTrue(html.contains("f(1,0,15,0,'run')"));
+        assertTrue(html.contains("f(2,10,5,5,'write')"));
+        assertTrue(html.contains("f(1,15,5,5,'gc')"));
+        assertFalse(html.contains("/*frames*/"));
+        assertTrue(html.trim().endsWith("</html>"));
+    }
+
+    @Test
+    public void writeDiff() throws IOException {
+        CallTree tree = new CallTree(2);
+        tree.addCollapsed("main;parse 10\nmain;write 10\n", 0);
+        tree.addCollapsed("main;parse 60\nmain;write 20\n", 1);
+        StringWriter out = new StringWriter();
+        writer.writeDiff(tree, 0, 1, "diff", out);
+        String html = out.toString();
+        // baseline normalized to 80 samples: parse 40 -> 60, write 40 -> 20
+        assertTrue(html.contains("'parse',20)"), html);
+        assertTrue(html.contains("'write',-20)"), html);
+        assertTrue(html.contains("f(0,0,80,0,'main',0)"), html);
+    }
+
+    @Test
+    public void escapeFrameNames() {
+        StringBuilder out = new StringBuilder();
+        FlameGraphWriter.appendJsString(out, "a'b\\c</script>");
+        assertEquals("'a\\'b\\\\c\\x3c/script>'", out.toString());
+    }
+}
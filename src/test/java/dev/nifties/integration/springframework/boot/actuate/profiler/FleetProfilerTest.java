@@ -0,0 +1,164 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fans out to peers served by a local HTTP server standing in for other instances.
+ */
+public class FleetProfilerTest {
+
+    private HttpServer server;
+    private ExecutorService handlers;
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startPeers() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/a/actuator/profiler", exchange -> {
+            queries.add(exchange.getRequestURI().getRawQuery());
+            byte[] body = "main;run;parse 10\nmain;run;read 5\n".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/b/actuator/profiler", exchange -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                out.write("main;run;parse 2\nmain;gc 3\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        // keeps responding slowly enough never to hit the read timeout
+        server.createContext("/slow/actuator/profiler", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 100; i++) {
+                    out.write("main;sleep 1\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    Thread.sleep(100L);
+                }
+            } catch (IOException | InterruptedException e) {
+                // disconnected
+            }
+        });
+        server.createContext("/c/actuator/profiler", exchange -> {
+            exchange.sendResponseHeaders(409, -1);
+            exchange.close();
+        });
+        // handlers run concurrently, so that a slow peer does not hold the others
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopPeers() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void mergePeersLeavingFailedOnesOut() throws Exception {
+        AsyncProfilerProperties.Fleet properties = new AsyncProfilerProperties.Fleet();
+        properties.setPeers(Arrays.asList(peer("a"), peer("b"), peer("c"),
+                URI.create("http://localhost:" + unusedPort() + "/actuator")));
+        properties.setConcurrency(2);
+        properties.setTimeout(Duration.ofSeconds(5));
+        FleetProfiler fleet = new FleetProfiler(properties);
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("event", new String[]{"wall"});
+        parameters.put("format", new String[]{"summary"});
+        try {
+            FleetProfiler.Result result = fleet.profile(1L, parameters).get();
+
+            assertEquals(2, result.getSucceeded());
+            assertEquals(4, result.getPeers().size());
+            assertEquals(15L, result.getPeers().get(0).getSamples());
+            assertEquals(5L, result.getPeers().get(1).getSamples());
+            assertEquals(409, result.getPeers().get(2).getStatus());
+            assertFalse(result.getPeers().get(3).isSucceeded());
+            assertEquals(0, result.getPeers().get(3).getStatus());
+
+            assertEquals(20L, result.getTree().getTotal(0));
+            StringBuilder collapsed = new StringBuilder();
+            result.getTree().writeCollapsed(collapsed, 0);
+            assertEquals("main;run;parse 12\nmain;run;read 5\nmain;gc 3\n", collapsed.toString());
+
+            FleetProfiler.Summary summary = FleetProfiler.Summary.of(result, 1, true);
+            assertEquals(20L, summary.getSamples());
+            assertEquals("parse", summary.getFrames().get(0).getFrame());
+
+            assertEquals(Arrays.asList("collapsed&duration=1&event=wall"), queries);
+        } finally {
+            fleet.destroy();
+        }
+    }
+
+    @Test
+    public void disconnectPeersPastDeadline() throws Exception {
+        AsyncProfilerProperties.Fleet properties = new AsyncProfilerProperties.Fleet();
+        properties.setPeers(Arrays.asList(peer("a"), peer("slow")));
+        properties.setConnectTimeout(Duration.ofMillis(500));
+        properties.setTimeout(Duration.ofMillis(500));
+        FleetProfiler fleet = new FleetProfiler(properties);
+        try {
+            long start = System.nanoTime();
+            FleetProfiler.Result result = fleet.profile(0L, new LinkedHashMap<>()).get(5L, TimeUnit.SECONDS);
+
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+            assertEquals(1, result.getSucceeded());
+            assertEquals("No response within 1000 ms", result.getPeers().get(1).getError());
+            // samples read before the deadline are not merged
+            assertEquals(15L, result.getTree().getTotal(0));
+        } finally {
+            fleet.destroy();
+        }
+    }
+
+    @Test
+    public void timeoutCoversQueuedPeers() {
+        AsyncProfilerProperties.Fleet properties = new AsyncProfilerProperties.Fleet();
+        properties.setPeers(Arrays.asList(peer("a"), peer("b"), peer("c")));
+        properties.setConcurrency(2);
+        FleetProfiler fleet = new FleetProfiler(properties);
+        try {
+            assertEquals(2 * (10_000L + 5_000L + 30_000L), fleet.getTimeoutMillis(10L));
+        } finally {
+            fleet.destroy();
+        }
+        assertNull(FleetProfiler.of(new AsyncProfilerProperties.Fleet()));
+    }
+
+    private URI peer(String name) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + "/" + name + "/actuator/");
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Converts a real recording, so it needs the native AsyncProfiler library for the current platform.
+ */
+public class JfrConverterTest {
+
+    @TempDir
+    Path directory;
+
+    private static volatile Object sink;
+
+    @Test
+    public void convertRecordedEvents() throws IOException {
+        AsyncProfiler asyncProfiler = null;
+        try {
+            asyncProfiler = AsyncProfiler.getInstance();
+        } catch (Throwable e) {
+            // no native library for this platform
+        }
+        Assumptions.assumeTrue(asyncProfiler != null, "AsyncProfiler is not available");
+        File jfr = new File(directory.toFile(), "recording.jfr");
+        asyncProfiler.execute("start,event=itimer,alloc=1k,jfr,file=" + jfr.getAbsolutePath());
+        try {
+            allocate();
+        } finally {
+            asyncProfiler.execute("stop");
+        }
+
+        CallTree tree = JfrConverter.convert(jfr, false);
+        assertEquals(JfrConverter.EVENTS.size(), tree.getColumns());
+        assertTrue(tree.getTotal(JfrConverter.column("alloc")) > 0);
+        StringBuilder collapsed = new StringBuilder();
+        tree.writeCollapsed(collapsed, JfrConverter.column("alloc"));
+        assertTrue(collapsed.toString().contains("JfrConverterTest.allocate;[B_[i]")
+                || collapsed.toString().contains("JfrConverterTest.allocate;[B_[k]"), collapsed.toString());
+
+        CallTree total = JfrConverter.convert(jfr, true);
+        assertTrue(total.getTotal(JfrConverter.column("alloc")) > tree.getTotal(JfrConverter.column("alloc")));
+    }
+
+    @Test
+    public void columnOfEvent() {
+        assertEquals(0, JfrConverter.column("cpu"));
+        assertEquals(0, JfrConverter.column("wall"));
+        assertEquals(1, JfrConverter.column("alloc"));
+        assertEquals(2, JfrConverter.column("lock"));
+    }
+
+    private static void allocate() {
+        long deadline = System.nanoTime() + 300_000_000L;
+        while (System.nanoTime() < deadline) {
+            sink = new byte[4096];
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LiveProfileTest {
+
+    private final ProfilingSession session = new ProfilingSession("1", "test", "start,event=cpu", 0L);
+
+    @Test
+    public void collapsedDelta() {
+        LiveProfile live = new LiveProfile(session, false, 20, true);
+
+        LiveProfile.Snapshot first = live.next("main;run;parse 10\nmain;run;read 5\n");
+        assertEquals(1L, first.getSequence());
+        assertEquals(15L, first.getSamples());
+        assertEquals("main;run;parse 10\nmain;run;read 5\n", first.getCollapsed());
+        assertNull(first.getFrames());
+
+        LiveProfile.Snapshot second = live.next("main;run;parse 12\nmain;run;read 5\nmain;gc 3\n");
+        assertEquals(2L, second.getSequence());
+        assertEquals(5L, second.getSamples());
+        // unchanged stacks are left out
+        assertEquals("main;run;parse 2\nmain;gc 3\n", second.getCollapsed());
+
+        LiveProfile.Snapshot idle = live.next("main;run;parse 12\nmain;run;read 5\nmain;gc 3\n");
+        assertEquals(0L, idle.getSamples());
+        assertEquals("", idle.getCollapsed());
+    }
+
+    @Test
+    public void summaryDelta() {
+        LiveProfile live = new LiveProfile(session, true, 1, true);
+        live.next("main;run;parse 10\nmain;run;read 5\n");
+
+        LiveProfile.Snapshot snapshot = live.next("main;run;parse 11\nmain;run;read 9\n");
+        assertNull(snapshot.getCollapsed());
+        assertEquals(5L, snapshot.getSamples());
+        List<CallTree.FrameCount> frames = snapshot.getFrames();
+        assertEquals(1, frames.size());
+        assertEquals("read", frames.get(0).getFrame());
+        assertEquals(4L, frames.get(0).getSelf());
+    }
+
+    @Test
+    public void dropTicksWhileBusy() {
+        LiveProfile live = new LiveProfile(session, false, 20, true);
+        assertTrue(live.tryAcquire());
+        assertFalse(live.tryAcquire());
+        assertFalse(live.tryAcquire());
+
+        LiveProfile.Snapshot snapshot = live.next("main 1\n");
+        live.release();
+        assertEquals(2, snapshot.getDropped());
+        assertTrue(live.tryAcquire());
+        assertEquals(0, live.next("main 2\n").getDropped());
+    }
+
+    @Test
+    public void throttleLargeProfiles() {
+        LiveProfile live = new LiveProfile(session, true, 1, true);
+        StringBuilder collapsed = new StringBuilder();
+        for (int i = 0; collapsed.length() < LiveProfile.BYTES_PER_SECOND; i++) {
+            collapsed.append("main;run;frame").append(i).append(" 1\n");
+        }
+        assertTrue(live.tryAcquire());
+        live.next(collapsed.toString());
+        live.release();
+
+        // at least a second has to pass before the next tick
+        assertFalse(live.tryAcquire());
+        assertFalse(live.isDue());
+        assertEquals(2, live.next(collapsed.toString()).getDropped());
+    }
+}
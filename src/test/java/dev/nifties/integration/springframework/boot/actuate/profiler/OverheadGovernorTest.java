@@ -0,0 +1,88 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OverheadGovernorTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1L);
+
+    private final AtomicLong profilerCpu = new AtomicLong();
+    private final AsyncProfilerProperties.Governor properties = new AsyncProfilerProperties.Governor();
+
+    private OverheadGovernor governor() {
+        properties.setSampleCost(Duration.ofNanos(10_000L));
+        properties.setMaxInterval(Duration.ofMillis(200L));
+        return new OverheadGovernor(properties, TimeUnit.MILLISECONDS.toNanos(10L), 2, profilerCpu::get,
+                Clock.fixed(Instant.EPOCH, ZoneOffset.UTC));
+    }
+
+    @Test
+    public void raiseWhenOverBudget() {
+        OverheadGovernor governor = governor();
+        // 2 cpus for a minute give 1.2 s of budget, 0.6 s of profiler threads and 120k samples of 10 us take 1.8 s
+        profilerCpu.set(600_000_000L);
+        governor.update(120_000L, MINUTE, true);
+        assertEquals(0.015d, governor.getOverhead(), 1e-9d);
+        assertEquals((long) Math.ceil(10_000_000L * 1.5d * 1.25d), governor.getIntervalNanos());
+        OverheadGovernor.Adjustment adjustment = governor.getAdjustments().get(0);
+        assertEquals("raise", adjustment.getAction());
+        assertEquals(10_000_000L, adjustment.getFromNanos());
+        assertFalse(governor.isPaused());
+    }
+
+    @Test
+    public void keepIntervalWithinBudget() {
+        OverheadGovernor governor = governor();
+        governor.update(60_000L, MINUTE, true);
+        assertEquals(0.005d, governor.getOverhead(), 1e-9d);
+        assertEquals(10_000_000L, governor.getIntervalNanos());
+        assertTrue(governor.getAdjustments().isEmpty());
+    }
+
+    @Test
+    public void pauseAtLongestIntervalThenResumeAndLower() {
+        OverheadGovernor governor = governor();
+        governor.update(10_000_000L, MINUTE, true);
+        assertEquals(200_000_000L, governor.getIntervalNanos());
+        governor.update(10_000_000L, MINUTE, true);
+        assertTrue(governor.isPaused());
+        governor.update(0L, MINUTE, false);
+        assertFalse(governor.isPaused());
+        assertEquals(200_000_000L, governor.getIntervalNanos());
+        governor.update(100L, MINUTE, true);
+        assertEquals(100_000_000L, governor.getIntervalNanos());
+        assertEquals("lower", governor.getAdjustments().get(0).getAction());
+        assertEquals("resume", governor.getAdjustments().get(1).getAction());
+        assertEquals("pause", governor.getAdjustments().get(2).getAction());
+    }
+
+    @Test
+    public void replaceIntervalOption() {
+        OverheadGovernor governor = governor();
+        assertEquals("interval=10000000", governor.applyTo(null));
+        assertEquals("threads,interval=10000000", governor.applyTo("interval=1ms,threads"));
+        assertEquals("threads,cstack=fp,interval=10000000", governor.applyTo("threads,interval=1ms,cstack=fp"));
+        assertEquals("1ms", OverheadGovernor.getIntervalOption("threads,interval=1ms"));
+        assertNull(OverheadGovernor.getIntervalOption("threads"));
+    }
+
+    @Test
+    public void governTimedEventsOnly() {
+        AsyncProfilerProperties.Continuous continuous = new AsyncProfilerProperties.Continuous();
+        assertNull(OverheadGovernor.of(continuous));
+        continuous.getGovernor().setEnabled(true);
+        continuous.setOptions("interval=5ms");
+        assertEquals(5_000_000L, OverheadGovernor.of(continuous).getBaseIntervalNanos());
+        continuous.setEvent("alloc");
+        assertNull(OverheadGovernor.of(continuous));
+    }
+}
@@ -0,0 +1,178 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.*;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PprofWriterTest {
+
+    @Test
+    public void writeDeduplicatedProfile() throws IOException {
+        CallTree tree = CallTree.parseCollapsed("main;parse;read 10\nmain;parse 5\nmain;write;read 3\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PprofWriter.write(tree, 0, "cpu", true, 1_000L, 2_000L, out);
+        Profile profile = Profile.parse(out.toByteArray());
+
+        assertEquals("", profile.strings.get(0));
+        assertEquals("cpu", profile.strings.get(profile.sampleType[0]));
+        assertEquals("nanoseconds", profile.strings.get(profile.sampleType[1]));
+        assertEquals(1_000L, profile.timeNanos);
+        assertEquals(2_000L, profile.durationNanos);
+        // every frame is written once, "read" is shared by two stacks
+        assertEquals(4, profile.functions.size());
+        assertEquals(4, profile.locations.size());
+        assertEquals(3 + 4, profile.strings.size());
+
+        Map<String, Long> samples = new LinkedHashMap<>();
+        for (Sample sample : profile.samples) {
+            String stack = sample.locations.stream()
+                    .map(location -> profile.strings.get(profile.functions.get(profile.locations.get(location))))
+                    .collect(Collectors.joining(";"));
+            samples.put(stack, sample.value);
+        }
+        Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("read;parse;main", 10L);
+        expected.put("parse;main", 5L);
+        expected.put("read;write;main", 3L);
+        assertEquals(expected, samples);
+    }
+
+    @Test
+    public void valueTypeOfEvent() {
+        assertArrayEquals(new String[]{"samples", "count"}, PprofWriter.valueType("alloc", false));
+        assertArrayEquals(new String[]{"alloc_space", "bytes"}, PprofWriter.valueType("alloc", true));
+        assertArrayEquals(new String[]{"delay", "nanoseconds"}, PprofWriter.valueType("lock", true));
+        assertArrayEquals(new String[]{"wall", "nanoseconds"}, PprofWriter.valueType("wall", true));
+    }
+
+    /**
+     * Just enough of profile.proto decoding to check what has been written.
+     */
+    private static final class Profile {
+        private final List<String> strings = new ArrayList<>();
+        private final List<Sample> samples = new ArrayList<>();
+        private final Map<Long, Long> locations = new HashMap<>();
+        private final Map<Long, Integer> functions = new HashMap<>();
+        private int[] sampleType;
+        private long timeNanos;
+        private long durationNanos;
+
+        static Profile parse(byte[] gzipped) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(StreamUtils.copyToByteArray(
+                    new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+            Profile profile = new Profile();
+            while (buffer.hasRemaining()) {
+                long tag = varint(buffer);
+                int field = (int) (tag >>> 3);
+                if ((tag & 7) == 0) {
+                    long value = varint(buffer);
+                    if (field == 9) {
+                        profile.timeNanos = value;
+                    } else if (field == 10) {
+                        profile.durationNanos = value;
+                    }
+                    continue;
+                }
+                ByteBuffer message = bytes(buffer);
+                switch (field) {
+                    case 1:
+                        Map<Integer, List<Long>> valueType = fields(message);
+                        profile.sampleType = new int[]{valueType.get(1).get(0).intValue(),
+                                valueType.get(2).get(0).intValue()};
+                        break;
+                    case 2:
+                        profile.samples.add(Sample.parse(message));
+                        break;
+                    case 4:
+                        Map<Integer, List<Long>> location = fields(message);
+                        profile.locations.put(location.get(1).get(0), location.get(-4).get(0));
+                        break;
+                    case 5:
+                        Map<Integer, List<Long>> function = fields(message);
+                        assertFalse(profile.functions.containsKey(function.get(1).get(0)), "duplicate function");
+                        profile.functions.put(function.get(1).get(0), function.get(2).get(0).intValue());
+                        break;
+                    case 6:
+                        byte[] value = new byte[message.remaining()];
+                        message.get(value);
+                        profile.strings.add(new String(value, "UTF-8"));
+                        break;
+                    default:
+                        fail("unexpected field " + field);
+                }
+            }
+            return profile;
+        }
+    }
+
+    private static final class Sample {
+        private final List<Long> locations = new ArrayList<>();
+        private long value;
+
+        static Sample parse(ByteBuffer message) {
+            Sample sample = new Sample();
+            while (message.hasRemaining()) {
+                int field = (int) (varint(message) >>> 3);
+                ByteBuffer packed = bytes(message);
+                while (packed.hasRemaining()) {
+                    if (field == 1) {
+                        sample.locations.add(varint(packed));
+                    } else {
+                        sample.value = varint(packed);
+                    }
+                }
+            }
+            return sample;
+        }
+    }
+
+    /**
+     * @return varint fields by number, first field of a nested message, e.g. function id of Location line, under
+     * negative number
+     */
+    private static Map<Integer, List<Long>> fields(ByteBuffer message) {
+        Map<Integer, List<Long>> fields = new HashMap<>();
+        while (message.hasRemaining()) {
+            long tag = varint(message);
+            int field = (int) (tag >>> 3);
+            if ((tag & 7) == 0) {
+                fields.computeIfAbsent(field, f -> new ArrayList<>()).add(varint(message));
+            } else {
+                fields.computeIfAbsent(-field, f -> new ArrayList<>()).addAll(fields(bytes(message)).get(1));
+            }
+        }
+        return fields;
+    }
+
+    private static ByteBuffer bytes(ByteBuffer buffer) {
+        int length = (int) varint(buffer);
+        ByteBuffer result = buffer.slice();
+        result.limit(length);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private static long varint(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class ProfileExporterTest {
+
+    private static final String DUMP = "main;run;parse 10\nmain;run;read 5\n";
+
+    @TempDir
+    Path directory;
+
+    private ProfilingSessionManager sessions;
+    private AsyncProfilerProperties.Export properties;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        AsyncProfiler asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).thenReturn("OK");
+        Mockito.when(asyncProfiler.execute("dump,collapsed")).thenReturn(DUMP);
+        sessions = new ProfilingSessionManager(asyncProfiler, new AsyncProfilerProperties.Sessions());
+        sessions.start("test", "start,event=cpu", 0L, -1L);
+        properties = new AsyncProfilerProperties.Export();
+        properties.setInterval(Duration.ofHours(1));
+        properties.setRetryBackoff(Duration.ofMillis(10));
+        properties.setSpillDirectory(directory.resolve("spill").toFile());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessions.destroy();
+    }
+
+    @Test
+    public void exportIntoFileSystem() throws Exception {
+        File target = directory.resolve("exports").toFile();
+        ProfileExporter exporter = new ProfileExporter(sessions, new FileSystemProfileSink(target), properties,
+                "orders", clock("2024-01-02T10:20:30Z"));
+        exporter.start();
+        try {
+            ProfileExport export = exporter.export();
+
+            assertEquals("orders/2024/01/02/10/profile-20240102T102030Z.collapsed.gz", export.getKey());
+            File file = new File(target, export.getKey());
+            await(file::isFile);
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+                assertEquals(DUMP, StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+            }
+        } finally {
+            exporter.stop();
+        }
+        assertFalse(exporter.isRunning());
+    }
+
+    @Test
+    public void skipWithoutActiveSession() throws Exception {
+        ProfilingSessionManager idle = new ProfilingSessionManager(Mockito.mock(AsyncProfiler.class),
+                new AsyncProfilerProperties.Sessions());
+        try {
+            ProfileExporter exporter = new ProfileExporter(idle, batch -> fail("Nothing to store"), properties,
+                    "orders");
+
+            assertNull(exporter.export());
+            assertEquals(0, exporter.getQueued());
+        } finally {
+            idle.destroy();
+        }
+    }
+
+    @Test
+    public void retryFailedBatch() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> stored = new CopyOnWriteArrayList<>();
+        ProfileExporter exporter = new ProfileExporter(sessions, batch -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("Unavailable");
+            }
+            batch.forEach(export -> stored.add(export.getKey()));
+        }, properties, "orders", clock("2024-01-02T10:20:30Z"));
+        exporter.start();
+        try {
+            exporter.export();
+
+            await(() -> !stored.isEmpty());
+            assertEquals(3, attempts.get());
+            assertEquals(1, stored.size());
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void spillWhenQueueIsFullAndUploadAfterRestart() throws Exception {
+        properties.setQueueSize(1);
+        MutableClock clock = new MutableClock(Instant.parse("2024-01-02T10:00:00Z"));
+        // not started, so that nothing is taken off the queue
+        ProfileExporter exporter = new ProfileExporter(sessions, batch -> {
+            throw new IOException("Unavailable");
+        }, properties, "orders", clock);
+        ProfileExport queued = exporter.export();
+        clock.advance(Duration.ofMinutes(1));
+        ProfileExport first = exporter.export();
+        clock.advance(Duration.ofMinutes(1));
+        ProfileExport second = exporter.export();
+
+        assertEquals(1, exporter.getQueued());
+        assertNull(queued.getFile());
+        assertEquals(2, exporter.getSpilled().size());
+        assertTrue(first.getFile().isFile());
+        assertEquals(2 * first.getSize(), exporter.getSpilledBytes());
+
+        properties.setMaxSpillSize(DataSize.ofBytes(exporter.getSpilledBytes()));
+        clock.advance(Duration.ofMinutes(1));
+        ProfileExport third = exporter.export();
+
+        assertFalse(first.getFile().exists());
+        assertEquals(2, exporter.getSpilled().size());
+        assertEquals(second.getKey(), exporter.getSpilled().get(0).getKey());
+
+        // queued export is spilled on stop, as the sink is unavailable, and all are picked up by the next run
+        properties.setMaxSpillSize(DataSize.ofMegabytes(1));
+        exporter.start();
+        exporter.stop();
+        List<String> stored = new CopyOnWriteArrayList<>();
+        properties.setBatchSize(2);
+        ProfileExporter restarted = new ProfileExporter(sessions,
+                batch -> batch.forEach(export -> stored.add(export.getKey())), properties, "orders", clock);
+        restarted.start();
+        try {
+            await(() -> stored.size() == 3);
+            assertTrue(stored.containsAll(Arrays.asList(queued.getKey(), second.getKey(),
+                    third.getKey())));
+            await(() -> restarted.getSpilled().isEmpty());
+            assertFalse(third.getFile().exists());
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    public void exportContinuousProfilingHistory() throws Exception {
+        AsyncProfiler asyncProfiler = null;
+        try {
+            asyncProfiler = AsyncProfiler.getInstance();
+        } catch (Throwable e) {
+            // no native library for this platform
+        }
+        Assumptions.assumeTrue(asyncProfiler != null, "AsyncProfiler is not available");
+        ProfilingSessionManager profiling = new ProfilingSessionManager(asyncProfiler,
+                new AsyncProfilerProperties.Sessions());
+        AsyncProfilerProperties.Continuous continuous = new AsyncProfilerProperties.Continuous();
+        continuous.setEvent("itimer");
+        continuous.setDirectory(directory.resolve("continuous").toFile());
+        ContinuousProfiler continuousProfiler = new ContinuousProfiler(profiling, continuous);
+        // ahead of the chunks, so that the export covers the chunk it rotates as a whole
+        ProfileExporter exporter = new ProfileExporter(profiling, continuousProfiler, batch -> {
+        }, properties, "orders", Clock.offset(Clock.systemUTC(), Duration.ofMinutes(1)));
+        continuousProfiler.start();
+        try {
+            burn(300L);
+            continuousProfiler.rotate();
+            burn(300L);
+            continuousProfiler.rotate();
+            burn(300L);
+            ProfileExport export = exporter.export();
+
+            // the profiler is restarted for every chunk, so a dump would only hold samples of the last one
+            List<ContinuousProfiler.Chunk> chunks = continuousProfiler.getChunks();
+            assertEquals(3, chunks.size());
+            long samples = 0L;
+            for (ContinuousProfiler.Chunk chunk : chunks) {
+                long chunkSamples = JfrConverter.convert(chunk.getFile(), false).getTotal(0);
+                assertTrue(chunkSamples > 0L);
+                samples += chunkSamples;
+            }
+            assertTrue(export.getKey().endsWith(".collapsed.gz"), export.getKey());
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(export.getBytes()))) {
+                CallTree exported = CallTree.parseCollapsed(StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+                assertEquals(samples, exported.getTotal(0));
+            }
+        } finally {
+            continuousProfiler.stop();
+            profiling.destroy();
+        }
+    }
+
+    private static void burn(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long value = 0L;
+        while (System.nanoTime() < deadline) {
+            value += Long.numberOfTrailingZeros(value + System.nanoTime());
+        }
+        assertTrue(value >= 0L);
+    }
+
+    private static Clock clock(String instant) {
+        return Clock.fixed(Instant.parse(instant), ZoneOffset.UTC);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10L);
+        }
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private Instant instant;
+
+        MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
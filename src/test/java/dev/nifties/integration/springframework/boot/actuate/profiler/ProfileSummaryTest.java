@@ -0,0 +1,51 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileSummaryTest {
+
+    private static final String COLLAPSED = "main;run;parse 10\n"
+            + "main;run;parse;read 5\n"
+            + "main;fib;fib;fib 4\n"
+            + "garbage\n";
+
+    @Test
+    public void bySelf() {
+        ProfileSummary summary = ProfileSummary.of(COLLAPSED, 2, true);
+        assertEquals(19, summary.getSamples());
+        List<CallTree.FrameCount> frames = summary.getFrames();
+        assertEquals(2, frames.size());
+        assertEquals("parse", frames.get(0).getFrame());
+        assertEquals(10, frames.get(0).getSelf());
+        assertEquals(15, frames.get(0).getTotal());
+        assertEquals("read", frames.get(1).getFrame());
+    }
+
+    @Test
+    public void byTotal() {
+        ProfileSummary summary = ProfileSummary.of(COLLAPSED, 10, false);
+        List<CallTree.FrameCount> frames = summary.getFrames();
+        assertEquals("main", frames.get(0).getFrame());
+        assertEquals(19, frames.get(0).getTotal());
+        CallTree.FrameCount fib = frames.stream().filter(f -> f.getFrame().equals("fib")).findFirst().get();
+        // recursive frame is counted once per stack
+        assertEquals(4, fib.getTotal());
+        assertEquals(4, fib.getSelf());
+    }
+
+    @Test
+    public void matchesCallTree() {
+        StringBuilder collapsed = new StringBuilder();
+        for (int i = 0; i < 5_000; i++) {
+            collapsed.append("main;worker").append(i % 7).append(";task").append(i % 13).append(' ').append(i)
+                    .append('\n');
+        }
+        List<CallTree.FrameCount> expected = CallTree.parseCollapsed(collapsed.toString()).topTotal(5);
+        List<CallTree.FrameCount> actual = ProfileSummary.of(collapsed.toString(), 5, false).getFrames();
+        assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,145 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class ProfilerMetricsTest {
+
+    private AsyncProfiler asyncProfiler;
+    private MeterRegistry registry;
+    private ProfilingSessionManager sessions;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).thenReturn("OK");
+        Mockito.when(asyncProfiler.getSamples()).thenReturn(42L);
+        registry = new SimpleMeterRegistry();
+        sessions = new ProfilingSessionManager(asyncProfiler, new AsyncProfilerProperties.Sessions(), registry);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessions.destroy();
+    }
+
+    @Test
+    public void sessionsAndCommands() throws Exception {
+        ProfilingSession session = sessions.start("alice", "start,event=wall", 0L, 0L);
+        assertEquals(1, registry.get("profiler.sessions.active").tag("event", "wall").longTaskTimer().activeTasks());
+        assertEquals(42d, registry.get("profiler.samples").gauge().value());
+
+        sessions.dump("dump,collapsed");
+        sessions.stop(session.getId(), "stop,file=/tmp/profile.html");
+
+        assertEquals(0, registry.get("profiler.sessions.active").tag("event", "wall").longTaskTimer().activeTasks());
+        assertEquals(1L, registry.get("profiler.sessions").tags("event", "wall", "state", "stopped").timer().count());
+        assertEquals(1L, registry.get("profiler.command").tags("operation", "dump", "outcome", "success").timer()
+                .count());
+        assertEquals(1L, registry.get("profiler.command").tags("operation", "stop", "outcome", "success").timer()
+                .count());
+    }
+
+    @Test
+    public void failedCommand() throws Exception {
+        Mockito.when(asyncProfiler.execute("bogus")).thenThrow(new IllegalArgumentException("Unknown command"));
+        assertThrows(IllegalArgumentException.class, () -> sessions.execute("bogus"));
+        assertEquals(1L, registry.get("profiler.command").tags("operation", "other", "outcome", "failure").timer()
+                .count());
+    }
+
+    @Test
+    public void meterResourceDownload() throws IOException {
+        byte[] content = "a;b 1\n".getBytes(StandardCharsets.UTF_8);
+        ResponseEntity<?> response = MeteredResponse.of(
+                ResponseEntity.ok().body(new ByteArrayResource(content)), sessions.getMetrics());
+        Resource resource = (Resource) response.getBody();
+        assertNotNull(resource);
+        assertEquals(content.length, resource.contentLength());
+        try (InputStream in = resource.getInputStream()) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        }
+
+        assertEquals(1L, registry.get("profiler.download").tag("encoding", "identity").timer().count());
+        assertEquals(content.length, registry.get("profiler.download.bytes").summary().totalAmount());
+    }
+
+    @Test
+    public void meterStreamingDownload() throws IOException {
+        StreamingResponseBody body = out -> out.write(new byte[100]);
+        ResponseEntity<?> response = MeteredResponse.of(
+                ResponseEntity.ok().header(HttpHeaders.CONTENT_ENCODING, "gzip").body(body), sessions.getMetrics());
+        ((StreamingResponseBody) response.getBody()).writeTo(new ByteArrayOutputStream());
+
+        assertEquals(1L, registry.get("profiler.download").tag("encoding", "gzip").timer().count());
+        assertEquals(100d, registry.get("profiler.download.bytes").tag("encoding", "gzip").summary().totalAmount());
+    }
+
+    @Test
+    public void keptDownloadsDiskSpace(@TempDir Path directory) throws IOException {
+        AsyncProfilerProperties.Downloads properties = new AsyncProfilerProperties.Downloads();
+        properties.setDirectory(directory.toFile());
+        DownloadStore downloads = new DownloadStore(properties);
+        sessions.getMetrics().bind(downloads);
+        File file = downloads.createFile("test-", ".html");
+        Files.write(file.toPath(), new byte[100]);
+        downloads.keep(file, "flame.html", "text/html");
+
+        assertEquals(100d, registry.get("profiler.temp.disk").gauge().value());
+        downloads.destroy();
+        assertEquals(0d, registry.get("profiler.temp.disk").gauge().value());
+    }
+
+    @Test
+    public void nativeProfilerThreadCpu(@TempDir Path tasks) throws IOException {
+        thread(tasks, "1", "Async-profiler", 150L, 50L);
+        thread(tasks, "2", "async-profiler-", 1_000L, 1_000L);
+        thread(tasks, "3", "main", 1_000L, 1_000L);
+
+        assertEquals(2d, new ProfilerMetrics.ThreadCpu(tasks.toFile()).seconds());
+    }
+
+    private static void thread(Path tasks, String id, String name, long userTicks, long systemTicks)
+            throws IOException {
+        Path thread = Files.createDirectory(tasks.resolve(id));
+        Files.write(thread.resolve("comm"), (name + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(thread.resolve("stat"), (id + " (" + name + ") S 1 1 1 0 -1 0 0 0 0 0 " + userTicks + " "
+                + systemTicks + " 0 0 20 0 1 0\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void disabledWithoutRegistry() {
+        ProfilingSessionManager unmetered = new ProfilingSessionManager(asyncProfiler,
+                new AsyncProfilerProperties.Sessions());
+        try {
+            ResponseEntity<?> response = ResponseEntity.ok(new ByteArrayResource(new byte[1]));
+            assertSame(ProfilerMetrics.NONE, unmetered.getMetrics());
+            assertSame(response, MeteredResponse.of(response, unmetered.getMetrics()));
+        } finally {
+            unmetered.destroy();
+        }
+    }
+}
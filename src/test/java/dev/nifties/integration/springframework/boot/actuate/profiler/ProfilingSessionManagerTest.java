@@ -0,0 +1,133 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class ProfilingSessionManagerTest {
+
+    private AsyncProfiler asyncProfiler;
+    private AsyncProfilerProperties.Sessions properties;
+    private ProfilingSessionManager sessions;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).thenReturn("OK");
+        properties = new AsyncProfilerProperties.Sessions();
+        properties.setHistory(2);
+        sessions = new ProfilingSessionManager(asyncProfiler, properties);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessions.destroy();
+    }
+
+    @Test
+    public void startConflict() throws Exception {
+        ProfilingSession session = sessions.start("alice", "start,event=wall,alloc", 0L, 0L);
+        assertEquals("wall+alloc", session.getEvent());
+        assertSame(session, sessions.getActiveSession());
+
+        assertThrows(ProfilingSessionConflictException.class, () -> sessions.start("bob", "start", 0L, 0L));
+        assertThrows(ProfilingSessionConflictException.class, () -> sessions.stop("unknown", "stop"));
+        Mockito.verify(asyncProfiler, Mockito.times(1)).execute(Mockito.startsWith("start"));
+
+        sessions.stop(session.getId(), "stop");
+        assertEquals(ProfilingSession.State.STOPPED, session.getState());
+        assertNotNull(session.getEndTime());
+        assertNull(sessions.getActiveSession());
+        assertEquals("bob", sessions.start("bob", "start", 0L, 0L).getOwner());
+    }
+
+    @Test
+    public void pinnedSessionIsStoppedByIdOnly() throws Exception {
+        ProfilingSession session = sessions.start("continuous", "start,event=cpu", 0L, -1L);
+        assertEquals(0L, session.getTtlMillis());
+
+        assertThrows(ProfilingSessionConflictException.class, () -> sessions.stop(null, "stop"));
+        assertSame(session, sessions.getActiveSession());
+        Mockito.verify(asyncProfiler, Mockito.never()).execute("stop");
+
+        sessions.stop(session.getId(), "stop");
+        assertEquals(ProfilingSession.State.STOPPED, session.getState());
+    }
+
+    @Test
+    public void startFailureReleasesSlot() throws Exception {
+        Mockito.when(asyncProfiler.execute("start")).thenThrow(new IllegalStateException("Profiler already started"));
+        assertThrows(IllegalStateException.class, () -> sessions.start("alice", "start", 0L, 0L));
+        assertNull(sessions.getActiveSession());
+        assertNotNull(sessions.start("bob", "start,event=cpu", 0L, 0L));
+    }
+
+    @Test
+    public void waitForActiveSession() throws Exception {
+        ProfilingSession first = sessions.start("alice", "start", 0L, 0L);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ProfilingSession> second = executor.submit(() -> sessions.start("bob", "start", 10_000L, 0L));
+            Thread.sleep(100L);
+            assertFalse(second.isDone());
+
+            sessions.stop(first.getId(), "stop");
+            assertEquals("bob", second.get(5, TimeUnit.SECONDS).getOwner());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentDumps() throws Exception {
+        CountDownLatch dumping = new CountDownLatch(2);
+        Mockito.when(asyncProfiler.execute("collapsed")).then(invocation -> {
+            dumping.countDown();
+            // both dumps have to be in progress at the same time to get through
+            return dumping.await(5, TimeUnit.SECONDS) ? "OK" : "TIMEOUT";
+        });
+        sessions.start("alice", "start", 0L, 0L);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> sessions.dump("collapsed"));
+            Future<String> second = executor.submit(() -> sessions.dump("collapsed"));
+            assertEquals("OK", first.get(10, TimeUnit.SECONDS));
+            assertEquals("OK", second.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void expireAbandonedSession() throws Exception {
+        ProfilingSession session = sessions.start("alice", "start", 0L, 1L);
+        Thread.sleep(10L);
+        sessions.expireAbandoned();
+        assertEquals(ProfilingSession.State.EXPIRED, session.getState());
+        Mockito.verify(asyncProfiler).execute("stop");
+
+        ProfilingSession continuous = sessions.start("continuous", "start", 0L, -1L);
+        Thread.sleep(10L);
+        sessions.expireAbandoned();
+        assertEquals(ProfilingSession.State.ACTIVE, continuous.getState());
+    }
+
+    @Test
+    public void history() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            ProfilingSession session = sessions.start("owner" + i, "start", 0L, 0L);
+            sessions.stop(session.getId(), "stop");
+        }
+        assertEquals(2, sessions.getSessions().size());
+    }
+}
@@ -0,0 +1,194 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.mockito.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ReactiveAsyncProfilerWebEndpointTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Mock
+    private AsyncProfiler asyncProfiler;
+
+    private ProfilingSessionManager sessions;
+
+    private ReactiveAsyncProfilerWebEndpoint endpoint;
+
+    @BeforeAll
+    public void initMocks() {
+        MockitoAnnotations.initMocks(this);
+        AsyncProfilerProperties properties = new AsyncProfilerProperties();
+        sessions = new ProfilingSessionManager(asyncProfiler, properties.getSessions());
+        endpoint = new ReactiveAsyncProfilerWebEndpoint(sessions, properties);
+    }
+
+    @AfterAll
+    public void destroyEndpoint() {
+        endpoint.destroy();
+        sessions.destroy();
+    }
+
+    @AfterEach
+    public void resetMocks() {
+        sessions.getSessions().stream()
+                .filter(session -> session.getState() == ProfilingSession.State.ACTIVE)
+                .forEach(session -> endpoint.stopSession(session.getId()).block(TIMEOUT));
+        Mockito.reset(asyncProfiler);
+    }
+
+    @Test
+    public void executeCommand() throws IOException {
+        ResponseEntity<String> response = endpoint.executeCommand("start", exchange("/start?event=wall"))
+                .block(TIMEOUT);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNotNull(response.getHeaders().getFirst(AsyncProfilerWebEndpoint.HEADER_SESSION));
+        Mockito.verify(asyncProfiler).execute("start,event=wall");
+
+        response = endpoint.executeCommand("start", exchange("/start")).block(TIMEOUT);
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+
+        response = endpoint.executeCommand("start", exchange("/start?uri=/orders")).block(TIMEOUT);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void rejectInvalidWait() throws IOException {
+        ResponseEntity<String> response = endpoint.executeCommand("start", exchange("/start?wait=abc")).block(TIMEOUT);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        MockServerWebExchange exchange = exchange("/?wait=abc");
+        endpoint.executeAndCollectFlamegraph(1L, null, exchange).block(TIMEOUT);
+        assertEquals(HttpStatus.BAD_REQUEST, exchange.getResponse().getStatusCode());
+        Mockito.verify(asyncProfiler, Mockito.never()).execute(ArgumentMatchers.anyString());
+    }
+
+    @Test
+    public void collectFlameGraph() throws IOException {
+        AtomicReference<String> file = new AtomicReference<>();
+        Mockito.when(asyncProfiler.execute(ArgumentMatchers.startsWith("dump,file="))).then(invocation -> {
+            String command = invocation.getArgument(0);
+            file.set(command.substring("dump,file=".length()));
+            Files.write(Paths.get(file.get()), "<html/>".getBytes(StandardCharsets.UTF_8));
+            return "OK";
+        });
+
+        MockServerWebExchange exchange = exchange("/dump");
+        endpoint.collectFlameGraph("dump", null, exchange).block(TIMEOUT);
+        assertEquals(MediaType.TEXT_HTML, exchange.getResponse().getHeaders().getContentType());
+        assertEquals("<html/>", exchange.getResponse().getBodyAsString().block(TIMEOUT));
+        // output is kept for resumed downloads
+        assertTrue(Files.exists(Paths.get(file.get())));
+        String id = exchange.getResponse().getHeaders().getFirst(AsyncProfilerWebEndpoint.HEADER_DOWNLOAD);
+        assertNotNull(id);
+
+        exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/downloads/" + id)
+                .header(HttpHeaders.RANGE, "bytes=1-"));
+        endpoint.download(id, exchange).block(TIMEOUT);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, exchange.getResponse().getStatusCode());
+        assertEquals("bytes 1-6/7", exchange.getResponse().getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals("html/>", exchange.getResponse().getBodyAsString().block(TIMEOUT));
+
+        exchange = exchange("/downloads/unknown");
+        endpoint.download("unknown", exchange).block(TIMEOUT);
+        assertEquals(HttpStatus.NOT_FOUND, exchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void executeAndCollectText() throws IOException {
+        Mockito.when(asyncProfiler.execute("stop,collapsed")).thenReturn("main;run 10\n");
+
+        MockServerWebExchange exchange = exchange("/?collapsed");
+        endpoint.executeAndCollectFlamegraph(0L, null, exchange).block(TIMEOUT);
+        assertEquals("main;run 10\n", exchange.getResponse().getBodyAsString().block(TIMEOUT));
+        InOrder inOrder = Mockito.inOrder(asyncProfiler);
+        inOrder.verify(asyncProfiler).execute("start,collapsed");
+        inOrder.verify(asyncProfiler).execute("stop,collapsed");
+    }
+
+    @Test
+    public void cancelledCaptureIsStopped() throws IOException {
+        Disposable capture = endpoint.executeAndCollectFlamegraph(60L, null, exchange("/")).subscribe();
+        Mockito.verify(asyncProfiler, Mockito.timeout(TIMEOUT.toMillis())).execute("start,event=cpu");
+
+        capture.dispose();
+        Mockito.verify(asyncProfiler, Mockito.timeout(TIMEOUT.toMillis())).execute("stop");
+        assertNull(sessions.getActiveSession());
+    }
+
+    @Test
+    public void recordAndDownload() throws IOException {
+        Mockito.when(asyncProfiler.execute(Mockito.startsWith("start,event=cpu,jfr,file="))).then(invocation -> {
+            String command = invocation.getArgument(0);
+            Files.write(Paths.get(command.substring(command.indexOf("file=") + "file=".length())),
+                    "FLR".getBytes(StandardCharsets.UTF_8));
+            return "Profiling started";
+        });
+
+        ResponseEntity<?> response = endpoint.record(0L, exchange("/recordings")).block(TIMEOUT);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        RecordingStore.Recording recording = (RecordingStore.Recording) response.getBody();
+        assertEquals(recording.getId(), endpoint.recordings().get(0).getId());
+
+        MockServerWebExchange exchange = exchange("/recordings/" + recording.getId());
+        endpoint.recording(recording.getId(), "jfr", null, exchange).block(TIMEOUT);
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM, exchange.getResponse().getHeaders().getContentType());
+        assertEquals("FLR", exchange.getResponse().getBodyAsString().block(TIMEOUT));
+        // stored recording outlives its download
+        assertTrue(recording.getSize() > 0);
+
+        exchange = exchange("/recordings/" + recording.getId());
+        endpoint.recording(recording.getId(), "svg", null, exchange).block(TIMEOUT);
+        assertEquals(HttpStatus.BAD_REQUEST, exchange.getResponse().getStatusCode());
+
+        exchange = exchange("/recordings/unknown");
+        endpoint.recording("unknown", "jfr", null, exchange).block(TIMEOUT);
+        assertEquals(HttpStatus.NOT_FOUND, exchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void live() throws IOException {
+        ResponseEntity<Flux<ServerSentEvent<Object>>> response = endpoint.live("1s", null, 20, "self", null);
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals("error", response.getBody().blockFirst(TIMEOUT).event());
+
+        endpoint.executeCommand("start", exchange("/start")).block(TIMEOUT);
+        Mockito.when(asyncProfiler.execute("dump,collapsed"))
+                .thenReturn("main;parse 10\n", "main;parse 12\nmain;write 1\n");
+        List<ServerSentEvent<Object>> events = endpoint.live("1s", "summary", 1, "self", null).getBody()
+                .take(2).collectList().block(TIMEOUT);
+        LiveProfile.Snapshot second = (LiveProfile.Snapshot) events.get(1).data();
+        assertEquals("2", events.get(1).id());
+        assertEquals(3L, second.getSamples());
+        assertEquals("parse", second.getFrames().get(0).getFrame());
+
+        // stream completes once the session finishes
+        Flux<ServerSentEvent<Object>> stream = endpoint.live("1s", null, 20, "self", null).getBody();
+        endpoint.stopSession(sessions.getActiveSession().getId()).block(TIMEOUT);
+        assertTrue(stream.collectList().block(TIMEOUT).isEmpty());
+    }
+
+    private static MockServerWebExchange exchange(String uri) {
+        return MockServerWebExchange.from(MockServerHttpRequest.get(uri));
+    }
+}
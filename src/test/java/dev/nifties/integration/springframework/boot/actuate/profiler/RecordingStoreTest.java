@@ -0,0 +1,88 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Renders a real multi-event recording, so it needs the native AsyncProfiler library for the current platform.
+ */
+public class RecordingStoreTest {
+
+    private static final String COMMAND = "start,event=itimer,alloc=1k";
+
+    @TempDir
+    Path directory;
+
+    private static volatile Object sink;
+
+    private RecordingStore store;
+
+    @BeforeEach
+    public void setUp() {
+        AsyncProfilerProperties.Recordings properties = new AsyncProfilerProperties.Recordings();
+        properties.setDirectory(directory.toFile());
+        store = new RecordingStore(properties, new FlameGraphWriter());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        store.destroy();
+    }
+
+    @Test
+    public void renderAllEventsInOnePass() throws IOException {
+        AsyncProfiler asyncProfiler = null;
+        try {
+            asyncProfiler = AsyncProfiler.getInstance();
+        } catch (Throwable e) {
+            // no native library for this platform
+        }
+        Assumptions.assumeTrue(asyncProfiler != null, "AsyncProfiler is not available");
+        RecordingStore.Recording recording = store.prepare();
+        asyncProfiler.execute(COMMAND + ",jfr,file=" + recording.getFile().getAbsolutePath());
+        try {
+            allocate();
+        } finally {
+            asyncProfiler.execute("stop");
+        }
+        store.add(recording, new ProfilingSession("1", "test", COMMAND, -1L));
+
+        RecordingStore.Index index = store.renderEvents(recording, false);
+
+        assertSame(recording, index.getRecording());
+        List<String> events = index.getViews().stream().map(RecordingStore.View::getEvent)
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("cpu", "alloc"), events);
+        RecordingStore.View alloc = index.getViews().get(1);
+        assertEquals(JfrConverter.convert(recording.getFile(), false).getTotal(JfrConverter.column("alloc")),
+                alloc.getSamples());
+        assertTrue(alloc.getSamples() > 0);
+        assertEquals("recordings/" + recording.getId() + "?format=html&event=alloc", alloc.getPath());
+        // flame graphs are cached under the keys of on demand conversions
+        ArtifactCache.Artifact artifact = store.render(recording, RecordingStore.FORMAT_HTML, "alloc", false);
+        assertTrue(artifact.isCached());
+        assertEquals(alloc.getSize(), artifact.getSize());
+        assertSame(index, store.renderEvents(recording, false));
+
+        RecordingStore.Index total = store.renderEvents(recording, true);
+        assertNotSame(index, total);
+        assertTrue(total.getViews().get(1).getSamples() > alloc.getSamples());
+        assertTrue(total.getViews().get(1).getPath().endsWith("&total"));
+    }
+
+    private static void allocate() {
+        long deadline = System.nanoTime() + 300_000_000L;
+        while (System.nanoTime() < deadline) {
+            sink = new byte[4096];
+        }
+    }
+}
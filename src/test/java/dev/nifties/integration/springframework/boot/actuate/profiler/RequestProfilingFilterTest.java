@@ -0,0 +1,119 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.mockito.Mockito;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class RequestProfilingFilterTest {
+
+    private AsyncProfiler asyncProfiler;
+    private ProfilingSessionManager sessions;
+    private ScheduledExecutorService scheduler;
+    private RequestSelector selector;
+    private RequestProfilingFilter filter;
+    private ServletResponse response;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).thenReturn("OK");
+        sessions = new ProfilingSessionManager(asyncProfiler, new AsyncProfilerProperties.Sessions());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        selector = new RequestSelector(sessions.getLoader(), scheduler);
+        filter = new RequestProfilingFilter(selector);
+        response = Mockito.mock(ServletResponse.class);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.shutdownNow();
+        sessions.destroy();
+    }
+
+    @Test
+    public void passThroughWithoutSelection() throws Exception {
+        FilterChain chain = Mockito.mock(FilterChain.class);
+        HttpServletRequest request = request("/orders/1", null);
+        filter.doFilter(request, response, chain);
+        Mockito.verify(chain).doFilter(request, response);
+        Mockito.verify(asyncProfiler, Mockito.never()).addThread(any());
+    }
+
+    @Test
+    public void profileMatchingRequests() throws Exception {
+        ProfilingSession session = sessions.start("alice", "start,event=cpu,filter", 0L, 0L);
+        selector.select(session, new RequestSelector.Criteria("/orders/.*", null, 0L));
+
+        Thread thread = Thread.currentThread();
+        FilterChain chain = (request, response) -> Mockito.verify(asyncProfiler, Mockito.atLeastOnce())
+                .addThread(thread);
+        filter.doFilter(request("/orders/1", "/orders/{id}"), response, chain);
+        filter.doFilter(request("/orders/2", "/orders/{id}"), response, chain);
+        filter.doFilter(request("/health", "/health"), response, Mockito.mock(FilterChain.class));
+        Mockito.verify(asyncProfiler, Mockito.times(2)).addThread(thread);
+        Mockito.verify(asyncProfiler, Mockito.times(2)).removeThread(thread);
+
+        List<RequestSelector.RouteStats> routes = selector.getSelection().getRoutes();
+        assertEquals(1, routes.size());
+        assertEquals("GET /orders/{id}", routes.get(0).getRoute());
+        assertEquals(2L, routes.get(0).getRequests());
+        assertEquals(2L, routes.get(0).getProfiled());
+
+        sessions.stop(session.getId(), "stop");
+        filter.doFilter(request("/orders/3", "/orders/{id}"), response, Mockito.mock(FilterChain.class));
+        Mockito.verify(asyncProfiler, Mockito.times(2)).addThread(thread);
+    }
+
+    @Test
+    public void profileSlowRequestsOnly() throws Exception {
+        ProfilingSession session = sessions.start("alice", "start,event=wall,filter", 0L, 0L);
+        selector.select(session, new RequestSelector.Criteria(null, "X-Debug", 50L));
+
+        filter.doFilter(request("/fast", "/fast"), response, (request, response) -> {
+        });
+        Mockito.verify(asyncProfiler, Mockito.never()).addThread(any());
+
+        CountDownLatch added = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            added.countDown();
+            return null;
+        }).when(asyncProfiler).addThread(any());
+        filter.doFilter(request("/slow", "/slow"), response, (request, response) -> {
+            try {
+                assertTrue(added.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Mockito.verify(asyncProfiler).removeThread(Thread.currentThread());
+
+        List<RequestSelector.RouteStats> routes = selector.getSelection().getRoutes();
+        assertEquals(2, routes.size());
+        long profiled = routes.stream().mapToLong(RequestSelector.RouteStats::getProfiled).sum();
+        assertEquals(1L, profiled);
+    }
+
+    private static HttpServletRequest request(String uri, String pattern) {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getRequestURI()).thenReturn(uri);
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(request.getHeader("X-Debug")).thenReturn("1");
+        Mockito.when(request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn(pattern);
+        return request;
+    }
+}
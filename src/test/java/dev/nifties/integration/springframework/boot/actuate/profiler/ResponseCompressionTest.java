@@ -0,0 +1,104 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCompressionTest {
+
+    private static final byte[] CONTENT = repeat("java/lang/Thread.run;com/example/Service.handle 42\n", 1_000);
+
+    @Test
+    public void negotiate() {
+        AsyncProfilerProperties.Compression properties = new AsyncProfilerProperties.Compression();
+        ResponseCompression compression = new ResponseCompression(properties, true);
+        assertNull(compression.negotiate(null));
+        assertNull(compression.negotiate("identity"));
+        assertNull(compression.negotiate("br, gzip;q=0"));
+        assertEquals("gzip", compression.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", compression.negotiate("*"));
+        assertEquals("zstd", compression.negotiate("gzip, zstd"));
+        assertEquals("gzip", compression.negotiate("gzip;q=1.0, zstd;q=0.5"));
+
+        assertEquals("gzip", new ResponseCompression(properties, false).negotiate("zstd, gzip;q=0.1"));
+
+        properties.setEnabled(false);
+        assertNull(compression.negotiate("gzip"));
+    }
+
+    @Test
+    public void zstdNativeLibraryProbed() {
+        // zstd-jni ships native libraries for the platforms tests run on
+        assertEquals("zstd", new ResponseCompression(new AsyncProfilerProperties.Compression()).negotiate("zstd"));
+    }
+
+    @Test
+    public void compressGzip() throws IOException {
+        ResponseCompression compression = new ResponseCompression(new AsyncProfilerProperties.Compression(), true);
+        ResponseEntity<?> response = compression.compress(ResponseEntity.ok().body(new ByteArrayResource(CONTENT)),
+                "gzip", "fastest");
+        assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaders().getFirst(HttpHeaders.VARY));
+        byte[] compressed = write(response);
+        assertTrue(compressed.length < CONTENT.length / 5);
+        assertArrayEquals(CONTENT, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void compressZstd() throws IOException {
+        ResponseCompression compression = new ResponseCompression(new AsyncProfilerProperties.Compression(), true);
+        ResponseEntity<?> response = compression.compress(ResponseEntity.ok().body(new ByteArrayResource(CONTENT)),
+                "zstd", null);
+        assertEquals("zstd", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        byte[] compressed = write(response);
+        assertArrayEquals(CONTENT, read(new ZstdInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void skipCompression() throws IOException {
+        ResponseCompression compression = new ResponseCompression(new AsyncProfilerProperties.Compression(), true);
+        ResponseEntity<?> small = ResponseEntity.ok().body(new ByteArrayResource(new byte[10]));
+        assertSame(small, compression.compress(small, "gzip", null));
+
+        ResponseEntity<?> large = ResponseEntity.ok().body(new ByteArrayResource(CONTENT));
+        assertSame(large, compression.compress(large, "gzip", "none"));
+        assertSame(large, compression.compress(large, null, null));
+
+        ResponseEntity<?> text = ResponseEntity.ok().body("text");
+        assertSame(text, compression.compress(text, "gzip", null));
+    }
+
+    private static byte[] write(ResponseEntity<?> response) throws IOException {
+        assertInstanceOf(StreamingResponseBody.class, response.getBody());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) response.getBody()).writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return StreamUtils.copyToByteArray(stream);
+        }
+    }
+
+    private static byte[] repeat(String line, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(line);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
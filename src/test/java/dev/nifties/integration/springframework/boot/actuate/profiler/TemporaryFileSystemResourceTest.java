@@ -0,0 +1,86 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemporaryFileSystemResourceTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void inputStreamDeletesFile() throws Exception {
+        File file = createFile(100_000);
+        TemporaryFileSystemResource resource = new TemporaryFileSystemResource(file);
+        assertFalse(resource.isFile());
+        assertEquals(100_000L, resource.contentLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = resource.getInputStream()) {
+            assertEquals(0, in.read());
+            assertEquals(9L, in.skip(9L));
+            assertEquals(100_000 - 10, in.available());
+            StreamUtils.copy(in, out);
+            assertEquals(-1, in.read());
+            assertEquals(100_000L, resource.contentLength());
+        }
+        byte[] bytes = out.toByteArray();
+        assertEquals(100_000 - 10, bytes.length);
+        assertEquals((byte) 10, bytes[0]);
+        assertEquals((byte) (99_999 % 251), bytes[bytes.length - 1]);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void readableChannelDeletesFile() throws IOException {
+        File file = createFile(1_000);
+        TemporaryFileSystemResource resource = new TemporaryFileSystemResource(file);
+
+        try (ReadableByteChannel channel = resource.readableChannel()) {
+            assertInstanceOf(FileChannel.class, channel);
+            ByteBuffer buffer = ByteBuffer.allocate(2_000);
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                assertTrue(read <= 1_000);
+            }
+            assertEquals(1_000, buffer.position());
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void streamThroughBuffer() throws IOException {
+        File file = createFile(100_000);
+        ResourceResponseBody body = new ResourceResponseBody(new TemporaryFileSystemResource(file), 16 * 1024);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        assertArrayEquals(Files.readAllBytes(directory.resolve("expected.jfr")), out.toByteArray());
+        assertFalse(file.exists());
+    }
+
+    private File createFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        File file = directory.resolve("profile.jfr").toFile();
+        Files.write(file.toPath(), content);
+        Files.write(directory.resolve("expected.jfr"), content);
+        return file;
+    }
+}
@@ -0,0 +1,123 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Indexes a real recording, so it needs the native AsyncProfiler library for the current platform.
+ */
+public class TimelineIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private static volatile Object sink;
+
+    private File jfr;
+
+    @BeforeEach
+    public void record() throws IOException {
+        AsyncProfiler asyncProfiler = null;
+        try {
+            asyncProfiler = AsyncProfiler.getInstance();
+        } catch (Throwable e) {
+            // no native library for this platform
+        }
+        Assumptions.assumeTrue(asyncProfiler != null, "AsyncProfiler is not available");
+        jfr = new File(directory.toFile(), "recording.jfr");
+        asyncProfiler.execute("start,event=itimer,alloc=1k,jfr,file=" + jfr.getAbsolutePath());
+        try {
+            allocate();
+        } finally {
+            asyncProfiler.execute("stop");
+        }
+    }
+
+    @Test
+    public void heatmapCountsAllSamples() throws IOException {
+        TimelineIndex index = TimelineIndex.build(jfr);
+        assertFalse(index.getChunks().isEmpty());
+        assertTrue(index.getBucketNanos() >= TimeUnit.MILLISECONDS.toNanos(TimelineIndex.MIN_BUCKET_MILLIS));
+        assertTrue(index.getBuckets() > 0 && index.getBuckets() <= TimelineIndex.MAX_BUCKETS);
+
+        int alloc = JfrConverter.column("alloc");
+        CallTree tree = JfrConverter.convert(jfr, false);
+        TimelineIndex.Heatmap heatmap = index.heatmap(alloc, TimeUnit.MILLISECONDS.toNanos(50L), 20);
+        assertEquals("alloc", heatmap.getEvent());
+        assertEquals(tree.getTotal(alloc), heatmap.getTotal().getTotal());
+        assertEquals(index.getBucketNanos() * Math.round(50e6d / index.getBucketNanos()) / 1e6d,
+                heatmap.getBucketMillis(), 1e-9d);
+        assertFalse(heatmap.getThreads().isEmpty());
+        assertEquals(heatmap.getTotal().getCounts().length, heatmap.getThreads().get(0).getCounts().length);
+        // the allocating test thread is the busiest one
+        long threads = 0L;
+        for (TimelineIndex.Row row : heatmap.getThreads()) {
+            assertTrue(row.getTotal() <= heatmap.getThreads().get(0).getTotal());
+            threads += row.getTotal();
+        }
+        assertEquals(heatmap.getTotal().getTotal(), threads);
+
+        assertEquals(1, index.heatmap(alloc, 0L, 1).getThreads().size());
+
+        StringWriter html = new StringWriter();
+        new HeatmapWriter().write(heatmap, "alloc <heatmap>", "../1?format=html&event=alloc", html);
+        assertTrue(html.toString().contains("alloc &lt;heatmap&gt;"));
+        assertTrue(html.toString().contains("['all threads', ["));
+    }
+
+    @Test
+    public void convertTimeRange() throws IOException {
+        TimelineIndex index = TimelineIndex.build(jfr);
+        int alloc = JfrConverter.column("alloc");
+        long all = JfrConverter.convert(jfr, false).getTotal(alloc);
+
+        CallTree whole = JfrConverter.convert(jfr, false, index.getChunks(), index.getStartNanos(),
+                index.getEndNanos() + TimeUnit.SECONDS.toNanos(1L));
+        assertEquals(all, whole.getTotal(alloc));
+
+        long middle = (index.getStartNanos() + index.getEndNanos()) / 2;
+        long first = JfrConverter.convert(jfr, false, index.getChunks(), Long.MIN_VALUE, middle).getTotal(alloc);
+        long second = JfrConverter.convert(jfr, false, index.getChunks(), middle, Long.MAX_VALUE).getTotal(alloc);
+        assertEquals(all, first + second);
+
+        assertEquals(0L, JfrConverter.convert(jfr, false, index.getChunks(), 0L, index.getStartNanos() - 1L)
+                .getTotal(alloc));
+    }
+
+    @Test
+    public void skipIncompleteChunk() throws IOException {
+        File truncated = new File(directory.toFile(), "truncated.jfr");
+        Files.copy(jfr.toPath(), truncated.toPath());
+        try (RandomAccessFile file = new RandomAccessFile(truncated, "rw")) {
+            file.setLength(file.length() - 1L);
+        }
+        try (FileChannel complete = FileChannel.open(jfr.toPath(), StandardOpenOption.READ);
+             FileChannel incomplete = FileChannel.open(truncated.toPath(), StandardOpenOption.READ)) {
+            List<JfrChunk> chunks = JfrChunk.read(complete);
+            assertEquals(chunks.size() - 1, JfrChunk.read(incomplete).size());
+            JfrChunk last = chunks.get(chunks.size() - 1);
+            assertEquals(jfr.length(), last.getOffset() + last.getSize());
+        }
+    }
+
+    private static void allocate() {
+        long deadline = System.nanoTime() + 300_000_000L;
+        while (System.nanoTime() < deadline) {
+            sink = new byte[4096];
+        }
+    }
+}
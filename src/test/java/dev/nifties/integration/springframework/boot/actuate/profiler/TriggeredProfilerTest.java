@@ -0,0 +1,233 @@
+package dev.nifties.integration.springframework.boot.actuate.profiler;
+
+import one.profiler.AsyncProfiler;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class TriggeredProfilerTest {
+
+    @TempDir
+    Path directory;
+
+    private AsyncProfiler asyncProfiler;
+    private ProfilingSessionManager sessions;
+    private MutableClock clock;
+    private FixedSignal signal;
+    private AsyncProfilerProperties.Triggers properties;
+    private TriggeredProfiler profiler;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        asyncProfiler = Mockito.mock(AsyncProfiler.class);
+        Mockito.when(asyncProfiler.execute(anyString())).then(invocation -> {
+            String command = invocation.getArgument(0);
+            int index = command.indexOf("file=");
+            if (command.startsWith("stop") && index >= 0) {
+                Files.write(new File(command.substring(index + "file=".length())).toPath(), new byte[10]);
+            }
+            return "OK";
+        });
+        sessions = new ProfilingSessionManager(asyncProfiler, new AsyncProfilerProperties.Sessions());
+        clock = new MutableClock(1_000_000L);
+        signal = new FixedSignal(0.9d);
+        properties = new AsyncProfilerProperties.Triggers();
+        properties.setDirectory(directory.toFile());
+        properties.setHoldFor(Duration.ofSeconds(10));
+        properties.setCooldown(Duration.ofMinutes(5));
+        properties.setMaxPerHour(2);
+        properties.setRetained(1);
+        profiler = new TriggeredProfiler(sessions, properties, clock, signal);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessions.destroy();
+    }
+
+    @Test
+    public void triggerAfterHoldingThreshold() throws IOException {
+        signal.value = 0.95d;
+        profiler.evaluate();
+        clock.advance(5_000L);
+        profiler.evaluate();
+        assertNull(sessions.getActiveSession());
+
+        clock.advance(5_000L);
+        profiler.evaluate();
+        ProfilingSession session = sessions.getActiveSession();
+        assertNotNull(session);
+        assertEquals("trigger:test", session.getOwner());
+
+        clock.advance(30_000L);
+        profiler.completeCapture();
+        assertNull(sessions.getActiveSession());
+        Mockito.verify(asyncProfiler).execute(Mockito.startsWith("stop,flamegraph,file="));
+        List<TriggeredProfiler.Capture> captures = profiler.getCaptures();
+        assertEquals(1, captures.size());
+        assertEquals("test", captures.get(0).getSignal());
+        assertEquals(10L, captures.get(0).getSize());
+        assertSame(captures.get(0), profiler.getCapture(captures.get(0).getId()));
+    }
+
+    @Test
+    public void htmlCaptureStopsWithFlameGraphOutput() throws IOException {
+        signal.value = 0.95d;
+        profiler.evaluate();
+        clock.advance(10_000L);
+        profiler.evaluate();
+        Mockito.verify(asyncProfiler).execute("start,event=cpu");
+
+        profiler.completeCapture();
+        File part = new File(directory.toFile(), "trigger-1010000-test.html.part");
+        Mockito.verify(asyncProfiler).execute("stop,flamegraph,file=" + part.getAbsolutePath());
+        assertTrue(profiler.getCaptures().get(0).getFile().getName().endsWith("-test.html"));
+    }
+
+    @Test
+    public void dropBelowThresholdResetsHold() {
+        signal.value = 0.95d;
+        profiler.evaluate();
+        clock.advance(8_000L);
+        signal.value = 0.5d;
+        profiler.evaluate();
+        signal.value = 0.95d;
+        clock.advance(1_000L);
+        profiler.evaluate();
+        clock.advance(5_000L);
+        profiler.evaluate();
+        assertNull(sessions.getActiveSession());
+    }
+
+    @Test
+    public void cooldownAndBudget() {
+        signal.value = 1d;
+        profiler.evaluate();
+        for (int capture = 0; capture < 2; capture++) {
+            clock.advance(10_000L);
+            profiler.evaluate();
+            assertNotNull(sessions.getActiveSession(), "capture " + capture);
+            clock.advance(30_000L);
+            profiler.completeCapture();
+
+            clock.advance(60_000L);
+            profiler.evaluate();
+            assertNull(sessions.getActiveSession(), "cooling down after capture " + capture);
+            clock.advance(5 * 60_000L);
+        }
+        // cooled down, but both captures of the hourly budget are used up
+        profiler.evaluate();
+        assertNull(sessions.getActiveSession());
+
+        clock.advance(60 * 60_000L);
+        profiler.evaluate();
+        assertNotNull(sessions.getActiveSession());
+        profiler.completeCapture();
+        assertEquals(1, profiler.getCaptures().size(), "only the most recent capture is retained");
+        assertEquals(1, directory.toFile().list().length);
+    }
+
+    @Test
+    public void skipWhileAnotherSessionIsActive() throws Exception {
+        ProfilingSession other = sessions.start("alice", "start", 0L, 0L);
+        signal.value = 1d;
+        profiler.evaluate();
+        clock.advance(10_000L);
+        profiler.evaluate();
+        assertSame(other, sessions.getActiveSession());
+
+        sessions.stop(other.getId(), "stop");
+        clock.advance(1_000L);
+        profiler.evaluate();
+        assertEquals("trigger:test", sessions.getActiveSession().getOwner());
+    }
+
+    @Test
+    public void gcSignalMeasuresShareOfTime() {
+        TriggeredProfiler.GcSignal gc = new TriggeredProfiler.GcSignal(
+                ManagementFactory.getGarbageCollectorMXBeans(), 0.5d);
+        assertEquals(0d, gc.sample(1_000L));
+        double ratio = gc.sample(2_000L);
+        assertTrue(ratio >= 0d && ratio <= 1d, "ratio " + ratio);
+    }
+
+    @Test
+    public void gcSignalIgnoresConcurrentCycles() {
+        GarbageCollectorMXBean pauses = collector("ZGC Pauses");
+        GarbageCollectorMXBean cycles = collector("ZGC Cycles");
+        TriggeredProfiler.GcSignal gc = new TriggeredProfiler.GcSignal(Arrays.asList(pauses, cycles), 0.5d);
+        assertEquals(0d, gc.sample(1_000L));
+
+        Mockito.when(pauses.getCollectionTime()).thenReturn(100L);
+        Mockito.when(cycles.getCollectionTime()).thenReturn(1_000L);
+        assertEquals(0.1d, gc.sample(2_000L), 1e-9d);
+    }
+
+    private static GarbageCollectorMXBean collector(String name) {
+        GarbageCollectorMXBean collector = Mockito.mock(GarbageCollectorMXBean.class);
+        Mockito.when(collector.getName()).thenReturn(name);
+        return collector;
+    }
+
+    private static final class FixedSignal extends TriggeredProfiler.Signal {
+        private double value;
+
+        FixedSignal(double threshold) {
+            super("test", threshold);
+        }
+
+        @Override
+        double sample(long nowMillis) {
+            return value;
+        }
+    }
+
+    private static final class MutableClock extends Clock {
+        private long millis;
+
+        MutableClock(long millis) {
+            this.millis = millis;
+        }
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}